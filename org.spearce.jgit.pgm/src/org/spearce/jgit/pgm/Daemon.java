@@ -41,6 +41,8 @@
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -57,6 +59,21 @@ class Daemon extends TextBuiltin {
 	@Option(name = "--timeout", metaVar = "SECONDS", usage = "abort connection if no activity")
 	int timeout = -1;
 
+	@Option(name = "--handshake-timeout", metaVar = "SECONDS", usage = "disconnect clients not sending a request in time")
+	int handshakeTimeout;
+
+	@Option(name = "--threads", metaVar = "N", usage = "maximum number of threads serving clients")
+	int threads;
+
+	@Option(name = "--virtual-threads", usage = "serve each client on a virtual thread")
+	boolean virtualThreads;
+
+	@Option(name = "--queue-timeout", metaVar = "SECONDS", usage = "disconnect clients waiting longer to be served")
+	int queueTimeout;
+
+	@Option(name = "--max-connections", metaVar = "SERVICE=N", usage = "limit concurrent clients of the service", multiValued = true)
+	final List<String> maxConnections = new ArrayList<String>();
+
 	@Option(name = "--enable", metaVar = "SERVICE", usage = "enable the service in all repositories", multiValued = true)
 	final List<String> enable = new ArrayList<String>();
 
@@ -90,6 +107,11 @@ protected void run() throws Exception {
 		d.setExportAll(exportAll);
 		if (0 <= timeout)
 			d.setTimeout(timeout);
+		d.setMaxThreads(threads);
+		d.setHandshakeTimeout(handshakeTimeout);
+		d.setQueueTimeout(queueTimeout);
+		if (virtualThreads)
+			d.setExecutor(newVirtualThreadExecutor());
 
 		for (final String n : enable)
 			service(d, n).setEnabled(true);
@@ -101,6 +123,18 @@ protected void run() throws Exception {
 		for (final String n : forbidOverride)
 			service(d, n).setOverridable(false);
 
+		for (final String n : maxConnections) {
+			final int eq = n.indexOf('=');
+			if (eq < 0)
+				throw die("Expected SERVICE=N, not '" + n + "'");
+			try {
+				service(d, n.substring(0, eq)).setMaxConnections(
+						Integer.parseInt(n.substring(eq + 1)));
+			} catch (NumberFormatException e) {
+				throw die("Expected SERVICE=N, not '" + n + "'");
+			}
+		}
+
 		for (final File f : directory) {
 			out.println("Exporting " + f.getAbsolutePath());
 			d.exportDirectory(f);
@@ -109,6 +143,18 @@ protected void run() throws Exception {
 		out.println("Listening on " + d.getAddress());
 	}
 
+	private Executor newVirtualThreadExecutor() {
+		// Only available on Java 21 and later, so it must be found at
+		// runtime instead of being compiled against.
+		//
+		try {
+			return (Executor) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			throw die("Virtual threads are not supported by this JVM");
+		}
+	}
+
 	private DaemonService service(final org.spearce.jgit.transport.Daemon d,
 			final String n) {
 		final DaemonService svc = d.getService(n);
@@ -73,6 +73,9 @@ void nothin(final boolean ignored) {
 		thin = Boolean.FALSE;
 	}
 
+	@Option(name = "--depth", metaVar = "n", usage = "limit fetched history to n commits")
+	private int depth;
+
 	@Argument(index = 0, metaVar = "uri-ish")
 	private String remote = "origin";
 
@@ -91,6 +94,7 @@ protected void run() throws Exception {
 			tn.setFetchThin(thin.booleanValue());
 		if (0 <= timeout)
 			tn.setTimeout(timeout);
+		tn.setFetchDepth(depth);
 		final FetchResult r;
 		try {
 			r = tn.fetch(new TextProgressMonitor(), toget);
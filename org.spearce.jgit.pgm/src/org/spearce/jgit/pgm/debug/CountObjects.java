@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.pgm.debug;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.PackWriter;
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.pgm.TextBuiltin;
+
+class CountObjects extends TextBuiltin {
+	@Option(name = "--repeat", metaVar = "n", usage = "number of times to count")
+	private int repeat = 5;
+
+	@Option(name = "--not", metaVar = "commit-ish", multiValued = true, usage = "objects the client already has")
+	private final List<ObjectId> haves = new ArrayList<ObjectId>();
+
+	@Argument(index = 0, metaVar = "commit-ish")
+	private final List<ObjectId> wants = new ArrayList<ObjectId>();
+
+	@Override
+	protected void run() throws Exception {
+		Collection<ObjectId> w = wants;
+		if (w.isEmpty()) {
+			w = new HashSet<ObjectId>();
+			for (final Ref r : db.getAllRefs().values())
+				w.add(r.getObjectId());
+		}
+
+		count("walk", w, false);
+		count("bitmaps", w, true);
+	}
+
+	private void count(final String name, final Collection<ObjectId> w,
+			final boolean useBitmaps) throws Exception {
+		int objects = 0;
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < repeat; i++) {
+			final PackWriter pw = new PackWriter(db,
+					NullProgressMonitor.INSTANCE);
+			pw.setUseBitmaps(useBitmaps);
+			pw.preparePack(w, haves);
+			objects = pw.getObjectsNumber();
+		}
+		final long end = System.currentTimeMillis();
+		out.println(name + ": " + objects + " objects, average "
+				+ ((end - start) / repeat) + " ms/count");
+	}
+}
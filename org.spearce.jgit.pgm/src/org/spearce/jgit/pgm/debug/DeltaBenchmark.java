@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.pgm.debug;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.DeltaIndex;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.pgm.TextBuiltin;
+import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevObject;
+
+class DeltaBenchmark extends TextBuiltin {
+	@Option(name = "--repeat", metaVar = "n", usage = "number of times to encode each pair")
+	private int repeat = 10;
+
+	@Option(name = "--limit", metaVar = "n", usage = "maximum number of pairs of each kind")
+	private int limit = 5000;
+
+	@Argument(index = 0, metaVar = "commit-ish")
+	private final List<ObjectId> wants = new ArrayList<ObjectId>();
+
+	@Override
+	protected void run() throws Exception {
+		Collection<ObjectId> w = wants;
+		if (w.isEmpty()) {
+			w = new HashSet<ObjectId>();
+			for (final Ref r : db.getAllRefs().values())
+				w.add(r.getObjectId());
+		}
+
+		// Group the blobs by path, newest first, as the delta search in
+		// PackWriter would compare them.
+		//
+		final ObjectWalk ow = new ObjectWalk(db);
+		for (final ObjectId id : w)
+			ow.markStart(ow.parseAny(id));
+		while (ow.next() != null) {
+			// Commits are not compared.
+		}
+		final Map<String, List<ObjectId>> paths = new LinkedHashMap<String, List<ObjectId>>();
+		RevObject o;
+		while ((o = ow.nextObject()) != null) {
+			if (o.getType() != Constants.OBJ_BLOB)
+				continue;
+			List<ObjectId> versions = paths.get(ow.getPathString());
+			if (versions == null) {
+				versions = new ArrayList<ObjectId>();
+				paths.put(ow.getPathString(), versions);
+			}
+			versions.add(o.copy());
+		}
+
+		final List<byte[][]> similar = new ArrayList<byte[][]>();
+		final List<byte[][]> unrelated = new ArrayList<byte[][]>();
+		byte[] prior = null;
+		for (final List<ObjectId> versions : paths.values()) {
+			final byte[] newest = load(versions.get(0));
+			if (prior != null && unrelated.size() < limit)
+				unrelated.add(new byte[][] { prior, newest });
+			prior = newest;
+
+			byte[] base = newest;
+			for (int i = 1; i < versions.size() && similar.size() < limit; i++) {
+				final byte[] res = load(versions.get(i));
+				similar.add(new byte[][] { base, res });
+				base = res;
+			}
+		}
+
+		run("versions of a path", similar);
+		run("unrelated paths", unrelated);
+	}
+
+	private byte[] load(final ObjectId id) throws IOException {
+		return db.openBlob(id).getCachedBytes();
+	}
+
+	private void run(final String name, final List<byte[][]> pairs)
+			throws IOException {
+		final DeltaIndex index = new DeltaIndex();
+		final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		long bytes = 0;
+		long deltaBytes = 0;
+		long bestIndex = Long.MAX_VALUE;
+		long bestEncode = Long.MAX_VALUE;
+		for (int r = 0; r < repeat; r++) {
+			long indexTime = 0;
+			long encodeTime = 0;
+			bytes = 0;
+			deltaBytes = 0;
+			for (final byte[][] p : pairs) {
+				final long start = System.nanoTime();
+				index.index(p[0]);
+				final long indexed = System.nanoTime();
+				delta.reset();
+				index.encode(delta, p[1]);
+				final long encoded = System.nanoTime();
+
+				indexTime += indexed - start;
+				encodeTime += encoded - indexed;
+				bytes += p[1].length;
+				deltaBytes += delta.size();
+			}
+			bestIndex = Math.min(bestIndex, indexTime);
+			bestEncode = Math.min(bestEncode, encodeTime);
+		}
+
+		out.println(name + ": " + pairs.size() + " pairs, " + bytes
+				+ " bytes, " + deltaBytes + " delta bytes");
+		out.println("  index  " + (bestIndex / 1000000) + " ms, "
+				+ rate(bytes, bestIndex) + " MiB/s");
+		out.println("  encode " + (bestEncode / 1000000) + " ms, "
+				+ rate(bytes, bestEncode) + " MiB/s");
+	}
+
+	private static long rate(final long bytes, final long nanos) {
+		return nanos > 0 ? bytes * 1000000000L / nanos / (1024 * 1024) : 0;
+	}
+}
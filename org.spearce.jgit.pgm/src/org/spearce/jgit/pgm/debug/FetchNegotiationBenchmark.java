@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.pgm.debug;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.lib.RefUpdate;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.pgm.Command;
+import org.spearce.jgit.pgm.TextBuiltin;
+import org.spearce.jgit.transport.Daemon;
+import org.spearce.jgit.transport.FetchNegotiator;
+import org.spearce.jgit.transport.RefSpec;
+import org.spearce.jgit.transport.Transport;
+import org.spearce.jgit.transport.URIish;
+
+@Command(name = "debug-fetch-negotiation-benchmark", usage = "Count round trips fetching from a local daemon with each negotiator")
+class FetchNegotiationBenchmark extends TextBuiltin {
+	@Option(name = "--negotiator", metaVar = "name", multiValued = true, usage = "negotiators to compare: consecutive, skipping")
+	private final List<String> names = new ArrayList<String>();
+
+	@Option(name = "--latency", metaVar = "ms", usage = "delay added in each direction")
+	private int latency;
+
+	@Argument(index = 0, required = true, metaVar = "GIT_DIR", usage = "repository to fetch from")
+	private File remote;
+
+	@Override
+	protected void run() throws Exception {
+		if (names.isEmpty()) {
+			names.add("consecutive");
+			names.add("skipping");
+		}
+
+		final Daemon daemon = new Daemon(new InetSocketAddress(InetAddress
+				.getByName("localhost"), 0));
+		daemon.exportRepository("remote", new Repository(remote));
+		daemon.start();
+		final Relay relay = new Relay(daemon.getAddress(), latency);
+		relay.start();
+		try {
+			for (final String name : names) {
+				final FetchNegotiator.Factory f = FetchNegotiator
+						.forName(name);
+				if (f == null)
+					throw die("Unknown negotiator: " + name);
+				fetch(name, f, relay);
+			}
+		} finally {
+			relay.close();
+			daemon.stop();
+		}
+	}
+
+	private void fetch(final String name, final FetchNegotiator.Factory f,
+			final Relay relay) throws Exception {
+		// Fetch into a scratch repository sharing our objects and refs,
+		// so every run starts from the same state.
+		//
+		final File dir = File.createTempFile("bench_", ".git", db
+				.getDirectory());
+		dir.delete();
+		try {
+			new Repository(dir).create(true);
+			final File alt = new File(dir, "objects/info/alternates");
+			final OutputStream os = new FileOutputStream(alt);
+			try {
+				os.write(Constants.encode(db.getObjectsDirectory()
+						.getAbsolutePath()
+						+ "\n"));
+			} finally {
+				os.close();
+			}
+
+			final Repository scratch = new Repository(dir);
+			try {
+				for (final Ref r : db.getAllRefs().values()) {
+					if (!r.getName().startsWith(Constants.R_REFS))
+						continue;
+					final RefUpdate u = scratch.updateRef(r.getName());
+					u.setNewObjectId(r.getObjectId());
+					u.forceUpdate();
+				}
+
+				final Transport tn = Transport.open(scratch, new URIish(
+						"git://localhost:" + relay.getPort() + "/remote.git"));
+				try {
+					tn.setFetchNegotiator(f);
+					relay.reset();
+					final long start = System.currentTimeMillis();
+					tn.fetch(NullProgressMonitor.INSTANCE, Collections
+							.singleton(new RefSpec(
+									"+refs/heads/*:refs/remotes/bench/*")));
+					final long ms = System.currentTimeMillis() - start;
+					out.println(name + ": " + relay.roundTrips
+							+ " round trips, " + ms + " ms, "
+							+ (relay.received / 1024) + " KiB received");
+				} finally {
+					tn.close();
+				}
+			} finally {
+				scratch.close();
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	private static void delete(final File f) {
+		final File[] list = f.listFiles();
+		if (list != null) {
+			for (final File c : list)
+				delete(c);
+		}
+		f.delete();
+	}
+
+	/** Forwards connections to the daemon, counting round trips. */
+	private static class Relay extends Thread {
+		private final InetSocketAddress target;
+
+		private final int latency;
+
+		private final ServerSocket listen;
+
+		/** Direction of the last data forwarded; 0 none, 1 up, 2 down. */
+		private int direction;
+
+		int roundTrips;
+
+		long received;
+
+		Relay(final InetSocketAddress target, final int latency)
+				throws IOException {
+			super("Relay");
+			setDaemon(true);
+			this.target = target;
+			this.latency = latency;
+			listen = new ServerSocket(0, 5, target.getAddress());
+		}
+
+		int getPort() {
+			return listen.getLocalPort();
+		}
+
+		synchronized void reset() {
+			direction = 0;
+			roundTrips = 0;
+			received = 0;
+		}
+
+		synchronized void forwarded(final int dir, final int cnt) {
+			if (dir == 2) {
+				if (direction == 1)
+					roundTrips++;
+				received += cnt;
+			}
+			direction = dir;
+		}
+
+		void close() throws IOException {
+			listen.close();
+		}
+
+		public void run() {
+			try {
+				for (;;) {
+					final Socket c = listen.accept();
+					final Socket s = new Socket(target.getAddress(), target
+							.getPort());
+					pump(c.getInputStream(), s.getOutputStream(), 1);
+					pump(s.getInputStream(), c.getOutputStream(), 2);
+				}
+			} catch (IOException e) {
+				// Closed.
+			}
+		}
+
+		private void pump(final InputStream in, final OutputStream os,
+				final int dir) {
+			final Thread t = new Thread("Relay-" + dir) {
+				public void run() {
+					final byte[] buf = new byte[8192];
+					try {
+						int n;
+						while ((n = in.read(buf)) > 0) {
+							forwarded(dir, n);
+							if (latency > 0)
+								Thread.sleep(latency);
+							os.write(buf, 0, n);
+							os.flush();
+						}
+					} catch (IOException e) {
+						// Connection closed.
+					} catch (InterruptedException e) {
+						// Stop forwarding.
+					} finally {
+						try {
+							os.close();
+						} catch (IOException e) {
+							// Ignore close errors.
+						}
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+}
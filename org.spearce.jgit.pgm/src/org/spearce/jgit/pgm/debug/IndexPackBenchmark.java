@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.pgm.debug;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.pgm.Command;
+import org.spearce.jgit.pgm.TextBuiltin;
+import org.spearce.jgit.transport.IndexPack;
+
+@Command(name = "debug-index-pack-benchmark", usage = "Compare the time to index a pack with different numbers of threads")
+class IndexPackBenchmark extends TextBuiltin {
+	@Option(name = "--threads", metaVar = "n", multiValued = true, usage = "threads resolving deltas to compare; 0 for one per processor")
+	private final List<Integer> threads = new ArrayList<Integer>();
+
+	@Option(name = "--repeat", metaVar = "n", usage = "number of times to index the pack")
+	private int repeat = 3;
+
+	@Argument(index = 0, required = true, metaVar = "pack")
+	private File pack;
+
+	@Override
+	protected void run() throws Exception {
+		if (threads.isEmpty()) {
+			threads.add(1);
+			threads.add(0);
+		}
+
+		final File tmp = File.createTempFile("bench_", "", db
+				.getObjectsDirectory());
+		try {
+			for (final int n : threads)
+				index(tmp, n);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private void index(final File tmp, final int n) throws IOException {
+		final File dstPack = new File(tmp.getPath() + ".pack");
+		final File dstIdx = new File(tmp.getPath() + ".idx");
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < repeat; i++) {
+			final long start = System.nanoTime();
+			final InputStream in = new BufferedInputStream(
+					new FileInputStream(pack), IndexPack.BUFFER_SIZE);
+			try {
+				final IndexPack ip = new IndexPack(db, in, tmp);
+				ip.setThreads(n);
+				ip.index(NullProgressMonitor.INSTANCE);
+			} finally {
+				in.close();
+				dstPack.delete();
+				dstIdx.delete();
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		final long bytes = pack.length();
+		out.println("threads " + n + ": " + (best / 1000000) + " ms, "
+				+ (bytes * 1000000000L / best / (1024 * 1024)) + " MiB/s");
+	}
+}
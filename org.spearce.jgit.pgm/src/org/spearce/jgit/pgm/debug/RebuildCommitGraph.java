@@ -53,11 +53,11 @@
 import org.kohsuke.args4j.Option;
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.errors.ObjectWritingException;
+import org.spearce.jgit.lib.BatchObjectWriter;
 import org.spearce.jgit.lib.Commit;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.LockFile;
 import org.spearce.jgit.lib.ObjectId;
-import org.spearce.jgit.lib.ObjectWriter;
 import org.spearce.jgit.lib.PersonIdent;
 import org.spearce.jgit.lib.ProgressMonitor;
 import org.spearce.jgit.lib.Ref;
@@ -168,7 +168,18 @@ private void recreateCommitGraph() throws IOException {
 		}
 
 		pm.beginTask("Rewriting commits", queue.size());
-		final ObjectWriter ow = new ObjectWriter(db);
+		final BatchObjectWriter ow = new BatchObjectWriter(db);
+		try {
+			rewrite(ow, queue, toRewrite);
+			ow.flush();
+		} finally {
+			ow.release();
+		}
+		pm.endTask();
+	}
+
+	private void rewrite(final BatchObjectWriter ow, List<ToRewrite> queue,
+			final Map<ObjectId, ToRewrite> toRewrite) throws IOException {
 		final ObjectId emptyTree = ow.writeTree(new Tree(db));
 		final PersonIdent me = new PersonIdent("jgit rebuild-commitgraph",
 				"rebuild-commitgraph@localhost");
@@ -207,7 +218,6 @@ private void recreateCommitGraph() throws IOException {
 				pm.update(1);
 			}
 		}
-		pm.endTask();
 	}
 
 	private static class ToRewrite {
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.pgm.debug;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.PackWriter;
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.lib.TextProgressMonitor;
+import org.spearce.jgit.pgm.TextBuiltin;
+
+class WriteBitmaps extends TextBuiltin {
+	@Override
+	protected void run() throws Exception {
+		final Set<ObjectId> tips = new HashSet<ObjectId>();
+		for (final Ref r : db.getAllRefs().values())
+			tips.add(r.getObjectId());
+
+		final PackWriter pw = new PackWriter(db, new TextProgressMonitor());
+		pw.preparePack(tips, null);
+
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final String base = "pack-" + pw.computeName().name();
+		final File packFile = new File(packDir, base + ".pack");
+		final File idxFile = new File(packDir, base + ".idx");
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(
+				packFile));
+		try {
+			pw.writePack(os);
+		} finally {
+			os.close();
+		}
+
+		os = new BufferedOutputStream(new FileOutputStream(new File(packDir,
+				base + ".bitmap")));
+		try {
+			pw.writeBitmapIndex(os);
+		} finally {
+			os.close();
+		}
+
+		// Write the index last, so the pack is not picked up by readers
+		// before its bitmaps exist.
+		//
+		os = new BufferedOutputStream(new FileOutputStream(idxFile));
+		try {
+			pw.writeIndex(os);
+		} finally {
+			os.close();
+		}
+		db.openPack(packFile, idxFile);
+		out.println(base);
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+
+public class BatchObjectWriterTest extends RepositoryTestCase {
+	private BatchObjectWriter writer;
+
+	private File packDir;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		writer = new BatchObjectWriter(db);
+		packDir = new File(db.getObjectsDirectory(), "pack");
+	}
+
+	public void tearDown() throws Exception {
+		writer.release();
+		super.tearDown();
+	}
+
+	public void testFlushCreatesOnePack() throws Exception {
+		final int before = packDir.list().length;
+		final ObjectId[] blobs = new ObjectId[50];
+		for (int i = 0; i < blobs.length; i++)
+			blobs[i] = writer.writeBlob(Constants.encode("batch blob " + i));
+		final Tree t = new Tree(db);
+		t.addFile("a").setId(blobs[0]);
+		t.addFile("b").setId(blobs[1]);
+		final ObjectId tree = writer.writeTree(t);
+		assertEquals(blobs.length + 1, writer.getObjectCount());
+
+		for (final ObjectId id : blobs)
+			assertFalse(db.toFile(id).exists());
+		assertFalse(db.toFile(tree).exists());
+
+		writer.flush();
+		assertEquals(0, writer.getObjectCount());
+		assertEquals(before + 2, packDir.list().length);
+		for (final String n : packDir.list())
+			assertFalse(n, n.startsWith("incoming_"));
+
+		for (int i = 0; i < blobs.length; i++) {
+			assertFalse(db.toFile(blobs[i]).exists());
+			final ObjectLoader ldr = db.openBlob(blobs[i]);
+			assertEquals(Constants.OBJ_BLOB, ldr.getType());
+			assertEquals("batch blob " + i, new String(ldr.getCachedBytes(),
+					"UTF-8"));
+		}
+		final Tree read = db.mapTree(tree);
+		assertEquals(blobs[0], read.findBlobMember("a").getId());
+		assertEquals(blobs[1], read.findBlobMember("b").getId());
+	}
+
+	public void testSkipsDuplicates() throws Exception {
+		final ObjectId a = writer.writeBlob(Constants.encode("dup"));
+		final ObjectId b = writer.writeBlob(Constants.encode("dup"));
+		assertEquals(a, b);
+		assertEquals(1, writer.getObjectCount());
+
+		// Already in the repository from the test packs.
+		final ObjectId existing = writer.writeTree(db.mapTree("a"));
+		assertEquals(db.resolve("a^{tree}"), existing);
+		assertEquals(1, writer.getObjectCount());
+
+		writer.flush();
+		assertTrue(db.hasObject(a));
+	}
+
+	public void testLargeObject() throws Exception {
+		final byte[] data = new byte[3 * 1024 * 1024];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 31 + (i >>> 12));
+		final ObjectId a = writer.writeBlob(data);
+		final ObjectId b = writer.writeBlob(data);
+		assertEquals(a, b);
+		assertEquals(1, writer.getObjectCount());
+
+		writer.flush();
+		final byte[] read = db.openBlob(a).getCachedBytes();
+		assertEquals(data.length, read.length);
+		for (int i = 0; i < data.length; i++)
+			assertEquals(data[i], read[i]);
+	}
+
+	public void testEmptyFlush() throws Exception {
+		final int before = packDir.list().length;
+		writer.flush();
+		writer.writeBlob(Constants.encode("test"));
+		writer.release();
+		writer.flush();
+		assertEquals(before, packDir.list().length);
+	}
+
+	public void testReleaseDiscards() throws Exception {
+		final ObjectId id = writer.writeBlob(Constants.encode("discarded"));
+		writer.release();
+		assertFalse(db.hasObject(id));
+		assertEquals(0, writer.getObjectCount());
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DeltaIndexTest extends TestCase {
+	private Random rng;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		rng = new Random(0xdeadbeef);
+	}
+
+	public void testInsertWholeObject_Empty() throws Exception {
+		final byte[] res = random(200);
+		final byte[] delta = delta(new byte[0], res);
+		assertTrue(Arrays.equals(res, BinaryDelta.apply(new byte[0], delta)));
+	}
+
+	public void testCopyWholeObject() throws Exception {
+		final byte[] base = random(1000);
+		final byte[] delta = delta(base, base);
+		assertTrue(Arrays.equals(base, BinaryDelta.apply(base, delta)));
+		assertTrue(delta.length < 16);
+	}
+
+	public void testInsertFrontAndMiddle() throws Exception {
+		final byte[] base = random(4000);
+		final ByteArrayOutputStream res = new ByteArrayOutputStream();
+		res.write(random(10));
+		res.write(base, 0, 1000);
+		res.write(random(37));
+		res.write(base, 1000, 3000);
+		final byte[] r = res.toByteArray();
+		final byte[] delta = delta(base, r);
+		assertTrue(Arrays.equals(r, BinaryDelta.apply(base, delta)));
+		assertTrue(delta.length < 100);
+	}
+
+	public void testUnalignedCopy() throws Exception {
+		final byte[] base = random(2048);
+		final byte[] res = new byte[2000];
+		System.arraycopy(base, 7, res, 0, res.length);
+		final byte[] delta = delta(base, res);
+		assertTrue(Arrays.equals(res, BinaryDelta.apply(base, delta)));
+		assertTrue(delta.length < 20);
+	}
+
+	public void testLargeCopy() throws Exception {
+		final byte[] base = random(3 * DeltaEncoder.MAX_COPY_CMD_SIZE + 5);
+		final byte[] delta = delta(base, base);
+		assertTrue(Arrays.equals(base, BinaryDelta.apply(base, delta)));
+	}
+
+	public void testLargeInsert() throws Exception {
+		final byte[] base = random(100);
+		final byte[] res = random(1000);
+		final byte[] delta = delta(base, res);
+		assertTrue(Arrays.equals(res, BinaryDelta.apply(base, delta)));
+	}
+
+	public void testLimit() throws Exception {
+		final byte[] base = random(1000);
+		final byte[] res = random(1000);
+		final DeltaIndex idx = new DeltaIndex(base);
+		assertFalse(idx.encode(new ByteArrayOutputStream(), res, 500));
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(idx.encode(out, base, 500));
+		assertTrue(Arrays.equals(base, BinaryDelta.apply(base, out
+				.toByteArray())));
+	}
+
+	public void testRepeatedBlocks() throws Exception {
+		final byte[] base = new byte[4096];
+		Arrays.fill(base, (byte) 'a');
+		final byte[] res = new byte[5000];
+		Arrays.fill(res, (byte) 'a');
+		final byte[] delta = delta(base, res);
+		assertTrue(Arrays.equals(res, BinaryDelta.apply(base, delta)));
+		assertTrue(delta.length < 20);
+	}
+
+	public void testReuseIndex() throws Exception {
+		final DeltaIndex idx = new DeltaIndex();
+		final byte[] small = random(100);
+		final byte[] large = random(20000);
+		final byte[][] bases = { large, small, large, new byte[0], small };
+		for (final byte[] base : bases) {
+			idx.index(base);
+			assertEquals(base.length, idx.getSourceSize());
+
+			final ByteArrayOutputStream res = new ByteArrayOutputStream();
+			res.write(random(20));
+			res.write(base);
+			final byte[] r = res.toByteArray();
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			idx.encode(out, r);
+			assertTrue(Arrays.equals(r, BinaryDelta.apply(base, out
+					.toByteArray())));
+		}
+	}
+
+	private static byte[] delta(final byte[] base, final byte[] res)
+			throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new DeltaIndex(base).encode(out, res);
+		return out.toByteArray();
+	}
+
+	private byte[] random(final int len) {
+		final byte[] r = new byte[len];
+		rng.nextBytes(r);
+		return r;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayInputStream;
+
+public class MissingObjectCacheTest extends RepositoryTestCase {
+	private final ObjectId a = ObjectId
+			.fromString("0123456789012345678901234567890123456789");
+
+	private final ObjectId b = ObjectId
+			.fromString("9876543210987654321098765432109876543210");
+
+	public void testEmpty() {
+		final MissingObjectCache c = new MissingObjectCache();
+		assertFalse(c.isMissing(a, 0));
+	}
+
+	public void testAdd() {
+		final MissingObjectCache c = new MissingObjectCache();
+		c.add(a, 1);
+		assertTrue(c.isMissing(a, 1));
+		assertFalse(c.isMissing(b, 1));
+	}
+
+	public void testStampChangeInvalidates() {
+		final MissingObjectCache c = new MissingObjectCache();
+		c.add(a, 1);
+		assertFalse(c.isMissing(a, 2));
+		c.add(b, 2);
+		assertTrue(c.isMissing(b, 2));
+		assertFalse(c.isMissing(a, 2));
+	}
+
+	public void testObjectWriterInvalidates() throws Exception {
+		final byte[] data = Constants.encode("not yet written");
+		final ObjectWriter ow = new ObjectWriter(db);
+		final ObjectId id = ow.computeBlobSha1(data.length,
+				new ByteArrayInputStream(data));
+		assertFalse(db.hasObject(id));
+		assertNull(db.openObject(id));
+
+		assertEquals(id, ow.writeBlob(data));
+		assertTrue(db.hasObject(id));
+		assertNotNull(db.openObject(id));
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MultiPackIndexTest extends RepositoryTestCase {
+	private PackFile[] packs;
+
+	protected void configure() {
+		final WindowCacheConfig c = new WindowCacheConfig();
+		c.setPackedGitLimit(128 * WindowCacheConfig.KB);
+		c.setPackedGitWindowSize(8 * WindowCacheConfig.KB);
+		c.setPackedGitMMAP("true".equals(System.getProperty("jgit.junit.usemmap")));
+		c.setMultiPackIndex(true);
+		c.setDeltaBaseCacheLimit(8 * WindowCacheConfig.KB);
+		WindowCache.reconfigure(c);
+	}
+
+	public void setUp() throws Exception {
+		super.setUp();
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final List<PackFile> r = new ArrayList<PackFile>();
+		final String[] names = packDir.list();
+		Arrays.sort(names);
+		for (final String n : names) {
+			if (!n.endsWith(".pack"))
+				continue;
+			final String base = n.substring(0, n.length() - 5);
+			r.add(new PackFile(new File(packDir, base + ".idx"), new File(
+					packDir, n)));
+		}
+		packs = r.toArray(new PackFile[r.size()]);
+		assertTrue(packs.length >= MultiPackIndex.MIN_PACKS + 1);
+	}
+
+	protected void tearDown() throws Exception {
+		for (final PackFile p : packs)
+			p.close();
+		super.tearDown();
+	}
+
+	public void testTooFewPacks() throws Exception {
+		final PackFile[] few = new PackFile[MultiPackIndex.MIN_PACKS - 1];
+		System.arraycopy(packs, 0, few, 0, few.length);
+		assertNull(MultiPackIndex.update(null, few));
+	}
+
+	public void testFindAll() throws Exception {
+		final MultiPackIndex midx = MultiPackIndex.update(null, packs);
+		assertNotNull(midx);
+		assertAllFound(midx, packs);
+	}
+
+	public void testFindMissing() throws Exception {
+		final MultiPackIndex midx = MultiPackIndex.update(null, packs);
+		assertEquals(-1, midx.find(ObjectId
+				.fromString("0000000000000000000000000000000000000000")));
+		assertEquals(-1, midx.find(ObjectId
+				.fromString("ffffffffffffffffffffffffffffffffffffffff")));
+		assertEquals(-1, midx.find(ObjectId
+				.fromString("4b825dc642cb6eb9a060e54bf8d69288fbee4905")));
+	}
+
+	public void testUpdateUnchanged() throws Exception {
+		final MultiPackIndex midx = MultiPackIndex.update(null, packs);
+		final PackFile[] reordered = packs.clone();
+		Arrays.sort(reordered, PackFile.SORT);
+		assertSame(midx, MultiPackIndex.update(midx, reordered));
+	}
+
+	public void testUpdateAddAndRemove() throws Exception {
+		final PackFile[] first = new PackFile[packs.length - 1];
+		System.arraycopy(packs, 1, first, 0, first.length);
+		final MultiPackIndex a = MultiPackIndex.update(null, first);
+		assertAllFound(a, first);
+
+		final MultiPackIndex b = MultiPackIndex.update(a, packs);
+		assertNotSame(a, b);
+		assertAllFound(b, packs);
+		assertEquals(MultiPackIndex.update(null, packs).getEntryCount(), b
+				.getEntryCount());
+
+		final PackFile[] last = new PackFile[packs.length - 1];
+		System.arraycopy(packs, 0, last, 0, last.length);
+		final MultiPackIndex c = MultiPackIndex.update(b, last);
+		assertAllFound(c, last);
+		for (final PackIndex.MutableEntry e : packs[packs.length - 1]) {
+			final long pos = c.find(e.toObjectId());
+			if (pos >= 0)
+				assertNotSame(packs[packs.length - 1], c.getPack(pos));
+		}
+	}
+
+	public void testUpdateOneAtATime() throws Exception {
+		final PackFile[] first = new PackFile[MultiPackIndex.MIN_PACKS];
+		System.arraycopy(packs, 0, first, 0, first.length);
+		MultiPackIndex midx = MultiPackIndex.update(null, first);
+		assertAllFound(midx, first);
+
+		for (int n = first.length + 1; n <= packs.length; n++) {
+			final PackFile[] some = new PackFile[n];
+			System.arraycopy(packs, 0, some, 0, n);
+			midx = MultiPackIndex.update(midx, some);
+			assertAllFound(midx, some);
+		}
+		assertEquals(MultiPackIndex.update(null, packs).getEntryCount(), midx
+				.getEntryCount());
+	}
+
+	public void testRepositoryLookup() throws Exception {
+		final WindowCursor curs = new WindowCursor();
+		try {
+			for (final PackFile p : packs) {
+				for (final PackIndex.MutableEntry e : p) {
+					final ObjectId id = e.toObjectId();
+					assertTrue(id.name(), db.hasObject(id));
+					final ObjectLoader ldr = db.openObject(curs, id);
+					assertNotNull(id.name(), ldr);
+					final PackedObjectLoader exp = p.get(curs, e.getOffset());
+					exp.materialize(curs);
+					assertEquals(exp.getType(), ldr.getType());
+					assertEquals(exp.getSize(), ldr.getSize());
+				}
+			}
+		} finally {
+			curs.release();
+		}
+		final ObjectId missing = ObjectId
+				.fromString("4b825dc642cb6eb9a060e54bf8d69288fbee4905");
+		assertFalse(db.hasObject(missing));
+		assertNull(db.openObject(curs, missing));
+	}
+
+	private static void assertAllFound(final MultiPackIndex midx,
+			final PackFile[] in) throws Exception {
+		for (final PackFile p : in) {
+			for (final PackIndex.MutableEntry e : p) {
+				final ObjectId id = e.toObjectId();
+				final long pos = midx.find(id);
+				assertTrue(id.name(), pos >= 0);
+				final PackFile found = midx.getPack(pos);
+				assertEquals(midx.getOffset(pos), found.idx().findOffset(id));
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import junit.framework.TestCase;
+
+public class ObjectToPackTableTest extends TestCase {
+	private ObjectToPackTable table;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		table = new ObjectToPackTable();
+	}
+
+	public void testAdd() {
+		for (int i = 0; i < 1000; i++)
+			assertEquals(i, table.add(id(i), 1 + i % 4, i));
+		table.trim();
+		assertEquals(1000, table.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(id(i), table.getId(i));
+			assertEquals(1 + i % 4, table.getType(i));
+			assertEquals(i, table.getPathHash(i));
+			assertFalse(table.isWritten(i));
+			assertFalse(table.isDeltaRepresentation(i));
+		}
+	}
+
+	public void testFlags() {
+		final int a = table.add(id(0), Constants.OBJ_BLOB, 0);
+		int b = a;
+		for (int d = 1; d <= ObjectToPackTable.MAX_DEPTH; d++) {
+			final int n = table.add(id(d), Constants.OBJ_TAG, 0);
+			table.setDeltaBase(n, b);
+			table.updateDeltaDepth(n);
+			b = n;
+		}
+		assertEquals(ObjectToPackTable.MAX_DEPTH, table.getDeltaDepth(b));
+		assertEquals(Constants.OBJ_TAG, table.getType(b));
+		assertFalse(table.wantWrite(b));
+		assertFalse(table.isWritten(b));
+
+		table.markWantWrite(b);
+		table.setOffset(b, 12);
+		assertTrue(table.wantWrite(b));
+		assertTrue(table.isWritten(b));
+		assertEquals(12, table.getOffset(b));
+		assertEquals(Constants.OBJ_TAG, table.getType(b));
+		assertEquals(Constants.OBJ_BLOB, table.getType(a));
+		assertFalse(table.wantWrite(a));
+	}
+
+	public void testDeltaBase() {
+		final int a = table.add(id(1), Constants.OBJ_BLOB, 0);
+		final int b = table.add(id(2), Constants.OBJ_BLOB, 0);
+		table.setDeltaBase(b, a);
+		assertTrue(table.isDeltaRepresentation(b));
+		assertEquals(a, table.getDeltaBase(b));
+		assertEquals(id(1), table.getDeltaBaseId(b));
+		table.updateDeltaDepth(b);
+		assertEquals(1, table.getDeltaDepth(b));
+
+		table.setDeltaBase(a, id(3));
+		assertEquals(-1, table.getDeltaBase(a));
+		assertEquals(id(3), table.getDeltaBaseId(a));
+
+		table.clearDeltaBase(b);
+		assertFalse(table.isDeltaRepresentation(b));
+		assertNull(table.getDeltaBaseId(b));
+
+		table.setOffset(a, 12);
+		table.setCRC(a, 0xcafebabe);
+		assertEquals(0xcafebabe, table.getCRC(a));
+	}
+
+	public void testFindPosition() {
+		final int[] sorted = new int[100];
+		for (int i = 0; i < 100; i++)
+			sorted[i] = table.add(id(99 - i), Constants.OBJ_BLOB, 0);
+		ObjectToPackTable.sort(sorted, 0, sorted.length,
+				new ObjectToPackTable.Order() {
+					int compare(final int a, final int b) {
+						return table.compare(a, b);
+					}
+				});
+		for (int i = 0; i < 100; i++) {
+			assertEquals(99 - i, sorted[i]);
+			assertEquals(i, table.findPosition(sorted, id(i)));
+		}
+		assertEquals(-1, table.findPosition(sorted, id(100)));
+	}
+
+	public void testSortIsStable() {
+		final int[] list = new int[1000];
+		for (int i = 0; i < list.length; i++)
+			list[i] = table.add(id(i), Constants.OBJ_BLOB, (i * 7) % 13);
+		ObjectToPackTable.sort(list, 0, list.length,
+				new ObjectToPackTable.Order() {
+					int compare(final int a, final int b) {
+						return table.getPathHash(a) - table.getPathHash(b);
+					}
+				});
+		for (int i = 1; i < list.length; i++) {
+			final int p = table.getPathHash(list[i - 1]);
+			final int c = table.getPathHash(list[i]);
+			assertTrue(p < c || (p == c && list[i - 1] < list[i]));
+		}
+	}
+
+	private static ObjectId id(final int n) {
+		final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		raw[0] = (byte) (n >>> 8);
+		raw[1] = (byte) n;
+		return ObjectId.fromRaw(raw);
+	}
+}
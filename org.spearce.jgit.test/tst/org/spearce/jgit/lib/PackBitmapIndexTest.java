@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevTag;
+
+public class PackBitmapIndexTest extends RepositoryTestCase {
+	private List<ObjectId> tips;
+
+	private PackFile pack;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		final Set<ObjectId> all = new HashSet<ObjectId>();
+		for (final Ref r : db.getAllRefs().values())
+			all.add(r.getObjectId());
+		tips = new ArrayList<ObjectId>(all);
+		pack = writeFullPack();
+	}
+
+	protected void tearDown() throws Exception {
+		pack.close();
+		super.tearDown();
+	}
+
+	public void testNoBitmap() throws Exception {
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final String base = "pack-34be9032ac282b11fa9babdc2b2a93ca996c9c2f";
+		final PackFile p = new PackFile(new File(packDir, base + ".idx"),
+				new File(packDir, base + ".pack"));
+		assertNull(p.getBitmapIndex());
+		p.close();
+	}
+
+	public void testBitmapsMatchWalk() throws Exception {
+		final PackBitmapIndex bitmaps = pack.getBitmapIndex();
+		assertNotNull(bitmaps);
+		assertEquals(pack.getObjectCount(), bitmaps.getObjectCount());
+
+		for (final ObjectId tip : tips) {
+			final ObjectWalk ow = new ObjectWalk(db);
+			RevObject o = ow.parseAny(tip);
+			while (o instanceof RevTag)
+				o = ((RevTag) o).getObject();
+			if (!(o instanceof RevCommit))
+				continue;
+
+			final RevCommit c = (RevCommit) o;
+			final Set<ObjectId> expect = reachable(c);
+			assertTrue(bitmaps.hasBitmap(c));
+			assertEquals(expect, toSet(bitmaps, bitmaps.getBitmap(c)));
+		}
+	}
+
+	public void testTypeBitmaps() throws Exception {
+		final PackBitmapIndex bitmaps = pack.getBitmapIndex();
+		final int[] types = { Constants.OBJ_COMMIT, Constants.OBJ_TREE,
+				Constants.OBJ_BLOB, Constants.OBJ_TAG };
+		int total = 0;
+		for (final int type : types) {
+			for (final ObjectId id : toSet(bitmaps, bitmaps
+					.getTypeBitmap(type))) {
+				assertEquals(type, db.openObject(id).getType());
+				total++;
+			}
+		}
+		assertEquals(bitmaps.getObjectCount(), total);
+	}
+
+	public void testPathHashesMatchWalk() throws Exception {
+		final ObjectWalk ow = new ObjectWalk(db);
+		ow.sort(RevSort.TOPO);
+		ow.sort(RevSort.COMMIT_TIME_DESC, true);
+		for (final ObjectId id : tips)
+			ow.markStart(ow.parseAny(id));
+		final Map<ObjectId, Integer> expect = new HashMap<ObjectId, Integer>();
+		RevObject o;
+		while ((o = ow.next()) != null)
+			expect.put(o.copy(), 0);
+		while ((o = ow.nextObject()) != null)
+			expect.put(o.copy(), ow.getPathHashCode());
+
+		final PackBitmapIndex bitmaps = pack.getBitmapIndex();
+		assertEquals(expect.size(), bitmaps.getObjectCount());
+		for (int pos = 0; pos < bitmaps.getObjectCount(); pos++) {
+			final ObjectId id = bitmaps.getObject(pos);
+			assertEquals(id.name(), expect.get(id).intValue(), bitmaps
+					.getPathHash(pos));
+		}
+	}
+
+	public void testPreparePackUsesBitmaps() throws Exception {
+		final List<ObjectId> want = new ArrayList<ObjectId>();
+		want.add(db.resolve("refs/heads/master"));
+		want.add(db.resolve("refs/tags/B"));
+		final List<ObjectId> have = new ArrayList<ObjectId>();
+		have.add(db.resolve("refs/heads/a"));
+		have.add(ObjectId.fromString("0000000000000000000000000000000000000001"));
+
+		final PackWriter walked = new PackWriter(db,
+				NullProgressMonitor.INSTANCE);
+		walked.setUseBitmaps(false);
+		walked.preparePack(want, have);
+
+		final PackWriter counted = new PackWriter(db,
+				NullProgressMonitor.INSTANCE);
+		assertTrue(counted.isUseBitmaps());
+		counted.preparePack(want, have);
+
+		// The walk may send objects the other side already has through
+		// an older commit; bitmaps leave out everything reachable from it.
+		//
+		final Set<ObjectId> reachableFromHave = reachable(have.get(0));
+		int expect = 0;
+		for (final PackIndex.MutableEntry e : pack) {
+			final ObjectId id = e.toObjectId();
+			if (walked.willInclude(id) && !reachableFromHave.contains(id)) {
+				assertTrue(id.name(), counted.willInclude(id));
+				expect++;
+			} else
+				assertFalse(id.name(), counted.willInclude(id));
+		}
+		assertTrue(expect > 0);
+		assertEquals(expect, counted.getObjectsNumber());
+		assertTrue(expect < walked.getObjectsNumber());
+	}
+
+	public void testBitmapRequiresCompletePack() throws Exception {
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.preparePack(Collections.singleton(db.resolve("refs/heads/master")),
+				Collections.singleton(db.resolve("refs/heads/a")));
+		pw.writePack(new ByteArrayOutputStream());
+		try {
+			pw.writeBitmapIndex(new ByteArrayOutputStream());
+			fail("bitmap written for an incomplete pack");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	private PackFile writeFullPack() throws IOException {
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.preparePack(tips, null);
+
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final String base = "pack-" + pw.computeName().name();
+		final File packFile = new File(packDir, base + ".pack");
+		final File idxFile = new File(packDir, base + ".idx");
+		final File bitmapFile = new File(packDir, base + ".bitmap");
+
+		FileOutputStream out = new FileOutputStream(packFile);
+		try {
+			pw.writePack(out);
+		} finally {
+			out.close();
+		}
+		out = new FileOutputStream(idxFile);
+		try {
+			pw.writeIndex(out);
+		} finally {
+			out.close();
+		}
+		out = new FileOutputStream(bitmapFile);
+		try {
+			pw.writeBitmapIndex(out);
+		} finally {
+			out.close();
+		}
+
+		db.openPack(packFile, idxFile);
+		return new PackFile(idxFile, packFile);
+	}
+
+	private Set<ObjectId> reachable(final ObjectId start) throws IOException {
+		final ObjectWalk ow = new ObjectWalk(db);
+		ow.markStart(ow.parseAny(start));
+		final Set<ObjectId> r = new HashSet<ObjectId>();
+		RevObject o;
+		while ((o = ow.next()) != null)
+			r.add(o.copy());
+		while ((o = ow.nextObject()) != null)
+			r.add(o.copy());
+		return r;
+	}
+
+	private static Set<ObjectId> toSet(final PackBitmapIndex bitmaps,
+			final long[] bits) {
+		final Set<ObjectId> r = new HashSet<ObjectId>();
+		for (int pos = 0; pos < bitmaps.getObjectCount(); pos++) {
+			if ((bits[pos >>> 6] & (1L << pos)) != 0)
+				r.add(bitmaps.getObject(pos));
+		}
+		return r;
+	}
+}
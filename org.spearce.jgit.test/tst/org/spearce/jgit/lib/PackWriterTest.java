@@ -54,6 +54,7 @@
 
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.lib.PackIndex.MutableEntry;
+import org.spearce.jgit.revwalk.ObjectWalk;
 import org.spearce.jgit.revwalk.RevObject;
 import org.spearce.jgit.revwalk.RevWalk;
 import org.spearce.jgit.transport.IndexPack;
@@ -98,6 +99,7 @@ public void testContructor() {
 		assertEquals(false, writer.isDeltaBaseAsOffset());
 		assertEquals(true, writer.isReuseDeltas());
 		assertEquals(true, writer.isReuseObjects());
+		assertEquals(true, writer.isDeltaCompress());
 		assertEquals(0, writer.getObjectsNumber());
 	}
 
@@ -108,10 +110,12 @@ public void testModifySettings() {
 		writer.setDeltaBaseAsOffset(true);
 		writer.setReuseDeltas(false);
 		writer.setReuseObjects(false);
+		writer.setDeltaCompress(false);
 
 		assertEquals(true, writer.isDeltaBaseAsOffset());
 		assertEquals(false, writer.isReuseDeltas());
 		assertEquals(false, writer.isReuseObjects());
+		assertEquals(false, writer.isDeltaCompress());
 	}
 
 	/**
@@ -181,6 +185,7 @@ public void testIgnoreNonExistingObjects() throws IOException {
 	 */
 	public void testWritePack1() throws IOException {
 		writer.setReuseDeltas(false);
+		writer.setDeltaCompress(false);
 		writeVerifyPack1();
 	}
 
@@ -193,6 +198,7 @@ public void testWritePack1() throws IOException {
 	public void testWritePack1NoObjectReuse() throws IOException {
 		writer.setReuseDeltas(false);
 		writer.setReuseObjects(false);
+		writer.setDeltaCompress(false);
 		writeVerifyPack1();
 	}
 
@@ -203,6 +209,31 @@ public void testWritePack1NoObjectReuse() throws IOException {
 	 * @throws IOException
 	 */
 	public void testWritePack2() throws IOException {
+		writer.setDeltaCompress(false);
+		writeVerifyPack2(false);
+	}
+
+	/**
+	 * Test pack writing with deltas found by delta search instead of reused
+	 * from the source pack. Pack content/preparation as in
+	 * {@link #testWritePack2()}.
+	 *
+	 * @throws IOException
+	 */
+	public void testWritePack2DeltaSearch() throws IOException {
+		writer.setReuseObjects(false);
+		writeVerifyPack2(false);
+	}
+
+	/**
+	 * Test pack writing with new deltas, delta bases referred as offsets.
+	 * Pack configuration as in {@link #testWritePack2DeltaSearch()}.
+	 *
+	 * @throws IOException
+	 */
+	public void testWritePack2DeltaSearchOffsets() throws IOException {
+		writer.setReuseObjects(false);
+		writer.setDeltaBaseAsOffset(true);
 		writeVerifyPack2(false);
 	}
 
@@ -258,6 +289,7 @@ public void testWritePack2DeltasCRC32Copy() throws IOException {
 	 */
 	public void testWritePack3() throws MissingObjectException, IOException {
 		writer.setReuseDeltas(false);
+		writer.setDeltaCompress(false);
 		final ObjectId forcedOrder[] = new ObjectId[] {
 				ObjectId.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"),
 				ObjectId.fromString("c59759f143fb1fe21c197981df75a7ee00290799"),
@@ -317,6 +349,42 @@ public void testWritePack2SizeDeltasVsNoDeltas() throws Exception {
 		assertTrue(sizePack2NoDeltas > sizePack2DeltasRefs);
 	}
 
+	/**
+	 * Test pack writing with several threads searching for deltas and
+	 * compressing objects. The pack must be identical to the one written by a
+	 * single thread in {@link #testWritePack2DeltaSearch()}.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePack2DeltaSearchThreads() throws Exception {
+		writer.setThreads(1);
+		testWritePack2DeltaSearch();
+		final byte[] single = os.toByteArray();
+		tearDown();
+		setUp();
+		writer.setThreads(4);
+		testWritePack2DeltaSearch();
+		assertTrue(Arrays.equals(single, os.toByteArray()));
+	}
+
+	/**
+	 * Compare sizes of packs created using {@link #testWritePack2()} and
+	 * {@link #testWritePack2DeltaSearch()}. The pack using deltas should be
+	 * smaller.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePack2SizeDeltaSearchVsNoDeltas() throws Exception {
+		testWritePack2();
+		final long sizePack2NoDeltas = cos.length();
+		tearDown();
+		setUp();
+		testWritePack2DeltaSearch();
+		final long sizePack2DeltaSearch = cos.length();
+
+		assertTrue(sizePack2NoDeltas > sizePack2DeltaSearch);
+	}
+
 	/**
 	 * Compare sizes of packs created using
 	 * {@link #testWritePack2DeltasReuseRefs()} and
@@ -385,6 +453,59 @@ public void testWriteIndex() throws Exception {
 		}
 	}
 
+	/**
+	 * Test copying an existing pack holding exactly the objects to write. The
+	 * pack stores the objects of each type in reverse order, which the writer
+	 * would not choose by itself, so the output is only identical if the
+	 * pack was copied.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePackWholePackReuse() throws Exception {
+		final byte[] reused = installReversedPack(
+				"82c6b885ff600be425b4ea96dee75dca255b69e7",
+				"6db9c2ebf75590eef973081736730a9ea169a0c4");
+
+		writer.setDeltaBaseAsOffset(true);
+		final LinkedList<ObjectId> interestings = new LinkedList<ObjectId>();
+		interestings.add(ObjectId
+				.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"));
+		interestings.add(ObjectId
+				.fromString("6db9c2ebf75590eef973081736730a9ea169a0c4"));
+		createVerifyOpenPack(interestings, EMPTY_LIST_OBJECT, false, false);
+
+		assertTrue(Arrays.equals(reused, os.toByteArray()));
+	}
+
+	/**
+	 * Test copying an existing pack, then writing the remaining objects one
+	 * at a time.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePackWholePackReuseRemainder() throws Exception {
+		final byte[] reused = installReversedPack(
+				"82c6b885ff600be425b4ea96dee75dca255b69e7",
+				"6db9c2ebf75590eef973081736730a9ea169a0c4");
+
+		writer.setDeltaBaseAsOffset(true);
+		final LinkedList<ObjectId> interestings = new LinkedList<ObjectId>();
+		interestings.add(ObjectId
+				.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"));
+		interestings.add(ObjectId
+				.fromString("6db9c2ebf75590eef973081736730a9ea169a0c4"));
+		interestings.add(ObjectId
+				.fromString("47d3697c3747e8184e0dc479ccbd01e359023577"));
+		createVerifyOpenPack(interestings, EMPTY_LIST_OBJECT, false, false);
+
+		final byte[] written = os.toByteArray();
+		assertTrue(written.length > reused.length);
+		for (int i = 12; i < reused.length - 20; i++)
+			assertEquals(reused[i], written[i]);
+		assertTrue(pack.hasObject(ObjectId
+				.fromString("47d3697c3747e8184e0dc479ccbd01e359023577")));
+	}
+
 	// TODO: testWritePackDeltasCycle()
 	// TODO: testWritePackDeltasDepth()
 
@@ -427,7 +548,7 @@ private void writeVerifyPack2(boolean deltaReuse) throws IOException {
 				ObjectId.fromString("902d5476fa249b7abc9d84c611577a81381f0327"),
 				ObjectId.fromString("5b6e7c66c276e7610d4a73c70ec1a1f7c1003259"),
 				ObjectId.fromString("6ff87c4664981e4397625791c8ea3bbb5f2279a3") };
-		if (deltaReuse) {
+		if (deltaReuse || writer.isDeltaCompress()) {
 			// objects order influenced (swapped) by delta-base first rule
 			ObjectId temp = expectedOrder[4];
 			expectedOrder[4] = expectedOrder[5];
@@ -469,6 +590,41 @@ private void writeVerifyPack4(final boolean thin) throws IOException {
 				.computeName().name());
 	}
 
+	/**
+	 * Store the objects reachable from some commits in a new pack of the
+	 * repository, in reverse order, and reset the writer and its output.
+	 *
+	 * @return content of the new pack.
+	 */
+	private byte[] installReversedPack(final String... starts)
+			throws IOException {
+		final ObjectWalk ow = new ObjectWalk(db);
+		for (final String id : starts)
+			ow.markStart(ow.parseCommit(ObjectId.fromString(id)));
+		final List<RevObject> objects = new ArrayList<RevObject>();
+		RevObject o;
+		while ((o = ow.next()) != null)
+			objects.add(o);
+		while ((o = ow.nextObject()) != null)
+			objects.add(o);
+		Collections.reverse(objects);
+		createVerifyOpenPack(objects.iterator());
+
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final String name = "pack-" + writer.computeName().name();
+		final File p = new File(packDir, name + ".pack");
+		final File i = new File(packDir, name + ".idx");
+		assertTrue(packFile.renameTo(p));
+		assertTrue(indexFile.renameTo(i));
+		db.openPack(p, i);
+
+		final byte[] content = os.toByteArray();
+		os = new ByteArrayOutputStream();
+		cos = new PackOutputStream(os);
+		writer = new PackWriter(db, new TextProgressMonitor());
+		return content;
+	}
+
 	private void createVerifyOpenPack(final Collection<ObjectId> interestings,
 			final Collection<ObjectId> uninterestings, final boolean thin,
 			final boolean ignoreMissingUninteresting)
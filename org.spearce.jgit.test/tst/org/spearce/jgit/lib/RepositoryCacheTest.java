@@ -39,6 +39,9 @@
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.spearce.jgit.errors.RepositoryNotFoundException;
 import org.spearce.jgit.lib.RepositoryCache.FileKey;
@@ -123,4 +126,56 @@ public void testCacheOpen() throws Exception {
 		d2.close();
 		d2.close();
 	}
+
+	public void testPreloadLoadsEveryPack() throws Exception {
+		final Repository d2 = new Repository(db.getDirectory());
+		final ObjectDirectory odb = (ObjectDirectory) d2.getObjectDatabase();
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		odb.preload(new Executor() {
+			public void execute(final Runnable task) {
+				tasks.add(task);
+			}
+		});
+		assertTrue(tasks.size() > 0);
+		assertEquals(odb.packs().length, tasks.size());
+		for (final PackFile p : odb.packs())
+			assertFalse(p.isIndexLoaded());
+		for (final Runnable task : tasks)
+			task.run();
+		for (final PackFile p : odb.packs())
+			assertTrue(p.isIndexLoaded());
+		assertNotNull(d2.mapCommit("refs/heads/master"));
+		d2.close();
+	}
+
+	public void testCacheOpenPreloads() throws Exception {
+		final WindowCacheConfig c = new WindowCacheConfig();
+		c.setPackedIndexPreloadThreads(2);
+		WindowCache.reconfigure(c);
+		try {
+			final FileKey loc = FileKey.exact(db.getDirectory());
+			final Repository d2 = RepositoryCache.open(loc);
+			assertNotSame(db, d2);
+			assertPacksLoaded((ObjectDirectory) d2.getObjectDatabase());
+			assertNotNull(d2.mapCommit("refs/heads/master"));
+			d2.close();
+			d2.close();
+		} finally {
+			configure();
+		}
+	}
+
+	private static void assertPacksLoaded(final ObjectDirectory odb)
+			throws InterruptedException {
+		final PackFile[] packs = odb.packs();
+		assertTrue(packs.length > 0);
+		final long deadline = System.currentTimeMillis() + 10000;
+		for (final PackFile p : packs) {
+			while (!p.isIndexLoaded()) {
+				assertTrue("index not preloaded: " + p.getPackFile(),
+						System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		}
+	}
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class ZlibCacheTest extends RepositoryTestCase {
+	protected void tearDown() throws Exception {
+		configure();
+		super.tearDown();
+	}
+
+	public void testInflaterReused() {
+		final Inflater a = InflaterCache.get();
+		InflaterCache.release(a);
+		assertSame(a, InflaterCache.get());
+		InflaterCache.release(a);
+	}
+
+	public void testDeflaterLevel() throws Exception {
+		final byte[] data = new byte[4096];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i % 13);
+
+		final byte[] stored = deflate(Deflater.NO_COMPRESSION, data);
+		final byte[] best = deflate(Deflater.BEST_COMPRESSION, data);
+		assertTrue(stored.length > data.length);
+		assertTrue(best.length < data.length / 10);
+
+		final Inflater inf = InflaterCache.get();
+		try {
+			inf.setInput(best);
+			final byte[] out = new byte[data.length];
+			assertEquals(data.length, inf.inflate(out));
+			assertTrue(inf.finished());
+			for (int i = 0; i < data.length; i++)
+				assertEquals(data[i], out[i]);
+		} finally {
+			InflaterCache.release(inf);
+		}
+	}
+
+	public void testOpenCountLimitedByCacheSize() {
+		final WindowCacheConfig c = new WindowCacheConfig();
+		c.setZlibCacheSize(1);
+		WindowCache.reconfigure(c);
+
+		final int before = InflaterCache.getOpenCount();
+		final Inflater[] all = new Inflater[5];
+		for (int i = 0; i < all.length; i++)
+			all[i] = InflaterCache.get();
+		assertEquals(before + all.length, InflaterCache.getOpenCount());
+
+		for (final Inflater i : all)
+			InflaterCache.release(i);
+		assertEquals(before + 1, InflaterCache.getOpenCount());
+
+		WindowCache.reconfigure(c);
+		assertEquals(before, InflaterCache.getOpenCount());
+	}
+
+	public void testConcurrentUse() throws Exception {
+		final int before = DeflaterCache.getOpenCount();
+		final Thread[] threads = new Thread[8];
+		final Throwable[] errors = new Throwable[threads.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 200; i++)
+							deflate(Deflater.DEFAULT_COMPRESSION, new byte[64]);
+					} catch (Throwable e) {
+						errors[id] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (final Thread t : threads)
+			t.join();
+		for (final Throwable e : errors)
+			if (e != null)
+				throw new Exception(e);
+
+		final int cap = new WindowCacheConfig().getZlibCacheSize();
+		assertTrue(DeflaterCache.getOpenCount() <= before + cap);
+	}
+
+	private static byte[] deflate(final int level, final byte[] data) {
+		final Deflater def = DeflaterCache.get(level);
+		try {
+			def.setInput(data);
+			def.finish();
+			final byte[] buf = new byte[data.length + 64];
+			int n = 0;
+			while (!def.finished())
+				n += def.deflate(buf, n, buf.length - n);
+			final byte[] r = new byte[n];
+			System.arraycopy(buf, 0, r, 0, n);
+			return r;
+		} finally {
+			DeflaterCache.release(def);
+		}
+	}
+}
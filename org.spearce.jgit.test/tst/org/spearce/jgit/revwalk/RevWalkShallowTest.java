@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.revwalk;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.spearce.jgit.lib.ObjectId;
+
+public class RevWalkShallowTest extends RevWalkTestCase {
+	public void testAssumeShallowStopsTraversal() throws Exception {
+		final RevCommit a = commit();
+		final RevCommit b = commit(a);
+		final RevCommit c = commit(b);
+
+		rw.assumeShallow(Collections.singleton(b.copy()));
+		markStart(c);
+		assertCommit(c, rw.next());
+		assertCommit(b, rw.next());
+		assertNull(rw.next());
+		assertEquals(0, b.getParentCount());
+	}
+
+	public void testAssumeShallowPrunesParsedCommit() throws Exception {
+		final RevCommit a = commit();
+		final RevCommit b = commit(a);
+		final RevCommit c = commit(b);
+
+		parse(b);
+		assertEquals(1, b.getParentCount());
+		rw.assumeShallow(Collections.singleton(b.copy()));
+		assertEquals(0, b.getParentCount());
+
+		markStart(c);
+		assertCommit(c, rw.next());
+		assertCommit(b, rw.next());
+		assertNull(rw.next());
+	}
+
+	public void testRepositoryShallowFile() throws Exception {
+		final RevCommit a = commit();
+		final RevCommit b = commit(a);
+		final RevCommit c = commit(b);
+
+		final Set<ObjectId> shallow = new HashSet<ObjectId>();
+		shallow.add(b.copy());
+		db.setShallowCommits(shallow);
+		assertEquals(shallow, db.getShallowCommits());
+
+		final RevWalk walk = new RevWalk(db);
+		walk.markStart(walk.parseCommit(c));
+		assertId(c, walk.next());
+		assertId(b, walk.next());
+		assertNull(walk.next());
+
+		db.setShallowCommits(Collections.<ObjectId> emptySet());
+		assertTrue(db.getShallowCommits().isEmpty());
+		walk.dispose();
+		walk.markStart(walk.parseCommit(c));
+		assertId(c, walk.next());
+		assertId(b, walk.next());
+		assertId(a, walk.next());
+		assertNull(walk.next());
+	}
+
+	private static void assertId(final RevCommit exp, final RevCommit act) {
+		assertNotNull(act);
+		assertEquals(exp.copy(), act.copy());
+	}
+}
@@ -124,6 +124,45 @@ public void testWrite1() throws Exception {
 		}
 	}
 
+	public void testWriteIncrementalFromPreviousBundle() throws Exception {
+		final byte[] first = makeBundle("refs/heads/aa", db.resolve("a")
+				.name(), null);
+
+		// The second bundle assumes everything the first one advertised.
+		final BundleWriter bw = new BundleWriter(db,
+				NullProgressMonitor.INSTANCE);
+		bw.include("refs/heads/cc", db.resolve("c"));
+		final FetchConnection prior = new TransportBundleStream(db,
+				new URIish("in-memory://"), new ByteArrayInputStream(first))
+				.openFetch();
+		try {
+			bw.assume(prior);
+		} finally {
+			prior.close();
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bw.writeBundle(out);
+		final byte[] second = out.toByteArray();
+
+		final String hdr = new String(second, 0, 200, "UTF-8");
+		assertTrue(hdr.indexOf("\n-" + db.resolve("a").name()) > 0);
+
+		final Repository newRepo = createNewEmptyRepo();
+		fetchFromBundle(newRepo, first);
+		final FetchResult fetchResult = fetchFromBundle(newRepo, second);
+		assertEquals(db.resolve("c").name(), fetchResult.getAdvertisedRef(
+				"refs/heads/cc").getObjectId().name());
+		assertEquals(db.resolve("c").name(), newRepo.resolve("refs/heads/cc")
+				.name());
+
+		try {
+			fetchFromBundle(createNewEmptyRepo(), second);
+			fail("We should not be able to fetch from bundle with prerequisites that are not fulfilled");
+		} catch (MissingBundlePrerequisiteException e) {
+			assertTrue(e.getMessage().indexOf(db.resolve("a").name()) >= 0);
+		}
+	}
+
 	private FetchResult fetchFromBundle(final Repository newRepo,
 			final byte[] bundle) throws URISyntaxException,
 			NotSupportedException, TransportException {
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.spearce.jgit.lib.RepositoryTestCase;
+
+public class DaemonTest extends RepositoryTestCase {
+	private Daemon daemon;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		daemon = new Daemon(new InetSocketAddress(InetAddress
+				.getByName("localhost"), 0));
+		daemon.exportRepository("test", db);
+	}
+
+	protected void tearDown() throws Exception {
+		daemon.stop();
+		super.tearDown();
+	}
+
+	public void testMaxThreadsQueuesClients() throws Exception {
+		daemon.setMaxThreads(1);
+		daemon.start();
+
+		final Socket a = connect();
+		try {
+			assertTrue(readAdvertisement(a));
+			final Socket b = connect();
+			try {
+				waitFor(1, 0);
+				assertEquals(1, daemon.getActiveCount());
+
+				a.close();
+				assertTrue(readAdvertisement(b));
+				assertEquals(0, daemon.getRejectedCount());
+			} finally {
+				b.close();
+			}
+		} finally {
+			a.close();
+		}
+	}
+
+	public void testServiceLimitRejectsAfterQueueTimeout() throws Exception {
+		daemon.getService("upload-pack").setMaxConnections(1);
+		daemon.setQueueTimeout(1);
+		daemon.start();
+
+		final Socket a = connect();
+		try {
+			assertTrue(readAdvertisement(a));
+			final Socket b = connect();
+			try {
+				assertFalse(readAdvertisement(b));
+				assertEquals(1, daemon.getRejectedCount());
+				assertEquals(1, daemon.getActiveCount());
+				assertEquals(0, daemon.getQueuedCount());
+			} finally {
+				b.close();
+			}
+		} finally {
+			a.close();
+		}
+	}
+
+	public void testIdleClientDoesNotHoldThread() throws Exception {
+		daemon.setMaxThreads(1);
+		daemon.setHandshakeTimeout(1);
+		daemon.start();
+
+		final Socket idle = open();
+		try {
+			// Only half of the length header, so the request never completes.
+			idle.getOutputStream().write(new byte[] { '0', '0' });
+			idle.getOutputStream().flush();
+
+			final Socket b = connect();
+			try {
+				assertTrue(readAdvertisement(b));
+			} finally {
+				b.close();
+			}
+
+			final long start = System.currentTimeMillis();
+			assertEquals(-1, idle.getInputStream().read());
+			assertTrue(System.currentTimeMillis() - start < 5 * 1000);
+			assertEquals(0, daemon.getRejectedCount());
+		} finally {
+			idle.close();
+		}
+	}
+
+	public void testInvalidRequestIsDropped() throws Exception {
+		daemon.start();
+
+		final Socket s = open();
+		try {
+			s.getOutputStream().write("zzzzgit-upload-pack".getBytes());
+			s.getOutputStream().flush();
+			assertEquals(-1, s.getInputStream().read());
+		} finally {
+			s.close();
+		}
+	}
+
+	private Socket open() throws IOException {
+		final Socket s = new Socket(daemon.getAddress().getAddress(), daemon
+				.getAddress().getPort());
+		s.setSoTimeout(10 * 1000);
+		return s;
+	}
+
+	private Socket connect() throws IOException {
+		final Socket s = open();
+		new PacketLineOut(s.getOutputStream())
+				.writeString("git-upload-pack /test.git\0host=localhost\0");
+		return s;
+	}
+
+	private static boolean readAdvertisement(final Socket s)
+			throws IOException {
+		try {
+			return new PacketLineIn(s.getInputStream()).readString().length() > 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void waitFor(final int queued, final int rejected)
+			throws InterruptedException {
+		final long end = System.currentTimeMillis() + 10 * 1000;
+		while (System.currentTimeMillis() < end
+				&& (daemon.getQueuedCount() != queued || daemon
+						.getRejectedCount() != rejected))
+			Thread.sleep(10);
+		assertEquals(queued, daemon.getQueuedCount());
+		assertEquals(rejected, daemon.getRejectedCount());
+	}
+}
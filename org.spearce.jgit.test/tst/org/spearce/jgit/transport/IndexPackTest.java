@@ -38,16 +38,29 @@
 
 package org.spearce.jgit.transport;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+import org.spearce.jgit.lib.NullProgressMonitor;
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectIdSubclassMap;
 import org.spearce.jgit.lib.PackFile;
+import org.spearce.jgit.lib.PackWriter;
 import org.spearce.jgit.lib.RepositoryTestCase;
 import org.spearce.jgit.lib.TextProgressMonitor;
+import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
 import org.spearce.jgit.util.JGitTestUtil;
+import org.spearce.jgit.util.NB;
 
 /**
  * Test indexing of git packs. A pack is read from a stream, copied
@@ -112,4 +125,91 @@ public void test2() throws  IOException {
 			is.close();
 		}
 	}
+
+	/**
+	 * Resolving the deltas on several threads must produce the same index as
+	 * a single thread.
+	 *
+	 * @throws IOException
+	 */
+	public void testThreads() throws IOException {
+		final byte[] one = index("tmp_pack3", 1);
+		final byte[] four = index("tmp_pack4", 4);
+		assertTrue(Arrays.equals(one, four));
+
+		PackFile file = new PackFile(new File(trash, "tmp_pack4.idx"), new File(trash, "tmp_pack4.pack"));
+		assertTrue(file.hasObject(ObjectId.fromString("02ba32d3649e510002c21651936b7077aa75ffa9")));
+		assertTrue(file.hasObject(ObjectId.fromString("2675188fd86978d5bc4d7211698b2118ae3bf658")));
+	}
+
+	/**
+	 * The received objects and the links leaving the pack must be recorded
+	 * while indexing.
+	 *
+	 * @throws IOException
+	 */
+	public void testNewAndReferencedObjectIds() throws IOException {
+		final ObjectId want = db.resolve("refs/heads/c");
+		final ObjectId have = db.resolve("refs/heads/a");
+
+		final ObjectWalk ow = new ObjectWalk(db);
+		ow.markStart(ow.parseAny(want));
+		ow.markUninteresting(ow.parseAny(have));
+		final List<RevCommit> commits = new ArrayList<RevCommit>();
+		final ObjectIdSubclassMap<ObjectId> expect;
+		expect = new ObjectIdSubclassMap<ObjectId>();
+		RevCommit c;
+		while ((c = ow.next()) != null) {
+			commits.add(c);
+			expect.add(c.copy());
+		}
+		RevObject o;
+		while ((o = ow.nextObject()) != null)
+			expect.add(o.copy());
+
+		final ByteArrayOutputStream pack = new ByteArrayOutputStream();
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.preparePack(Collections.singleton(want), Collections.singleton(have));
+		pw.writePack(pack);
+
+		final IndexPack ip = new IndexPack(db, new ByteArrayInputStream(pack
+				.toByteArray()), new File(trash, "tmp_pack5"));
+		ip.setNeedNewObjectIds(true);
+		ip.setNeedReferencedObjectIds(true);
+		ip.index(NullProgressMonitor.INSTANCE);
+
+		final ObjectIdSubclassMap<ObjectId> received = ip.getNewObjectIds();
+		assertEquals(expect.size(), received.size());
+		for (final ObjectId id : expect)
+			assertNotNull(received.get(id));
+
+		final ObjectIdSubclassMap<ObjectId> referenced;
+		referenced = ip.getReferencedObjectIds();
+		assertTrue(referenced.size() > 0);
+		for (final ObjectId id : referenced) {
+			assertNull(received.get(id));
+			assertTrue(db.hasObject(id));
+		}
+		for (final RevCommit r : commits) {
+			for (final RevCommit p : r.getParents()) {
+				if (received.get(p) == null)
+					assertNotNull(referenced.get(p));
+			}
+		}
+	}
+
+	private byte[] index(final String name, final int threads)
+			throws IOException {
+		File packFile = JGitTestUtil.getTestResourceFile("pack-df2982f284bbabb6bdb59ee3fcc6eb0983e20371.pack");
+		final InputStream is = new FileInputStream(packFile);
+		try {
+			IndexPack pack = new IndexPack(db, is, new File(trash, name));
+			pack.setThreads(threads);
+			pack.index(NullProgressMonitor.INSTANCE);
+		} finally {
+			is.close();
+		}
+
+		return NB.readFully(new File(trash, name + ".idx"));
+	}
 }
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.spearce.jgit.lib.Commit;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectWriter;
+import org.spearce.jgit.lib.PackWriter;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.RepositoryTestCase;
+import org.spearce.jgit.lib.Tree;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.util.NB;
+import org.spearce.jgit.util.RawParseUtils;
+
+public class ReceivePackTest extends RepositoryTestCase {
+	private static final String ZERO = ObjectId.zeroId().name();
+
+	private ObjectId master;
+
+	private Repository src;
+
+	private ObjectWriter ow;
+
+	private boolean incremental;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		master = db.resolve("refs/heads/master");
+		src = createNewEmptyRepo();
+		ow = new ObjectWriter(src);
+	}
+
+	public void testPush() throws Exception {
+		final ObjectId b = blob("testPush");
+		final ObjectId t = tree(b);
+		final ObjectId c = commit(t, master);
+
+		final List<String> r = push(pack(c, t, b), create(c, "refs/heads/x"));
+		assertEquals("unpack ok", r.get(0));
+		assertEquals("ok refs/heads/x", r.get(1));
+		assertEquals(c, db.resolve("refs/heads/x"));
+	}
+
+	public void testPushIncremental() throws Exception {
+		incremental = true;
+		testPush();
+	}
+
+	public void testPushParallel() throws Exception {
+		db.getConfig().setInt("pack", null, "threads", 4);
+		final ObjectId b1 = blob("testPushParallel 1");
+		final ObjectId t1 = tree(b1);
+		final ObjectId c1 = commit(t1, master);
+		final ObjectId b2 = blob("testPushParallel 2");
+		final ObjectId t2 = tree(b2);
+		final ObjectId c2 = commit(t2, master);
+
+		final List<String> r = push(pack(c1, t1, b1, c2, t2, b2), create(c1,
+				"refs/heads/x"), create(c2, "refs/heads/y"));
+		assertEquals("unpack ok", r.get(0));
+		assertEquals("ok refs/heads/x", r.get(1));
+		assertEquals("ok refs/heads/y", r.get(2));
+		assertEquals(c1, db.resolve("refs/heads/x"));
+		assertEquals(c2, db.resolve("refs/heads/y"));
+	}
+
+	public void testMissingBlob() throws Exception {
+		final ObjectId b = blob("testMissingBlob");
+		final ObjectId t = tree(b);
+		final ObjectId c = commit(t, master);
+
+		final List<String> r = push(pack(c, t), create(c, "refs/heads/x"));
+		assertRejected(r, b, "refs/heads/x");
+	}
+
+	public void testMissingBlobIncremental() throws Exception {
+		incremental = true;
+		testMissingBlob();
+	}
+
+	public void testMissingBlobParallel() throws Exception {
+		db.getConfig().setInt("pack", null, "threads", 4);
+		final ObjectId b1 = blob("testMissingBlobParallel 1");
+		final ObjectId t1 = tree(b1);
+		final ObjectId c1 = commit(t1, master);
+		final ObjectId b2 = blob("testMissingBlobParallel 2");
+		final ObjectId t2 = tree(b2);
+		final ObjectId c2 = commit(t2, master);
+
+		final List<String> r = push(pack(c1, t1, b1, c2, t2), create(c1,
+				"refs/heads/x"), create(c2, "refs/heads/y"));
+		assertTrue(r.get(0), r.get(0).startsWith("unpack error "));
+		assertTrue(r.get(0), r.get(0).contains(b2.name()));
+		assertNull(db.resolve("refs/heads/x"));
+		assertNull(db.resolve("refs/heads/y"));
+	}
+
+	public void testCommitLeftByRejectedPush() throws Exception {
+		incremental = true;
+		final ObjectId b = blob("testCommitLeftByRejectedPush");
+		final ObjectId t = tree(b);
+		final ObjectId c1 = commit(t, master);
+		assertRejected(push(pack(c1, t), create(c1, "refs/heads/x")), b,
+				"refs/heads/x");
+
+		// The rejected pack stays behind, so everything the next pack
+		// refers to exists; only walking the history finds the blob
+		// that is still missing.
+		//
+		assertTrue(db.hasObject(c1));
+		final ObjectId c2 = commit(t, c1);
+		assertRejected(push(pack(c2), create(c2, "refs/heads/y")), b,
+				"refs/heads/y");
+	}
+
+	public void testSideBand() throws Exception {
+		final ObjectId b = blob("testSideBand");
+		final ObjectId t = tree(b);
+		final ObjectId c = commit(t, master);
+
+		final ReceivePack rp = newReceivePack();
+		rp.setPreReceiveHook(new PreReceiveHook() {
+			public void onPreReceive(final ReceivePack p,
+					final Collection<ReceiveCommand> commands) {
+				for (final ReceiveCommand cmd : commands)
+					p.sendMessage("checking " + cmd.getRefName());
+			}
+		});
+		final InputStream rsp = receive(rp, "report-status side-band-64k",
+				pack(c, t, b), create(c, "refs/heads/x"));
+
+		// The report travels as pkt-lines inside channel 1, and the
+		// hook's message on channel 2.
+		//
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		final ByteArrayOutputStream progress = new ByteArrayOutputStream();
+		final PacketLineIn in = new PacketLineIn(rsp);
+		int len;
+		while ((len = in.readLength()) != 0) {
+			final byte[] pkt = new byte[len - 4];
+			NB.readFully(rsp, pkt, 0, pkt.length);
+			switch (pkt[0]) {
+			case SideBandOutputStream.CH_DATA:
+				data.write(pkt, 1, pkt.length - 1);
+				break;
+			case SideBandOutputStream.CH_PROGRESS:
+				progress.write(pkt, 1, pkt.length - 1);
+				break;
+			default:
+				fail("unexpected channel " + pkt[0]);
+			}
+		}
+		assertEquals(-1, rsp.read());
+
+		final List<String> r = readReport(new ByteArrayInputStream(data
+				.toByteArray()));
+		assertEquals("unpack ok", r.get(0));
+		assertEquals("ok refs/heads/x", r.get(1));
+		assertEquals(2, r.size());
+		assertEquals("remote: checking refs/heads/x\n", RawParseUtils
+				.decode(progress.toByteArray()));
+		assertEquals(c, db.resolve("refs/heads/x"));
+	}
+
+	private void assertRejected(final List<String> r, final ObjectId missing,
+			final String ref) throws IOException {
+		assertTrue(r.get(0), r.get(0).startsWith("unpack error "));
+		assertTrue(r.get(0), r.get(0).contains(missing.name()));
+		assertEquals("ng " + ref + " n/a (unpacker error)", r.get(1));
+		assertNull(db.resolve(ref));
+	}
+
+	private ObjectId blob(final String content) throws IOException {
+		return ow.writeBlob(Constants.encode(content));
+	}
+
+	private ObjectId tree(final ObjectId blob) throws IOException {
+		final Tree t = new Tree(src);
+		t.addFile("f").setId(blob);
+		return ow.writeTree(t);
+	}
+
+	private ObjectId commit(final ObjectId tree, final ObjectId parent)
+			throws IOException {
+		final Commit c = new Commit(src);
+		c.setTreeId(tree);
+		c.setParentIds(new ObjectId[] { parent });
+		c.setAuthor(jauthor);
+		c.setCommitter(jcommitter);
+		c.setMessage("push " + tree.name() + "\n");
+		return ow.writeCommit(c);
+	}
+
+	private byte[] pack(final ObjectId... ids) throws IOException {
+		final RevWalk rw = new RevWalk(src);
+		final List<RevObject> objects = new ArrayList<RevObject>();
+		for (final ObjectId id : ids)
+			objects.add(rw.parseAny(id));
+
+		final PackWriter pw = new PackWriter(src, NullProgressMonitor.INSTANCE);
+		pw.preparePack(objects.iterator());
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		pw.writePack(out);
+		return out.toByteArray();
+	}
+
+	private static String create(final ObjectId id, final String ref) {
+		return ZERO + " " + id.name() + " " + ref;
+	}
+
+	private ReceivePack newReceivePack() {
+		final ReceivePack rp = new ReceivePack(db);
+		rp.setCheckReceivedObjects(true);
+		rp.setIncrementalConnectivityCheck(incremental);
+		return rp;
+	}
+
+	private List<String> push(final byte[] pack, final String... commands)
+			throws IOException {
+		return readReport(receive(newReceivePack(), "report-status", pack,
+				commands));
+	}
+
+	private InputStream receive(final ReceivePack rp,
+			final String capabilities, final byte[] pack,
+			final String... commands) throws IOException {
+		final ByteArrayOutputStream req = new ByteArrayOutputStream();
+		final PacketLineOut out = new PacketLineOut(req);
+		out.writeString(commands[0] + "\0" + capabilities);
+		for (int i = 1; i < commands.length; i++)
+			out.writeString(commands[i]);
+		out.end();
+		req.write(pack);
+
+		final ByteArrayOutputStream rsp = new ByteArrayOutputStream();
+		rp.receive(new ByteArrayInputStream(req.toByteArray()), rsp, null);
+
+		final InputStream r = new ByteArrayInputStream(rsp.toByteArray());
+		final PacketLineIn in = new PacketLineIn(r);
+		while (in.readString() != PacketLineIn.END) {
+			// Skip the advertisement.
+		}
+		return r;
+	}
+
+	private static List<String> readReport(final InputStream rsp)
+			throws IOException {
+		final PacketLineIn in = new PacketLineIn(rsp);
+		final List<String> r = new ArrayList<String>();
+		String line;
+		while ((line = in.readString()) != PacketLineIn.END)
+			r.add(line);
+		return r;
+	}
+}
@@ -41,6 +41,12 @@
 import java.io.IOException;
 import java.io.OutputStream;
 
+import static org.spearce.jgit.transport.SideBandOutputStream.CH_DATA;
+import static org.spearce.jgit.transport.SideBandOutputStream.CH_ERROR;
+import static org.spearce.jgit.transport.SideBandOutputStream.CH_PROGRESS;
+import static org.spearce.jgit.transport.SideBandOutputStream.HDR_SIZE;
+import static org.spearce.jgit.transport.SideBandOutputStream.MAX_BUF;
+import static org.spearce.jgit.transport.SideBandOutputStream.SMALL_BUF;
 import junit.framework.TestCase;
 
 import org.spearce.jgit.lib.Constants;
@@ -52,66 +58,122 @@
 public class SideBandOutputStreamTest extends TestCase {
 	private ByteArrayOutputStream rawOut;
 
-	private PacketLineOut pckOut;
-
 	protected void setUp() throws Exception {
 		super.setUp();
 		rawOut = new ByteArrayOutputStream();
-		pckOut = new PacketLineOut(rawOut);
 	}
 
 	public void testWrite_CH_DATA() throws IOException {
 		final SideBandOutputStream out;
-		out = new SideBandOutputStream(SideBandOutputStream.CH_DATA, pckOut);
+		out = new SideBandOutputStream(CH_DATA, MAX_BUF, rawOut);
 		out.write(new byte[] { 'a', 'b', 'c' });
+		out.flush();
 		assertBuffer("0008\001abc");
 	}
 
 	public void testWrite_CH_PROGRESS() throws IOException {
 		final SideBandOutputStream out;
-		out = new SideBandOutputStream(SideBandOutputStream.CH_PROGRESS, pckOut);
+		out = new SideBandOutputStream(CH_PROGRESS, MAX_BUF, rawOut);
 		out.write(new byte[] { 'a', 'b', 'c' });
+		out.flush();
 		assertBuffer("0008\002abc");
 	}
 
 	public void testWrite_CH_ERROR() throws IOException {
 		final SideBandOutputStream out;
-		out = new SideBandOutputStream(SideBandOutputStream.CH_ERROR, pckOut);
+		out = new SideBandOutputStream(CH_ERROR, MAX_BUF, rawOut);
 		out.write(new byte[] { 'a', 'b', 'c' });
+		out.flush();
 		assertBuffer("0008\003abc");
 	}
 
 	public void testWrite_Small() throws IOException {
 		final SideBandOutputStream out;
-		out = new SideBandOutputStream(SideBandOutputStream.CH_DATA, pckOut);
+		out = new SideBandOutputStream(CH_DATA, MAX_BUF, rawOut);
+		out.write('a');
+		out.write('b');
+		out.write('c');
+		assertBuffer("");
+		out.flush();
+		assertBuffer("0008\001abc");
+	}
+
+	public void testWrite_SmallBlocks1() throws IOException {
+		final SideBandOutputStream out;
+		out = new SideBandOutputStream(CH_DATA, 6, rawOut);
 		out.write('a');
 		out.write('b');
 		out.write('c');
+		out.flush();
+		assertBuffer("0006\001a0006\001b0006\001c");
+	}
+
+	public void testWrite_SmallBlocks2() throws IOException {
+		final SideBandOutputStream out;
+		out = new SideBandOutputStream(CH_DATA, 6, rawOut);
+		out.write(new byte[] { 'a', 'b', 'c' });
+		out.flush();
 		assertBuffer("0006\001a0006\001b0006\001c");
 	}
 
+	public void testWrite_SmallBlocks3() throws IOException {
+		final SideBandOutputStream out;
+		out = new SideBandOutputStream(CH_DATA, 7, rawOut);
+		out.write('a');
+		out.write(new byte[] { 'b', 'c' });
+		out.flush();
+		assertBuffer("0007\001ab0006\001c");
+	}
+
 	public void testWrite_Large() throws IOException {
-		final int buflen = SideBandOutputStream.MAX_BUF
-				- SideBandOutputStream.HDR_SIZE;
+		final int buflen = MAX_BUF - HDR_SIZE;
 		final byte[] buf = new byte[buflen];
 		for (int i = 0; i < buf.length; i++) {
 			buf[i] = (byte) i;
 		}
 
 		final SideBandOutputStream out;
-		out = new SideBandOutputStream(SideBandOutputStream.CH_DATA, pckOut);
+		out = new SideBandOutputStream(CH_DATA, MAX_BUF, rawOut);
 		out.write(buf);
+		out.flush();
 
 		final byte[] act = rawOut.toByteArray();
-		final String explen = Integer.toString(buf.length + 5, 16);
-		assertEquals(5 + buf.length, act.length);
+		final String explen = Integer.toString(buf.length + HDR_SIZE, 16);
+		assertEquals(HDR_SIZE + buf.length, act.length);
 		assertEquals(new String(act, 0, 4, "UTF-8"), explen);
 		assertEquals(1, act[4]);
-		for (int i = 0, j = 5; i < buf.length; i++, j++) {
+		for (int i = 0, j = HDR_SIZE; i < buf.length; i++, j++) {
 			assertEquals(buf[i], act[j]);
 		}
 	}
 
+	public void testWrite_SplitsLarge() throws IOException {
+		final int buflen = 2 * (MAX_BUF - HDR_SIZE) + 10;
+		final byte[] buf = new byte[buflen];
+		for (int i = 0; i < buf.length; i++) {
+			buf[i] = (byte) i;
+		}
+
+		final SideBandOutputStream out;
+		out = new SideBandOutputStream(CH_DATA, MAX_BUF, rawOut);
+		out.write(buf[0]);
+		out.write(buf, 1, buf.length - 1);
+		out.flush();
+
+		final byte[] act = rawOut.toByteArray();
+		assertEquals(3 * HDR_SIZE + buf.length, act.length);
+		int j = 0;
+		for (int i = 0; i < buf.length;) {
+			final int n = Math.min(MAX_BUF - HDR_SIZE, buf.length - i);
+			assertEquals(String.format("%04x", n + HDR_SIZE),
+					new String(act, j, 4, "UTF-8"));
+			assertEquals(1, act[j + 4]);
+			j += HDR_SIZE;
+			for (int k = 0; k < n; k++, i++, j++)
+				assertEquals(buf[i], act[j]);
+		}
+	}
+
 	public void testFlush() throws IOException {
 		final int[] flushCnt = new int[1];
 		final OutputStream mockout = new OutputStream() {
@@ -126,19 +188,61 @@ public void flush() throws IOException {
 			}
 		};
 
-		new SideBandOutputStream(SideBandOutputStream.CH_DATA,
-				new PacketLineOut(mockout)).flush();
+		new SideBandOutputStream(CH_DATA, SMALL_BUF, mockout).flush();
 		assertEquals(0, flushCnt[0]);
 
-		new SideBandOutputStream(SideBandOutputStream.CH_ERROR,
-				new PacketLineOut(mockout)).flush();
+		new SideBandOutputStream(CH_ERROR, SMALL_BUF, mockout).flush();
 		assertEquals(1, flushCnt[0]);
 
-		new SideBandOutputStream(SideBandOutputStream.CH_PROGRESS,
-				new PacketLineOut(mockout)).flush();
+		new SideBandOutputStream(CH_PROGRESS, SMALL_BUF, mockout).flush();
 		assertEquals(2, flushCnt[0]);
 	}
 
+	public void testConstructor_RejectsBadChannel() {
+		try {
+			new SideBandOutputStream(-1, MAX_BUF, rawOut);
+			fail("Accepted -1 channel number");
+		} catch (IllegalArgumentException e) {
+			assertEquals("channel -1 must be in range [1, 255]", e
+					.getMessage());
+		}
+
+		try {
+			new SideBandOutputStream(0, MAX_BUF, rawOut);
+			fail("Accepted 0 channel number");
+		} catch (IllegalArgumentException e) {
+			assertEquals("channel 0 must be in range [1, 255]", e
+					.getMessage());
+		}
+
+		try {
+			new SideBandOutputStream(256, MAX_BUF, rawOut);
+			fail("Accepted 256 channel number");
+		} catch (IllegalArgumentException e) {
+			assertEquals("channel 256 must be in range [1, 255]", e
+					.getMessage());
+		}
+	}
+
+	public void testConstructor_RejectsBadBufferSize() {
+		try {
+			new SideBandOutputStream(CH_DATA, HDR_SIZE, rawOut);
+			fail("Accepted " + HDR_SIZE + " for buffer size");
+		} catch (IllegalArgumentException e) {
+			assertEquals("packet size " + HDR_SIZE + " must be in range ["
+					+ (HDR_SIZE + 1) + ", " + MAX_BUF + "]", e.getMessage());
+		}
+
+		try {
+			new SideBandOutputStream(CH_DATA, MAX_BUF + 1, rawOut);
+			fail("Accepted " + (MAX_BUF + 1) + " for buffer size");
+		} catch (IllegalArgumentException e) {
+			assertEquals("packet size " + (MAX_BUF + 1)
+					+ " must be in range [" + (HDR_SIZE + 1) + ", " + MAX_BUF
+					+ "]", e.getMessage());
+		}
+	}
+
 	private void assertBuffer(final String exp) throws IOException {
 		assertEquals(exp, new String(rawOut.toByteArray(),
 				Constants.CHARACTER_ENCODING));
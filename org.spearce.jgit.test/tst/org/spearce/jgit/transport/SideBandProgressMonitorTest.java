@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import static org.spearce.jgit.transport.SideBandProgressMonitor.DELAY;
+import static org.spearce.jgit.transport.SideBandProgressMonitor.INTERVAL;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.ProgressMonitor;
+import org.spearce.jgit.util.RawParseUtils;
+
+public class SideBandProgressMonitorTest extends TestCase {
+	private Thread writer;
+
+	private List<String> messages;
+
+	private SideBandProgressMonitor pm;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		writer = Thread.currentThread();
+		messages = new ArrayList<String>();
+		pm = new SideBandProgressMonitor(new ByteArrayOutputStream() {
+			@Override
+			public void flush() {
+				// Each message is written, then flushed, by its own call.
+				//
+				assertSame(writer, Thread.currentThread());
+				messages.add(RawParseUtils.decode(toByteArray()));
+				reset();
+			}
+		});
+	}
+
+	protected void tearDown() throws Exception {
+		pm.close();
+		super.tearDown();
+	}
+
+	public void testShortTaskIsQuiet() throws Exception {
+		pm.beginTask("Counting objects", ProgressMonitor.UNKNOWN);
+		pm.update(10);
+		pm.endTask();
+		assertTrue(messages.isEmpty());
+	}
+
+	public void testRateLimited() throws Exception {
+		final int runFor = DELAY + 4 * INTERVAL;
+		final long start = System.currentTimeMillis();
+		pm.beginTask("Counting objects", ProgressMonitor.UNKNOWN);
+		int n = 0;
+		while (System.currentTimeMillis() - start < runFor) {
+			pm.update(1);
+			n++;
+			Thread.sleep(1);
+		}
+		pm.endTask();
+
+		// One message per interval after the delay, plus the final one;
+		// a late timer may skip an interval, but never adds one.
+		//
+		final int max = (runFor - DELAY) / INTERVAL + 2;
+		assertTrue(messages.toString(), 2 <= messages.size());
+		assertTrue(messages.toString(), messages.size() <= max);
+		for (final String m : messages.subList(0, messages.size() - 1)) {
+			assertTrue(m, m.startsWith("Counting objects: "));
+			assertTrue(m, m.endsWith("   \r"));
+		}
+		assertEquals("Counting objects: " + n + ", done\n", messages
+				.get(messages.size() - 1));
+	}
+
+	public void testPercentage() throws Exception {
+		pm.beginTask("Writing objects", 200);
+		Thread.sleep(DELAY + 2 * INTERVAL);
+		pm.update(50);
+		pm.endTask();
+		assertEquals(2, messages.size());
+		assertEquals("Writing objects:  25% (50/200)   \r", messages.get(0));
+		assertEquals("Writing objects: 100% (200/200)\n", messages.get(1));
+	}
+
+	public void testTimerNeverWrites() throws Exception {
+		pm.beginTask("Compressing objects", 10);
+		pm.update(1);
+		Thread.sleep(DELAY + 2 * INTERVAL);
+		assertTrue(messages.isEmpty());
+
+		// The message waits for the working thread's next update.
+		//
+		pm.update(1);
+		assertEquals(1, messages.size());
+		assertEquals("Compressing objects:  20% (2/10)   \r", messages.get(0));
+	}
+
+	public void testClose() throws Exception {
+		pm.beginTask("Compressing objects", 10);
+		Thread.sleep(DELAY + 2 * INTERVAL);
+		pm.close();
+		pm.update(1);
+		pm.endTask();
+		assertTrue(messages.isEmpty());
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevFlag;
+import org.spearce.jgit.revwalk.RevWalkTestCase;
+
+public class SkippingNegotiatorTest extends RevWalkTestCase {
+	private RevCommit[] line;
+
+	private RevFlag common;
+
+	private RevFlag advertised;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		line = new RevCommit[100];
+		line[0] = commit();
+		for (int i = 1; i < line.length; i++)
+			line[i] = commit(line[i - 1]);
+		common = rw.newFlag("COMMON");
+		advertised = rw.newFlag("ADVERTISED");
+	}
+
+	public void testOffersAtDoublingIntervals() throws Exception {
+		final List<RevCommit> offered = negotiate(0, line[99]);
+		assertEquals(Arrays.asList(line[99], line[97], line[94], line[89],
+				line[80], line[63], line[30], line[0]), offered);
+	}
+
+	public void testBackfillFindsExactBoundary() throws Exception {
+		final List<RevCommit> offered = negotiate(51, line[99]);
+		assertTrue(offered.contains(line[50]));
+		assertTrue(offered.contains(line[51]));
+		assertTrue(line[50].has(common));
+		assertFalse(line[51].has(common));
+		assertTrue("offered " + offered.size(), offered.size() < 30);
+	}
+
+	public void testStopsAtAdvertised() throws Exception {
+		line[90].add(advertised);
+		final List<RevCommit> offered = negotiate(0, line[99]);
+		assertTrue(offered.contains(line[90]));
+		for (int i = 0; i < 90; i++)
+			assertFalse(offered.contains(line[i]));
+	}
+
+	public void testForName() {
+		assertSame(FetchNegotiator.SKIPPING, FetchNegotiator
+				.forName("skipping"));
+		assertSame(FetchNegotiator.CONSECUTIVE, FetchNegotiator
+				.forName("consecutive"));
+		assertSame(FetchNegotiator.CONSECUTIVE, FetchNegotiator
+				.forName("default"));
+		assertNull(FetchNegotiator.forName("bogus"));
+	}
+
+	/**
+	 * Offer commits to a simulated remote.
+	 *
+	 * @param remoteHas
+	 *            the remote has the first this many commits of {@link #line}.
+	 * @param tip
+	 *            local commit to start from.
+	 * @return commits offered, in order.
+	 * @throws Exception
+	 */
+	private List<RevCommit> negotiate(final int remoteHas, final RevCommit tip)
+			throws Exception {
+		final List<RevCommit> remote = Arrays.asList(line).subList(0,
+				remoteHas);
+		final FetchNegotiator n = FetchNegotiator.SKIPPING.create();
+		n.init(rw, Collections.singleton(tip), common, advertised);
+
+		final List<RevCommit> offered = new ArrayList<RevCommit>();
+		RevCommit c;
+		while ((c = n.next()) != null) {
+			assertFalse("offered twice: " + c, offered.contains(c));
+			offered.add(c);
+			if (remote.contains(c))
+				n.ack(c);
+		}
+		return offered;
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import junit.framework.TestCase;
+
+public class UnresolvedDeltasTest extends TestCase {
+	private static final int END = UnresolvedDeltas.END;
+
+	private UnresolvedDeltas deltas;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		deltas = new UnresolvedDeltas();
+	}
+
+	public void testEmpty() {
+		assertEquals(0, deltas.size());
+		assertEquals(END, deltas.getByOffset(1));
+		assertEquals(END, deltas.getByOffset(Long.MAX_VALUE));
+		assertEquals(END, deltas.reverse(END));
+	}
+
+	public void testAddList() {
+		final int a = deltas.add(100, 1, END);
+		final int b = deltas.add(200, 2, a);
+		assertEquals(2, deltas.size());
+		assertEquals(200, deltas.getPosition(b));
+		assertEquals(2, deltas.getCRC(b));
+		assertEquals(a, deltas.getNext(b));
+		assertEquals(END, deltas.getNext(a));
+
+		final int r = deltas.reverse(b);
+		assertEquals(a, r);
+		assertEquals(b, deltas.getNext(a));
+		assertEquals(END, deltas.getNext(b));
+	}
+
+	public void testByOffsetInPackOrder() {
+		deltas.addByOffset(12, 40, 4);
+		deltas.addByOffset(20, 50, 5);
+		deltas.addByOffset(12, 60, 6);
+		assertEquals(END, deltas.getByOffset(40));
+
+		int d = deltas.reverse(deltas.getByOffset(12));
+		assertEquals(40, deltas.getPosition(d));
+		assertEquals(4, deltas.getCRC(d));
+		d = deltas.getNext(d);
+		assertEquals(60, deltas.getPosition(d));
+		assertEquals(6, deltas.getCRC(d));
+		assertEquals(END, deltas.getNext(d));
+
+		d = deltas.getByOffset(20);
+		assertEquals(50, deltas.getPosition(d));
+		assertEquals(END, deltas.getNext(d));
+	}
+
+	public void testLargeTable() {
+		final long start = Integer.MAX_VALUE;
+		final int n = 100000;
+		for (int i = 0; i < n; i++)
+			deltas.addByOffset(start + i, start + n + 2 * i, i);
+		for (int i = 0; i < n; i++)
+			deltas.addByOffset(start + i, start + n + 2 * i + 1, -i);
+		assertEquals(2 * n, deltas.size());
+
+		for (int i = 0; i < n; i++) {
+			final int d = deltas.reverse(deltas.getByOffset(start + i));
+			assertEquals(start + n + 2 * i, deltas.getPosition(d));
+			assertEquals(i, deltas.getCRC(d));
+			final int e = deltas.getNext(d);
+			assertEquals(start + n + 2 * i + 1, deltas.getPosition(e));
+			assertEquals(-i, deltas.getCRC(e));
+			assertEquals(END, deltas.getNext(e));
+		}
+		assertEquals(END, deltas.getByOffset(start + n));
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.RepositoryTestCase;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.util.NB;
+
+public class UploadPackTest extends RepositoryTestCase {
+	private ObjectId want;
+
+	private ObjectId have;
+
+	private ByteArrayInputStream rsp;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		want = db.resolve("refs/heads/c");
+		have = db.resolve("refs/heads/a");
+	}
+
+	public void testMultiAck() throws Exception {
+		final ByteArrayOutputStream req = new ByteArrayOutputStream();
+		final PacketLineOut out = new PacketLineOut(req);
+		out.writeString("want " + want.name() + " multi_ack\n");
+		out.end();
+		out.writeString("have " + have.name() + "\n");
+		out.end();
+		out.writeString("done\n");
+
+		final PacketLineIn in = upload(req);
+		assertEquals("ACK " + have.name() + " continue", in.readString());
+		assertEquals("NAK", in.readString());
+		assertEquals("ACK " + have.name(), in.readString());
+		assertPack();
+	}
+
+	public void testMultiAckDetailed() throws Exception {
+		final ByteArrayOutputStream req = new ByteArrayOutputStream();
+		final PacketLineOut out = new PacketLineOut(req);
+		out.writeString("want " + want.name() + " multi_ack_detailed\n");
+		out.end();
+		out.writeString("have " + have.name() + "\n");
+		out.end();
+		out.writeString("done\n");
+
+		final PacketLineIn in = upload(req);
+		assertEquals("ACK " + have.name() + " common", in.readString());
+		assertEquals("ACK " + have.name() + " ready", in.readString());
+		assertEquals("NAK", in.readString());
+		assertEquals("ACK " + have.name(), in.readString());
+		assertPack();
+	}
+
+	public void testNoDone() throws Exception {
+		final ByteArrayOutputStream req = new ByteArrayOutputStream();
+		final PacketLineOut out = new PacketLineOut(req);
+		out.writeString("want " + want.name() + " multi_ack_detailed no-done\n");
+		out.end();
+		out.writeString("have " + have.name() + "\n");
+		out.end();
+		// No "done"; the pack must follow the response to this block.
+
+		final PacketLineIn in = upload(req);
+		assertEquals("ACK " + have.name() + " common", in.readString());
+		assertEquals("ACK " + have.name() + " ready", in.readString());
+		assertEquals("NAK", in.readString());
+		assertEquals("ACK " + have.name(), in.readString());
+		assertPack();
+	}
+
+	public void testNoDoneBlockSentAhead() throws Exception {
+		final ObjectId unknown = ObjectId
+				.fromString("fcfcfb1fd94829c1a1704f894fc111d14770d34e");
+		final ByteArrayOutputStream req = new ByteArrayOutputStream();
+		final PacketLineOut out = new PacketLineOut(req);
+		out.writeString("want " + want.name() + " multi_ack_detailed no-done\n");
+		out.end();
+		out.writeString("have " + have.name() + "\n");
+		out.end();
+		// Sent ahead, before the client read the response to the first.
+		out.writeString("have " + unknown.name() + "\n");
+		out.end();
+
+		final PacketLineIn in = upload(req);
+		assertEquals("ACK " + have.name() + " common", in.readString());
+		assertEquals("ACK " + have.name() + " ready", in.readString());
+		assertEquals("NAK", in.readString());
+		assertEquals("ACK " + have.name(), in.readString());
+		assertPack();
+	}
+
+	public void testNoDoneNotReady() throws Exception {
+		final ObjectId unknown = ObjectId
+				.fromString("fcfcfb1fd94829c1a1704f894fc111d14770d34e");
+		final ByteArrayOutputStream req = new ByteArrayOutputStream();
+		final PacketLineOut out = new PacketLineOut(req);
+		out.writeString("want " + want.name() + " multi_ack_detailed no-done\n");
+		out.end();
+		out.writeString("have " + unknown.name() + "\n");
+		out.end();
+		out.writeString("have " + have.name() + "\n");
+		out.writeString("done\n");
+
+		final PacketLineIn in = upload(req);
+		assertEquals("NAK", in.readString());
+		assertEquals("ACK " + have.name() + " common", in.readString());
+		assertEquals("ACK " + have.name(), in.readString());
+		assertPack();
+	}
+
+	public void testFetchIncremental() throws Exception {
+		final Repository dst = createNewEmptyRepo();
+		fetch(dst, "refs/heads/a:refs/heads/a");
+		assertEquals(have, dst.resolve("refs/heads/a"));
+
+		fetch(dst, "refs/heads/c:refs/heads/c");
+		assertEquals(want, dst.resolve("refs/heads/c"));
+		assertTrue(dst.hasObject(want));
+	}
+
+	public void testDeepen() throws Exception {
+		final ByteArrayOutputStream req = new ByteArrayOutputStream();
+		final PacketLineOut out = new PacketLineOut(req);
+		out.writeString("want " + want.name() + " multi_ack_detailed\n");
+		out.writeString("deepen 1\n");
+		out.end();
+		out.writeString("done\n");
+
+		final PacketLineIn in = upload(req);
+		assertEquals("shallow " + want.name(), in.readString());
+		assertSame(PacketLineIn.END, in.readString());
+		assertEquals("NAK", in.readString());
+		assertPack();
+	}
+
+	public void testUnshallow() throws Exception {
+		final ByteArrayOutputStream req = new ByteArrayOutputStream();
+		final PacketLineOut out = new PacketLineOut(req);
+		out.writeString("want " + want.name() + " multi_ack_detailed\n");
+		out.writeString("shallow " + want.name() + "\n");
+		out.writeString("deepen 2\n");
+		out.end();
+		out.writeString("done\n");
+
+		final PacketLineIn in = upload(req);
+		assertEquals("unshallow " + want.name(), in.readString());
+		for (final RevCommit p : parents(want))
+			assertEquals("shallow " + p.name(), in.readString());
+		assertSame(PacketLineIn.END, in.readString());
+		assertEquals("NAK", in.readString());
+		assertPack();
+	}
+
+	public void testFetchShallow() throws Exception {
+		final RevCommit[] parents = parents(want);
+		assertTrue(parents.length > 0);
+
+		final Repository dst = createNewEmptyRepo();
+		fetch(dst, "refs/heads/c:refs/heads/c", 1);
+		assertTrue(dst.hasObject(want));
+		assertEquals(Collections.singleton(want), dst.getShallowCommits());
+		for (final RevCommit p : parents)
+			assertFalse(dst.hasObject(p));
+
+		fetch(dst, "refs/heads/c:refs/heads/c", 2);
+		final Set<ObjectId> shallow = new HashSet<ObjectId>();
+		for (final RevCommit p : parents) {
+			assertTrue(dst.hasObject(p));
+			if (p.getParentCount() > 0)
+				shallow.add(p.copy());
+		}
+		assertEquals(shallow, dst.getShallowCommits());
+	}
+
+	private RevCommit[] parents(final ObjectId id) throws IOException {
+		final RevWalk rw = new RevWalk(db);
+		final RevCommit c = rw.parseCommit(id);
+		for (final RevCommit p : c.getParents())
+			rw.parseHeaders(p);
+		return c.getParents();
+	}
+
+	private PacketLineIn upload(final ByteArrayOutputStream req)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new UploadPack(db).upload(new ByteArrayInputStream(req.toByteArray()),
+				out, null);
+
+		rsp = new ByteArrayInputStream(out.toByteArray());
+		final PacketLineIn in = new PacketLineIn(rsp);
+		while (in.readString() != PacketLineIn.END) {
+			// Skip the advertisement.
+		}
+		return in;
+	}
+
+	private void assertPack() throws IOException {
+		final byte[] hdr = new byte[4];
+		NB.readFully(rsp, hdr, 0, 4);
+		assertEquals("PACK", new String(hdr, "ISO-8859-1"));
+	}
+
+	private void fetch(final Repository dst, final String spec)
+			throws Exception {
+		fetch(dst, spec, 0);
+	}
+
+	private void fetch(final Repository dst, final String spec,
+			final int depth) throws Exception {
+		final Transport t = Transport.open(dst, new URIish(db.getDirectory()
+				.getAbsolutePath()));
+		t.setFetchDepth(depth);
+		try {
+			t.fetch(NullProgressMonitor.INSTANCE, Collections
+					.singleton(new RefSpec(spec)));
+		} finally {
+			t.close();
+		}
+	}
+}
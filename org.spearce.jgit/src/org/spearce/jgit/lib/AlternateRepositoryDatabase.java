@@ -80,6 +80,16 @@ public boolean exists() {
 		return odb.exists();
 	}
 
+	@Override
+	public void objectsAdded() {
+		odb.objectsAdded();
+	}
+
+	@Override
+	long changeStamp() {
+		return odb.changeStamp();
+	}
+
 	@Override
 	protected boolean hasObject1(final AnyObjectId objectId) {
 		return odb.hasObject1(objectId);
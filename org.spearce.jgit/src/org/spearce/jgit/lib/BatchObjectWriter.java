@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.spearce.jgit.transport.PackedObjectInfo;
+import org.spearce.jgit.util.NB;
+
+/**
+ * An {@link ObjectWriter} which stores new objects in a single pack.
+ * <p>
+ * Writing each object as its own loose file costs a temporary file and a
+ * rename per object, and leaves bulk imports with hundreds of thousands of
+ * tiny files. This writer instead appends the objects to one temporary pack
+ * file. {@link #flush()} completes the pack, writes its index, and moves both
+ * into <code>objects/pack</code>, where the repository can read them
+ * immediately.
+ * <p>
+ * Objects written through this class are not readable from the repository
+ * until {@link #flush()} has been invoked. Objects which already exist in the
+ * repository, or were already written to this batch, are not stored again.
+ * Callers must invoke {@link #flush()} or {@link #release()} when done.
+ */
+public class BatchObjectWriter extends ObjectWriter {
+	/** Objects up to this size are read into memory before being stored. */
+	private static final int MAX_BUFFERED = 1024 * 1024;
+
+	private final Repository db;
+
+	private final int compression;
+
+	private final int indexVersion;
+
+	private final byte[] buf = new byte[8192];
+
+	private final MessageDigest md = Constants.newMessageDigest();
+
+	private final ObjectIdSubclassMap<PackedObjectInfo> objectMap;
+
+	private final List<PackedObjectInfo> objectList;
+
+	private File tmpPack;
+
+	private PackStream packOut;
+
+	/**
+	 * Create a new writer for a repository.
+	 *
+	 * @param d
+	 *            the repository the objects are written into.
+	 */
+	public BatchObjectWriter(final Repository d) {
+		super(d);
+		db = d;
+		compression = db.getConfig().getCore().getCompression();
+		indexVersion = db.getConfig().getCore().getPackIndexVersion();
+		objectMap = new ObjectIdSubclassMap<PackedObjectInfo>();
+		objectList = new ArrayList<PackedObjectInfo>();
+	}
+
+	/** @return number of objects waiting to be written by {@link #flush()}. */
+	public int getObjectCount() {
+		return objectList.size();
+	}
+
+	@Override
+	ObjectId writeObject(final int type, long len, final InputStream is,
+			final boolean store) throws IOException {
+		if (!store)
+			return super.writeObject(type, len, is, store);
+		if (len <= MAX_BUFFERED)
+			return writeBuffered(type, (int) len, is);
+
+		if (packOut == null)
+			beginPack();
+		final long offset = packOut.position;
+		boolean stored = false;
+		try {
+			packOut.crc.reset();
+			writeObjectHeader(type, len);
+			beginDigest(type, len);
+
+			final Deflater def = DeflaterCache.get(compression);
+			try {
+				final DeflaterOutputStream dos;
+				dos = new DeflaterOutputStream(packOut, def, buf.length);
+				int n;
+				while (len > 0
+						&& (n = is.read(buf, 0, (int) Math.min(len,
+								buf.length))) > 0) {
+					md.update(buf, 0, n);
+					dos.write(buf, 0, n);
+					len -= n;
+				}
+				if (len != 0)
+					throw missing(len);
+				dos.finish();
+			} finally {
+				DeflaterCache.release(def);
+			}
+
+			final ObjectId id = ObjectId.fromRaw(md.digest());
+			if (!contains(id)) {
+				add(id, offset);
+				stored = true;
+			}
+			return id;
+		} finally {
+			if (!stored)
+				packOut.truncate(offset);
+		}
+	}
+
+	/**
+	 * Write an object small enough to be read into memory first.
+	 * <p>
+	 * Its name is then known before anything is compressed, so an object the
+	 * repository or this batch already has costs only the hashing.
+	 */
+	private ObjectId writeBuffered(final int type, final int len,
+			final InputStream is) throws IOException {
+		final byte[] data = new byte[len];
+		int off = 0;
+		while (off < len) {
+			final int n = is.read(data, off, len - off);
+			if (n <= 0)
+				throw missing(len - off);
+			off += n;
+		}
+		beginDigest(type, len);
+		md.update(data);
+		final ObjectId id = ObjectId.fromRaw(md.digest());
+		if (contains(id))
+			return id;
+
+		if (packOut == null)
+			beginPack();
+		final long offset = packOut.position;
+		boolean stored = false;
+		try {
+			packOut.crc.reset();
+			writeObjectHeader(type, len);
+			final Deflater def = DeflaterCache.get(compression);
+			try {
+				final DeflaterOutputStream dos;
+				dos = new DeflaterOutputStream(packOut, def, buf.length);
+				dos.write(data);
+				dos.finish();
+			} finally {
+				DeflaterCache.release(def);
+			}
+			add(id, offset);
+			stored = true;
+			return id;
+		} finally {
+			if (!stored)
+				packOut.truncate(offset);
+		}
+	}
+
+	private void beginDigest(final int type, final long len) {
+		md.reset();
+		md.update(Constants.encodedTypeString(type));
+		md.update((byte) ' ');
+		md.update(Constants.encodeASCII(len));
+		md.update((byte) 0);
+	}
+
+	private boolean contains(final ObjectId id) {
+		return objectMap.get(id) != null || db.hasObject(id);
+	}
+
+	private void add(final ObjectId id, final long offset) {
+		final PackedObjectInfo oe = new PackedObjectInfo(id);
+		oe.setOffset(offset);
+		oe.setCRC((int) packOut.crc.getValue());
+		objectMap.add(oe);
+		objectList.add(oe);
+	}
+
+	private static IOException missing(final long len) {
+		return new IOException("Input did not match supplied length. " + len
+				+ " bytes are missing.");
+	}
+
+	/**
+	 * Make the objects written so far available in the repository.
+	 * <p>
+	 * The pack is completed, indexed and registered with the repository. The
+	 * writer may be used for another batch afterwards.
+	 *
+	 * @throws IOException
+	 *             the pack or its index could not be written.
+	 */
+	public void flush() throws IOException {
+		if (packOut == null)
+			return;
+		if (objectList.isEmpty()) {
+			release();
+			return;
+		}
+
+		try {
+			final byte[] packHash = packOut.finish(objectList.size());
+			packOut = null;
+
+			Collections.sort(objectList, new Comparator<PackedObjectInfo>() {
+				public int compare(final PackedObjectInfo a,
+						final PackedObjectInfo b) {
+					return a.compareTo(b);
+				}
+			});
+			md.reset();
+			for (final PackedObjectInfo oe : objectList) {
+				oe.copyRawTo(buf, 0);
+				md.update(buf, 0, Constants.OBJECT_ID_LENGTH);
+			}
+			final String name = ObjectId.fromRaw(md.digest()).name();
+			final File packDir = new File(db.getObjectsDirectory(), "pack");
+			final File finalPack = new File(packDir, "pack-" + name + ".pack");
+			final File finalIdx = new File(packDir, "pack-" + name + ".idx");
+			if (finalPack.exists()) {
+				// The same set of objects was already stored.
+				//
+				tmpPack.delete();
+				return;
+			}
+
+			final File tmpIdx = new File(packDir, tmpPack.getName()
+					.replace(".pack", ".idx"));
+			final OutputStream os = new FileOutputStream(tmpIdx);
+			try {
+				final PackIndexWriter iw;
+				if (indexVersion <= 0)
+					iw = PackIndexWriter.createOldestPossible(os, objectList);
+				else
+					iw = PackIndexWriter.createVersion(os, indexVersion);
+				iw.write(objectList, packHash);
+			} finally {
+				os.close();
+			}
+
+			tmpPack.setReadOnly();
+			tmpIdx.setReadOnly();
+			if (!tmpPack.renameTo(finalPack)) {
+				tmpIdx.delete();
+				throw new IOException("Cannot create " + finalPack);
+			}
+			if (!tmpIdx.renameTo(finalIdx)) {
+				tmpIdx.delete();
+				finalPack.delete();
+				throw new IOException("Cannot create " + finalIdx);
+			}
+			db.openPack(finalPack, finalIdx);
+		} finally {
+			if (packOut != null) {
+				packOut.close();
+				packOut = null;
+			}
+			if (tmpPack.exists())
+				tmpPack.delete();
+			tmpPack = null;
+			objectMap.clear();
+			objectList.clear();
+		}
+	}
+
+	/** Discard any objects not yet made available by {@link #flush()}. */
+	public void release() {
+		if (packOut != null) {
+			try {
+				packOut.close();
+			} catch (IOException e) {
+				// Ignore, the file is deleted anyway.
+			}
+			packOut = null;
+		}
+		if (tmpPack != null) {
+			tmpPack.delete();
+			tmpPack = null;
+		}
+		objectMap.clear();
+		objectList.clear();
+	}
+
+	private void beginPack() throws IOException {
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		packDir.mkdirs();
+		tmpPack = File.createTempFile("incoming_", ".pack", packDir);
+		packOut = new PackStream(new RandomAccessFile(tmpPack, "rw"));
+
+		System.arraycopy(Constants.PACK_SIGNATURE, 0, buf, 0, 4);
+		NB.encodeInt32(buf, 4, 2);
+		NB.encodeInt32(buf, 8, 0); // object count, set by finish
+		packOut.write(buf, 0, 12);
+	}
+
+	private void writeObjectHeader(final int objectType, long dataLength)
+			throws IOException {
+		long nextLength = dataLength >>> 4;
+		int size = 0;
+		buf[size++] = (byte) ((nextLength > 0 ? 0x80 : 0x00)
+				| (objectType << 4) | (dataLength & 0x0F));
+		dataLength = nextLength;
+		while (dataLength > 0) {
+			nextLength >>>= 7;
+			buf[size++] = (byte) ((nextLength > 0 ? 0x80 : 0x00) | (dataLength & 0x7F));
+			dataLength = nextLength;
+		}
+		packOut.write(buf, 0, size);
+	}
+
+	private static class PackStream extends OutputStream {
+		final CRC32 crc = new CRC32();
+
+		private final RandomAccessFile file;
+
+		private final byte[] wbuf = new byte[8192];
+
+		private int wcnt;
+
+		long position;
+
+		PackStream(final RandomAccessFile file) {
+			this.file = file;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			if (wcnt == wbuf.length)
+				flushBuffer();
+			wbuf[wcnt++] = (byte) b;
+			crc.update(b);
+			position++;
+		}
+
+		@Override
+		public void write(final byte[] b, int off, int len) throws IOException {
+			crc.update(b, off, len);
+			position += len;
+			while (len > 0) {
+				if (wcnt == wbuf.length)
+					flushBuffer();
+				final int n = Math.min(len, wbuf.length - wcnt);
+				System.arraycopy(b, off, wbuf, wcnt, n);
+				wcnt += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		void truncate(final long offset) throws IOException {
+			flushBuffer();
+			file.setLength(offset);
+			file.seek(offset);
+			position = offset;
+		}
+
+		byte[] finish(final int objectCount) throws IOException {
+			flushBuffer();
+			final byte[] tmp = new byte[8192];
+			NB.encodeInt32(tmp, 0, objectCount);
+			file.seek(8);
+			file.write(tmp, 0, 4);
+
+			final MessageDigest md = Constants.newMessageDigest();
+			file.seek(0);
+			long remaining = position;
+			while (remaining > 0) {
+				final int n = file.read(tmp, 0, (int) Math.min(remaining,
+						tmp.length));
+				if (n <= 0)
+					throw new IOException("Pack file truncated");
+				md.update(tmp, 0, n);
+				remaining -= n;
+			}
+			final byte[] hash = md.digest();
+			file.write(hash);
+			file.getChannel().force(true);
+			file.close();
+			return hash;
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+
+		private void flushBuffer() throws IOException {
+			if (wcnt > 0) {
+				file.write(wbuf, 0, wcnt);
+				wcnt = 0;
+			}
+		}
+	}
+}
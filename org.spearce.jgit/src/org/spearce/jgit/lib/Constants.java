@@ -228,6 +228,9 @@ public final class Constants {
 	/** Packed refs file */
 	public static final String PACKED_REFS = "packed-refs";
 
+	/** Shallow commits file */
+	public static final String SHALLOW = "shallow";
+
 	/** The environment variable that contains the system user name */
 	public static final String OS_USER_NAME_KEY = "user.name";
 
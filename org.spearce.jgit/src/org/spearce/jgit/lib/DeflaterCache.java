@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.zip.Deflater;
+
+/**
+ * Creates zlib based deflaters as necessary for object compression.
+ * <p>
+ * Idle deflaters are kept in a pool sized by
+ * {@link WindowCacheConfig#getZlibCacheSize()}, which threads can access
+ * concurrently without contending on a single lock.
+ */
+public class DeflaterCache {
+	private static final ZlibCache<Deflater> cache = new ZlibCache<Deflater>(
+			new WindowCacheConfig().getZlibCacheSize()) {
+		@Override
+		protected Deflater create() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+		}
+
+		@Override
+		protected void reset(final Deflater d) {
+			d.reset();
+		}
+
+		@Override
+		protected void end(final Deflater d) {
+			d.end();
+		}
+	};
+
+	/**
+	 * Obtain a Deflater for compression.
+	 * <p>
+	 * Deflaters obtained through this cache should be returned (if possible)
+	 * by {@link #release(Deflater)} to avoid garbage collection and
+	 * reallocation.
+	 *
+	 * @param level
+	 *            compression level the deflater should use, as in
+	 *            {@link Deflater#setLevel(int)}.
+	 * @return an available deflater. Never null.
+	 */
+	public static Deflater get(final int level) {
+		final Deflater d = cache.get();
+		d.setLevel(level);
+		return d;
+	}
+
+	/**
+	 * Release a deflater previously obtained from this cache.
+	 *
+	 * @param d
+	 *            the deflater to return. May be null, in which case this
+	 *            method does nothing.
+	 */
+	public static void release(final Deflater d) {
+		cache.release(d);
+	}
+
+	/**
+	 * Get the number of deflaters holding native zlib memory.
+	 * <p>
+	 * The count includes deflaters idle in this cache and deflaters obtained
+	 * by {@link #get(int)} but not yet released.
+	 *
+	 * @return number of deflaters created and not yet ended.
+	 */
+	public static int getOpenCount() {
+		return cache.getOpenCount();
+	}
+
+	static void reconfigure(final WindowCacheConfig cfg) {
+		cache.resize(cfg.getZlibCacheSize());
+	}
+
+	private DeflaterCache() {
+		throw new UnsupportedOperationException();
+	}
+}
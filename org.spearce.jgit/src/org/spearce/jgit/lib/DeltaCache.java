@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+/**
+ * Decides which deltas found during the search are kept in memory, and holds
+ * them until the objects are written.
+ * <p>
+ * A delta that is not kept must be computed a second time when the object is
+ * written, which costs another load of both objects. Small deltas are cheap
+ * to keep, and deltas of large objects are expensive to recompute, so those
+ * are kept as long as the total stays under the configured size.
+ * <p>
+ * One cache is shared by all threads searching for deltas, and by those
+ * compressing the objects.
+ */
+class DeltaCache {
+	private final long size;
+
+	private final int entryLimit;
+
+	private long used;
+
+	/** 1 + index of the object each delta belongs to; 0 if the slot is free. */
+	private int[] keys = new int[64];
+
+	private byte[][] deltas = new byte[64][];
+
+	private int count;
+
+	DeltaCache(final long size, final int entryLimit) {
+		this.size = size;
+		this.entryLimit = entryLimit;
+	}
+
+	/**
+	 * Keep a delta, if it is worth the memory.
+	 *
+	 * @param res
+	 *            index of the object the delta recreates.
+	 * @param delta
+	 *            the delta.
+	 * @param srcWeight
+	 *            inflated size of the delta base.
+	 * @param resWeight
+	 *            inflated size of the object.
+	 * @return true if the delta was kept.
+	 */
+	synchronized boolean cache(final int res, final byte[] delta,
+			final int srcWeight, final int resWeight) {
+		if (!canCache(delta.length, srcWeight, resWeight))
+			return false;
+		used += delta.length;
+		if (keys.length <= count * 2)
+			grow();
+		insert(res + 1, delta);
+		count++;
+		return true;
+	}
+
+	private boolean canCache(final int length, final int srcWeight,
+			final int resWeight) {
+		if (0 < size && size < used + length)
+			return false;
+
+		if (length < entryLimit)
+			return true;
+
+		// If the delta is small compared to the objects it was computed
+		// from, loading and comparing them again would take much longer
+		// than the memory is worth.
+		//
+		return (srcWeight >>> 20) + (resWeight >>> 21) > length >>> 10;
+	}
+
+	/**
+	 * Remove the delta kept for an object.
+	 *
+	 * @param res
+	 *            index of the object.
+	 * @return the delta; null if none was kept.
+	 */
+	synchronized byte[] take(final int res) {
+		for (int s = slot(res + 1);; s = (s + 1) & (keys.length - 1)) {
+			if (keys[s] == 0)
+				return null;
+			if (keys[s] == res + 1) {
+				// The key stays, so the slots after it are still found.
+				final byte[] d = deltas[s];
+				deltas[s] = null;
+				return d;
+			}
+		}
+	}
+
+	private void insert(final int key, final byte[] delta) {
+		int s = slot(key);
+		while (keys[s] != 0)
+			s = (s + 1) & (keys.length - 1);
+		keys[s] = key;
+		deltas[s] = delta;
+	}
+
+	private int slot(final int key) {
+		return (key * 0x9E3779B9) >>> 1 & (keys.length - 1);
+	}
+
+	private void grow() {
+		final int[] oldKeys = keys;
+		final byte[][] oldDeltas = deltas;
+		keys = new int[oldKeys.length * 2];
+		deltas = new byte[oldKeys.length * 2][];
+		for (int s = 0; s < oldKeys.length; s++) {
+			if (oldKeys[s] != 0)
+				insert(oldKeys[s], oldDeltas[s]);
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Index of a base object, used to create deltas against it.
+ * <p>
+ * The base is divided into blocks of {@link #BLKSZ} bytes, and the
+ * fingerprint of each block is stored in a hash table. The result object is
+ * scanned with a rolling hash over a window of the same size, so the
+ * fingerprint of the window starting at each position costs only a few
+ * operations. When the window matches a block of the base, the match is
+ * extended in both directions for as long as the two objects agree and is
+ * emitted as a copy instruction; everything else is inserted literally.
+ * <p>
+ * The fingerprint is a Rabin-Karp polynomial hash modulo 2<sup>32</sup>.
+ * <p>
+ * An index may be reused for another base object through
+ * {@link #index(byte[])}. Its tables are kept if they are of a suitable size,
+ * so searching many pairs of objects does not allocate new tables for each.
+ * An index is not thread safe.
+ */
+public class DeltaIndex {
+	/** Number of bytes in a block of the base object. */
+	public static final int BLKSZ = 16;
+
+	/** Maximum number of base blocks compared for one position. */
+	private static final int MAX_CHAIN_LENGTH = 64;
+
+	/** Smallest number of hash bits; the table has 2^n buckets. */
+	private static final int MIN_TABLE_BITS = 4;
+
+	/** Tables more than this factor too large are not reused. */
+	private static final int MAX_TABLE_SLACK = 8;
+
+	/** Multiplier of the polynomial hash; odd, with well mixed bits. */
+	private static final int P = 0x9e3779b1;
+
+	/** P^(BLKSZ - 1), to remove the oldest byte from a rolling hash. */
+	private static final int P_OUT;
+
+	static {
+		int p = 1;
+		for (int i = 1; i < BLKSZ; i++)
+			p *= P;
+		P_OUT = p;
+	}
+
+	private byte[] src;
+
+	/** For each hash bucket, 1 + the first block in it; 0 if empty. */
+	private int[] table;
+
+	/** For each block + 1, 1 + the next block in its bucket; 0 at the end. */
+	private int[] next;
+
+	/** Shift selecting the bucket from the top bits of a hash. */
+	private int tableShift;
+
+	/** Create an empty index; {@link #index(byte[])} must be called next. */
+	public DeltaIndex() {
+		// Tables are allocated by index(byte[]).
+	}
+
+	/**
+	 * Construct an index of a base object.
+	 *
+	 * @param sourceBuffer
+	 *            the base object's content. The array is used directly and
+	 *            must not be modified while the index is in use.
+	 */
+	public DeltaIndex(final byte[] sourceBuffer) {
+		index(sourceBuffer);
+	}
+
+	/**
+	 * Index a new base object, replacing the current one.
+	 *
+	 * @param sourceBuffer
+	 *            the base object's content. The array is used directly and
+	 *            must not be modified while the index is in use.
+	 */
+	public void index(final byte[] sourceBuffer) {
+		src = sourceBuffer;
+
+		final int blocks = src.length / BLKSZ;
+		int bits = MIN_TABLE_BITS;
+		while ((1 << bits) < blocks)
+			bits++;
+		final int sz = 1 << bits;
+		if (table == null || table.length < sz
+				|| MAX_TABLE_SLACK * sz < table.length) {
+			table = new int[sz];
+		} else {
+			Arrays.fill(table, 0);
+			bits = Integer.numberOfTrailingZeros(table.length);
+		}
+		tableShift = 32 - bits;
+
+		if (next == null || next.length < blocks + 1
+				|| MAX_TABLE_SLACK * (blocks + 1) < next.length)
+			next = new int[blocks + 1];
+
+		// Insert from the end, so chains visit earlier blocks first. Of a run
+		// of identical blocks only the first is kept; the match extends over
+		// the others anyway, and long chains of them are slow to search.
+		//
+		int prevHash = 0;
+		int prevBucket = -1;
+		for (int b = blocks - 1; b >= 0; b--) {
+			final int h = hash(src, b * BLKSZ);
+			final int bucket = h >>> tableShift;
+			if (bucket == prevBucket && h == prevHash
+					&& sameBlock(b * BLKSZ, (table[bucket] - 1) * BLKSZ)) {
+				next[b + 1] = next[table[bucket]];
+				table[bucket] = b + 1;
+				continue;
+			}
+			next[b + 1] = table[bucket];
+			table[bucket] = b + 1;
+			prevHash = h;
+			prevBucket = bucket;
+		}
+	}
+
+	/** Forget the base object, keeping the tables for reuse. */
+	public void clear() {
+		src = null;
+	}
+
+	/** @return size of the base object, in bytes. */
+	public long getSourceSize() {
+		return src.length;
+	}
+
+	/** @return approximate memory used by the base object and this index. */
+	public long getIndexSize() {
+		return src.length + 4L * (table.length + next.length);
+	}
+
+	/**
+	 * Generate a delta sequence to recreate the result buffer.
+	 *
+	 * @param out
+	 *            stream to receive the delta instructions.
+	 * @param res
+	 *            the desired result buffer.
+	 * @throws IOException
+	 *             the output stream refused to write the instructions.
+	 */
+	public void encode(final OutputStream out, final byte[] res)
+			throws IOException {
+		encode(out, res, 0);
+	}
+
+	/**
+	 * Generate a delta sequence to recreate the result buffer.
+	 * <p>
+	 * If the delta would be larger than the limit, encoding stops early and
+	 * the output stream holds a partial, unusable instruction stream.
+	 *
+	 * @param out
+	 *            stream to receive the delta instructions.
+	 * @param res
+	 *            the desired result buffer.
+	 * @param deltaSizeLimit
+	 *            maximum number of bytes the delta may use; 0 for no limit.
+	 * @return true if the delta fits within the limit; false otherwise.
+	 * @throws IOException
+	 *             the output stream refused to write the instructions.
+	 */
+	public boolean encode(final OutputStream out, final byte[] res,
+			final int deltaSizeLimit) throws IOException {
+		final DeltaEncoder enc = new DeltaEncoder(out, src.length,
+				res.length, deltaSizeLimit);
+		final int end = res.length - BLKSZ;
+		int resPtr = 0;
+		int insPtr = 0;
+
+		int h = end < 0 ? 0 : hash(res, 0);
+		while (resPtr <= end) {
+			if (0 < deltaSizeLimit
+					&& deltaSizeLimit < enc.getSize() + resPtr - insPtr)
+				return false;
+
+			int bestLen = 0;
+			int bestPtr = 0;
+			int e = table[h >>> tableShift];
+			for (int chain = 0; e != 0 && chain < MAX_CHAIN_LENGTH; chain++) {
+				final int srcPtr = (e - 1) * BLKSZ;
+				final int len = fwdMatch(res, resPtr, srcPtr);
+				if (bestLen < len) {
+					bestLen = len;
+					bestPtr = srcPtr;
+				}
+				e = next[e];
+			}
+
+			if (bestLen < BLKSZ) {
+				if (resPtr == end)
+					break;
+				h = (h - res[resPtr] * P_OUT) * P + res[resPtr + BLKSZ];
+				resPtr++;
+				continue;
+			}
+
+			// The match may start earlier than the block did.
+			//
+			while (insPtr < resPtr && 0 < bestPtr
+					&& src[bestPtr - 1] == res[resPtr - 1]) {
+				resPtr--;
+				bestPtr--;
+				bestLen++;
+			}
+
+			if (!enc.insert(res, insPtr, resPtr - insPtr))
+				return false;
+			if (!enc.copy(bestPtr, bestLen))
+				return false;
+			resPtr += bestLen;
+			insPtr = resPtr;
+			if (resPtr <= end)
+				h = hash(res, resPtr);
+		}
+		return enc.insert(res, insPtr, res.length - insPtr);
+	}
+
+	private int fwdMatch(final byte[] res, final int resPtr, final int srcPtr) {
+		final int max = Math.min(res.length - resPtr, src.length - srcPtr);
+		int n = 0;
+		while (n < max && res[resPtr + n] == src[srcPtr + n])
+			n++;
+		return n;
+	}
+
+	private boolean sameBlock(final int a, final int b) {
+		for (int i = 0; i < BLKSZ; i++) {
+			if (src[a + i] != src[b + i])
+				return false;
+		}
+		return true;
+	}
+
+	private static int hash(final byte[] raw, final int ptr) {
+		int h = 0;
+		for (int i = ptr; i < ptr + BLKSZ; i++)
+			h = h * P + raw[i];
+		return h;
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.spearce.jgit.errors.MissingObjectException;
+
+/**
+ * Sliding window search for delta bases.
+ * <p>
+ * Objects are visited in the order given, which should group objects of the
+ * same type and path together, largest first. Each object is compared to the
+ * objects just before it, and the smallest delta found is selected. Objects
+ * stay in the window after their own search, so they can be used as bases by
+ * the objects that follow.
+ */
+class DeltaWindow {
+	private final Repository db;
+
+	private final ObjectToPackTable objects;
+
+	private final DeltaCache deltaCache;
+
+	private final int maxDepth;
+
+	private final long maxMemory;
+
+	private final WindowCursor curs = new WindowCursor();
+
+	private final Entry[] window;
+
+	/** Slot of the object currently searching for a base. */
+	private int resSlot;
+
+	/** Memory used by the loaded objects and indexes of the window. */
+	private long loaded;
+
+	private final ByteArrayOutputStream deltaBuf = new ByteArrayOutputStream();
+
+	DeltaWindow(final Repository db, final ObjectToPackTable objects,
+			final DeltaCache dc, final int size, final int maxDepth,
+			final long maxMemory) {
+		this.db = db;
+		this.objects = objects;
+		this.deltaCache = dc;
+
+		// Longer chains cannot be recorded; C Git has the same limit.
+		//
+		this.maxDepth = Math.min(maxDepth, ObjectToPackTable.MAX_DEPTH);
+		this.maxMemory = maxMemory;
+
+		// The window holds the object being searched, plus size bases.
+		//
+		window = new Entry[size + 1];
+		for (int i = 0; i < window.length; i++)
+			window[i] = new Entry();
+	}
+
+	void search(final ProgressMonitor monitor, final int[] toSearch,
+			int off, final int cnt) throws IOException {
+		try {
+			for (final int end = off + cnt; off < end; off++) {
+				if (monitor.isCancelled())
+					throw new IOException("Packing cancelled during"
+							+ " delta search");
+				clear(window[resSlot]);
+				window[resSlot].object = toSearch[off];
+				search();
+				keepInWindow();
+				monitor.update(1);
+			}
+		} finally {
+			for (final Entry e : window)
+				clear(e);
+			curs.release();
+		}
+	}
+
+	private void search() throws IOException {
+		final Entry res = window[resSlot];
+		final int resType = objects.getType(res.object);
+		final int resSize = objects.getWeight(res.object);
+
+		Entry best = null;
+		byte[] bestDelta = null;
+		int bestDepth = 0;
+
+		for (int srcSlot = prior(resSlot); srcSlot != resSlot; srcSlot = prior(srcSlot)) {
+			final Entry src = window[srcSlot];
+			if (src.object < 0 || objects.getType(src.object) != resType)
+				break;
+
+			final int srcDepth = objects.getDeltaDepth(src.object);
+			if (maxDepth <= srcDepth)
+				continue;
+
+			// Demand a smaller delta from deeper bases, as each level of
+			// the chain costs time when the object is read back.
+			//
+			long maxSize;
+			if (best == null)
+				maxSize = (resSize / 2 - 20) * (long) (maxDepth - srcDepth)
+						/ maxDepth;
+			else
+				maxSize = (bestDelta.length - 1) * (long) (maxDepth - srcDepth)
+						/ (maxDepth - bestDepth + 1);
+			if (maxSize <= 0)
+				continue;
+
+			final int srcSize = objects.getWeight(src.object);
+			if (srcSize < resSize && maxSize <= resSize - srcSize)
+				continue;
+			if (resSize < srcSize / 32)
+				continue;
+
+			final DeltaIndex srcIndex = index(src);
+			final byte[] resBuf = buffer(res);
+			deltaBuf.reset();
+			if (!srcIndex.encode(deltaBuf, resBuf, (int) maxSize))
+				continue;
+
+			best = src;
+			bestDelta = deltaBuf.toByteArray();
+			bestDepth = srcDepth + 1;
+		}
+
+		if (best != null) {
+			final int obj = res.object;
+			objects.disposeLoader(obj);
+			objects.setDeltaBase(obj, best.object);
+			objects.updateDeltaDepth(obj);
+			deltaCache.cache(obj, bestDelta, objects.getWeight(best.object),
+					resSize);
+		}
+	}
+
+	private void keepInWindow() {
+		resSlot = next(resSlot);
+
+		// Drop the oldest entries until the window fits in its memory
+		// limit, but always keep the most recent object as a base.
+		//
+		if (0 < maxMemory) {
+			int oldest = resSlot;
+			while (maxMemory < loaded && oldest != prior(resSlot)) {
+				clear(window[oldest]);
+				oldest = next(oldest);
+			}
+		}
+	}
+
+	private DeltaIndex index(final Entry e) throws IOException {
+		if (!e.indexed) {
+			final byte[] buf = buffer(e);
+			if (e.index == null)
+				e.index = new DeltaIndex();
+			e.index.index(buf);
+			e.indexed = true;
+			loaded += e.index.getIndexSize() - buf.length;
+		}
+		return e.index;
+	}
+
+	private byte[] buffer(final Entry e) throws IOException {
+		if (e.buffer == null) {
+			final ObjectId id = objects.getId(e.object);
+			final ObjectLoader ldr = db.openObject(curs, id);
+			if (ldr == null)
+				throw new MissingObjectException(id, objects
+						.getType(e.object));
+			e.buffer = ldr.getCachedBytes();
+			loaded += e.buffer.length;
+		}
+		return e.buffer;
+	}
+
+	private void clear(final Entry e) {
+		if (e.indexed) {
+			loaded -= e.index.getIndexSize();
+			e.index.clear();
+			e.indexed = false;
+		} else if (e.buffer != null)
+			loaded -= e.buffer.length;
+		e.object = -1;
+		e.buffer = null;
+	}
+
+	private int next(final int slot) {
+		return slot + 1 == window.length ? 0 : slot + 1;
+	}
+
+	private int prior(final int slot) {
+		return slot == 0 ? window.length - 1 : slot - 1;
+	}
+
+	private static class Entry {
+		/** Index of the object in the table; -1 if the slot is empty. */
+		int object = -1;
+
+		/** Complete contents of the object, if loaded. */
+		byte[] buffer;
+
+		/** Index tables of this slot, reused by the objects passing it. */
+		DeltaIndex index;
+
+		/** True if {@link #index} holds the index of this object. */
+		boolean indexed;
+	}
+}
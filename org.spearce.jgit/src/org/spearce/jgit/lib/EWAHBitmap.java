@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.spearce.jgit.errors.CorruptObjectException;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Immutable bitmap compressed with the EWAH (Enhanced Word-Aligned Hybrid)
+ * scheme, in the serialized layout used by Git's pack bitmap indexes.
+ * <p>
+ * The bitmap is a sequence of 64 bit words. Each marker word (RLW) describes
+ * a run of words that are entirely 0 or entirely 1, followed by a count of
+ * literal words copied verbatim after the marker:
+ * <ul>
+ * <li>bit 0: value of the running bit</li>
+ * <li>bits 1-32: number of running words</li>
+ * <li>bits 33-63: number of literal words following the marker</li>
+ * </ul>
+ * <p>
+ * Bitmaps are combined by expanding them into an uncompressed
+ * <code>long[]</code> with {@link #orInto(long[])} or
+ * {@link #xorInto(long[])}, and compressed again with
+ * {@link #compress(long[], int)}.
+ */
+final class EWAHBitmap {
+	private static final long MAX_RUN = 0xffffffffL;
+
+	private static final int MAX_LITERALS = 0x7fffffff;
+
+	/**
+	 * Compress an uncompressed bitmap.
+	 *
+	 * @param bits
+	 *            the bitmap; bit <code>i</code> is
+	 *            <code>bits[i / 64] & (1L &lt;&lt; (i % 64))</code>.
+	 * @param bitSize
+	 *            number of valid bits in the bitmap.
+	 * @return the compressed bitmap.
+	 */
+	static EWAHBitmap compress(final long[] bits, final int bitSize) {
+		final int n = (bitSize + 63) >>> 6;
+		long[] out = new long[8];
+		int cnt = 0;
+		int rlw = 0;
+		int i = 0;
+		do {
+			long run = 0;
+			boolean runBit = false;
+			if (i < n && (bits[i] == 0 || bits[i] == -1)) {
+				runBit = bits[i] == -1;
+				final long w = bits[i];
+				while (i < n && bits[i] == w && run < MAX_RUN) {
+					run++;
+					i++;
+				}
+			}
+
+			int lit = 0;
+			while (i + lit < n && bits[i + lit] != 0 && bits[i + lit] != -1
+					&& lit < MAX_LITERALS)
+				lit++;
+
+			if (out.length < cnt + 1 + lit) {
+				final long[] nb = new long[Math.max(out.length * 2, cnt + 1
+						+ lit)];
+				System.arraycopy(out, 0, nb, 0, cnt);
+				out = nb;
+			}
+			rlw = cnt;
+			out[cnt++] = (runBit ? 1L : 0L) | (run << 1) | (((long) lit) << 33);
+			System.arraycopy(bits, i, out, cnt, lit);
+			cnt += lit;
+			i += lit;
+		} while (i < n);
+		return new EWAHBitmap(bitSize, out, cnt, rlw);
+	}
+
+	/**
+	 * Read a serialized bitmap.
+	 *
+	 * @param buf
+	 *            buffer holding the serialized form.
+	 * @param pos
+	 *            position of the first byte of the bitmap within buf.
+	 * @return the bitmap.
+	 * @throws CorruptObjectException
+	 *             the bitmap extends past the end of the buffer.
+	 */
+	static EWAHBitmap read(final byte[] buf, int pos)
+			throws CorruptObjectException {
+		if (buf.length < pos + 8)
+			throw new CorruptObjectException("Truncated EWAH bitmap");
+		final int bitSize = NB.decodeInt32(buf, pos);
+		final int cnt = NB.decodeInt32(buf, pos + 4);
+		pos += 8;
+		if (bitSize < 0 || cnt < 0 || buf.length < pos + 8L * cnt + 4)
+			throw new CorruptObjectException("Truncated EWAH bitmap");
+		final long[] words = new long[cnt];
+		for (int i = 0; i < cnt; i++, pos += 8)
+			words[i] = NB.decodeUInt64(buf, pos);
+		final int rlw = NB.decodeInt32(buf, pos);
+		return new EWAHBitmap(bitSize, words, cnt, rlw);
+	}
+
+	private final int bitSize;
+
+	private final long[] words;
+
+	private final int wordCount;
+
+	private final int rlwPosition;
+
+	private EWAHBitmap(final int bitSize, final long[] words,
+			final int wordCount, final int rlwPosition) {
+		this.bitSize = bitSize;
+		this.words = words;
+		this.wordCount = wordCount;
+		this.rlwPosition = rlwPosition;
+	}
+
+	/** @return number of bits described by this bitmap. */
+	int getBitSize() {
+		return bitSize;
+	}
+
+	/** @return number of bytes {@link #writeTo(OutputStream)} produces. */
+	int getSerializedSize() {
+		return 4 + 4 + 8 * wordCount + 4;
+	}
+
+	/**
+	 * Set every bit of this bitmap in an uncompressed bitmap.
+	 *
+	 * @param dst
+	 *            the uncompressed bitmap to update. Bits past its end are
+	 *            ignored.
+	 */
+	void orInto(final long[] dst) {
+		int d = 0;
+		int p = 0;
+		while (p < wordCount && d < dst.length) {
+			final long rlw = words[p++];
+			final long run = (rlw >>> 1) & MAX_RUN;
+			final int lit = (int) (rlw >>> 33);
+			if ((rlw & 1) != 0) {
+				final long end = Math.min(dst.length, d + run);
+				for (; d < end; d++)
+					dst[d] = -1;
+			} else
+				d = (int) Math.min(dst.length, d + run);
+			for (int i = 0; i < lit && d < dst.length; i++)
+				dst[d++] |= words[p + i];
+			p += lit;
+		}
+	}
+
+	/**
+	 * Toggle every bit of this bitmap in an uncompressed bitmap.
+	 *
+	 * @param dst
+	 *            the uncompressed bitmap to update. Bits past its end are
+	 *            ignored.
+	 */
+	void xorInto(final long[] dst) {
+		int d = 0;
+		int p = 0;
+		while (p < wordCount && d < dst.length) {
+			final long rlw = words[p++];
+			final long run = (rlw >>> 1) & MAX_RUN;
+			final int lit = (int) (rlw >>> 33);
+			if ((rlw & 1) != 0) {
+				final long end = Math.min(dst.length, d + run);
+				for (; d < end; d++)
+					dst[d] = ~dst[d];
+			} else
+				d = (int) Math.min(dst.length, d + run);
+			for (int i = 0; i < lit && d < dst.length; i++)
+				dst[d++] ^= words[p + i];
+			p += lit;
+		}
+	}
+
+	/**
+	 * Test a single bit.
+	 *
+	 * @param bit
+	 *            position of the bit.
+	 * @return true if the bit is set.
+	 */
+	boolean get(final int bit) {
+		final int target = bit >>> 6;
+		long d = 0;
+		int p = 0;
+		while (p < wordCount) {
+			final long rlw = words[p++];
+			final long run = (rlw >>> 1) & MAX_RUN;
+			final int lit = (int) (rlw >>> 33);
+			if (target < d + run)
+				return (rlw & 1) != 0;
+			d += run;
+			if (target < d + lit)
+				return (words[p + (int) (target - d)] & (1L << bit)) != 0;
+			d += lit;
+			p += lit;
+		}
+		return false;
+	}
+
+	/**
+	 * Write this bitmap in Git's serialized EWAH layout.
+	 *
+	 * @param out
+	 *            stream to receive the bitmap.
+	 * @throws IOException
+	 *             the stream could not be written to.
+	 */
+	void writeTo(final OutputStream out) throws IOException {
+		final byte[] tmp = new byte[8];
+		NB.encodeInt32(tmp, 0, bitSize);
+		NB.encodeInt32(tmp, 4, wordCount);
+		out.write(tmp, 0, 8);
+		for (int i = 0; i < wordCount; i++) {
+			NB.encodeInt64(tmp, 0, words[i]);
+			out.write(tmp, 0, 8);
+		}
+		NB.encodeInt32(tmp, 0, rlwPosition);
+		out.write(tmp, 0, 4);
+	}
+}
@@ -39,17 +39,31 @@
 
 import java.util.zip.Inflater;
 
-/** Creates zlib based inflaters as necessary for object decompression. */
+/**
+ * Creates zlib based inflaters as necessary for object decompression.
+ * <p>
+ * Idle inflaters are kept in a pool sized by
+ * {@link WindowCacheConfig#getZlibCacheSize()}, which threads can access
+ * concurrently without contending on a single lock.
+ */
 public class InflaterCache {
-	private static final int SZ = 4;
-
-	private static final Inflater[] inflaterCache;
+	private static final ZlibCache<Inflater> cache = new ZlibCache<Inflater>(
+			new WindowCacheConfig().getZlibCacheSize()) {
+		@Override
+		protected Inflater create() {
+			return new Inflater(false);
+		}
 
-	private static int openInflaterCount;
+		@Override
+		protected void reset(final Inflater i) {
+			i.reset();
+		}
 
-	static {
-		inflaterCache = new Inflater[SZ];
-	}
+		@Override
+		protected void end(final Inflater i) {
+			i.end();
+		}
+	};
 
 	/**
 	 * Obtain an Inflater for decompression.
@@ -60,17 +74,7 @@ public class InflaterCache {
 	 * @return an available inflater. Never null.
 	 */
 	public static Inflater get() {
-		final Inflater r = getImpl();
-		return r != null ? r : new Inflater(false);
-	}
-
-	private synchronized static Inflater getImpl() {
-		if (openInflaterCount > 0) {
-			final Inflater r = inflaterCache[--openInflaterCount];
-			inflaterCache[openInflaterCount] = null;
-			return r;
-		}
-		return null;
+		return cache.get();
 	}
 
 	/**
@@ -81,19 +85,23 @@ private synchronized static Inflater getImpl() {
 	 *            does nothing.
 	 */
 	public static void release(final Inflater i) {
-		if (i != null) {
-			i.reset();
-			if (releaseImpl(i))
-				i.end();
-		}
+		cache.release(i);
 	}
 
-	private static synchronized boolean releaseImpl(final Inflater i) {
-		if (openInflaterCount < SZ) {
-			inflaterCache[openInflaterCount++] = i;
-			return false;
-		}
-		return true;
+	/**
+	 * Get the number of inflaters holding native zlib memory.
+	 * <p>
+	 * The count includes inflaters idle in this cache and inflaters obtained
+	 * by {@link #get()} but not yet released.
+	 *
+	 * @return number of inflaters created and not yet ended.
+	 */
+	public static int getOpenCount() {
+		return cache.getOpenCount();
+	}
+
+	static void reconfigure(final WindowCacheConfig cfg) {
+		cache.resize(cfg.getZlibCacheSize());
 	}
 
 	private InflaterCache() {
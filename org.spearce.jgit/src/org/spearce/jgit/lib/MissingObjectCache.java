@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers recent lookups of objects that do not exist.
+ * <p>
+ * A lookup for a missing object is the most expensive kind of search an
+ * {@link ObjectDatabase} performs: every pack and every alternate is consulted,
+ * the pack directory may be rescanned, and finally the file system is asked
+ * for a loose object. Callers such as negotiation during fetch or push test
+ * many ids the local repository does not have, often more than once.
+ * <p>
+ * The cache is a small direct-mapped table, so memory use is bounded and a
+ * colliding id simply evicts the older entry. Entries are only trusted while
+ * the database's change stamp is unchanged (the pack directory was not
+ * modified, no loose object was written through this process) and for at most
+ * {@link #MAX_AGE} milliseconds, which bounds how long a loose object written
+ * by another process can go unseen.
+ */
+class MissingObjectCache {
+	/** Number of ids remembered; must be a power of 2. */
+	private static final int SIZE = 1024;
+
+	/** Longest time, in milliseconds, a negative result is trusted. */
+	static final long MAX_AGE = 1000;
+
+	private volatile Table table;
+
+	/**
+	 * Determine if an object was recently found to be missing.
+	 *
+	 * @param id
+	 *            the object to test.
+	 * @param stamp
+	 *            the database's current change stamp.
+	 * @return true if the object is known to be missing; false if the
+	 *         database must be searched.
+	 */
+	boolean isMissing(final AnyObjectId id, final long stamp) {
+		final Table t = table;
+		if (t == null || !t.isValid(stamp))
+			return false;
+		final ObjectId e = t.ids.get(slot(id));
+		return e != null && AnyObjectId.equals(e, id);
+	}
+
+	/**
+	 * Record an object as missing.
+	 *
+	 * @param id
+	 *            the object that could not be found.
+	 * @param stamp
+	 *            the database's change stamp from before the search began.
+	 */
+	void add(final AnyObjectId id, final long stamp) {
+		Table t = table;
+		if (t == null || !t.isValid(stamp)) {
+			t = new Table(stamp);
+			table = t;
+		}
+		t.ids.set(slot(id), id.copy());
+	}
+
+	private static int slot(final AnyObjectId id) {
+		return id.hashCode() & (SIZE - 1);
+	}
+
+	private static class Table {
+		final long stamp;
+
+		final long created;
+
+		final AtomicReferenceArray<ObjectId> ids;
+
+		Table(final long stamp) {
+			this.stamp = stamp;
+			this.created = System.currentTimeMillis();
+			this.ids = new AtomicReferenceArray<ObjectId>(SIZE);
+		}
+
+		boolean isValid(final long currStamp) {
+			return stamp == currStamp
+					&& System.currentTimeMillis() - created < MAX_AGE;
+		}
+	}
+}
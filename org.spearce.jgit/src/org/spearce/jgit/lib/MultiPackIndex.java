@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.spearce.jgit.util.NB;
+
+/**
+ * Sorted tables locating objects across many {@link PackFile}s.
+ * <p>
+ * Searching a repository with many packs normally requires one index probe
+ * per pack, and a missing object costs a probe in every pack. This index
+ * merges the names of all objects in a set of packs into a few sorted tables,
+ * so any lookup (hit or miss) costs one search per table.
+ * <p>
+ * The tables are held on the Java heap, about 32 bytes per object: the name,
+ * the offset and the pack. This is in addition to the packs' own indexes, so
+ * the index is only built when <code>core.multiPackIndex</code> is enabled;
+ * see {@link WindowCacheConfig#setMultiPackIndex(boolean)}.
+ * <p>
+ * The tables are immutable once built. When packs are added or removed a new
+ * index is derived from the old one with {@link #update(MultiPackIndex,
+ * PackFile[])}. The new packs' entries form a new table, which is only merged
+ * with the most recent existing tables while they are less than twice its
+ * size. The tables therefore grow geometrically, there are at most a
+ * logarithmic number of them, and adding a small pack to a large repository
+ * does not copy the entries already indexed. Tables holding entries of
+ * removed packs are rebuilt without them. Objects stored in more than one
+ * pack have one entry per pack, so removing a pack never hides a copy still
+ * available in another.
+ */
+class MultiPackIndex {
+	/** Fewer packs than this are cheaper to search one at a time. */
+	static final int MIN_PACKS = 4;
+
+	private static final int FANOUT = 256;
+
+	/**
+	 * Bring an index up to date with a pack list.
+	 *
+	 * @param old
+	 *            a prior index, possibly covering a different set of packs;
+	 *            null if there is no prior index.
+	 * @param packs
+	 *            the packs the returned index must cover exactly.
+	 * @return the index; {@code old} if it already covers {@code packs}; null
+	 *         if there are too few packs to warrant an index.
+	 * @throws IOException
+	 *             the index of one of the new packs could not be read.
+	 */
+	static MultiPackIndex update(final MultiPackIndex old,
+			final PackFile[] packs) throws IOException {
+		if (packs.length < MIN_PACKS)
+			return null;
+
+		final Map<PackFile, PackFile> want = identitySet(packs);
+		final List<Table> tables = new ArrayList<Table>();
+		if (old != null) {
+			boolean removed = false;
+			int cnt = 0;
+			for (final Table t : old.tables) {
+				for (final PackFile p : t.packs)
+					removed |= !want.containsKey(p);
+				cnt += t.packs.length;
+			}
+			if (!removed && cnt == want.size())
+				return old;
+
+			for (final Table t : old.tables) {
+				final Table r = t.retain(want);
+				if (r.cnt > 0)
+					tables.add(r);
+				for (final PackFile p : r.packs)
+					want.remove(p);
+			}
+		}
+
+		if (!want.isEmpty()) {
+			final PackFile[] added = want.keySet().toArray(
+					new PackFile[want.size()]);
+			Table t = load(added, 0, added.length);
+			while (!tables.isEmpty()
+					&& tables.get(tables.size() - 1).cnt <= 2 * t.cnt)
+				t = merge(tables.remove(tables.size() - 1), t);
+			tables.add(t);
+		}
+		return new MultiPackIndex(tables.toArray(new Table[tables.size()]));
+	}
+
+	private static Map<PackFile, PackFile> identitySet(final PackFile[] packs) {
+		final Map<PackFile, PackFile> r = new IdentityHashMap<PackFile, PackFile>();
+		for (final PackFile p : packs)
+			r.put(p, p);
+		return r;
+	}
+
+	/**
+	 * Read and merge the entries of packs[from..to) into a single table.
+	 * <p>
+	 * Packs are merged pairwise, so building from k packs of n total objects
+	 * costs O(n log k) comparisons rather than O(n k).
+	 */
+	private static Table load(final PackFile[] packs, final int from,
+			final int to) throws IOException {
+		if (to - from == 1)
+			return load(packs[from]);
+		final int mid = (from + to) >>> 1;
+		return merge(load(packs, from, mid), load(packs, mid, to));
+	}
+
+	private static Table load(final PackFile pack) throws IOException {
+		final PackIndex idx = pack.idx();
+		final long cnt = idx.getObjectCount();
+		if (cnt > Integer.MAX_VALUE / Constants.OBJECT_ID_LENGTH)
+			throw new IOException("Pack is too large for a multi-pack index");
+		final Table t = new Table(new PackFile[] { pack }, (int) cnt);
+		int ptr = 0;
+		for (final PackIndex.MutableEntry e : idx) {
+			e.ensureId();
+			final MutableObjectId id = e.idBuffer;
+			final int p5 = ptr * 5;
+			t.names[p5] = id.w1;
+			t.names[p5 + 1] = id.w2;
+			t.names[p5 + 2] = id.w3;
+			t.names[p5 + 3] = id.w4;
+			t.names[p5 + 4] = id.w5;
+			t.offsets[ptr] = e.getOffset();
+			ptr++;
+		}
+		t.cnt = ptr;
+		t.buildFanout();
+		return t;
+	}
+
+	private static Table merge(final Table a, final Table b) {
+		final PackFile[] packs = new PackFile[a.packs.length + b.packs.length];
+		System.arraycopy(a.packs, 0, packs, 0, a.packs.length);
+		System.arraycopy(b.packs, 0, packs, a.packs.length, b.packs.length);
+		final int shift = a.packs.length;
+
+		final Table r = new Table(packs, a.cnt + b.cnt);
+		int i = 0, j = 0, k = 0;
+		while (i < a.cnt && j < b.cnt) {
+			if (compare(a.names, i * 5, b.names, j * 5) <= 0)
+				r.copy(k++, a, i++, 0);
+			else
+				r.copy(k++, b, j++, shift);
+		}
+		while (i < a.cnt)
+			r.copy(k++, a, i++, 0);
+		while (j < b.cnt)
+			r.copy(k++, b, j++, shift);
+		r.cnt = k;
+		r.buildFanout();
+		return r;
+	}
+
+	private static int compare(final int[] a, final int ap, final int[] b,
+			final int bp) {
+		for (int i = 0; i < 5; i++) {
+			final int cmp = NB.compareUInt32(a[ap + i], b[bp + i]);
+			if (cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	/** Tables from oldest (and largest) to most recent. */
+	private final Table[] tables;
+
+	private MultiPackIndex(final Table[] tables) {
+		this.tables = tables;
+	}
+
+	/** @return number of entries; objects in several packs count once each. */
+	int getEntryCount() {
+		int cnt = 0;
+		for (final Table t : tables)
+			cnt += t.cnt;
+		return cnt;
+	}
+
+	/**
+	 * Locate an object.
+	 *
+	 * @param id
+	 *            the object to find.
+	 * @return position of an entry for the object, or -1 if it is not in any
+	 *         of the packs.
+	 */
+	long find(final AnyObjectId id) {
+		for (int i = tables.length - 1; i >= 0; i--) {
+			final int pos = tables[i].find(id);
+			if (pos >= 0)
+				return (((long) i) << 32) | pos;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param pos
+	 *            position returned by {@link #find(AnyObjectId)}.
+	 * @return the pack holding the entry.
+	 */
+	PackFile getPack(final long pos) {
+		final Table t = tables[(int) (pos >>> 32)];
+		return t.packs[t.packIds[(int) pos]];
+	}
+
+	/**
+	 * @param pos
+	 *            position returned by {@link #find(AnyObjectId)}.
+	 * @return offset of the object within {@link #getPack(long)}.
+	 */
+	long getOffset(final long pos) {
+		return tables[(int) (pos >>> 32)].offsets[(int) pos];
+	}
+
+	private static class Table {
+		final PackFile[] packs;
+
+		final int[] names;
+
+		final long[] offsets;
+
+		/** Index into {@link #packs} of each entry's pack. */
+		final int[] packIds;
+
+		/** Position of the first entry of each fan-out bucket, plus the end. */
+		final int[] fanout;
+
+		int cnt;
+
+		Table(final PackFile[] packs, final int size) {
+			this.packs = packs;
+			names = new int[size * 5];
+			offsets = new long[size];
+			packIds = new int[size];
+			fanout = new int[FANOUT + 1];
+		}
+
+		void copy(final int dst, final Table src, final int p, final int shift) {
+			System.arraycopy(src.names, p * 5, names, dst * 5, 5);
+			offsets[dst] = src.offsets[p];
+			packIds[dst] = src.packIds[p] + shift;
+		}
+
+		void buildFanout() {
+			int bucket = 0;
+			for (int i = 0; i < cnt; i++) {
+				final int b = names[i * 5] >>> 24;
+				while (bucket < b)
+					fanout[++bucket] = i;
+			}
+			while (bucket < FANOUT)
+				fanout[++bucket] = cnt;
+		}
+
+		int find(final AnyObjectId id) {
+			final int b = id.getFirstByte();
+			int low = fanout[b];
+			int high = fanout[b + 1];
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				final int cmp = id.compareTo(names, mid * 5);
+				if (cmp < 0)
+					high = mid;
+				else if (cmp == 0)
+					return mid;
+				else
+					low = mid + 1;
+			}
+			return -1;
+		}
+
+		/** @return this table, or a copy without the packs not wanted. */
+		Table retain(final Map<PackFile, PackFile> want) {
+			final int[] remap = new int[packs.length];
+			int n = 0;
+			for (int i = 0; i < packs.length; i++)
+				remap[i] = want.containsKey(packs[i]) ? n++ : -1;
+			if (n == packs.length)
+				return this;
+
+			final PackFile[] kept = new PackFile[n];
+			for (int i = 0; i < packs.length; i++)
+				if (remap[i] >= 0)
+					kept[remap[i]] = packs[i];
+
+			int size = 0;
+			for (int i = 0; i < cnt; i++)
+				if (remap[packIds[i]] >= 0)
+					size++;
+
+			final Table r = new Table(kept, size);
+			for (int i = 0; i < cnt; i++) {
+				final int id = remap[packIds[i]];
+				if (id >= 0) {
+					r.copy(r.cnt, this, i, 0);
+					r.packIds[r.cnt++] = id;
+				}
+			}
+			r.buildFanout();
+			return r;
+		}
+	}
+}
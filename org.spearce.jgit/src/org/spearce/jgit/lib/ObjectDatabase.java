@@ -39,6 +39,7 @@
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -60,9 +61,15 @@ public abstract class ObjectDatabase {
 
 	private final AtomicReference<ObjectDatabase[]> alternates;
 
+	private final AtomicLong changes;
+
+	private final MissingObjectCache missing;
+
 	/** Initialize a new database instance for access. */
 	protected ObjectDatabase() {
 		alternates = new AtomicReference<ObjectDatabase[]>();
+		changes = new AtomicLong();
+		missing = new MissingObjectCache();
 	}
 
 	/**
@@ -123,7 +130,13 @@ public final void closeAlternates() {
 	 *         of the alternate databases.
 	 */
 	public final boolean hasObject(final AnyObjectId objectId) {
-		return hasObjectImpl1(objectId) || hasObjectImpl2(objectId.name());
+		final long stamp = changeStamp();
+		if (missing.isMissing(objectId, stamp))
+			return false;
+		if (hasObjectImpl1(objectId) || hasObjectImpl2(objectId.name()))
+			return true;
+		missing.add(objectId, stamp);
+		return false;
 	}
 
 	private final boolean hasObjectImpl1(final AnyObjectId objectId) {
@@ -186,6 +199,10 @@ protected boolean hasObject2(String objectName) {
 	 */
 	public final ObjectLoader openObject(final WindowCursor curs,
 			final AnyObjectId objectId) throws IOException {
+		final long stamp = changeStamp();
+		if (missing.isMissing(objectId, stamp))
+			return null;
+
 		ObjectLoader ldr;
 
 		ldr = openObjectImpl1(curs, objectId);
@@ -197,6 +214,7 @@ public final ObjectLoader openObject(final WindowCursor curs,
 		if (ldr != null) {
 			return ldr;
 		}
+		missing.add(objectId, stamp);
 		return null;
 	}
 
@@ -314,6 +332,33 @@ void openObjectInAllPacks1(Collection<PackedObjectLoader> out,
 		// Assume no pack support
 	}
 
+	/**
+	 * Notify this database that objects may have been added to it.
+	 * <p>
+	 * Implementations call this when they discover new objects, for example
+	 * after finding a new pack. Code writing loose objects directly into the
+	 * database must also call it, so that earlier failed lookups of those
+	 * objects are not remembered.
+	 */
+	public void objectsAdded() {
+		changes.incrementAndGet();
+	}
+
+	/**
+	 * Obtain a stamp that changes whenever objects are added.
+	 * <p>
+	 * The stamp covers this database and all of its alternates, so any
+	 * addition reachable through {@link #hasObject(AnyObjectId)} changes it.
+	 *
+	 * @return the current change stamp.
+	 */
+	long changeStamp() {
+		long stamp = changes.get();
+		for (final ObjectDatabase alt : getAlternates())
+			stamp += alt.changeStamp();
+		return stamp;
+	}
+
 	/**
 	 * @return true if the fast-half search should be tried again.
 	 */
@@ -51,6 +51,9 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.spearce.jgit.errors.PackMismatchException;
@@ -66,7 +69,8 @@
  * {@link PackFile}s.
  */
 public class ObjectDirectory extends ObjectDatabase {
-	private static final PackList NO_PACKS = new PackList(-1, -1, new PackFile[0]);
+	private static final PackList NO_PACKS = new PackList(-1, -1,
+			new PackFile[0], null);
 
 	private final File objects;
 
@@ -170,7 +174,12 @@ public String toString() {
 
 	@Override
 	protected boolean hasObject1(final AnyObjectId objectId) {
-		for (final PackFile p : packList.get().packs) {
+		final PackList pList = packList.get();
+		final MultiPackIndex midx = pList.getMultiPackIndex();
+		if (midx != null)
+			return midx.find(objectId) >= 0;
+
+		for (final PackFile p : pList.packs) {
 			try {
 				if (p.hasObject(objectId)) {
 					return true;
@@ -192,6 +201,32 @@ protected ObjectLoader openObject1(final WindowCursor curs,
 			final AnyObjectId objectId) throws IOException {
 		PackList pList = packList.get();
 		SEARCH: for (;;) {
+			final MultiPackIndex midx = pList.getMultiPackIndex();
+			if (midx != null) {
+				final long pos = midx.find(objectId);
+				if (pos < 0)
+					return null;
+				final PackFile p = midx.getPack(pos);
+				try {
+					final PackedObjectLoader ldr = p.get(curs, midx
+							.getOffset(pos));
+					ldr.materialize(curs);
+					return ldr;
+				} catch (PackMismatchException e) {
+					// Pack was modified; refresh the entire pack list.
+					//
+					pList = scanPacks(pList);
+					continue SEARCH;
+				} catch (IOException e) {
+					// Assume the pack is corrupted. The object may still
+					// be available from another pack, so search again.
+					//
+					removePack(p);
+					pList = packList.get();
+					continue SEARCH;
+				}
+			}
+
 			for (final PackFile p : pList.packs) {
 				try {
 					final PackedObjectLoader ldr = p.get(curs, objectId);
@@ -257,6 +292,63 @@ protected ObjectLoader openObject2(final WindowCursor curs,
 		}
 	}
 
+	/** @return the packs currently known, scanning the directory if needed. */
+	PackFile[] packs() {
+		return scannedPackList().packs;
+	}
+
+	/**
+	 * Load the index of every pack in the background.
+	 * <p>
+	 * Each index is parsed by its own task, so the indexes of a repository
+	 * with many packs are read in parallel, instead of one at a time by the
+	 * first request. When the last index is loaded the index over all packs
+	 * is built as well. Failures are left for that first request to discover.
+	 *
+	 * @param executor
+	 *            executor to run the loading tasks on.
+	 */
+	void preload(final Executor executor) {
+		final PackList pList = scannedPackList();
+		final AtomicInteger remaining = new AtomicInteger(pList.packs.length);
+		for (final PackFile p : pList.packs) {
+			final Runnable task = new Runnable() {
+				public void run() {
+					try {
+						p.idx();
+						p.getBitmapIndex();
+					} catch (IOException e) {
+						// The pack is now marked invalid, and will be
+						// dropped by the next search that reaches it.
+					}
+					if (remaining.decrementAndGet() == 0)
+						pList.getMultiPackIndex();
+				}
+			};
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				return;
+			}
+		}
+	}
+
+	private PackList scannedPackList() {
+		final PackList pList = packList.get();
+		if (pList == NO_PACKS)
+			return scanPacks(pList);
+		return pList;
+	}
+
+	@Override
+	long changeStamp() {
+		// Include the pack directory's modification time, so a pack
+		// created by another process invalidates cached lookup misses
+		// just as it would force a rescan of the directory.
+		//
+		return super.changeStamp() + packDirectory.lastModified();
+	}
+
 	@Override
 	protected boolean tryAgain1() {
 		final PackList old = packList.get();
@@ -273,8 +365,9 @@ private void insertPack(final PackFile pf) {
 			final PackFile[] newList = new PackFile[1 + oldList.length];
 			newList[0] = pf;
 			System.arraycopy(oldList, 0, newList, 1, oldList.length);
-			n = new PackList(o.lastRead, o.lastModified, newList);
+			n = new PackList(o.lastRead, o.lastModified, newList, o.midx);
 		} while (!packList.compareAndSet(o, n));
+		objectsAdded();
 	}
 
 	private void removePack(final PackFile deadPack) {
@@ -290,7 +383,7 @@ private void removePack(final PackFile deadPack) {
 			final PackFile[] newList = new PackFile[oldList.length - 1];
 			System.arraycopy(oldList, 0, newList, 0, j);
 			System.arraycopy(oldList, j + 1, newList, j, newList.length - j);
-			n = new PackList(o.lastRead, o.lastModified, newList);
+			n = new PackList(o.lastRead, o.lastModified, newList, o.midx);
 		} while (!packList.compareAndSet(o, n));
 		deadPack.close();
 	}
@@ -318,6 +411,7 @@ private PackList scanPacks(final PackList original) {
 				if (n == o)
 					return n;
 			} while (!packList.compareAndSet(o, n));
+			objectsAdded();
 			return n;
 		}
 	}
@@ -370,11 +464,11 @@ private PackList scanPacksImpl(final PackList old) {
 		}
 
 		if (list.isEmpty())
-			return new PackList(lastRead, lastModified, NO_PACKS.packs);
+			return new PackList(lastRead, lastModified, NO_PACKS.packs, null);
 
 		final PackFile[] r = list.toArray(new PackFile[list.size()]);
 		Arrays.sort(r, PackFile.SORT);
-		return new PackList(lastRead, lastModified, r);
+		return new PackList(lastRead, lastModified, r, old.midx);
 	}
 
 	private static Map<String, PackFile> reuseMap(final PackList old) {
@@ -459,16 +553,57 @@ private static final class PackList {
 		/** All known packs, sorted by {@link PackFile#SORT}. */
 		final PackFile[] packs;
 
+		/**
+		 * Index over {@link #packs}, or a prior list's index until
+		 * {@link #getMultiPackIndex()} brings it up to date.
+		 */
+		volatile MultiPackIndex midx;
+
+		private volatile boolean midxCurrent;
+
 		private boolean cannotBeRacilyClean;
 
 		PackList(final long lastRead, final long lastModified,
-				final PackFile[] packs) {
+				final PackFile[] packs, final MultiPackIndex priorIndex) {
 			this.lastRead = lastRead;
 			this.lastModified = lastModified;
 			this.packs = packs;
+			this.midx = priorIndex;
 			this.cannotBeRacilyClean = notRacyClean(lastRead);
 		}
 
+		/**
+		 * Get the index covering all of {@link #packs}.
+		 * <p>
+		 * The index is derived incrementally from the prior list's index the
+		 * first time it is needed, so only packs added since then are read.
+		 *
+		 * @return the index; null if the packs should be searched one at a
+		 *         time, because the index is disabled, there are few packs,
+		 *         or one is unreadable.
+		 */
+		MultiPackIndex getMultiPackIndex() {
+			if (!WindowCache.isMultiPackIndex())
+				return null;
+			if (!midxCurrent) {
+				synchronized (this) {
+					if (!midxCurrent) {
+						try {
+							midx = MultiPackIndex.update(midx, packs);
+						} catch (IOException e) {
+							// A pack index is unreadable. Searching each
+							// pack individually will find, and remove,
+							// the bad pack.
+							//
+							midx = null;
+						}
+						midxCurrent = true;
+					}
+				}
+			}
+			return midx;
+		}
+
 		private boolean notRacyClean(final long read) {
 			return read - lastModified > 2 * 60 * 1000L;
 		}
@@ -0,0 +1,560 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.spearce.jgit.transport.PackedObjectInfo;
+import org.spearce.jgit.util.NB;
+
+/**
+ * The objects a {@link PackWriter} is going to write, held in primitive arrays.
+ * <p>
+ * A pack of a large repository holds millions of objects. Rather than one
+ * object per entry, each with its own id, map entry and list slot, the table
+ * stores every field in an array indexed by the object's position, in the
+ * order the objects were added. Delta bases refer to other objects by their
+ * index. An entry costs about 44 bytes, plus the 4 bytes of its place in the
+ * name order the writer keeps for lookups and for the index.
+ * <p>
+ * Some fields are only needed before the object is written, and share their
+ * slot with a field only needed after: the offset of the representation
+ * selected for reuse is replaced by the object's offset in the output, and
+ * the delta base by the CRC of the written entry.
+ * <p>
+ * The delta search threads may update different entries at the same time.
+ * An entry must not be updated by two threads at once.
+ */
+class ObjectToPackTable {
+	/** Deepest delta chain the table can record. */
+	static final int MAX_DEPTH = (1 << 12) - 1;
+
+	private static final int WANT_WRITE = 1;
+
+	private static final int TYPE_SHIFT = 1;
+
+	private static final int WRITTEN = 1 << 4;
+
+	private static final int DEPTH_SHIFT = 5;
+
+	private static final int PACK_SHIFT = 17;
+
+	private static final int PACK_MASK = -1 << PACK_SHIFT;
+
+	/** Number of distinct packs representations can be reused from. */
+	private static final int MAX_PACKS = (1 << (32 - PACK_SHIFT)) - 1;
+
+	private int size;
+
+	/** Five words of each id, as held by {@link AnyObjectId}. */
+	private int[] ids;
+
+	/**
+	 * Bit field, from bit 0 to bit 31:
+	 * <ul>
+	 * <li>1 bit: wantWrite</li>
+	 * <li>3 bits: type</li>
+	 * <li>1 bit: written</li>
+	 * <li>12 bits: deltaDepth</li>
+	 * <li>15 bits: 1 + index in {@link #packs} of the representation
+	 * selected for reuse; 0 if none</li>
+	 * </ul>
+	 */
+	private int[] info;
+
+	/**
+	 * Offset in the output once written; before, offset of the
+	 * representation selected for reuse, if any.
+	 */
+	private long[] offsets;
+
+	/**
+	 * Before the object is written: 0 if it is written whole, 1 + index of
+	 * its delta base, or -(1 + index in {@link #edges}) if its base is not
+	 * in the pack. Once written: CRC of the entry.
+	 */
+	private int[] bases;
+
+	/** Hash of the last characters of each object's path. */
+	private int[] pathHashes;
+
+	/** Inflated size of each object, if known; 0 otherwise. */
+	private int[] weights;
+
+	private final List<PackFile> packs = new ArrayList<PackFile>();
+
+	private final Map<PackFile, Integer> packIndex = new HashMap<PackFile, Integer>();
+
+	/** Delta bases of a thin pack the receiver already has. */
+	private final List<ObjectId> edges = new ArrayList<ObjectId>();
+
+	ObjectToPackTable() {
+		ids = new int[16 * 5];
+		info = new int[16];
+		offsets = new long[16];
+		bases = new int[16];
+		pathHashes = new int[16];
+		weights = new int[16];
+	}
+
+	/** @return number of objects in the table. */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Append an object, initially to be written whole.
+	 *
+	 * @param id
+	 *            name of the object.
+	 * @param type
+	 *            real type code of the object, not its in-pack type.
+	 * @param pathHash
+	 *            hash of the object's path; 0 if it has none.
+	 * @return index of the new entry.
+	 */
+	int add(final AnyObjectId id, final int type, final int pathHash) {
+		if (size == info.length)
+			grow();
+		final int i = size++;
+		id.copyRawTo(ids, i * 5);
+		info[i] = type << TYPE_SHIFT;
+		pathHashes[i] = pathHash;
+		return i;
+	}
+
+	private void grow() {
+		resize((info.length + 16) * 3 / 2);
+	}
+
+	private void resize(final int n) {
+		final int[] nIds = new int[n * 5];
+		System.arraycopy(ids, 0, nIds, 0, size * 5);
+		ids = nIds;
+		info = resize(info, n);
+		bases = resize(bases, n);
+		pathHashes = resize(pathHashes, n);
+		weights = resize(weights, n);
+		final long[] nOffsets = new long[n];
+		System.arraycopy(offsets, 0, nOffsets, 0, size);
+		offsets = nOffsets;
+	}
+
+	/** Release the space reserved for objects not added yet. */
+	void trim() {
+		if (size < info.length)
+			resize(size);
+	}
+
+	private int[] resize(final int[] a, final int n) {
+		final int[] r = new int[n];
+		System.arraycopy(a, 0, r, 0, size);
+		return r;
+	}
+
+	/**
+	 * @param i
+	 *            index of the object.
+	 * @return a copy of the object's name.
+	 */
+	ObjectId getId(final int i) {
+		return ObjectId.fromRaw(ids, i * 5);
+	}
+
+	void copyRawTo(final int i, final byte[] b, final int o) {
+		final int p = i * 5;
+		NB.encodeInt32(b, o, ids[p]);
+		NB.encodeInt32(b, o + 4, ids[p + 1]);
+		NB.encodeInt32(b, o + 8, ids[p + 2]);
+		NB.encodeInt32(b, o + 12, ids[p + 3]);
+		NB.encodeInt32(b, o + 16, ids[p + 4]);
+	}
+
+	int getFirstByte(final int i) {
+		return ids[i * 5] >>> 24;
+	}
+
+	/** @return sort order of the names of two objects. */
+	int compare(final int a, final int b) {
+		final int pa = a * 5;
+		final int pb = b * 5;
+		for (int k = 0; k < 5; k++) {
+			final int cmp = NB.compareUInt32(ids[pa + k], ids[pb + k]);
+			if (cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	/** @return sort order of an object's name and <code>id</code>. */
+	int compareTo(final int i, final AnyObjectId id) {
+		return -id.compareTo(ids, i * 5);
+	}
+
+	/** @return sort order of an object's name and a raw name in a buffer. */
+	int compareTo(final int i, final byte[] raw, final int ptr) {
+		final int p = i * 5;
+		for (int k = 0; k < 5; k++) {
+			final int cmp = NB.compareUInt32(ids[p + k], NB.decodeInt32(raw,
+					ptr + 4 * k));
+			if (cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	/**
+	 * Find an object by name.
+	 *
+	 * @param sorted
+	 *            indexes of all objects, sorted by name.
+	 * @param id
+	 *            name of the object.
+	 * @return position of the object within <code>sorted</code>; -1 if it
+	 *         is not in the table.
+	 */
+	int findPosition(final int[] sorted, final AnyObjectId id) {
+		int low = 0;
+		int high = sorted.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = compareTo(sorted[mid], id);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp == 0)
+				return mid;
+			else
+				high = mid;
+		}
+		return -1;
+	}
+
+	int getType(final int i) {
+		return (info[i] >>> TYPE_SHIFT) & 0x7;
+	}
+
+	/**
+	 * Check if object is already written in a pack. This information is used
+	 * to achieve delta-base precedence in a pack file.
+	 *
+	 * @return true if object is already written; false otherwise.
+	 */
+	boolean isWritten(final int i) {
+		return (info[i] & WRITTEN) != 0;
+	}
+
+	/** @return offset of the object in the output, once written. */
+	long getOffset(final int i) {
+		return offsets[i];
+	}
+
+	/**
+	 * Record where the object is written, marking it written.
+	 *
+	 * @param i
+	 *            index of the object.
+	 * @param offset
+	 *            offset of the object's entry in the output.
+	 */
+	void setOffset(final int i, final long offset) {
+		offsets[i] = offset;
+		info[i] = (info[i] & ~PACK_MASK) | WRITTEN;
+	}
+
+	/** @return CRC of the object's entry, once written. */
+	int getCRC(final int i) {
+		return bases[i];
+	}
+
+	/**
+	 * Record the CRC of the written entry. The delta base is no longer
+	 * available afterwards.
+	 */
+	void setCRC(final int i, final int crc) {
+		bases[i] = crc;
+	}
+
+	/**
+	 * @return index of the delta base if the object is going to be packed as
+	 *         a delta of another object of the table; -1 otherwise.
+	 */
+	int getDeltaBase(final int i) {
+		final int b = bases[i];
+		return 0 < b ? b - 1 : -1;
+	}
+
+	/**
+	 * @return delta base object id if object is going to be packed in delta
+	 *         representation; null otherwise - if going to be packed as a
+	 *         whole object.
+	 */
+	ObjectId getDeltaBaseId(final int i) {
+		final int b = bases[i];
+		if (0 < b)
+			return getId(b - 1);
+		if (b < 0)
+			return edges.get(-b - 1);
+		return null;
+	}
+
+	/**
+	 * Select another object of the table as delta base.
+	 *
+	 * @param i
+	 *            index of the object.
+	 * @param base
+	 *            index of its delta base.
+	 */
+	void setDeltaBase(final int i, final int base) {
+		bases[i] = base + 1;
+	}
+
+	/**
+	 * Select an object the receiver of a thin pack has as delta base.
+	 *
+	 * @param i
+	 *            index of the object.
+	 * @param base
+	 *            the delta base, not in the table.
+	 */
+	void setDeltaBase(final int i, final ObjectId base) {
+		edges.add(base);
+		bases[i] = -edges.size();
+	}
+
+	void clearDeltaBase(final int i) {
+		bases[i] = 0;
+	}
+
+	/**
+	 * @return true if object is going to be written as delta; false
+	 *         otherwise.
+	 */
+	boolean isDeltaRepresentation(final int i) {
+		return bases[i] != 0;
+	}
+
+	int getDeltaDepth(final int i) {
+		return (info[i] >>> DEPTH_SHIFT) & MAX_DEPTH;
+	}
+
+	void updateDeltaDepth(final int i) {
+		final int b = bases[i];
+		final int d;
+		if (0 < b)
+			d = getDeltaDepth(b - 1) + 1;
+		else if (b < 0)
+			d = 1;
+		else
+			d = 0;
+		info[i] = (info[i] & ~(MAX_DEPTH << DEPTH_SHIFT)) | d << DEPTH_SHIFT;
+	}
+
+	boolean wantWrite(final int i) {
+		return (info[i] & WANT_WRITE) != 0;
+	}
+
+	void markWantWrite(final int i) {
+		info[i] |= WANT_WRITE;
+	}
+
+	/**
+	 * Open the representation selected for reuse.
+	 * <p>
+	 * Only the pack and position of the representation are held between the
+	 * reuse search and writing, so the loader is created again here. The
+	 * selection is forgotten once opened.
+	 *
+	 * @param i
+	 *            index of the object.
+	 * @param curs
+	 *            temporary working space associated with the calling thread.
+	 * @return loader for the reused representation; null if the object has
+	 *         no representation selected for reuse.
+	 * @throws IOException
+	 *             the pack holding the representation could not be read.
+	 */
+	PackedObjectLoader useLoader(final int i, final WindowCursor curs)
+			throws IOException {
+		final int p = info[i] >>> PACK_SHIFT;
+		if (p == 0)
+			return null;
+		info[i] &= ~PACK_MASK;
+		return packs.get(p - 1).get(curs, offsets[i]);
+	}
+
+	boolean hasReuseLoader(final int i) {
+		return (info[i] & PACK_MASK) != 0;
+	}
+
+	/**
+	 * Select a representation to copy when the object is written.
+	 * <p>
+	 * If the representations already selected come from too many packs, the
+	 * object is compressed again instead.
+	 *
+	 * @param i
+	 *            index of the object, not yet written.
+	 * @param reuseLoader
+	 *            the representation.
+	 */
+	void setReuseLoader(final int i, final PackedObjectLoader reuseLoader) {
+		Integer p = packIndex.get(reuseLoader.pack);
+		if (p == null) {
+			if (packs.size() == MAX_PACKS) {
+				disposeLoader(i);
+				return;
+			}
+			packs.add(reuseLoader.pack);
+			p = Integer.valueOf(packs.size());
+			packIndex.put(reuseLoader.pack, p);
+		}
+		info[i] = (info[i] & ~PACK_MASK) | p.intValue() << PACK_SHIFT;
+		offsets[i] = reuseLoader.getObjectOffset();
+	}
+
+	void disposeLoader(final int i) {
+		info[i] &= ~PACK_MASK;
+	}
+
+	int getPathHash(final int i) {
+		return pathHashes[i];
+	}
+
+	int getWeight(final int i) {
+		return weights[i];
+	}
+
+	void setWeight(final int i, final int size) {
+		weights[i] = size;
+	}
+
+	/**
+	 * Describe written objects the way the index writers expect.
+	 * <p>
+	 * A new {@link PackedObjectInfo} is created each time an element is read.
+	 *
+	 * @param sorted
+	 *            indexes of the objects to list, sorted by name.
+	 * @return read-only view of the objects.
+	 */
+	List<PackedObjectInfo> asPackedObjectInfo(final int[] sorted) {
+		final MutableObjectId tmp = new MutableObjectId();
+		return new AbstractList<PackedObjectInfo>() {
+			public PackedObjectInfo get(final int k) {
+				final int i = sorted[k];
+				tmp.fromRaw(ids, i * 5);
+				final PackedObjectInfo r = new PackedObjectInfo(tmp);
+				r.setOffset(getOffset(i));
+				r.setCRC(getCRC(i));
+				return r;
+			}
+
+			public int size() {
+				return sorted.length;
+			}
+		};
+	}
+
+	/** Sort order of two objects, given by their index. */
+	static abstract class Order {
+		abstract int compare(int a, int b);
+	}
+
+	/**
+	 * Sort a range of object indexes.
+	 * <p>
+	 * The sort is stable: objects the order considers equal keep their
+	 * relative positions.
+	 *
+	 * @param a
+	 *            array of indexes.
+	 * @param from
+	 *            first position of the range to sort.
+	 * @param to
+	 *            position just after the range.
+	 * @param order
+	 *            the order to sort into.
+	 */
+	static void sort(final int[] a, final int from, final int to,
+			final Order order) {
+		if (to - from < 2)
+			return;
+		sort(a, new int[(to - from + 1) / 2], from, to, order);
+	}
+
+	private static void sort(final int[] a, final int[] tmp, final int from,
+			final int to, final Order order) {
+		if (to - from <= 8) {
+			for (int i = from + 1; i < to; i++) {
+				final int v = a[i];
+				int j = i - 1;
+				for (; from <= j && order.compare(a[j], v) > 0; j--)
+					a[j + 1] = a[j];
+				a[j + 1] = v;
+			}
+			return;
+		}
+
+		final int mid = (from + to) >>> 1;
+		sort(a, tmp, from, mid, order);
+		sort(a, tmp, mid, to, order);
+		if (order.compare(a[mid - 1], a[mid]) <= 0)
+			return;
+
+		final int n = mid - from;
+		System.arraycopy(a, from, tmp, 0, n);
+		int i = 0;
+		int j = mid;
+		int k = from;
+		while (i < n && j < to) {
+			if (order.compare(a[j], tmp[i]) < 0)
+				a[k++] = a[j++];
+			else
+				a[k++] = tmp[i++];
+		}
+		while (i < n)
+			a[k++] = tmp[i++];
+	}
+}
@@ -72,7 +72,7 @@ public class ObjectWriter {
 
 	private final MessageDigest md;
 
-	private final Deflater def;
+	private final int compression;
 
 	/**
 	 * Construct an Object writer for the specified repository
@@ -82,7 +82,7 @@ public ObjectWriter(final Repository d) {
 		r = d;
 		buf = new byte[8192];
 		md = Constants.newMessageDigest();
-		def = new Deflater(r.getConfig().getCore().getCompression());
+		compression = r.getConfig().getCore().getCompression();
 	}
 
 	/**
@@ -300,6 +300,7 @@ public ObjectId computeBlobSha1(final long len, final InputStream is)
 	ObjectId writeObject(final int type, long len, final InputStream is,
 			boolean store) throws IOException {
 		final File t;
+		final Deflater def;
 		final DeflaterOutputStream deflateStream;
 		final FileOutputStream fileStream;
 		ObjectId id = null;
@@ -314,10 +315,12 @@ ObjectId writeObject(final int type, long len, final InputStream is,
 
 		md.reset();
 		if (store) {
-			def.reset();
+			def = DeflaterCache.get(compression);
 			deflateStream = new DeflaterOutputStream(fileStream, def);
-		} else
+		} else {
+			def = null;
 			deflateStream = null;
+		}
 
 		try {
 			byte[] header;
@@ -368,6 +371,7 @@ ObjectId writeObject(final int type, long len, final InputStream is,
 					t.delete();
 				}
 			}
+			DeflaterCache.release(def);
 		}
 
 		if (t == null)
@@ -399,6 +403,7 @@ ObjectId writeObject(final int type, long len, final InputStream is,
 					}
 				}
 			}
+			r.getObjectDatabase().objectsAdded();
 		}
 
 		return id;
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.spearce.jgit.errors.CorruptObjectException;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Reachability bitmaps for the objects of a {@link PackFile}.
+ * <p>
+ * A bitmap index is stored in a <code>.bitmap</code> file next to the pack,
+ * in the version 1 format also used by C Git. Bit <code>i</code> of every
+ * bitmap corresponds to the <code>i</code>-th object of the pack when objects
+ * are ordered by offset (see {@link PackReverseIndex}).
+ * <p>
+ * The index holds one bitmap per object type, and one bitmap for each of a
+ * selected set of commits describing every object reachable from that
+ * commit. The set of objects to send for a clone or fetch can then be
+ * computed by OR-ing the bitmaps of the wanted commits and clearing the bits
+ * of the bitmaps of commits the client already has, without parsing a single
+ * commit or tree.
+ * <p>
+ * The index may also hold the hash of the path each object was found at,
+ * which the walk would otherwise compute. {@link PackWriter} groups objects
+ * by this hash when searching for deltas.
+ */
+class PackBitmapIndex {
+	static final byte[] SIGNATURE = { 'B', 'I', 'T', 'M' };
+
+	static final int VERSION = 1;
+
+	/** The pack is closed under reachability; required by C Git. */
+	static final int OPT_FULL_DAG = 1;
+
+	/** A path hash for every object follows the bitmaps. */
+	static final int OPT_HASH_CACHE = 4;
+
+	private static final int MAX_XOR_OFFSET = 160;
+
+	/**
+	 * Read a bitmap index file.
+	 *
+	 * @param bitmapFile
+	 *            the <code>.bitmap</code> file.
+	 * @param idx
+	 *            index of the pack the bitmaps describe.
+	 * @param rev
+	 *            reverse index of the same pack.
+	 * @return the bitmap index.
+	 * @throws IOException
+	 *             the file cannot be read, or does not describe this pack.
+	 */
+	static PackBitmapIndex open(final File bitmapFile, final PackIndex idx,
+			final PackReverseIndex rev) throws IOException {
+		final byte[] buf = NB.readFully(bitmapFile, Integer.MAX_VALUE);
+		try {
+			return new PackBitmapIndex(buf, idx, rev);
+		} catch (IOException ioe) {
+			final IOException err;
+			err = new IOException("Unreadable bitmap index: " + bitmapFile);
+			err.initCause(ioe);
+			throw err;
+		}
+	}
+
+	private final PackIndex packIndex;
+
+	private final PackReverseIndex reverseIndex;
+
+	private final int objectCount;
+
+	private final EWAHBitmap commits;
+
+	private final EWAHBitmap trees;
+
+	private final EWAHBitmap blobs;
+
+	private final EWAHBitmap tags;
+
+	private final ObjectIdSubclassMap<StoredBitmap> bitmaps;
+
+	/** Path hash of each object, in index order; null if not stored. */
+	private final int[] pathHashes;
+
+	private PackBitmapIndex(final byte[] buf, final PackIndex idx,
+			final PackReverseIndex rev) throws IOException {
+		packIndex = idx;
+		reverseIndex = rev;
+		objectCount = (int) idx.getObjectCount();
+
+		final int hdrLen = 4 + 2 + 2 + 4 + Constants.OBJECT_ID_LENGTH;
+		if (buf.length < hdrLen + Constants.OBJECT_ID_LENGTH)
+			throw new CorruptObjectException("Bitmap index is truncated");
+		for (int i = 0; i < SIGNATURE.length; i++)
+			if (buf[i] != SIGNATURE[i])
+				throw new CorruptObjectException("Not a bitmap index");
+		final int version = NB.decodeUInt16(buf, 4);
+		if (version != VERSION)
+			throw new IOException("Unsupported bitmap index version "
+					+ version);
+		final int options = NB.decodeUInt16(buf, 6);
+		if ((options & OPT_FULL_DAG) == 0)
+			throw new IOException("Bitmap index does not cover full DAG");
+		final int entryCount = NB.decodeInt32(buf, 8);
+		final byte[] csum = new byte[Constants.OBJECT_ID_LENGTH];
+		System.arraycopy(buf, 12, csum, 0, csum.length);
+		if (!Arrays.equals(csum, idx.packChecksum))
+			throw new IOException("Bitmap index does not match pack");
+
+		int pos = hdrLen;
+		commits = EWAHBitmap.read(buf, pos);
+		pos += commits.getSerializedSize();
+		trees = EWAHBitmap.read(buf, pos);
+		pos += trees.getSerializedSize();
+		blobs = EWAHBitmap.read(buf, pos);
+		pos += blobs.getSerializedSize();
+		tags = EWAHBitmap.read(buf, pos);
+		pos += tags.getSerializedSize();
+
+		bitmaps = new ObjectIdSubclassMap<StoredBitmap>();
+		final List<StoredBitmap> recent = new ArrayList<StoredBitmap>();
+		for (int i = 0; i < entryCount; i++) {
+			if (buf.length < pos + 6)
+				throw new CorruptObjectException("Bitmap index is truncated");
+			final long nth = NB.decodeUInt32(buf, pos);
+			final int xorOffset = buf[pos + 4] & 0xff;
+			pos += 6;
+			if (nth >= objectCount || xorOffset > MAX_XOR_OFFSET
+					|| xorOffset > i)
+				throw new CorruptObjectException("Invalid bitmap entry " + i);
+
+			final EWAHBitmap bm = EWAHBitmap.read(buf, pos);
+			pos += bm.getSerializedSize();
+
+			final StoredBitmap xorBase;
+			if (xorOffset > 0)
+				xorBase = recent.get(recent.size() - xorOffset);
+			else
+				xorBase = null;
+			final StoredBitmap sb = new StoredBitmap(idx.getObjectId(nth),
+					bm, xorBase);
+			bitmaps.add(sb);
+			recent.add(sb);
+		}
+
+		if ((options & OPT_HASH_CACHE) != 0) {
+			if (buf.length < pos + 4 * objectCount)
+				throw new CorruptObjectException("Bitmap index is truncated");
+			pathHashes = new int[objectCount];
+			for (int i = 0; i < objectCount; i++, pos += 4)
+				pathHashes[i] = NB.decodeInt32(buf, pos);
+		} else
+			pathHashes = null;
+	}
+
+	/** @return number of objects in the pack, and bits in every bitmap. */
+	int getObjectCount() {
+		return objectCount;
+	}
+
+	/**
+	 * @param id
+	 *            a commit.
+	 * @return true if a bitmap is stored for this commit.
+	 */
+	boolean hasBitmap(final AnyObjectId id) {
+		return bitmaps.get(id) != null;
+	}
+
+	/**
+	 * Get the objects reachable from a commit.
+	 *
+	 * @param id
+	 *            a commit with a bitmap in this index.
+	 * @return the uncompressed bitmap of reachable objects; null if the commit
+	 *         has no stored bitmap.
+	 */
+	long[] getBitmap(final AnyObjectId id) {
+		final StoredBitmap sb = bitmaps.get(id);
+		if (sb == null)
+			return null;
+		final long[] r = newBitmap();
+		sb.materialize().orInto(r);
+		return r;
+	}
+
+	/**
+	 * Set the bits of objects reachable from a commit.
+	 *
+	 * @param id
+	 *            a commit with a bitmap in this index.
+	 * @param dst
+	 *            uncompressed bitmap to update.
+	 * @return true if the commit has a bitmap; false if dst is unmodified.
+	 */
+	boolean orBitmap(final AnyObjectId id, final long[] dst) {
+		final StoredBitmap sb = bitmaps.get(id);
+		if (sb == null)
+			return false;
+		sb.materialize().orInto(dst);
+		return true;
+	}
+
+	/**
+	 * Get the objects of one type.
+	 *
+	 * @param type
+	 *            an object type, such as {@link Constants#OBJ_COMMIT}.
+	 * @return the uncompressed bitmap of all objects of that type.
+	 */
+	long[] getTypeBitmap(final int type) {
+		final long[] r = newBitmap();
+		switch (type) {
+		case Constants.OBJ_COMMIT:
+			commits.orInto(r);
+			break;
+		case Constants.OBJ_TREE:
+			trees.orInto(r);
+			break;
+		case Constants.OBJ_BLOB:
+			blobs.orInto(r);
+			break;
+		case Constants.OBJ_TAG:
+			tags.orInto(r);
+			break;
+		}
+		return r;
+	}
+
+	/** @return a new, empty, uncompressed bitmap sized for this pack. */
+	long[] newBitmap() {
+		return new long[(objectCount + 63) >>> 6];
+	}
+
+	/**
+	 * Find the bit assigned to an object.
+	 *
+	 * @param id
+	 *            the object.
+	 * @return position of the object; -1 if it is not in the pack.
+	 */
+	int findPosition(final AnyObjectId id) {
+		final long offset = packIndex.findOffset(id);
+		if (offset < 0)
+			return -1;
+		return reverseIndex.findPosition(offset);
+	}
+
+	/**
+	 * Find the object assigned to a bit.
+	 *
+	 * @param position
+	 *            the bit.
+	 * @return the object.
+	 */
+	ObjectId getObject(final int position) {
+		return packIndex.getObjectId(reverseIndex.findNth(position));
+	}
+
+	/**
+	 * Get the hash of the path an object was found at.
+	 *
+	 * @param position
+	 *            the bit of the object.
+	 * @return the path hash; 0 if the index does not store path hashes.
+	 */
+	int getPathHash(final int position) {
+		if (pathHashes == null)
+			return 0;
+		return pathHashes[reverseIndex.findNth(position)];
+	}
+
+	private class StoredBitmap extends ObjectId {
+		private EWAHBitmap bitmap;
+
+		private StoredBitmap xorBase;
+
+		StoredBitmap(final AnyObjectId id, final EWAHBitmap bitmap,
+				final StoredBitmap xorBase) {
+			super(id);
+			this.bitmap = bitmap;
+			this.xorBase = xorBase;
+		}
+
+		/**
+		 * Resolve the XOR chain, if any, and remember the result.
+		 *
+		 * @return the bitmap of this commit.
+		 */
+		EWAHBitmap materialize() {
+			synchronized (PackBitmapIndex.this) {
+				if (xorBase == null)
+					return bitmap;
+
+				final List<StoredBitmap> chain = new ArrayList<StoredBitmap>();
+				for (StoredBitmap s = this; s != null; s = s.xorBase)
+					chain.add(s);
+				final long[] r = newBitmap();
+				for (int i = chain.size() - 1; i >= 0; i--)
+					chain.get(i).bitmap.xorInto(r);
+				bitmap = EWAHBitmap.compress(r, objectCount);
+				xorBase = null;
+				return bitmap;
+			}
+		}
+	}
+}
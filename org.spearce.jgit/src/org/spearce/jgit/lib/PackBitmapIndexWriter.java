@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Creates the reachability bitmaps read by {@link PackBitmapIndex}.
+ * <p>
+ * The pack must be closed under reachability: every object reachable from
+ * the tips must have been written into it. Commits are visited parents
+ * first, so the bitmap of a commit is the union of its parents' bitmaps plus
+ * the objects of its own tree that are not already set. Trees whose bit is
+ * already set are not read again, so each tree and blob of the pack is
+ * examined once per distinct commit reaching it for the first time.
+ * <p>
+ * Bitmaps are stored for the tips and for every {@link #SPACING}th commit.
+ * Any other commit can be answered by the nearest stored descendant, at the
+ * cost of walking the few commits in between.
+ * <p>
+ * The path hash of every object is stored after the bitmaps, as C Git does,
+ * so a pack counted through the bitmaps is searched for deltas with its
+ * objects grouped by path, as if it had been walked.
+ */
+class PackBitmapIndexWriter {
+	/** Store a bitmap for one out of this many commits. */
+	static final int SPACING = 100;
+
+	private final Repository db;
+
+	private final ObjectToPackTable objects;
+
+	/** Indexes of the objects in {@link #objects}, sorted by name. */
+	private final int[] sorted;
+
+	private final int[] positions;
+
+	private final byte[] packChecksum;
+
+	private final WindowCursor curs = new WindowCursor();
+
+	/**
+	 * Create a writer for the bitmaps of a pack.
+	 *
+	 * @param repo
+	 *            repository the objects are read from.
+	 * @param objects
+	 *            all objects of the pack, with their offsets within the pack
+	 *            assigned.
+	 * @param sortedByName
+	 *            indexes of the objects, sorted by name.
+	 * @param packChecksum
+	 *            the trailing checksum of the pack.
+	 */
+	PackBitmapIndexWriter(final Repository repo,
+			final ObjectToPackTable objects, final int[] sortedByName,
+			final byte[] packChecksum) {
+		this.db = repo;
+		this.objects = objects;
+		this.sorted = sortedByName;
+		this.packChecksum = packChecksum;
+
+		final int cnt = sorted.length;
+		final long[] offsets = new long[cnt];
+		for (int i = 0; i < cnt; i++)
+			offsets[i] = objects.getOffset(sorted[i]);
+		Arrays.sort(offsets);
+		positions = new int[cnt];
+		for (int i = 0; i < cnt; i++)
+			positions[i] = Arrays.binarySearch(offsets, objects
+					.getOffset(sorted[i]));
+	}
+
+	/**
+	 * Compute and write the bitmaps.
+	 *
+	 * @param dst
+	 *            the stream the bitmap index is written to. Callers are
+	 *            responsible for closing the stream.
+	 * @param tips
+	 *            the objects the pack was created from.
+	 * @param monitor
+	 *            progress monitor, updated once per commit.
+	 * @throws IOException
+	 *             an object could not be read, or an object reachable from
+	 *             the tips is not in the pack.
+	 */
+	void write(final OutputStream dst, final Collection<? extends ObjectId> tips,
+			final ProgressMonitor monitor) throws IOException {
+		final List<Entry> entries = new ArrayList<Entry>();
+		try {
+			computeBitmaps(tips, entries, monitor);
+		} finally {
+			curs.release();
+		}
+
+		final DigestOutputStream out = new DigestOutputStream(
+				dst instanceof BufferedOutputStream ? dst
+						: new BufferedOutputStream(dst), Constants
+						.newMessageDigest());
+		final byte[] tmp = new byte[8];
+		out.write(PackBitmapIndex.SIGNATURE);
+		NB.encodeInt16(tmp, 0, PackBitmapIndex.VERSION);
+		NB.encodeInt16(tmp, 2, PackBitmapIndex.OPT_FULL_DAG
+				| PackBitmapIndex.OPT_HASH_CACHE);
+		NB.encodeInt32(tmp, 4, entries.size());
+		out.write(tmp, 0, 8);
+		out.write(packChecksum);
+
+		typeBitmap(Constants.OBJ_COMMIT).writeTo(out);
+		typeBitmap(Constants.OBJ_TREE).writeTo(out);
+		typeBitmap(Constants.OBJ_BLOB).writeTo(out);
+		typeBitmap(Constants.OBJ_TAG).writeTo(out);
+
+		for (final Entry e : entries) {
+			NB.encodeInt32(tmp, 0, e.nth);
+			tmp[4] = 0; // xor offset
+			tmp[5] = 0; // flags
+			out.write(tmp, 0, 6);
+			e.bitmap.writeTo(out);
+		}
+
+		for (final int i : sorted) {
+			NB.encodeInt32(tmp, 0, objects.getPathHash(i));
+			out.write(tmp, 0, 4);
+		}
+
+		out.on(false);
+		out.write(out.getMessageDigest().digest());
+		out.flush();
+	}
+
+	private void computeBitmaps(final Collection<? extends ObjectId> tips,
+			final List<Entry> entries, final ProgressMonitor monitor)
+			throws IOException {
+		final RevWalk rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		rw.sort(RevSort.TOPO);
+		rw.sort(RevSort.REVERSE, true);
+
+		final ObjectIdSubclassMap<ObjectId> selected;
+		selected = new ObjectIdSubclassMap<ObjectId>();
+		for (final ObjectId id : tips) {
+			RevObject o = rw.parseAny(id);
+			while (o instanceof RevTag) {
+				o = ((RevTag) o).getObject();
+				rw.parseHeaders(o);
+			}
+			if (o instanceof RevCommit) {
+				rw.markStart((RevCommit) o);
+				selected.add(o);
+			}
+		}
+
+		final List<RevCommit> commits = new ArrayList<RevCommit>();
+		final ObjectIdSubclassMap<Pending> pending;
+		pending = new ObjectIdSubclassMap<Pending>();
+		RevCommit c;
+		while ((c = rw.next()) != null) {
+			commits.add(c);
+			pending.add(new Pending(c));
+			for (final RevCommit p : c.getParents()) {
+				final Pending pp = pending.get(p);
+				if (pp == null)
+					throw new IOException("Parent " + p.name() + " of "
+							+ c.name() + " is not in the pack");
+				pp.children++;
+			}
+		}
+
+		monitor.beginTask(PackWriter.BUILDING_BITMAPS_PROGRESS, commits.size());
+		long[] bits = null;
+		RevCommit prior = null;
+		for (int i = 0; i < commits.size(); i++) {
+			c = commits.get(i);
+			final RevCommit[] parents = c.getParents();
+
+			// When our first parent was the commit just processed we can
+			// continue with its bits, and need not expand its bitmap.
+			//
+			final boolean reuse = parents.length > 0 && parents[0] == prior;
+			if (!reuse)
+				bits = newBitmap();
+			for (int k = 0; k < parents.length; k++) {
+				final Pending pp = pending.get(parents[k]);
+				if (k > 0 || !reuse)
+					pp.bitmap.orInto(bits);
+				if (--pp.children == 0)
+					pp.bitmap = null;
+			}
+
+			set(bits, c);
+			addTree(bits, c.getTree());
+
+			final Pending pc = pending.get(c);
+			if (selected.get(c) != null || i % SPACING == 0) {
+				final EWAHBitmap bm = EWAHBitmap.compress(bits, sorted.length);
+				entries.add(new Entry(find(c), bm));
+				if (pc.children > 0)
+					pc.bitmap = bm;
+			} else if (pc.children > 1 || (pc.children == 1
+					&& !isOnlyChild(c, commits, i + 1)))
+				pc.bitmap = EWAHBitmap.compress(bits, sorted.length);
+
+			prior = c;
+			monitor.update(1);
+		}
+		monitor.endTask();
+	}
+
+	private static boolean isOnlyChild(final RevCommit c,
+			final List<RevCommit> commits, final int next) {
+		if (next >= commits.size())
+			return false;
+		final RevCommit n = commits.get(next);
+		return n.getParentCount() > 0 && n.getParent(0) == c;
+	}
+
+	private void addTree(final long[] bits, final ObjectId root)
+			throws IOException {
+		final List<ObjectId> stack = new ArrayList<ObjectId>();
+		stack.add(root);
+		while (!stack.isEmpty()) {
+			final ObjectId treeId = stack.remove(stack.size() - 1);
+			if (!set(bits, treeId))
+				continue;
+
+			final ObjectLoader ldr = db.openObject(curs, treeId);
+			if (ldr == null)
+				throw new MissingObjectException(treeId, Constants.TYPE_TREE);
+			final byte[] raw = ldr.getCachedBytes();
+			int ptr = 0;
+			while (ptr < raw.length) {
+				int mode = 0;
+				byte b;
+				while ((b = raw[ptr++]) != ' ')
+					mode = (mode << 3) + (b - '0');
+				while (raw[ptr++] != 0)
+					continue;
+				final int idPtr = ptr;
+				ptr += Constants.OBJECT_ID_LENGTH;
+
+				switch (mode & FileMode.TYPE_MASK) {
+				case FileMode.TYPE_TREE: {
+					final int pos = positionOf(raw, idPtr);
+					if (!isSet(bits, pos))
+						stack.add(ObjectId.fromRaw(raw, idPtr));
+					break;
+				}
+				case FileMode.TYPE_GITLINK:
+					break;
+				default: {
+					final int pos = positionOf(raw, idPtr);
+					bits[pos >>> 6] |= 1L << pos;
+					break;
+				}
+				}
+			}
+		}
+	}
+
+	private EWAHBitmap typeBitmap(final int type) {
+		final long[] bits = newBitmap();
+		for (int i = 0; i < sorted.length; i++) {
+			if (objects.getType(sorted[i]) == type) {
+				final int pos = positions[i];
+				bits[pos >>> 6] |= 1L << pos;
+			}
+		}
+		return EWAHBitmap.compress(bits, sorted.length);
+	}
+
+	private long[] newBitmap() {
+		return new long[(sorted.length + 63) >>> 6];
+	}
+
+	private boolean set(final long[] bits, final ObjectId id)
+			throws MissingObjectException {
+		final int pos = positionOf(id);
+		if (isSet(bits, pos))
+			return false;
+		bits[pos >>> 6] |= 1L << pos;
+		return true;
+	}
+
+	private static boolean isSet(final long[] bits, final int pos) {
+		return (bits[pos >>> 6] & (1L << pos)) != 0;
+	}
+
+	private int positionOf(final ObjectId id) throws MissingObjectException {
+		return positions[find(id)];
+	}
+
+	private int find(final ObjectId id) throws MissingObjectException {
+		final int k = objects.findPosition(sorted, id);
+		if (k < 0)
+			throw new MissingObjectException(id, "object in pack");
+		return k;
+	}
+
+	private int positionOf(final byte[] raw, final int ptr)
+			throws MissingObjectException {
+		int low = 0;
+		int high = sorted.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = objects.compareTo(sorted[mid], raw, ptr);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp == 0)
+				return positions[mid];
+			else
+				high = mid;
+		}
+		throw new MissingObjectException(ObjectId.fromRaw(raw, ptr),
+				"object in pack");
+	}
+
+	private static class Pending extends ObjectId {
+		int children;
+
+		EWAHBitmap bitmap;
+
+		Pending(final AnyObjectId id) {
+			super(id);
+		}
+	}
+
+	private static class Entry {
+		final int nth;
+
+		final EWAHBitmap bitmap;
+
+		Entry(final int nth, final EWAHBitmap bitmap) {
+			this.nth = nth;
+			this.bitmap = bitmap;
+		}
+	}
+}
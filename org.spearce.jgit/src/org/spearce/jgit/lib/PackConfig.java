@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import org.spearce.jgit.lib.Config.SectionParser;
+
+/**
+ * The standard "pack" configuration parameters, used by {@link PackWriter}.
+ */
+public class PackConfig {
+	/** Key for {@link Config#get(SectionParser)}. */
+	public static final Config.SectionParser<PackConfig> KEY = new SectionParser<PackConfig>() {
+		public PackConfig parse(final Config cfg) {
+			return new PackConfig(cfg);
+		}
+	};
+
+	final int deltaWindow;
+
+	final long deltaWindowMemory;
+
+	final int deltaDepth;
+
+	final long deltaCacheSize;
+
+	final int deltaCacheLimit;
+
+	final long bigFileThreshold;
+
+	final int threads;
+
+	private PackConfig(final Config rc) {
+		deltaWindow = rc.getInt("pack", "window",
+				PackWriter.DEFAULT_DELTA_SEARCH_WINDOW_SIZE);
+		deltaWindowMemory = rc.getLong("pack", null, "windowmemory", 0);
+		deltaDepth = rc.getInt("pack", "depth",
+				PackWriter.DEFAULT_MAX_DELTA_DEPTH);
+		deltaCacheSize = rc.getLong("pack", null, "deltacachesize",
+				PackWriter.DEFAULT_DELTA_CACHE_SIZE);
+		deltaCacheLimit = rc.getInt("pack", "deltacachelimit",
+				PackWriter.DEFAULT_DELTA_CACHE_LIMIT);
+		bigFileThreshold = rc.getLong("core", null, "bigfilethreshold",
+				PackWriter.DEFAULT_BIG_FILE_THRESHOLD);
+		threads = rc.getInt("pack", "threads", 0);
+	}
+
+	/**
+	 * @return number of threads to divide packing and indexing work across;
+	 *         0 for one thread per processor.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+}
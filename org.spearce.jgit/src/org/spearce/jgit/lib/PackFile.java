@@ -96,6 +96,10 @@ public int compare(final PackFile a, final PackFile b) {
 
 	private PackReverseIndex reverseIdx;
 
+	private PackBitmapIndex bitmapIdx;
+
+	private boolean bitmapIdxLoaded;
+
 	/**
 	 * Construct a reader for an existing, pre-indexed packfile.
 	 * 
@@ -116,13 +120,14 @@ public PackFile(final File idxFile, final File packFile) {
 		length = Long.MAX_VALUE;
 	}
 
-	private synchronized PackIndex idx() throws IOException {
+	synchronized PackIndex idx() throws IOException {
 		if (loadedIdx == null) {
 			if (invalid)
 				throw new PackInvalidException(packFile);
 
 			try {
-				final PackIndex idx = PackIndex.open(idxFile);
+				final boolean mmap = WindowCache.isPackedIndexMMAP();
+				final PackIndex idx = PackIndex.open(idxFile, mmap);
 
 				if (packChecksum == null)
 					packChecksum = idx.packChecksum;
@@ -138,6 +143,11 @@ else if (!Arrays.equals(packChecksum, idx.packChecksum))
 		return loadedIdx;
 	}
 
+	/** @return true if the index has been read, and is held in memory. */
+	synchronized boolean isIndexLoaded() {
+		return loadedIdx != null;
+	}
+
 	final PackedObjectLoader resolveBase(final WindowCursor curs, final long ofs)
 			throws IOException {
 		return reader(curs, ofs);
@@ -183,6 +193,22 @@ public PackedObjectLoader get(final WindowCursor curs, final AnyObjectId id)
 		return 0 < offset ? reader(curs, offset) : null;
 	}
 
+	/**
+	 * Get the object stored at a known position in this pack.
+	 *
+	 * @param curs
+	 *            temporary working space associated with the calling thread.
+	 * @param offset
+	 *            offset of the object's header, as listed in the index.
+	 * @return the object loader for the object at that position.
+	 * @throws IOException
+	 *             the pack file could not be read.
+	 */
+	PackedObjectLoader get(final WindowCursor curs, final long offset)
+			throws IOException {
+		return reader(curs, offset);
+	}
+
 	/**
 	 * Close the resources utilized by this repository
 	 */
@@ -192,6 +218,8 @@ public void close() {
 		synchronized (this) {
 			loadedIdx = null;
 			reverseIdx = null;
+			bitmapIdx = null;
+			bitmapIdxLoaded = false;
 		}
 	}
 
@@ -389,6 +417,29 @@ private void doClose() {
 		}
 	}
 
+	/**
+	 * Read a range of the pack directly, bypassing the window cache.
+	 * <p>
+	 * Data read this way is not cached, which suits large ranges that are
+	 * used only once. The caller must hold the pack open, see
+	 * {@link #beginCopyRawData()}.
+	 *
+	 * @param pos
+	 *            position within the pack to read from.
+	 * @param dst
+	 *            buffer to populate, [off, off+cnt).
+	 * @param off
+	 *            position within the buffer to start writing to.
+	 * @param cnt
+	 *            number of bytes that must be read.
+	 * @throws IOException
+	 *             the pack could not be read.
+	 */
+	final void readRaw(final long pos, final byte[] dst, final int off,
+			final int cnt) throws IOException {
+		NB.readFully(fd.getChannel(), pos, dst, off, cnt);
+	}
+
 	ByteArrayWindow read(final long pos, int size) throws IOException {
 		if (length < pos + size)
 			size = (int) (length - pos);
@@ -494,7 +545,7 @@ private PackedObjectLoader reader(final WindowCursor curs,
 		}
 	}
 
-	private long findEndOffset(final long startOffset)
+	final long findEndOffset(final long startOffset)
 			throws IOException, CorruptObjectException {
 		final long maxOffset = length - 20;
 		return getReverseIdx().findNextOffset(startOffset, maxOffset);
@@ -505,4 +556,39 @@ private synchronized PackReverseIndex getReverseIdx() throws IOException {
 			reverseIdx = new PackReverseIndex(idx());
 		return reverseIdx;
 	}
+
+	/**
+	 * Get the reachability bitmaps stored next to this pack, if any.
+	 * <p>
+	 * A bitmap index that is missing, unreadable or written for a different
+	 * pack is ignored; the pack itself remains usable.
+	 *
+	 * @return the bitmap index; null if the pack has no usable bitmaps.
+	 * @throws IOException
+	 *             the pack index could not be read.
+	 */
+	synchronized PackBitmapIndex getBitmapIndex() throws IOException {
+		if (!bitmapIdxLoaded) {
+			final PackIndex idx = idx();
+			final File bitmapFile = getBitmapFile();
+			if (bitmapFile.isFile()) {
+				try {
+					bitmapIdx = PackBitmapIndex.open(bitmapFile, idx,
+							getReverseIdx());
+				} catch (IOException e) {
+					bitmapIdx = null;
+				}
+			}
+			bitmapIdxLoaded = true;
+		}
+		return bitmapIdx;
+	}
+
+	/** @return the File which would hold this pack's bitmap index. */
+	File getBitmapFile() {
+		final String n = idxFile.getName();
+		final String base = n.endsWith(".idx") ? n.substring(0, n.length() - 4)
+				: n;
+		return new File(idxFile.getParentFile(), base + ".bitmap");
+	}
 }
@@ -75,6 +75,31 @@ public abstract class PackIndex implements Iterable<PackIndex.MutableEntry> {
 	 *             unrecognized data version, or unexpected data corruption.
 	 */
 	public static PackIndex open(final File idxFile) throws IOException {
+		return open(idxFile, false);
+	}
+
+	/**
+	 * Open an existing pack <code>.idx</code> file for reading.
+	 * <p>
+	 * The format of the file will be automatically detected and a proper access
+	 * implementation for that format will be constructed and returned to the
+	 * caller. The file may or may not be held open by the returned instance.
+	 * </p>
+	 *
+	 * @param idxFile
+	 *            existing pack .idx to read.
+	 * @param mmap
+	 *            true to read a version 2 index in place through a memory map,
+	 *            rather than loading its tables onto the heap.
+	 * @return access implementation for the requested file.
+	 * @throws FileNotFoundException
+	 *             the file does not exist.
+	 * @throws IOException
+	 *             the file exists but could not be read due to security errors,
+	 *             unrecognized data version, or unexpected data corruption.
+	 */
+	public static PackIndex open(final File idxFile, final boolean mmap)
+			throws IOException {
 		final FileInputStream fd = new FileInputStream(idxFile);
 		try {
 			final byte[] hdr = new byte[8];
@@ -83,6 +108,11 @@ public static PackIndex open(final File idxFile) throws IOException {
 				final int v = NB.decodeInt32(hdr, 4);
 				switch (v) {
 				case 2:
+					if (mmap) {
+						final PackIndex idx = PackIndexV2Mapped.map(idxFile);
+						if (idx != null)
+							return idx;
+					}
 					return new PackIndexV2(fd);
 				default:
 					throw new IOException("Unsupported pack index version " + v);
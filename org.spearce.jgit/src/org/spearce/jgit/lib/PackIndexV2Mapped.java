@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Support for the pack index v2 format, read in place from a memory map.
+ * <p>
+ * Unlike {@link PackIndexV2} this implementation does not copy the name,
+ * offset or CRC-32 tables onto the heap. Only the 256 entry fan-out table is
+ * decoded when the index is opened; every other lookup reads the mapped file
+ * directly. Opening an index is therefore constant time, and the operating
+ * system's page cache is shared by all readers of the same pack.
+ * <p>
+ * Object names within a fan-out bucket are located by interpolation search,
+ * as SHA-1 names are uniformly distributed. Most lookups complete after two
+ * or three probes, instead of the log2(n) probes binary search requires.
+ */
+class PackIndexV2Mapped extends PackIndex {
+	private static final long IS_O64 = 1L << 31;
+
+	private static final int FANOUT = 256;
+
+	/**
+	 * Probes to attempt by interpolation before switching to bisection.
+	 * <p>
+	 * Interpolation degrades to a linear scan if the names are not uniformly
+	 * distributed, which should never happen for SHA-1, but a damaged or
+	 * malicious index should not be able to make lookups that expensive.
+	 */
+	private static final int MAX_INTERPOLATION_PROBES = 8;
+
+	/**
+	 * Map the index file into memory.
+	 *
+	 * @param idxFile
+	 *            the index file, which must use the version 2 format.
+	 * @return the index, or null if the file is too large to map as a single
+	 *         buffer and the caller should fall back to {@link PackIndexV2}.
+	 * @throws IOException
+	 *             the file cannot be mapped, or is not a valid index.
+	 */
+	static PackIndexV2Mapped map(final File idxFile) throws IOException {
+		final RandomAccessFile fd = new RandomAccessFile(idxFile, "r");
+		try {
+			final long len = fd.length();
+			if (len > Integer.MAX_VALUE)
+				return null;
+			final FileChannel ch = fd.getChannel();
+			ByteBuffer map;
+			try {
+				map = ch.map(MapMode.READ_ONLY, 0, len);
+			} catch (IOException ioe1) {
+				// Most likely the JVM has run out of virtual memory. Try
+				// to release any mappings waiting on finalization.
+				//
+				System.gc();
+				System.runFinalization();
+				map = ch.map(MapMode.READ_ONLY, 0, len);
+			}
+			return new PackIndexV2Mapped(map);
+		} finally {
+			try {
+				fd.close();
+			} catch (IOException err2) {
+				// ignore; the mapping remains valid after close.
+			}
+		}
+	}
+
+	/** The complete index file. Only absolute get methods may be used. */
+	private final ByteBuffer buf;
+
+	/** Decoded fan-out table; the only part of the index kept on heap. */
+	private final long[] fanoutTable;
+
+	private final long objectCnt;
+
+	private final int namesPos;
+
+	private final int crc32Pos;
+
+	private final int offset32Pos;
+
+	private final int offset64Pos;
+
+	private final int offset64Cnt;
+
+	private PackIndexV2Mapped(final ByteBuffer map) throws IOException {
+		buf = map;
+
+		fanoutTable = new long[FANOUT];
+		final int fanoutPos = 8;
+		for (int k = 0; k < FANOUT; k++)
+			fanoutTable[k] = uint32(fanoutPos + k * 4);
+		objectCnt = fanoutTable[FANOUT - 1];
+
+		final long n = objectCnt;
+		final long crcStart = fanoutPos + 4 * FANOUT + n * Constants.OBJECT_ID_LENGTH;
+		final long ofsStart = crcStart + n * 4;
+		final long o64Start = ofsStart + n * 4;
+		final long trailer = 2 * Constants.OBJECT_ID_LENGTH;
+		final long o64Len = buf.limit() - trailer - o64Start;
+		if (o64Len < 0 || o64Len % 8 != 0)
+			throw new IOException("Index file is truncated or corrupt");
+
+		namesPos = fanoutPos + 4 * FANOUT;
+		crc32Pos = (int) crcStart;
+		offset32Pos = (int) ofsStart;
+		offset64Pos = (int) o64Start;
+		offset64Cnt = (int) (o64Len / 8);
+
+		packChecksum = new byte[Constants.OBJECT_ID_LENGTH];
+		for (int i = 0; i < packChecksum.length; i++)
+			packChecksum[i] = buf.get(offset64Pos + 8 * offset64Cnt + i);
+	}
+
+	@Override
+	long getObjectCount() {
+		return objectCnt;
+	}
+
+	@Override
+	long getOffset64Count() {
+		return offset64Cnt;
+	}
+
+	@Override
+	ObjectId getObjectId(final long nthPosition) {
+		final int p = namesPos + (int) nthPosition * Constants.OBJECT_ID_LENGTH;
+		return new ObjectId(buf.getInt(p), buf.getInt(p + 4), buf
+				.getInt(p + 8), buf.getInt(p + 12), buf.getInt(p + 16));
+	}
+
+	@Override
+	long findOffset(final AnyObjectId objId) {
+		final int pos = search(objId);
+		if (pos == -1)
+			return -1;
+		return offsetAt(pos);
+	}
+
+	@Override
+	long findCRC32(final AnyObjectId objId) throws MissingObjectException {
+		final int pos = search(objId);
+		if (pos == -1)
+			throw new MissingObjectException(objId.copy(), "unknown");
+		return uint32(crc32Pos + pos * 4);
+	}
+
+	@Override
+	boolean hasCRC32Support() {
+		return true;
+	}
+
+	public Iterator<MutableEntry> iterator() {
+		return new EntriesIteratorV2Mapped();
+	}
+
+	private long offsetAt(final int pos) {
+		final long p = uint32(offset32Pos + pos * 4);
+		if ((p & IS_O64) != 0)
+			return buf.getLong(offset64Pos + 8 * (int) (p & ~IS_O64));
+		return p;
+	}
+
+	private long uint32(final int pos) {
+		return buf.getInt(pos) & 0xffffffffL;
+	}
+
+	private long nameKey(final int pos) {
+		return uint32(namesPos + pos * Constants.OBJECT_ID_LENGTH);
+	}
+
+	/**
+	 * Locate an object's position within the index.
+	 *
+	 * @param objId
+	 *            the object to find.
+	 * @return position of the object in name order; -1 if not present.
+	 */
+	private int search(final AnyObjectId objId) {
+		final int levelOne = objId.getFirstByte();
+		int low = levelOne == 0 ? 0 : (int) fanoutTable[levelOne - 1];
+		int high = (int) fanoutTable[levelOne];
+		if (low == high)
+			return -1;
+
+		// Every name in [low, high) has a first word within the range
+		// [lowKey, highKey], as they all share the same first byte.
+		//
+		final long target = objId.w1 & 0xffffffffL;
+		long lowKey = ((long) levelOne) << 24;
+		long highKey = lowKey | 0xffffff;
+		int probes = 0;
+		do {
+			final int mid;
+			if (probes++ < MAX_INTERPOLATION_PROBES && lowKey < highKey) {
+				final long span = high - low;
+				final long p = (target - lowKey) * span / (highKey - lowKey);
+				mid = low + (int) Math.min(Math.max(p, 0), span - 1);
+			} else
+				mid = (low + high) >>> 1;
+
+			final int cmp = compare(objId, mid);
+			if (cmp < 0) {
+				high = mid;
+				highKey = nameKey(mid);
+			} else if (cmp == 0)
+				return mid;
+			else {
+				low = mid + 1;
+				lowKey = nameKey(mid);
+			}
+		} while (low < high);
+		return -1;
+	}
+
+	private int compare(final AnyObjectId objId, final int pos) {
+		final int p = namesPos + pos * Constants.OBJECT_ID_LENGTH;
+		int cmp;
+
+		cmp = NB.compareUInt32(objId.w1, buf.getInt(p));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(objId.w2, buf.getInt(p + 4));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(objId.w3, buf.getInt(p + 8));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(objId.w4, buf.getInt(p + 12));
+		if (cmp != 0)
+			return cmp;
+
+		return NB.compareUInt32(objId.w5, buf.getInt(p + 16));
+	}
+
+	private class EntriesIteratorV2Mapped extends EntriesIterator {
+		private int pos;
+
+		@Override
+		protected MutableEntry initEntry() {
+			return new MutableEntry() {
+				protected void ensureId() {
+					final int p = namesPos + (pos - 1)
+							* Constants.OBJECT_ID_LENGTH;
+					idBuffer.w1 = buf.getInt(p);
+					idBuffer.w2 = buf.getInt(p + 4);
+					idBuffer.w3 = buf.getInt(p + 8);
+					idBuffer.w4 = buf.getInt(p + 12);
+					idBuffer.w5 = buf.getInt(p + 16);
+				}
+			};
+		}
+
+		public MutableEntry next() {
+			if (pos >= objectCnt)
+				throw new NoSuchElementException();
+			entry.offset = offsetAt(pos++);
+			returnedNumber++;
+			return entry;
+		}
+	}
+}
@@ -140,6 +140,37 @@ ObjectId findObject(final long offset) {
 		}
 	}
 
+	/**
+	 * Find the position of an object within the pack, ordered by offset.
+	 *
+	 * @param offset
+	 *            start offset of the object.
+	 * @return position of the object, with the object at the lowest offset
+	 *         being 0; -1 if no object starts at this offset.
+	 */
+	int findPosition(final long offset) {
+		if (offset <= Integer.MAX_VALUE) {
+			final int i32 = Arrays.binarySearch(offsets32, (int) offset);
+			return i32 < 0 ? -1 : i32;
+		}
+		final int i64 = Arrays.binarySearch(offsets64, offset);
+		return i64 < 0 ? -1 : offsets32.length + i64;
+	}
+
+	/**
+	 * Find the position within the forward index of the n-th object by offset.
+	 *
+	 * @param position
+	 *            position of the object in offset order, as returned by
+	 *            {@link #findPosition(long)}.
+	 * @return position of the same object within {@link PackIndex#iterator()}.
+	 */
+	int findNth(final int position) {
+		if (position < nth32.length)
+			return nth32[position];
+		return nth64[position - nth32.length];
+	}
+
 	/**
 	 * Search for the next offset to the specified offset in this pack (reverse)
 	 * index.
@@ -38,23 +38,35 @@
 package org.spearce.jgit.lib;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 
+import org.spearce.jgit.errors.CorruptObjectException;
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevCommit;
 import org.spearce.jgit.revwalk.RevFlag;
 import org.spearce.jgit.revwalk.RevObject;
 import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
 import org.spearce.jgit.transport.PackedObjectInfo;
+import org.spearce.jgit.util.IntList;
 import org.spearce.jgit.util.NB;
 
 /**
@@ -81,13 +93,15 @@
  * <p>
  * Class provide set of configurable options and {@link ProgressMonitor}
  * support, as operations may take a long time for big repositories. Deltas
- * searching algorithm is <b>NOT IMPLEMENTED</b> yet - this implementation
- * relies only on deltas and objects reuse.
+ * are reused from existing packs where possible; the remaining trees and blobs
+ * are compared to similar objects within a sliding window to find new deltas.
  * </p>
  * <p>
  * This class is not thread safe, it is intended to be used in one thread, with
  * one instance per created pack. Subsequent calls to writePack result in
- * undefined behavior.
+ * undefined behavior. Internally, {@link #writePack(OutputStream)} may use
+ * several threads to search for deltas and compress objects; see
+ * {@link #setThreads(int)}.
  * </p>
  */
 
@@ -108,6 +122,14 @@ public class PackWriter {
 	 */
 	public static final String SEARCHING_REUSE_PROGRESS = "Compressing objects";
 
+	/**
+	 * Title of {@link ProgressMonitor} task used during searching for new
+	 * deltas.
+	 *
+	 * @see #writePack(OutputStream)
+	 */
+	public static final String SEARCHING_DELTAS_PROGRESS = "Searching for deltas";
+
 	/**
 	 * Title of {@link ProgressMonitor} task used during writing out pack
 	 * (objects)
@@ -116,6 +138,14 @@ public class PackWriter {
 	 */
 	public static final String WRITING_OBJECTS_PROGRESS = "Writing objects";
 
+	/**
+	 * Title of {@link ProgressMonitor} task used during creation of the
+	 * reachability bitmaps.
+	 *
+	 * @see #writeBitmapIndex(OutputStream)
+	 */
+	public static final String BUILDING_BITMAPS_PROGRESS = "Building bitmaps";
+
 	/**
 	 * Default value of deltas reuse option.
 	 *
@@ -144,19 +174,63 @@ public class PackWriter {
 	 */
 	public static final int DEFAULT_MAX_DELTA_DEPTH = 50;
 
-	private static final int PACK_VERSION_GENERATED = 2;
+	/**
+	 * Default value of the delta compression option.
+	 *
+	 * @see #setDeltaCompress(boolean)
+	 */
+	public static final boolean DEFAULT_DELTA_COMPRESS = true;
 
-	@SuppressWarnings("unchecked")
-	private final List<ObjectToPack> objectsLists[] = new List[Constants.OBJ_TAG + 1];
-	{
-		objectsLists[0] = Collections.<ObjectToPack> emptyList();
-		objectsLists[Constants.OBJ_COMMIT] = new ArrayList<ObjectToPack>();
-		objectsLists[Constants.OBJ_TREE] = new ArrayList<ObjectToPack>();
-		objectsLists[Constants.OBJ_BLOB] = new ArrayList<ObjectToPack>();
-		objectsLists[Constants.OBJ_TAG] = new ArrayList<ObjectToPack>();
-	}
+	/**
+	 * Default number of objects compared with each object during delta search.
+	 *
+	 * @see #setDeltaSearchWindowSize(int)
+	 */
+	public static final int DEFAULT_DELTA_SEARCH_WINDOW_SIZE = 10;
+
+	/**
+	 * Default total size of the deltas kept in memory between delta search
+	 * and writing, in bytes.
+	 */
+	public static final long DEFAULT_DELTA_CACHE_SIZE = 50 * 1024 * 1024;
+
+	/**
+	 * Default size of a delta that is always kept in memory between delta
+	 * search and writing, in bytes.
+	 */
+	public static final int DEFAULT_DELTA_CACHE_LIMIT = 100;
+
+	/**
+	 * Default size of the largest object considered for delta compression, in
+	 * bytes.
+	 */
+	public static final long DEFAULT_BIG_FILE_THRESHOLD = 50 * 1024 * 1024;
+
+	/** Objects smaller than this are not worth compressing as a delta. */
+	private static final int MIN_DELTA_SIZE = 50;
+
+	/** Partitions of the delta search list, per thread. */
+	private static final int PARTITIONS_PER_THREAD = 4;
 
-	private final ObjectIdSubclassMap<ObjectToPack> objectsMap = new ObjectIdSubclassMap<ObjectToPack>();
+	/** Bytes of objects compressed ahead of the writer, not yet written. */
+	private static final long DEFLATE_AHEAD_LIMIT = 16 * 1024 * 1024;
+
+	/** Bytes of reused objects collected before they are copied as a run. */
+	private static final int MAX_RUN_LENGTH = 1024 * 1024;
+
+	/** Size of the buffer a run of reused objects is read through. */
+	private static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Default value of the use bitmaps option.
+	 *
+	 * @see #setUseBitmaps(boolean)
+	 */
+	public static final boolean DEFAULT_USE_BITMAPS = true;
+
+	private static final int PACK_VERSION_GENERATED = 2;
+
+	private final ObjectToPackTable objects = new ObjectToPackTable();
 
 	// edge objects for thin packs
 	private final ObjectIdSubclassMap<ObjectId> edgeObjects = new ObjectIdSubclassMap<ObjectId>();
@@ -165,7 +239,9 @@ public class PackWriter {
 
 	private PackOutputStream out;
 
-	private final Deflater deflater;
+	private final int compressionLevel;
+
+	private Deflater deflater;
 
 	private ProgressMonitor initMonitor;
 
@@ -175,7 +251,8 @@ public class PackWriter {
 
 	private final WindowCursor windowCursor = new WindowCursor();
 
-	private List<ObjectToPack> sortedByName;
+	/** Indexes of {@link #objects}, sorted by name; null until needed. */
+	private int[] sortedByName;
 
 	private byte packcsum[];
 
@@ -185,7 +262,59 @@ public class PackWriter {
 
 	private boolean deltaBaseAsOffset = DEFAULT_DELTA_BASE_AS_OFFSET;
 
-	private int maxDeltaDepth = DEFAULT_MAX_DELTA_DEPTH;
+	private int maxDeltaDepth;
+
+	private boolean deltaCompress = DEFAULT_DELTA_COMPRESS;
+
+	private int deltaSearchWindowSize;
+
+	private long deltaSearchMemoryLimit;
+
+	private final long deltaCacheSize;
+
+	private final int deltaCacheLimit;
+
+	private final long bigFileThreshold;
+
+	private int threads;
+
+	private ExecutorService executor = WorkQueue.getExecutor();
+
+	/** Deltas found by the delta search, kept until they are written. */
+	private DeltaCache deltaCache;
+
+	/** Objects being compressed by other threads, until they are written. */
+	private Map<Integer, Future<Deflated>> deflateAhead;
+
+	/** Inflated size of the objects in {@link #deflateAhead}. */
+	private long deflateAheadBytes;
+
+	/** Reused objects stored back to back in {@link #runPack}, not yet copied. */
+	private final IntList runObjects = new IntList();
+
+	/** Loaders of {@link #runObjects}, each holding the pack open. */
+	private final List<PackedObjectLoader> runLoaders = new ArrayList<PackedObjectLoader>();
+
+	private PackFile runPack;
+
+	/** Offset in {@link #runPack} just past the last object of the run. */
+	private long runEnd;
+
+	/** Number of bytes the run will take in the output. */
+	private long runLength;
+
+	private byte[] runBuf;
+
+	/** Range of {@link #runPack} currently held in {@link #runBuf}. */
+	private long runBufStart, runBufEnd;
+
+	private final CRC32 runCRC = new CRC32();
+
+	/** Pack whose entries are all copied, before any other object. */
+	private PackFile reusePack;
+
+	/** Objects of {@link #reusePack}, in the order they are stored there. */
+	private int[] reusePackObjects;
 
 	private int outputVersion;
 
@@ -193,6 +322,13 @@ public class PackWriter {
 
 	private boolean ignoreMissingUninteresting = true;
 
+	private boolean useBitmaps = DEFAULT_USE_BITMAPS;
+
+	private Collection<ObjectId> bitmapTips;
+
+	private Collection<? extends ObjectId> shallowCommits = Collections
+			.emptySet();
+
 	/**
 	 * Create writer for specified repository.
 	 * <p>
@@ -232,8 +368,17 @@ public PackWriter(final Repository repo, final ProgressMonitor imonitor,
 		this.db = repo;
 		initMonitor = imonitor == null ? NullProgressMonitor.INSTANCE : imonitor;
 		writeMonitor = wmonitor == null ? NullProgressMonitor.INSTANCE : wmonitor;
-		this.deflater = new Deflater(db.getConfig().getCore().getCompression());
+		compressionLevel = db.getConfig().getCore().getCompression();
 		outputVersion = repo.getConfig().getCore().getPackIndexVersion();
+
+		final PackConfig pc = db.getConfig().get(PackConfig.KEY);
+		maxDeltaDepth = pc.deltaDepth;
+		deltaSearchWindowSize = pc.deltaWindow;
+		deltaSearchMemoryLimit = pc.deltaWindowMemory;
+		deltaCacheSize = pc.deltaCacheSize;
+		deltaCacheLimit = pc.deltaCacheLimit;
+		bigFileThreshold = pc.bigFileThreshold;
+		threads = pc.threads;
 	}
 
 	/**
@@ -335,6 +480,156 @@ public void setDeltaBaseAsOffset(boolean deltaBaseAsOffset) {
 		this.deltaBaseAsOffset = deltaBaseAsOffset;
 	}
 
+	/**
+	 * Check whether the writer searches for new deltas.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_COMPRESS}
+	 * </p>
+	 *
+	 * @return true if trees and blobs not reused as deltas are compared with
+	 *         similar objects to find new deltas; false otherwise.
+	 */
+	public boolean isDeltaCompress() {
+		return deltaCompress;
+	}
+
+	/**
+	 * Set whether the writer searches for new deltas.
+	 * <p>
+	 * Searching costs CPU time and memory while writing, but can make packs
+	 * created from loose objects many times smaller.
+	 * </p>
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_COMPRESS}
+	 * </p>
+	 *
+	 * @param deltaCompress
+	 *            true to search for new deltas; false to only reuse deltas
+	 *            found in existing packs.
+	 */
+	public void setDeltaCompress(final boolean deltaCompress) {
+		this.deltaCompress = deltaCompress;
+	}
+
+	/**
+	 * Get the number of objects each object is compared with during delta
+	 * search.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_SEARCH_WINDOW_SIZE}, or the
+	 * repository's <code>pack.window</code>.
+	 * </p>
+	 *
+	 * @return size of the delta search window.
+	 */
+	public int getDeltaSearchWindowSize() {
+		return deltaSearchWindowSize;
+	}
+
+	/**
+	 * Set the number of objects each object is compared with during delta
+	 * search. Larger windows find more and smaller deltas, at a cost in CPU
+	 * time that grows linearly with the window.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_SEARCH_WINDOW_SIZE}, or the
+	 * repository's <code>pack.window</code>.
+	 * </p>
+	 *
+	 * @param objectCount
+	 *            size of the delta search window; values below 2 disable the
+	 *            search.
+	 */
+	public void setDeltaSearchWindowSize(final int objectCount) {
+		deltaSearchWindowSize = objectCount;
+	}
+
+	/**
+	 * Get the maximum memory used by the objects in the delta search window.
+	 * <p>
+	 * Default setting: 0 (unlimited), or the repository's
+	 * <code>pack.windowmemory</code>.
+	 * </p>
+	 *
+	 * @return memory limit of the delta search window in bytes; 0 if the
+	 *         window is only limited by its size.
+	 */
+	public long getDeltaSearchMemoryLimit() {
+		return deltaSearchMemoryLimit;
+	}
+
+	/**
+	 * Set the maximum memory used by the objects in the delta search window.
+	 * <p>
+	 * When the objects loaded into the window, and their indexes, use more than
+	 * this limit, the oldest objects are dropped from the window early. Each
+	 * thread searching for deltas has its own window.
+	 * </p>
+	 * <p>
+	 * Default setting: 0 (unlimited), or the repository's
+	 * <code>pack.windowmemory</code>.
+	 * </p>
+	 *
+	 * @param memoryLimit
+	 *            memory limit of the delta search window in bytes; 0 to only
+	 *            limit the window by its size.
+	 */
+	public void setDeltaSearchMemoryLimit(final long memoryLimit) {
+		deltaSearchMemoryLimit = memoryLimit;
+	}
+
+	/**
+	 * Get the number of threads used to search for deltas and compress objects.
+	 * <p>
+	 * Default setting: 0 (one thread per processor), or the repository's
+	 * <code>pack.threads</code>.
+	 * </p>
+	 *
+	 * @return number of threads; 0 for one thread per processor.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set the number of threads used to search for deltas and compress objects.
+	 * <p>
+	 * With more than one thread the sorted delta search list is divided into
+	 * partitions which are searched concurrently, each with its own window.
+	 * Objects which are not reused are compressed by the threads a few objects
+	 * ahead of the writer. Objects are still written in the same order and at
+	 * the same offsets as with a single thread, but deltas may differ where a
+	 * partition boundary separates similar objects.
+	 * </p>
+	 * <p>
+	 * Default setting: 0 (one thread per processor), or the repository's
+	 * <code>pack.threads</code>.
+	 * </p>
+	 *
+	 * @param threads
+	 *            number of threads to use; 0 for one thread per processor.
+	 */
+	public void setThreads(final int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Set the executor running the delta search and compression tasks.
+	 * <p>
+	 * The tasks never wait for each other, so the executor may be shared with
+	 * other writers, and may have fewer threads than {@link #getThreads()}.
+	 * It is not shut down by the writer.
+	 * </p>
+	 * <p>
+	 * Default setting: {@link WorkQueue#getExecutor()}, one thread per
+	 * processor shared by the whole process.
+	 * </p>
+	 *
+	 * @param executor
+	 *            executor to submit tasks to.
+	 */
+	public void setExecutor(final ExecutorService executor) {
+		this.executor = executor;
+	}
+
 	/**
 	 * Get maximum depth of delta chain set up for this writer. Generated chains
 	 * are not longer than this value.
@@ -402,6 +697,54 @@ public void setIgnoreMissingUninteresting(final boolean ignore) {
 		ignoreMissingUninteresting = ignore;
 	}
 
+	/**
+	 * Limit the history written by
+	 * {@link #preparePack(Collection, Collection)}.
+	 * <p>
+	 * The parents of a shallow commit are not followed, neither to find the
+	 * objects to include nor to find the uninteresting ones. Bitmaps describe
+	 * complete history and are not used when any commit is shallow.
+	 *
+	 * @param commits
+	 *            commits to treat as having no parents; empty by default.
+	 */
+	public void setShallowCommits(
+			final Collection<? extends ObjectId> commits) {
+		shallowCommits = commits;
+	}
+
+	/**
+	 * Check whether reachability bitmaps are used to count objects.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_USE_BITMAPS}
+	 * </p>
+	 *
+	 * @return true if {@link #preparePack(Collection, Collection)} may use
+	 *         the bitmap index of a pack instead of walking the object graph.
+	 */
+	public boolean isUseBitmaps() {
+		return useBitmaps;
+	}
+
+	/**
+	 * Set whether reachability bitmaps are used to count objects.
+	 * <p>
+	 * When all interesting and uninteresting commits have a bitmap in the same
+	 * pack, the objects to send are found by combining their bitmaps, without
+	 * parsing any commit or tree. Otherwise the object graph is walked as
+	 * usual.
+	 * </p>
+	 * <p>
+	 * Default setting: {@value #DEFAULT_USE_BITMAPS}
+	 * </p>
+	 *
+	 * @param useBitmaps
+	 *            true to use bitmaps when available; false to always walk.
+	 */
+	public void setUseBitmaps(final boolean useBitmaps) {
+		this.useBitmaps = useBitmaps;
+	}
+
 	/**
 	 * Set the pack index file format version this instance will create.
 	 *
@@ -420,7 +763,7 @@ public void setIndexVersion(final int version) {
 	 * @return number of objects in pack.
 	 */
 	public int getObjectsNumber() {
-		return objectsMap.size();
+		return objects.size();
 	}
 
 	/**
@@ -475,6 +818,11 @@ public void preparePack(final Iterator<RevObject> objectsSource)
 	 * Order is consistent with general git in-pack rules: sort by object type,
 	 * recency, path and delta-base first.
 	 * </p>
+	 * <p>
+	 * If bitmaps are enabled and a pack has a bitmap for every interesting
+	 * and uninteresting commit, the objects are instead taken from that pack,
+	 * in the order they appear in it.
+	 * </p>
 	 *
 	 * @param interestingObjects
 	 *            collection of objects to be marked as interesting (start
@@ -489,6 +837,16 @@ public void preparePack(
 			final Collection<? extends ObjectId> interestingObjects,
 			final Collection<? extends ObjectId> uninterestingObjects)
 			throws IOException {
+		if ((uninterestingObjects == null || uninterestingObjects.isEmpty())
+				&& shallowCommits.isEmpty())
+			bitmapTips = new ArrayList<ObjectId>(interestingObjects);
+
+		if (useBitmaps && shallowCommits.isEmpty()
+				&& (!thin || bitmapTips != null)
+				&& findObjectsToPackUsingBitmaps(interestingObjects,
+						uninterestingObjects))
+			return;
+
 		ObjectWalk walker = setUpWalker(interestingObjects,
 				uninterestingObjects);
 		findObjectsToPack(walker);
@@ -502,7 +860,7 @@ public void preparePack(
 	 * @return true if the object will appear in the output pack file.
 	 */
 	public boolean willInclude(final AnyObjectId id) {
-		return objectsMap.get(id) != null;
+		return find(id) >= 0;
 	}
 
 	/**
@@ -513,8 +871,8 @@ public boolean willInclude(final AnyObjectId id) {
 	 */
 	public ObjectId computeName() {
 		final MessageDigest md = Constants.newMessageDigest();
-		for (ObjectToPack otp : sortByName()) {
-			otp.copyRawTo(buf, 0);
+		for (final int i : sortByName()) {
+			objects.copyRawTo(i, buf, 0);
 			md.update(buf, 0, Constants.OBJECT_ID_LENGTH);
 		}
 		return ObjectId.fromRaw(md.digest());
@@ -535,7 +893,8 @@ public ObjectId computeName() {
 	 *             the index data could not be written to the supplied stream.
 	 */
 	public void writeIndex(final OutputStream indexStream) throws IOException {
-		final List<ObjectToPack> list = sortByName();
+		final List<PackedObjectInfo> list;
+		list = objects.asPackedObjectInfo(sortByName());
 		final PackIndexWriter iw;
 		if (outputVersion <= 0)
 			iw = PackIndexWriter.createOldestPossible(indexStream, list);
@@ -544,31 +903,139 @@ public void writeIndex(final OutputStream indexStream) throws IOException {
 		iw.write(list, packcsum);
 	}
 
-	private List<ObjectToPack> sortByName() {
-		if (sortedByName == null) {
-			sortedByName = new ArrayList<ObjectToPack>(objectsMap.size());
-			for (List<ObjectToPack> list : objectsLists) {
-				for (ObjectToPack otp : list)
-					sortedByName.add(otp);
-			}
-			Collections.sort(sortedByName);
+	/**
+	 * Create a bitmap index file to match the pack file just written.
+	 * <p>
+	 * This method can only be invoked after
+	 * {@link #preparePack(Collection, Collection)} was given no uninteresting
+	 * objects and no shallow commits, and {@link #writePack(OutputStream)}
+	 * has completed successfully. The pack then contains every object
+	 * reachable from the interesting objects, which the bitmap format
+	 * requires.
+	 *
+	 * @param bitmapStream
+	 *            output for the bitmap data. Caller is responsible for closing
+	 *            this stream.
+	 * @throws IOException
+	 *             the bitmap data could not be written to the supplied
+	 *             stream, or an object could not be read.
+	 */
+	public void writeBitmapIndex(final OutputStream bitmapStream)
+			throws IOException {
+		if (bitmapTips == null || packcsum == null)
+			throw new IllegalStateException("Bitmaps require a complete,"
+					+ " written pack");
+		final PackBitmapIndexWriter bw = new PackBitmapIndexWriter(db,
+				objects, sortByName(), packcsum);
+		bw.write(bitmapStream, bitmapTips, writeMonitor);
+	}
+
+	/**
+	 * Sort the objects by name, as pack indexes and names require.
+	 * <p>
+	 * The objects are first distributed by their first byte, in the same
+	 * way as the fan-out table of an index, and each of the 256 groups is
+	 * then sorted in place. The merge sort of a group needs a buffer half
+	 * its size, rather than one as large as the whole list, which matters
+	 * when packing millions of objects, and each sort is shorter.
+	 *
+	 * @return indexes of all objects, sorted by name.
+	 */
+	private int[] sortByName() {
+		final int cnt = objects.size();
+		if (sortedByName == null || sortedByName.length != cnt) {
+			final int[] fanout = new int[257];
+			for (int i = 0; i < cnt; i++)
+				fanout[objects.getFirstByte(i) + 1]++;
+			for (int i = 1; i < fanout.length; i++)
+				fanout[i] += fanout[i - 1];
+
+			final int[] sorted = new int[cnt];
+			final int[] next = new int[256];
+			System.arraycopy(fanout, 0, next, 0, 256);
+			for (int i = 0; i < cnt; i++)
+				sorted[next[objects.getFirstByte(i)]++] = i;
+			final ObjectToPackTable.Order byName;
+			byName = new ObjectToPackTable.Order() {
+				int compare(final int a, final int b) {
+					return objects.compare(a, b);
+				}
+			};
+			for (int i = 0; i < 256; i++)
+				ObjectToPackTable
+						.sort(sorted, fanout[i], fanout[i + 1], byName);
+			sortedByName = sorted;
 		}
 		return sortedByName;
 	}
 
+	/**
+	 * Find an object that is going to be written.
+	 * <p>
+	 * Objects added after the last sort by name, such as the tags a client
+	 * asks to be included, are few and are compared one by one.
+	 *
+	 * @param id
+	 *            name of the object.
+	 * @return index of the object; -1 if it is not in the pack.
+	 */
+	private int find(final AnyObjectId id) {
+		final int[] sorted = sortedByName != null ? sortedByName
+				: sortByName();
+		final int k = objects.findPosition(sorted, id);
+		if (0 <= k)
+			return sorted[k];
+		for (int i = sorted.length; i < objects.size(); i++) {
+			if (objects.compareTo(i, id) == 0)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the object written after another.
+	 * <p>
+	 * Objects are written by type, commits first, and within each type in
+	 * the order they were added.
+	 *
+	 * @param i
+	 *            index of the current object; -1 to find the first one.
+	 * @return index of the next object; -1 after the last one.
+	 */
+	private int nextToWrite(int i) {
+		int type = i < 0 ? Constants.OBJ_COMMIT : objects.getType(i);
+		for (;;) {
+			for (i++; i < objects.size(); i++) {
+				if (objects.getType(i) == type)
+					return i;
+			}
+			if (Constants.OBJ_TAG < ++type)
+				return -1;
+			i = -1;
+		}
+	}
+
 	/**
 	 * Write the prepared pack to the supplied stream.
 	 * <p>
 	 * At first, this method collects and sorts objects to pack, then deltas
 	 * search is performed if set up accordingly, finally pack stream is
 	 * written. {@link ProgressMonitor} tasks {@value #SEARCHING_REUSE_PROGRESS}
-	 * (only if reuseDeltas or reuseObjects is enabled) and
-	 * {@value #WRITING_OBJECTS_PROGRESS} are updated during packing.
+	 * (only if reuseDeltas or reuseObjects is enabled),
+	 * {@value #SEARCHING_DELTAS_PROGRESS} (only if deltaCompress is
+	 * enabled) and {@value #WRITING_OBJECTS_PROGRESS} are updated during
+	 * packing.
 	 * </p>
 	 * <p>
 	 * All reused objects data checksum (Adler32/CRC32) is computed and
 	 * validated against existing checksum.
 	 * </p>
+	 * <p>
+	 * If reuseDeltas and reuseObjects are enabled, delta bases are written as
+	 * offsets, and every object of an existing pack is to be written, that
+	 * pack is copied as a whole to the start of the stream. This is the
+	 * common case of a client cloning a repository after a full repack.
+	 * </p>
 	 *
 	 * @param packStream
 	 *            output stream of pack data. If the stream is not buffered it
@@ -580,76 +1047,179 @@ private List<ObjectToPack> sortByName() {
 	 *             stream.
 	 */
 	public void writePack(OutputStream packStream) throws IOException {
-		if (reuseDeltas || reuseObjects)
-			searchForReuse();
+		final ExecutorService pool = 1 < getThreadCount() ? executor : null;
+		objects.trim();
+		try {
+			if (reuseDeltas && reuseObjects && deltaBaseAsOffset)
+				selectWholePackReuse();
+			if (reuseDeltas || reuseObjects)
+				searchForReuse();
+			if (deltaCompress)
+				searchForDeltas(pool);
+
+			if (!(packStream instanceof BufferedOutputStream))
+				packStream = new BufferedOutputStream(packStream);
+			out = new PackOutputStream(packStream);
+
+			writeMonitor.beginTask(WRITING_OBJECTS_PROGRESS,
+					getObjectsNumber());
+			deflater = DeflaterCache.get(compressionLevel);
+			try {
+				writeHeader();
+				if (reusePack != null)
+					writeWholePack();
+				if (pool != null)
+					writeObjects(pool);
+				else
+					writeObjects();
+				writeChecksum();
+			} finally {
+				DeflaterCache.release(deflater);
+				deflater = null;
+			}
 
-		if (!(packStream instanceof BufferedOutputStream))
-			packStream = new BufferedOutputStream(packStream);
-		out = new PackOutputStream(packStream);
+			out.flush();
+			windowCursor.release();
+			writeMonitor.endTask();
+		} finally {
+			deltaCache = null;
+			if (reusePack != null) {
+				reusePack.endCopyRawData();
+				reusePack = null;
+				reusePackObjects = null;
+			}
+		}
+	}
 
-		writeMonitor.beginTask(WRITING_OBJECTS_PROGRESS, getObjectsNumber());
-		writeHeader();
-		writeObjects();
-		writeChecksum();
+	private int getThreadCount() {
+		return WorkQueue.getThreadCount(threads);
+	}
 
-		out.flush();
-		windowCursor.release();
-		writeMonitor.endTask();
+	/**
+	 * Find the largest pack whose objects are all going to be written.
+	 * <p>
+	 * Such a pack, typically the result of the last full repack when a
+	 * client clones everything, is copied as is to the start of the output.
+	 * Both packs begin with a header of the same size, so its objects keep
+	 * their offsets, and its deltas, whether OFS_DELTA or REF_DELTA, remain
+	 * valid. Only the remaining objects are searched for and written one at
+	 * a time. Delta chains of the copied pack are kept even if deeper than
+	 * {@link #getMaxDeltaDepth()}.
+	 */
+	private void selectWholePackReuse() throws IOException {
+		if (!(db.getObjectDatabase() instanceof ObjectDirectory))
+			return;
+		final ObjectDirectory od = (ObjectDirectory) db.getObjectDatabase();
+		final int total = getObjectsNumber();
+		PackFile best = null;
+		int[] bestObjects = null;
+		long[] bestOffsets = null;
+		for (final PackFile p : od.packs()) {
+			final long cnt = p.getObjectCount();
+			if (cnt == 0 || total < cnt
+					|| (best != null && cnt <= bestObjects.length)
+					|| !p.supportsFastCopyRawData())
+				continue;
+
+			final int[] list = new int[(int) cnt];
+			final long[] offsets = new long[(int) cnt];
+			int n = 0;
+			for (final PackIndex.MutableEntry e : p) {
+				e.ensureId();
+				final int i = find(e.idBuffer);
+				if (i < 0)
+					break;
+				list[n] = i;
+				offsets[n++] = e.getOffset();
+			}
+			if (n == cnt) {
+				best = p;
+				bestObjects = list;
+				bestOffsets = offsets;
+			}
+		}
+		if (best == null)
+			return;
+
+		try {
+			best.beginCopyRawData();
+		} catch (IOException err) {
+			// The pack is gone; its objects are still found one at a time.
+			return;
+		}
+		for (int i = 0; i < bestObjects.length; i++)
+			objects.setOffset(bestObjects[i], bestOffsets[i]);
+		ObjectToPackTable.sort(bestObjects, 0, bestObjects.length,
+				new ObjectToPackTable.Order() {
+					int compare(final int a, final int b) {
+						return Long.signum(objects.getOffset(a)
+								- objects.getOffset(b));
+					}
+				});
+		reusePack = best;
+		reusePackObjects = bestObjects;
 	}
 
 	private void searchForReuse() throws IOException {
 		initMonitor.beginTask(SEARCHING_REUSE_PROGRESS, getObjectsNumber());
 		final Collection<PackedObjectLoader> reuseLoaders = new ArrayList<PackedObjectLoader>();
-		for (List<ObjectToPack> list : objectsLists) {
-			for (ObjectToPack otp : list) {
-				if (initMonitor.isCancelled())
-					throw new IOException(
-							"Packing cancelled during objects writing");
-				reuseLoaders.clear();
-				searchForReuse(reuseLoaders, otp);
-				initMonitor.update(1);
-			}
+		for (int i = nextToWrite(-1); 0 <= i; i = nextToWrite(i)) {
+			if (initMonitor.isCancelled())
+				throw new IOException(
+						"Packing cancelled during objects writing");
+			if (objects.isWritten(i))
+				continue;
+			reuseLoaders.clear();
+			searchForReuse(reuseLoaders, i);
+			initMonitor.update(1);
 		}
 
 		initMonitor.endTask();
 	}
 
 	private void searchForReuse(
-			final Collection<PackedObjectLoader> reuseLoaders,
-			final ObjectToPack otp) throws IOException {
-		db.openObjectInAllPacks(otp, reuseLoaders, windowCursor);
+			final Collection<PackedObjectLoader> reuseLoaders, final int i)
+			throws IOException {
+		db.openObjectInAllPacks(objects.getId(i), reuseLoaders, windowCursor);
 		if (reuseDeltas) {
-			selectDeltaReuseForObject(otp, reuseLoaders);
+			selectDeltaReuseForObject(i, reuseLoaders);
 		}
 		// delta reuse is preferred over object reuse
-		if (reuseObjects && !otp.hasReuseLoader()) {
-			selectObjectReuseForObject(otp, reuseLoaders);
+		if (reuseObjects && !objects.hasReuseLoader(i)) {
+			selectObjectReuseForObject(i, reuseLoaders);
 		}
 	}
 
-	private void selectDeltaReuseForObject(final ObjectToPack otp,
+	private void selectDeltaReuseForObject(final int i,
 			final Collection<PackedObjectLoader> loaders) throws IOException {
 		PackedObjectLoader bestLoader = null;
-		ObjectId bestBase = null;
+		int bestBase = -1;
+		ObjectId bestEdge = null;
 
 		for (PackedObjectLoader loader : loaders) {
 			ObjectId idBase = loader.getDeltaBase();
 			if (idBase == null)
 				continue;
-			ObjectToPack otpBase = objectsMap.get(idBase);
+			final int base = find(idBase);
+			final ObjectId edge = base < 0 && thin ? edgeObjects.get(idBase)
+					: null;
 
 			// only if base is in set of objects to write or thin-pack's edge
-			if ((otpBase != null || (thin && edgeObjects.get(idBase) != null))
+			if ((0 <= base || edge != null)
 			// select smallest possible delta if > 1 available
 					&& isBetterDeltaReuseLoader(bestLoader, loader)) {
 				bestLoader = loader;
-				bestBase = (otpBase != null ? otpBase : idBase);
+				bestBase = base;
+				bestEdge = edge;
 			}
 		}
 
 		if (bestLoader != null) {
-			otp.setReuseLoader(bestLoader);
-			otp.setDeltaBase(bestBase);
+			objects.setReuseLoader(i, bestLoader);
+			if (0 <= bestBase)
+				objects.setDeltaBase(i, bestBase);
+			else
+				objects.setDeltaBase(i, bestEdge);
 		}
 	}
 
@@ -665,16 +1235,165 @@ private static boolean isBetterDeltaReuseLoader(
 				.supportsFastCopyRawData());
 	}
 
-	private void selectObjectReuseForObject(final ObjectToPack otp,
+	private void selectObjectReuseForObject(final int i,
 			final Collection<PackedObjectLoader> loaders) {
 		for (final PackedObjectLoader loader : loaders) {
 			if (loader instanceof WholePackedObjectLoader) {
-				otp.setReuseLoader(loader);
+				objects.setReuseLoader(i, loader);
+				objects.setWeight(i, (int) loader.getSize());
 				return;
 			}
 		}
 	}
 
+	private void searchForDeltas(final ExecutorService pool)
+			throws IOException {
+		if (deltaSearchWindowSize < 2)
+			return;
+
+		int cnt = 0;
+		for (int i = 0; i < objects.size(); i++) {
+			if (!isDeltaCandidate(i))
+				continue;
+			if (objects.getWeight(i) == 0) {
+				final ObjectId id = objects.getId(i);
+				final ObjectLoader ldr = db.openObject(windowCursor, id);
+				if (ldr == null)
+					throw new MissingObjectException(id, objects.getType(i));
+				objects.setWeight(i, (int) Math.min(ldr.getSize(),
+						Integer.MAX_VALUE));
+			}
+			if (isDeltaSearchSize(i))
+				cnt++;
+		}
+		windowCursor.release();
+		if (cnt < 2)
+			return;
+
+		final int[] toSearch = new int[cnt];
+		cnt = 0;
+		for (int i = 0; i < objects.size(); i++) {
+			if (isDeltaCandidate(i) && isDeltaSearchSize(i))
+				toSearch[cnt++] = i;
+		}
+
+		// Group objects by type and path, largest first. The sort is stable,
+		// so the most recent of equally sized objects stays in front.
+		//
+		ObjectToPackTable.sort(toSearch, 0, toSearch.length,
+				new ObjectToPackTable.Order() {
+					int compare(final int a, final int b) {
+						final int ta = objects.getType(a);
+						final int tb = objects.getType(b);
+						if (ta != tb)
+							return ta < tb ? -1 : 1;
+						final int pa = objects.getPathHash(a);
+						final int pb = objects.getPathHash(b);
+						if (pa != pb)
+							return pa < pb ? -1 : 1;
+						final int wa = objects.getWeight(a);
+						final int wb = objects.getWeight(b);
+						if (wa != wb)
+							return wa < wb ? 1 : -1;
+						return 0;
+					}
+				});
+
+		initMonitor.beginTask(SEARCHING_DELTAS_PROGRESS, toSearch.length);
+		deltaCache = new DeltaCache(deltaCacheSize, deltaCacheLimit);
+		if (pool != null)
+			searchForDeltas(pool, toSearch);
+		else
+			new DeltaWindow(db, objects, deltaCache, deltaSearchWindowSize,
+					maxDeltaDepth, deltaSearchMemoryLimit).search(
+					initMonitor, toSearch, 0, toSearch.length);
+		initMonitor.endTask();
+	}
+
+	private boolean isDeltaCandidate(final int i) {
+		final int type = objects.getType(i);
+		return (type == Constants.OBJ_TREE || type == Constants.OBJ_BLOB)
+				&& !objects.isWritten(i) && !objects.isDeltaRepresentation(i);
+	}
+
+	private boolean isDeltaSearchSize(final int i) {
+		final int w = objects.getWeight(i);
+		return MIN_DELTA_SIZE <= w && w <= bigFileThreshold;
+	}
+
+	private void searchForDeltas(final ExecutorService pool, final int[] list)
+			throws IOException {
+		final ThreadSafeProgressMonitor pm;
+		pm = new ThreadSafeProgressMonitor(initMonitor);
+		final int partitionSize = Math.max(list.length
+				/ (PARTITIONS_PER_THREAD * getThreadCount()),
+				2 * deltaSearchWindowSize);
+
+		final List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+		try {
+			for (int start = 0; start < list.length;) {
+				int end = Math.min(list.length, start + partitionSize);
+
+				// Move the boundary past objects of the same path, so they
+				// are still compared with each other.
+				//
+				final int limit = Math.min(list.length, end + partitionSize);
+				while (end < limit && isSamePath(list[end - 1], list[end]))
+					end++;
+
+				pm.startWorker();
+				tasks.add(pool.submit(new DeltaTask(pm, list, start, end
+						- start)));
+				start = end;
+			}
+			pm.waitForCompletion();
+			for (final Future<Object> t : tasks)
+				WorkQueue.get(t);
+		} finally {
+			// Tasks already running still use the cache and the objects,
+			// so they must finish before the caller unwinds.
+			//
+			for (final Future<Object> t : tasks)
+				t.cancel(false);
+			WorkQueue.waitForAll(tasks);
+		}
+	}
+
+	private boolean isSamePath(final int a, final int b) {
+		return objects.getType(a) == objects.getType(b)
+				&& objects.getPathHash(a) == objects.getPathHash(b);
+	}
+
+	private class DeltaTask implements Callable<Object> {
+		private final ThreadSafeProgressMonitor pm;
+
+		private final int[] list;
+
+		private final int off;
+
+		private final int cnt;
+
+		DeltaTask(final ThreadSafeProgressMonitor pm, final int[] list,
+				final int off, final int cnt) {
+			this.pm = pm;
+			this.list = list;
+			this.off = off;
+			this.cnt = cnt;
+		}
+
+		public Object call() throws IOException {
+			try {
+				final DeltaWindow dw = new DeltaWindow(db, objects,
+						deltaCache, deltaSearchWindowSize, maxDeltaDepth,
+						deltaSearchMemoryLimit);
+				dw.search(pm, list, off, cnt);
+				return null;
+			} finally {
+				pm.endWorker();
+			}
+		}
+	}
+
 	private void writeHeader() throws IOException {
 		System.arraycopy(Constants.PACK_SIGNATURE, 0, buf, 0, 4);
 		NB.encodeInt32(buf, 4, PACK_VERSION_GENERATED);
@@ -683,130 +1402,496 @@ private void writeHeader() throws IOException {
 	}
 
 	private void writeObjects() throws IOException {
-		for (List<ObjectToPack> list : objectsLists) {
-			for (ObjectToPack otp : list) {
+		for (int i = nextToWrite(-1); 0 <= i; i = nextToWrite(i)) {
+			if (writeMonitor.isCancelled())
+				throw new IOException(
+						"Packing cancelled during objects writing");
+			if (!objects.isWritten(i))
+				writeObject(i);
+		}
+		flushRun();
+	}
+
+	private void writeObjects(final ExecutorService pool) throws IOException {
+		deflateAhead = new HashMap<Integer, Future<Deflated>>();
+		deflateAheadBytes = 0;
+		try {
+			int next = nextToWrite(-1);
+			for (int i = next; 0 <= i; i = nextToWrite(i)) {
 				if (writeMonitor.isCancelled())
 					throw new IOException(
 							"Packing cancelled during objects writing");
-				if (!otp.isWritten())
-					writeObject(otp);
+
+				// Keep the other threads busy compressing the objects which
+				// will be written soon. The results are held here until the
+				// writer reaches them, so the output order is unchanged, and
+				// their total size is limited.
+				//
+				for (; 0 <= next; next = nextToWrite(next)) {
+					if (objects.isWritten(next)
+							|| objects.hasReuseLoader(next))
+						continue;
+					final long sz = sizeOf(next);
+					if (bigFileThreshold < sz)
+						continue;
+					if (!deflateAhead.isEmpty()
+							&& DEFLATE_AHEAD_LIMIT < deflateAheadBytes + sz)
+						break;
+					deflateAhead.put(Integer.valueOf(next), pool
+							.submit(new DeflateTask(next)));
+					deflateAheadBytes += sz;
+				}
+
+				if (!objects.isWritten(i))
+					writeObject(i);
 			}
+			flushRun();
+		} finally {
+			for (final Future<Deflated> t : deflateAhead.values())
+				t.cancel(false);
+			WorkQueue.waitForAll(deflateAhead.values());
+			deflateAhead = null;
 		}
 	}
 
-	private void writeObject(final ObjectToPack otp) throws IOException {
-		otp.markWantWrite();
-		if (otp.isDeltaRepresentation()) {
-			ObjectToPack deltaBase = otp.getDeltaBase();
-			assert deltaBase != null || thin;
-			if (deltaBase != null && !deltaBase.isWritten()) {
-				if (deltaBase.wantWrite()) {
-					otp.clearDeltaBase(); // cycle detected
-					otp.disposeLoader();
+	private void writeObject(final int i) throws IOException {
+		objects.markWantWrite(i);
+		if (objects.isDeltaRepresentation(i)) {
+			final int deltaBase = objects.getDeltaBase(i);
+			assert 0 <= deltaBase || thin;
+			if (0 <= deltaBase && !objects.isWritten(deltaBase)) {
+				if (objects.wantWrite(deltaBase)) {
+					objects.clearDeltaBase(i); // cycle detected
+					objects.disposeLoader(i);
 				} else {
 					writeObject(deltaBase);
 				}
 			}
 		}
 
-		assert !otp.isWritten();
+		assert !objects.isWritten(i);
 
-		out.resetCRC32();
-		otp.setOffset(out.length());
+		final PackedObjectLoader reuse = open(i);
+		if (reuse != null && reuse.supportsFastCopyRawData()) {
+			addToRun(i, reuse);
+			writeMonitor.update(1);
+			return;
+		}
 
-		final PackedObjectLoader reuse = open(otp);
+		flushRun();
+		out.resetCRC32();
+		objects.setOffset(i, out.length());
 		if (reuse != null) {
 			try {
-				if (otp.isDeltaRepresentation()) {
-					writeDeltaObjectReuse(otp, reuse);
+				if (objects.isDeltaRepresentation(i)) {
+					writeDeltaObjectReuse(i, reuse);
 				} else {
-					writeObjectHeader(otp.getType(), reuse.getSize());
+					writeObjectHeader(objects.getType(i), reuse.getSize());
 					reuse.copyRawData(out, buf, windowCursor);
 				}
 			} finally {
 				reuse.endCopyRawData();
 			}
-		} else if (otp.isDeltaRepresentation()) {
-			throw new IOException("creating deltas is not implemented");
 		} else {
-			writeWholeObjectDeflate(otp);
+			final Deflated d = deflateAhead != null ? takeDeflated(i) : null;
+			if (d != null && d.delta == objects.isDeltaRepresentation(i)) {
+				if (d.delta)
+					writeDeltaObjectHeader(i, d.inflatedSize);
+				else
+					writeObjectHeader(objects.getType(i), d.inflatedSize);
+				out.write(d.data, 0, d.length);
+			} else if (objects.isDeltaRepresentation(i)) {
+				writeDeltaObjectDeflate(i);
+			} else {
+				writeWholeObjectDeflate(i);
+			}
 		}
-		otp.setCRC(out.getCRC32());
+		objects.setCRC(i, out.getCRC32());
 
 		writeMonitor.update(1);
 	}
 
-	private PackedObjectLoader open(final ObjectToPack otp) throws IOException {
+	private PackedObjectLoader open(final int i) throws IOException {
 		for (;;) {
-			PackedObjectLoader reuse = otp.useLoader();
-			if (reuse == null) {
-				return null;
-			}
-
 			try {
+				final PackedObjectLoader reuse;
+				reuse = objects.useLoader(i, windowCursor);
+				if (reuse == null) {
+					return null;
+				}
 				reuse.beginCopyRawData();
 				return reuse;
 			} catch (IOException err) {
 				// The pack we found the object in originally is gone, or
 				// it has been overwritten with a different layout.
 				//
-				otp.clearDeltaBase();
-				searchForReuse(new ArrayList<PackedObjectLoader>(), otp);
+				objects.clearDeltaBase(i);
+				searchForReuse(new ArrayList<PackedObjectLoader>(), i);
 				continue;
 			}
 		}
 	}
 
-	private void writeWholeObjectDeflate(final ObjectToPack otp)
+	/**
+	 * Queue a reused object to be copied along with its neighbors.
+	 * <p>
+	 * Objects reused from the same pack are often written in the order they
+	 * are stored there. Such runs are read straight from the pack file in
+	 * large blocks, rather than through two window cache lookups for every
+	 * object, and do not push more useful windows out of the cache. The CRC
+	 * of each entry is computed only once when its header is unchanged.
+	 */
+	private void addToRun(final int i, final PackedObjectLoader reuse)
 			throws IOException {
-		final ObjectLoader loader = db.openObject(windowCursor, otp);
+		final long end;
+		try {
+			final PackFile pack = reuse.pack;
+			final long start = reuse.getObjectOffset();
+			if (pack != runPack || start != runEnd
+					|| MAX_RUN_LENGTH <= runLength)
+				flushRun();
+
+			end = pack.findEndOffset(start);
+			objects.setOffset(i, out.length() + runLength);
+			runLength += formatHeader(i, reuse, buf);
+			runLength += end - reuse.getDataOffset();
+			runPack = pack;
+		} catch (IOException err) {
+			reuse.endCopyRawData();
+			throw err;
+		}
+		runEnd = end;
+		runObjects.add(i);
+		runLoaders.add(reuse);
+	}
+
+	private void writeWholePack() throws IOException {
+		final int[] list = reusePackObjects;
+		if (objects.getOffset(list[0]) != out.length())
+			throw new CorruptObjectException("Pack " + reusePack.getPackFile()
+					+ " has unexpected data after its header");
+		final PackIndex idx = reusePack.idx();
+		if (runBuf == null)
+			runBuf = new byte[RUN_BUFFER_SIZE];
+		runBufStart = 0;
+		runBufEnd = 0;
+		runPack = reusePack;
+		runEnd = reusePack.length - Constants.OBJECT_ID_LENGTH;
+		try {
+			for (int k = 0; k < list.length; k++) {
+				if (writeMonitor.isCancelled())
+					throw new IOException(
+							"Packing cancelled during objects writing");
+				final int i = list[k];
+				final long start = objects.getOffset(i);
+				final long end;
+				if (k + 1 < list.length)
+					end = objects.getOffset(list[k + 1]);
+				else
+					end = runEnd;
+
+				out.resetCRC32();
+				copyRun(start, end, null);
+				if ((out.getCRC32() & 0xffffffffL) != idx.findCRC32(objects
+						.getId(i)))
+					throw new CorruptObjectException("Object at " + start
+							+ " in " + runPack.getPackFile()
+							+ " has bad zlib stream");
+				objects.setCRC(i, out.getCRC32());
+				writeMonitor.update(1);
+			}
+		} finally {
+			runPack = null;
+			runEnd = 0;
+		}
+	}
+
+	private void flushRun() throws IOException {
+		final int cnt = runObjects.size();
+		if (cnt == 0)
+			return;
+		try {
+			final PackIndex idx = runPack.idx();
+			if (runBuf == null)
+				runBuf = new byte[RUN_BUFFER_SIZE];
+			runBufStart = 0;
+			runBufEnd = 0;
+
+			for (int k = 0; k < cnt; k++) {
+				final int i = runObjects.get(k);
+				final PackedObjectLoader reuse = runLoaders.get(k);
+				final long start = reuse.getObjectOffset();
+				final long dataStart = reuse.getDataOffset();
+				final long end;
+				if (k + 1 < cnt)
+					end = runLoaders.get(k + 1).getObjectOffset();
+				else
+					end = runEnd;
+
+				// The stored header is compared with ours, as the entry's
+				// CRC from the index covers both the header and the data.
+				//
+				final int hdrLen = formatHeader(i, reuse, buf);
+				final int srcHdrLen = (int) (dataStart - start);
+				for (int n = 0; n < srcHdrLen;) {
+					final int p = fillRun(start + n);
+					final int r = (int) Math.min(srcHdrLen - n, runBufEnd
+							- (start + n));
+					System.arraycopy(runBuf, p, buf, hdrLen + n, r);
+					n += r;
+				}
+				boolean sameHdr = srcHdrLen == hdrLen;
+				for (int n = 0; sameHdr && n < hdrLen; n++)
+					sameHdr = buf[n] == buf[hdrLen + n];
+				if (!sameHdr) {
+					runCRC.reset();
+					runCRC.update(buf, hdrLen, srcHdrLen);
+				}
+
+				out.resetCRC32();
+				out.write(buf, 0, hdrLen);
+				copyRun(dataStart, end, sameHdr ? null : runCRC);
+
+				final long computed;
+				if (sameHdr)
+					computed = out.getCRC32() & 0xffffffffL;
+				else
+					computed = runCRC.getValue();
+				if (computed != idx.findCRC32(objects.getId(i)))
+					throw new CorruptObjectException("Object at " + dataStart
+							+ " in " + runPack.getPackFile()
+							+ " has bad zlib stream");
+				objects.setCRC(i, out.getCRC32());
+			}
+		} finally {
+			for (final PackedObjectLoader reuse : runLoaders)
+				reuse.endCopyRawData();
+			runObjects.clear();
+			runLoaders.clear();
+			runPack = null;
+			runEnd = 0;
+			runLength = 0;
+		}
+	}
+
+	/** Copy a range of the run's pack to the output. */
+	private void copyRun(long pos, final long end, final CRC32 crc)
+			throws IOException {
+		while (pos < end) {
+			final int p = fillRun(pos);
+			final int r = (int) Math.min(end - pos, runBufEnd - pos);
+			out.write(runBuf, p, r);
+			if (crc != null)
+				crc.update(runBuf, p, r);
+			pos += r;
+		}
+	}
+
+	/**
+	 * Ensure the run buffer holds the byte at a position of the run's pack.
+	 *
+	 * @return index of <code>pos</code> within {@link #runBuf}.
+	 */
+	private int fillRun(final long pos) throws IOException {
+		if (pos < runBufStart || runBufEnd <= pos) {
+			final int n = (int) Math.min(runBuf.length, runEnd - pos);
+			runPack.readRaw(pos, runBuf, 0, n);
+			runBufStart = pos;
+			runBufEnd = pos + n;
+		}
+		return (int) (pos - runBufStart);
+	}
+
+	private void writeWholeObjectDeflate(final int i) throws IOException {
+		final ObjectLoader loader = db.openObject(windowCursor, objects
+				.getId(i));
 		final byte[] data = loader.getCachedBytes();
-		writeObjectHeader(otp.getType(), data.length);
-		deflater.reset();
-		deflater.setInput(data, 0, data.length);
-		deflater.finish();
+		writeObjectHeader(objects.getType(i), data.length);
+		deflate(deflater, data, buf, out);
+	}
+
+	private void writeDeltaObjectDeflate(final int i) throws IOException {
+		final byte[] delta = delta(i, objects.getDeltaBaseId(i), windowCursor);
+		writeDeltaObjectHeader(i, delta.length);
+		deflate(deflater, delta, buf, out);
+	}
+
+	private byte[] delta(final int i, final ObjectId baseId,
+			final WindowCursor curs) throws IOException {
+		final byte[] delta = deltaCache != null ? deltaCache.take(i) : null;
+		if (delta != null)
+			return delta;
+		final byte[] base = load(baseId, curs);
+		final byte[] res = load(objects.getId(i), curs);
+		final ByteArrayOutputStream tmp = new ByteArrayOutputStream();
+		new DeltaIndex(base).encode(tmp, res);
+		return tmp.toByteArray();
+	}
+
+	private byte[] load(final AnyObjectId id, final WindowCursor curs)
+			throws IOException {
+		final ObjectLoader ldr = db.openObject(curs, id);
+		if (ldr == null)
+			throw new MissingObjectException(id.copy(), "unknown");
+		return ldr.getCachedBytes();
+	}
+
+	private static void deflate(final Deflater def, final byte[] data,
+			final byte[] buf, final OutputStream dst) throws IOException {
+		def.reset();
+		def.setInput(data, 0, data.length);
+		def.finish();
 		do {
-			final int n = deflater.deflate(buf, 0, buf.length);
+			final int n = def.deflate(buf, 0, buf.length);
 			if (n > 0)
-				out.write(buf, 0, n);
-		} while (!deflater.finished());
+				dst.write(buf, 0, n);
+		} while (!def.finished());
 	}
 
-	private void writeDeltaObjectReuse(final ObjectToPack otp,
-			final PackedObjectLoader reuse) throws IOException {
-		if (deltaBaseAsOffset && otp.getDeltaBase() != null) {
-			writeObjectHeader(Constants.OBJ_OFS_DELTA, reuse.getRawSize());
+	private long sizeOf(final int i) throws IOException {
+		if (objects.getWeight(i) == 0) {
+			final ObjectId id = objects.getId(i);
+			final ObjectLoader ldr = db.openObject(windowCursor, id);
+			if (ldr == null)
+				throw new MissingObjectException(id, objects.getType(i));
+			objects.setWeight(i, (int) Math.min(ldr.getSize(),
+					Integer.MAX_VALUE));
+		}
+		return objects.getWeight(i);
+	}
 
-			final ObjectToPack deltaBase = otp.getDeltaBase();
-			long offsetDiff = otp.getOffset() - deltaBase.getOffset();
-			int pos = buf.length - 1;
-			buf[pos] = (byte) (offsetDiff & 0x7F);
-			while ((offsetDiff >>= 7) > 0) {
-				buf[--pos] = (byte) (0x80 | (--offsetDiff & 0x7F));
+	private Deflated takeDeflated(final int i) throws IOException {
+		final Future<Deflated> task = deflateAhead.remove(Integer.valueOf(i));
+		if (task == null)
+			return null;
+		deflateAheadBytes -= objects.getWeight(i);
+		return WorkQueue.get(task);
+	}
+
+	/** Compressed form of an object, prepared by {@link DeflateTask}. */
+	private static class Deflated {
+		final boolean delta;
+
+		final long inflatedSize;
+
+		final byte[] data;
+
+		final int length;
+
+		Deflated(final boolean delta, final long inflatedSize,
+				final byte[] data, final int length) {
+			this.delta = delta;
+			this.inflatedSize = inflatedSize;
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private class DeflateTask implements Callable<Deflated> {
+		private final int i;
+
+		DeflateTask(final int i) {
+			this.i = i;
+		}
+
+		public Deflated call() throws IOException {
+			final WindowCursor curs = new WindowCursor();
+			final Deflater def = DeflaterCache.get(compressionLevel);
+			try {
+				// The writer may drop the delta base to break a cycle while
+				// this runs; it then discards the result if it was a delta.
+				//
+				final ObjectId baseId = objects.getDeltaBaseId(i);
+				final byte[] raw;
+				if (baseId != null)
+					raw = delta(i, baseId, curs);
+				else
+					raw = load(objects.getId(i), curs);
+
+				final Buffer tmp = new Buffer(raw.length / 2 + 64);
+				deflate(def, raw, new byte[8192], tmp);
+				return new Deflated(baseId != null, raw.length, tmp.data(),
+						tmp.size());
+			} finally {
+				DeflaterCache.release(def);
+				curs.release();
 			}
+		}
+	}
 
-			out.write(buf, pos, buf.length - pos);
-		} else {
-			writeObjectHeader(Constants.OBJ_REF_DELTA, reuse.getRawSize());
-			otp.getDeltaBaseId().copyRawTo(buf, 0);
-			out.write(buf, 0, Constants.OBJECT_ID_LENGTH);
+	/** A byte array stream exposing its buffer, to avoid a final copy. */
+	private static class Buffer extends ByteArrayOutputStream {
+		Buffer(final int size) {
+			super(size);
+		}
+
+		byte[] data() {
+			return buf;
 		}
+	}
+
+	private void writeDeltaObjectReuse(final int i,
+			final PackedObjectLoader reuse) throws IOException {
+		writeDeltaObjectHeader(i, reuse.getRawSize());
 		reuse.copyRawData(out, buf, windowCursor);
 	}
 
+	private void writeDeltaObjectHeader(final int i, final long rawSize)
+			throws IOException {
+		out.write(buf, 0, formatDeltaObjectHeader(i, rawSize, buf));
+	}
+
 	private void writeObjectHeader(final int objectType, long dataLength)
 			throws IOException {
+		out.write(buf, 0, formatObjectHeader(objectType, dataLength, buf));
+	}
+
+	private int formatHeader(final int i, final PackedObjectLoader reuse,
+			final byte[] hdr) throws IOException {
+		if (objects.isDeltaRepresentation(i))
+			return formatDeltaObjectHeader(i, reuse.getRawSize(), hdr);
+		return formatObjectHeader(objects.getType(i), reuse.getSize(), hdr);
+	}
+
+	private int formatDeltaObjectHeader(final int i, final long rawSize,
+			final byte[] hdr) {
+		final int deltaBase = objects.getDeltaBase(i);
+		if (deltaBaseAsOffset && 0 <= deltaBase) {
+			int size = formatObjectHeader(Constants.OBJ_OFS_DELTA, rawSize,
+					hdr);
+
+			long offsetDiff = objects.getOffset(i)
+					- objects.getOffset(deltaBase);
+			for (long v = offsetDiff; (v >>= 7) > 0; v--)
+				size++;
+			final int end = size + 1;
+			int pos = size;
+			hdr[pos] = (byte) (offsetDiff & 0x7F);
+			while ((offsetDiff >>= 7) > 0) {
+				hdr[--pos] = (byte) (0x80 | (--offsetDiff & 0x7F));
+			}
+			return end;
+		} else {
+			final int size = formatObjectHeader(Constants.OBJ_REF_DELTA,
+					rawSize, hdr);
+			objects.getDeltaBaseId(i).copyRawTo(hdr, size);
+			return size + Constants.OBJECT_ID_LENGTH;
+		}
+	}
+
+	private static int formatObjectHeader(final int objectType,
+			long dataLength, final byte[] hdr) {
 		long nextLength = dataLength >>> 4;
 		int size = 0;
-		buf[size++] = (byte) ((nextLength > 0 ? 0x80 : 0x00)
+		hdr[size++] = (byte) ((nextLength > 0 ? 0x80 : 0x00)
 				| (objectType << 4) | (dataLength & 0x0F));
 		dataLength = nextLength;
 		while (dataLength > 0) {
 			nextLength >>>= 7;
-			buf[size++] = (byte) ((nextLength > 0 ? 0x80 : 0x00) | (dataLength & 0x7F));
+			hdr[size++] = (byte) ((nextLength > 0 ? 0x80 : 0x00) | (dataLength & 0x7F));
 			dataLength = nextLength;
 		}
-		out.write(buf, 0, size);
+		return size;
 	}
 
 	private void writeChecksum() throws IOException {
@@ -821,6 +1906,7 @@ private ObjectWalk setUpWalker(
 			IncorrectObjectTypeException {
 		final ObjectWalk walker = new ObjectWalk(db);
 		walker.setRetainBody(false);
+		walker.assumeShallow(shallowCommits);
 		walker.sort(RevSort.TOPO);
 		walker.sort(RevSort.COMMIT_TIME_DESC, true);
 		if (thin)
@@ -858,12 +1944,101 @@ private void findObjectsToPack(final ObjectWalk walker)
 			initMonitor.update(1);
 		}
 		while ((o = walker.nextObject()) != null) {
-			addObject(o);
+			addObject(o, walker.getPathHashCode());
 			initMonitor.update(1);
 		}
 		initMonitor.endTask();
 	}
 
+	private boolean findObjectsToPackUsingBitmaps(
+			final Collection<? extends ObjectId> interestingObjects,
+			final Collection<? extends ObjectId> uninterestingObjects)
+			throws IOException {
+		if (!(db.getObjectDatabase() instanceof ObjectDirectory))
+			return false;
+		final ObjectDirectory od = (ObjectDirectory) db.getObjectDatabase();
+		for (final PackFile p : od.packs()) {
+			final PackBitmapIndex bitmaps = p.getBitmapIndex();
+			if (bitmaps == null)
+				continue;
+
+			final RevWalk rw = new RevWalk(db);
+			rw.setRetainBody(false);
+			final long[] want = bitmaps.newBitmap();
+			if (!orBitmaps(rw, bitmaps, interestingObjects, want, false))
+				continue;
+			final long[] have = bitmaps.newBitmap();
+			if (uninterestingObjects != null
+					&& !orBitmaps(rw, bitmaps, uninterestingObjects, have,
+							ignoreMissingUninteresting))
+				continue;
+
+			initMonitor.beginTask(COUNTING_OBJECTS_PROGRESS,
+					ProgressMonitor.UNKNOWN);
+			final long[][] types = new long[Constants.OBJ_TAG + 1][];
+			for (int t = Constants.OBJ_COMMIT; t <= Constants.OBJ_TAG; t++)
+				types[t] = bitmaps.getTypeBitmap(t);
+			for (int w = 0; w < want.length; w++) {
+				long bits = want[w] & ~have[w];
+				while (bits != 0) {
+					final int bit = Long.numberOfTrailingZeros(bits);
+					final int pos = (w << 6) + bit;
+					bits &= bits - 1;
+
+					int type = Constants.OBJ_BAD;
+					for (int t = Constants.OBJ_COMMIT; t <= Constants.OBJ_TAG; t++) {
+						if ((types[t][w] & (1L << bit)) != 0) {
+							type = t;
+							break;
+						}
+					}
+					addObject(bitmaps.getObject(pos), type, bitmaps
+							.getPathHash(pos));
+					initMonitor.update(1);
+				}
+			}
+			initMonitor.endTask();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Set the bits of the objects reachable from each start point.
+	 * <p>
+	 * Annotated tags are peeled; the tags themselves are set directly, as no
+	 * commit bitmap includes them.
+	 *
+	 * @return true if all bits were set; false if a start point is not a
+	 *         commit with a bitmap.
+	 */
+	private static boolean orBitmaps(final RevWalk rw,
+			final PackBitmapIndex bitmaps,
+			final Collection<? extends ObjectId> starts, final long[] dst,
+			final boolean ignoreMissing) throws IOException {
+		for (final ObjectId id : starts) {
+			RevObject o;
+			try {
+				o = rw.parseAny(id);
+				while (o instanceof RevTag) {
+					final int pos = bitmaps.findPosition(o);
+					if (pos < 0)
+						return false;
+					dst[pos >>> 6] |= 1L << pos;
+					o = ((RevTag) o).getObject();
+					rw.parseHeaders(o);
+				}
+			} catch (MissingObjectException notFound) {
+				if (ignoreMissing)
+					continue;
+				return false;
+			}
+			if (!(o instanceof RevCommit) || !bitmaps.orBitmap(o, dst))
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Include one object to the output file.
 	 * <p>
@@ -878,161 +2053,25 @@ private void findObjectsToPack(final ObjectWalk walker)
 	 */
 	public void addObject(final RevObject object)
 			throws IncorrectObjectTypeException {
+		addObject(object, 0);
+	}
+
+	private void addObject(final RevObject object, final int pathHash)
+			throws IncorrectObjectTypeException {
 		if (object.has(RevFlag.UNINTERESTING)) {
 			edgeObjects.add(object);
 			thin = true;
 			return;
 		}
 
-		final ObjectToPack otp = new ObjectToPack(object, object.getType());
-		try {
-			objectsLists[object.getType()].add(otp);
-		} catch (ArrayIndexOutOfBoundsException x) {
-			throw new IncorrectObjectTypeException(object,
-					"COMMIT nor TREE nor BLOB nor TAG");
-		} catch (UnsupportedOperationException x) {
-			// index pointing to "dummy" empty list
-			throw new IncorrectObjectTypeException(object,
-					"COMMIT nor TREE nor BLOB nor TAG");
-		}
-		objectsMap.add(otp);
+		addObject(object, object.getType(), pathHash);
 	}
 
-	/**
-	 * Class holding information about object that is going to be packed by
-	 * {@link PackWriter}. Information include object representation in a
-	 * pack-file and object status.
-	 *
-	 */
-	static class ObjectToPack extends PackedObjectInfo {
-		private ObjectId deltaBase;
-
-		private PackedObjectLoader reuseLoader;
-
-		/**
-		 * Bit field, from bit 0 to bit 31:
-		 * <ul>
-		 * <li>1 bit: wantWrite</li>
-		 * <li>3 bits: type</li>
-		 * <li>28 bits: deltaDepth</li>
-		 * </ul>
-		 */
-		private int flags;
-
-		/**
-		 * Construct object for specified object id. <br/> By default object is
-		 * marked as not written and non-delta packed (as a whole object).
-		 *
-		 * @param src
-		 *            object id of object for packing
-		 * @param type
-		 *            real type code of the object, not its in-pack type.
-		 */
-		ObjectToPack(AnyObjectId src, final int type) {
-			super(src);
-			flags |= type << 1;
-		}
-
-		/**
-		 * @return delta base object id if object is going to be packed in delta
-		 *         representation; null otherwise - if going to be packed as a
-		 *         whole object.
-		 */
-		ObjectId getDeltaBaseId() {
-			return deltaBase;
-		}
-
-		/**
-		 * @return delta base object to pack if object is going to be packed in
-		 *         delta representation and delta is specified as object to
-		 *         pack; null otherwise - if going to be packed as a whole
-		 *         object or delta base is specified only as id.
-		 */
-		ObjectToPack getDeltaBase() {
-			if (deltaBase instanceof ObjectToPack)
-				return (ObjectToPack) deltaBase;
-			return null;
-		}
-
-		/**
-		 * Set delta base for the object. Delta base set by this method is used
-		 * by {@link PackWriter} to write object - determines its representation
-		 * in a created pack.
-		 *
-		 * @param deltaBase
-		 *            delta base object or null if object should be packed as a
-		 *            whole object.
-		 *
-		 */
-		void setDeltaBase(ObjectId deltaBase) {
-			this.deltaBase = deltaBase;
-		}
-
-		void clearDeltaBase() {
-			this.deltaBase = null;
-		}
-
-		/**
-		 * @return true if object is going to be written as delta; false
-		 *         otherwise.
-		 */
-		boolean isDeltaRepresentation() {
-			return deltaBase != null;
-		}
-
-		/**
-		 * Check if object is already written in a pack. This information is
-		 * used to achieve delta-base precedence in a pack file.
-		 *
-		 * @return true if object is already written; false otherwise.
-		 */
-		boolean isWritten() {
-			return getOffset() != 0;
-		}
-
-		PackedObjectLoader useLoader() {
-			final PackedObjectLoader r = reuseLoader;
-			reuseLoader = null;
-			return r;
-		}
-
-		boolean hasReuseLoader() {
-			return reuseLoader != null;
-		}
-
-		void setReuseLoader(PackedObjectLoader reuseLoader) {
-			this.reuseLoader = reuseLoader;
-		}
-
-		void disposeLoader() {
-			this.reuseLoader = null;
-		}
-
-		int getType() {
-			return (flags>>1) & 0x7;
-		}
-
-		int getDeltaDepth() {
-			return flags >>> 4;
-		}
-
-		void updateDeltaDepth() {
-			final int d;
-			if (deltaBase instanceof ObjectToPack)
-				d = ((ObjectToPack) deltaBase).getDeltaDepth() + 1;
-			else if (deltaBase != null)
-				d = 1;
-			else
-				d = 0;
-			flags = (d << 4) | flags & 0x15;
-		}
-
-		boolean wantWrite() {
-			return (flags & 1) == 1;
-		}
-
-		void markWantWrite() {
-			flags |= 1;
-		}
+	private void addObject(final AnyObjectId id, final int type,
+			final int pathHash) throws IncorrectObjectTypeException {
+		if (type < Constants.OBJ_COMMIT || Constants.OBJ_TAG < type)
+			throw new IncorrectObjectTypeException(id.copy(),
+					"COMMIT nor TREE nor BLOB nor TAG");
+		objects.add(id, type, pathHash);
 	}
 }
@@ -58,8 +58,10 @@
 
 import org.spearce.jgit.errors.ConfigInvalidException;
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
+import org.spearce.jgit.errors.ObjectWritingException;
 import org.spearce.jgit.errors.RevisionSyntaxException;
 import org.spearce.jgit.util.FS;
+import org.spearce.jgit.util.NB;
 import org.spearce.jgit.util.SystemReader;
 
 /**
@@ -100,6 +102,10 @@ public class Repository {
 
 	private GitIndex index;
 
+	private Set<ObjectId> shallowCommits = Collections.emptySet();
+
+	private long shallowLastModified;
+
 	private final List<RepositoryListener> listeners = new Vector<RepositoryListener>(); // thread safe
 	static private final List<RepositoryListener> allListeners = new Vector<RepositoryListener>(); // thread safe
 
@@ -777,6 +783,84 @@ public void openPack(final File pack, final File idx) throws IOException {
 		objectDatabase.openPack(pack, idx);
 	}
 
+	/**
+	 * Get the commits whose parents are missing from this repository.
+	 * <p>
+	 * A repository created by a depth limited fetch records the commits at the
+	 * edge of its history in {@code GIT_DIR/shallow}. Their parents were never
+	 * copied, so traversals must treat them as root commits.
+	 *
+	 * @return the shallow commits; empty if the repository has all history.
+	 * @throws IOException
+	 *             the shallow file exists but cannot be read.
+	 */
+	public synchronized Set<ObjectId> getShallowCommits() throws IOException {
+		final File file = new File(gitDir, Constants.SHALLOW);
+		final long currTime = file.lastModified();
+		if (currTime == shallowLastModified)
+			return shallowCommits;
+		if (currTime == 0) {
+			shallowLastModified = 0;
+			shallowCommits = Collections.emptySet();
+			return shallowCommits;
+		}
+
+		final byte[] buf = NB.readFully(file);
+		final Set<ObjectId> r = new HashSet<ObjectId>();
+		final int lineLen = Constants.OBJECT_ID_LENGTH * 2 + 1;
+		for (int ptr = 0; ptr + lineLen - 1 <= buf.length; ptr += lineLen)
+			r.add(ObjectId.fromString(buf, ptr));
+		shallowLastModified = currTime;
+		shallowCommits = Collections.unmodifiableSet(r);
+		return shallowCommits;
+	}
+
+	/**
+	 * Replace the set of shallow commits recorded for this repository.
+	 *
+	 * @param commits
+	 *            the new boundary of the local history. If empty the shallow
+	 *            file is removed, as the repository is then complete.
+	 * @throws IOException
+	 *             the shallow file could not be locked or written.
+	 */
+	public synchronized void setShallowCommits(final Set<ObjectId> commits)
+			throws IOException {
+		final File file = new File(gitDir, Constants.SHALLOW);
+		final LockFile lck = new LockFile(file);
+		if (!lck.lock())
+			throw new ObjectWritingException("Unable to lock "
+					+ Constants.SHALLOW);
+		if (commits.isEmpty()) {
+			lck.unlock();
+			if (file.exists() && !file.delete())
+				throw new ObjectWritingException("Unable to delete "
+						+ Constants.SHALLOW);
+			shallowLastModified = 0;
+			shallowCommits = Collections.emptySet();
+			return;
+		}
+
+		final StringBuilder b = new StringBuilder();
+		for (final ObjectId id : commits) {
+			b.append(id.name());
+			b.append('\n');
+		}
+		try {
+			lck.write(Constants.encodeASCII(b.toString()));
+		} catch (IOException ioe) {
+			throw new ObjectWritingException("Unable to write "
+					+ Constants.SHALLOW, ioe);
+		}
+		lck.setNeedStatInformation(true);
+		if (!lck.commit())
+			throw new ObjectWritingException("Unable to write "
+					+ Constants.SHALLOW);
+		shallowLastModified = lck.getCommitLastModified();
+		shallowCommits = Collections.unmodifiableSet(new HashSet<ObjectId>(
+				commits));
+	}
+
     /**
      * Writes a symref (e.g. HEAD) to disk
      *
@@ -44,6 +44,12 @@
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.spearce.jgit.errors.RepositoryNotFoundException;
 import org.spearce.jgit.util.FS;
@@ -135,10 +141,16 @@ public static void clear() {
 		cache.clearAll();
 	}
 
+	static void reconfigure(final WindowCacheConfig cfg) {
+		cache.configurePreload(cfg.getPackedIndexPreloadThreads());
+	}
+
 	private final ConcurrentHashMap<Key, Reference<Repository>> cacheMap;
 
 	private final Lock[] openLocks;
 
+	private volatile ThreadPoolExecutor preloader;
+
 	private RepositoryCache() {
 		cacheMap = new ConcurrentHashMap<Key, Reference<Repository>>();
 		openLocks = new Lock[4];
@@ -158,6 +170,7 @@ private Repository openRepository(final Key location,
 					db = location.open(mustExist);
 					ref = new SoftReference<Repository>(db);
 					cacheMap.put(location, ref);
+					preload(db);
 				}
 			}
 		}
@@ -165,6 +178,40 @@ private Repository openRepository(final Key location,
 		return db;
 	}
 
+	private void preload(final Repository db) {
+		final Executor e = preloader;
+		final ObjectDatabase odb = db.getObjectDatabase();
+		if (e != null && odb instanceof ObjectDirectory && odb.exists())
+			((ObjectDirectory) odb).preload(e);
+	}
+
+	private synchronized void configurePreload(final int threads) {
+		final ThreadPoolExecutor old = preloader;
+		if (old != null && old.getMaximumPoolSize() == threads)
+			return;
+
+		if (threads > 0) {
+			// Daemon threads, so an idle pool never keeps the JVM alive.
+			//
+			final ThreadFactory factory = new ThreadFactory() {
+				private final AtomicInteger cnt = new AtomicInteger();
+
+				public Thread newThread(final Runnable task) {
+					final Thread t = new Thread(task, "JGit-IndexPreload-"
+							+ cnt.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			};
+			preloader = new ThreadPoolExecutor(threads, threads, 0,
+					TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+					factory);
+		} else
+			preloader = null;
+		if (old != null)
+			old.shutdown();
+	}
+
 	private void registerRepository(final Key location, final Repository db) {
 		db.incrementOpen();
 		SoftReference<Repository> newRef = new SoftReference<Repository>(db);
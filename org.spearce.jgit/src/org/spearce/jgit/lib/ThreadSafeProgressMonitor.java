@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps a {@link ProgressMonitor} so it may be updated from several threads.
+ * <p>
+ * Only the thread that created this monitor calls the wrapped monitor, so a
+ * monitor writing to the network never blocks a worker thread. Updates made
+ * by the workers are added up, and passed on by the creating thread while it
+ * waits for them in {@link #waitForCompletion()}, or when it next calls
+ * {@link #update(int)} itself.
+ */
+public class ThreadSafeProgressMonitor implements ProgressMonitor {
+	/** Milliseconds between updates passed on while waiting for workers. */
+	private static final int POLL = 100;
+
+	private final ProgressMonitor pm;
+
+	private final Thread mainThread;
+
+	private final AtomicInteger workers;
+
+	private final AtomicInteger pendingUpdates;
+
+	private final Semaphore done;
+
+	/**
+	 * Wrap a monitor for use by multiple threads.
+	 *
+	 * @param pm
+	 *            the monitor to receive the calls.
+	 */
+	public ThreadSafeProgressMonitor(final ProgressMonitor pm) {
+		this.pm = pm;
+		this.mainThread = Thread.currentThread();
+		this.workers = new AtomicInteger();
+		this.pendingUpdates = new AtomicInteger();
+		this.done = new Semaphore(0);
+	}
+
+	public void start(final int totalTasks) {
+		if (!isMainThread())
+			throw new IllegalStateException();
+		pm.start(totalTasks);
+	}
+
+	public void beginTask(final String title, final int totalWork) {
+		if (!isMainThread())
+			throw new IllegalStateException();
+		pm.beginTask(title, totalWork);
+	}
+
+	/** Notify the monitor that a worker is about to start. */
+	public void startWorker() {
+		workers.incrementAndGet();
+	}
+
+	/** Notify the monitor that a worker has finished, successfully or not. */
+	public void endWorker() {
+		if (workers.decrementAndGet() == 0)
+			done.release();
+	}
+
+	/**
+	 * Wait for every started worker to end.
+	 * <p>
+	 * Must be called by the thread that created this monitor. The updates
+	 * of the workers are passed on to the wrapped monitor while waiting.
+	 *
+	 * @throws InterruptedIOException
+	 *             the thread was interrupted while waiting.
+	 */
+	public void waitForCompletion() throws InterruptedIOException {
+		if (!isMainThread())
+			throw new IllegalStateException();
+		try {
+			while (0 < workers.get()) {
+				doUpdates();
+				done.tryAcquire(POLL, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			final InterruptedIOException err = new InterruptedIOException();
+			err.initCause(e);
+			throw err;
+		}
+		doUpdates();
+	}
+
+	public void update(final int completed) {
+		pendingUpdates.addAndGet(completed);
+		if (isMainThread())
+			doUpdates();
+	}
+
+	public boolean isCancelled() {
+		// Monitors report cancellation through a flag, which is safe to
+		// read from any thread.
+		//
+		return pm.isCancelled();
+	}
+
+	public void endTask() {
+		if (!isMainThread())
+			throw new IllegalStateException();
+		doUpdates();
+		pm.endTask();
+	}
+
+	private boolean isMainThread() {
+		return Thread.currentThread() == mainThread;
+	}
+
+	private void doUpdates() {
+		final int cnt = pendingUpdates.getAndSet(0);
+		if (0 < cnt)
+			pm.update(cnt);
+	}
+}
@@ -52,8 +52,12 @@ public TransferConfig parse(final Config cfg) {
 
 	private final boolean fsckObjects;
 
+	private final String negotiationAlgorithm;
+
 	private TransferConfig(final Config rc) {
 		fsckObjects = rc.getBoolean("receive", "fsckobjects", false);
+		negotiationAlgorithm = rc.getString("fetch", null,
+				"negotiationalgorithm");
 	}
 
 	/**
@@ -62,4 +66,12 @@ private TransferConfig(final Config rc) {
 	public boolean isFsckObjects() {
 		return fsckObjects;
 	}
+
+	/**
+	 * @return how fetch selects the commits it offers to the remote; null if
+	 *         not configured.
+	 */
+	public String getNegotiationAlgorithm() {
+		return negotiationAlgorithm;
+	}
 }
@@ -114,7 +114,6 @@ private UnpackedObjectLoader(final byte[] compressed, final AnyObjectId id)
 						final CorruptObjectException coe;
 						coe = new CorruptObjectException(id, "bad stream");
 						coe.initCause(dfe);
-						inflater.end();
 						throw coe;
 					}
 				if (avail < 5)
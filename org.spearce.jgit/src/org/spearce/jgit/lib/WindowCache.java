@@ -114,6 +114,9 @@ public static void reconfigure(final WindowCacheConfig cfg) {
 			oc.removeAll();
 		cache = nc;
 		UnpackedObjectCache.reconfigure(cfg);
+		InflaterCache.reconfigure(cfg);
+		DeflaterCache.reconfigure(cfg);
+		RepositoryCache.reconfigure(cfg);
 	}
 
 	static WindowCache getInstance() {
@@ -135,6 +138,14 @@ static final ByteWindow get(final PackFile pack, final long offset)
 		return r;
 	}
 
+	static final boolean isPackedIndexMMAP() {
+		return cache.indexMmap;
+	}
+
+	static final boolean isMultiPackIndex() {
+		return cache.multiPackIndex;
+	}
+
 	static final void purge(final PackFile pack) {
 		cache.removeAll(pack);
 	}
@@ -145,6 +156,10 @@ static final void purge(final PackFile pack) {
 
 	private final boolean mmap;
 
+	private final boolean indexMmap;
+
+	private final boolean multiPackIndex;
+
 	private final int windowSizeShift;
 
 	private final int windowSize;
@@ -158,6 +173,8 @@ private WindowCache(final WindowCacheConfig cfg) {
 		maxFiles = cfg.getPackedGitOpenFiles();
 		maxBytes = cfg.getPackedGitLimit();
 		mmap = cfg.isPackedGitMMAP();
+		indexMmap = cfg.isPackedIndexMMAP();
+		multiPackIndex = cfg.isMultiPackIndex();
 		windowSizeShift = bits(cfg.getPackedGitWindowSize());
 		windowSize = 1 << windowSizeShift;
 
@@ -53,15 +53,28 @@ public class WindowCacheConfig {
 
 	private boolean packedGitMMAP;
 
+	private boolean packedIndexMMAP;
+
+	private int packedIndexPreloadThreads;
+
+	private boolean multiPackIndex;
+
 	private int deltaBaseCacheLimit;
 
+	private int zlibCacheSize;
+
 	/** Create a default configuration. */
 	public WindowCacheConfig() {
 		packedGitOpenFiles = 128;
 		packedGitLimit = 10 * MB;
 		packedGitWindowSize = 8 * KB;
 		packedGitMMAP = false;
+		packedIndexMMAP = false;
+		packedIndexPreloadThreads = 0;
+		multiPackIndex = false;
 		deltaBaseCacheLimit = 10 * MB;
+		zlibCacheSize = Math.max(4, 2 * Runtime.getRuntime()
+				.availableProcessors());
 	}
 
 	/**
@@ -133,6 +146,67 @@ public void setPackedGitMMAP(final boolean usemmap) {
 		packedGitMMAP = usemmap;
 	}
 
+	/**
+	 * @return true reads version 2 pack indexes in place through a virtual
+	 *         memory mapping; false loads the index tables into the heap when
+	 *         the pack is first accessed. <b>Default false.</b>
+	 */
+	public boolean isPackedIndexMMAP() {
+		return packedIndexMMAP;
+	}
+
+	/**
+	 * @param usemmap
+	 *            true reads version 2 pack indexes in place through a virtual
+	 *            memory mapping; false loads the index tables into the heap
+	 *            when the pack is first accessed.
+	 */
+	public void setPackedIndexMMAP(final boolean usemmap) {
+		packedIndexMMAP = usemmap;
+	}
+
+	/**
+	 * @return number of threads {@link RepositoryCache} uses to load the pack
+	 *         indexes of a repository it opens, before the first request
+	 *         needs them; 0 leaves indexes to be loaded on first access.
+	 *         <b>Default 0.</b>
+	 */
+	public int getPackedIndexPreloadThreads() {
+		return packedIndexPreloadThreads;
+	}
+
+	/**
+	 * @param threads
+	 *            number of threads {@link RepositoryCache} uses to load the
+	 *            pack indexes of a repository it opens, before the first
+	 *            request needs them; 0 leaves indexes to be loaded on first
+	 *            access.
+	 */
+	public void setPackedIndexPreloadThreads(final int threads) {
+		packedIndexPreloadThreads = threads;
+	}
+
+	/**
+	 * @return true searches repositories with many packs through one index
+	 *         merging the object names of all packs, at a cost of about 32
+	 *         bytes of heap per object; false probes each pack's index in
+	 *         turn. <b>Default false.</b>
+	 */
+	public boolean isMultiPackIndex() {
+		return multiPackIndex;
+	}
+
+	/**
+	 * @param enable
+	 *            true searches repositories with many packs through one
+	 *            index merging the object names of all packs, at a cost of
+	 *            about 32 bytes of heap per object; false probes each pack's
+	 *            index in turn.
+	 */
+	public void setMultiPackIndex(final boolean enable) {
+		multiPackIndex = enable;
+	}
+
 	/**
 	 * @return maximum number of bytes to cache in {@link UnpackedObjectCache}
 	 *         for inflated, recently accessed objects, without delta chains.
@@ -152,6 +226,26 @@ public void setDeltaBaseCacheLimit(final int newLimit) {
 		deltaBaseCacheLimit = newLimit;
 	}
 
+	/**
+	 * @return number of idle inflaters and deflaters each kept by
+	 *         {@link InflaterCache} and {@link DeflaterCache} for reuse.
+	 *         <b>Default is twice the number of processors, at least 4.</b>
+	 */
+	public int getZlibCacheSize() {
+		return zlibCacheSize;
+	}
+
+	/**
+	 * @param newSize
+	 *            number of idle inflaters and deflaters each kept by
+	 *            {@link InflaterCache} and {@link DeflaterCache} for reuse.
+	 *            Contexts released when the cache is full are ended, freeing
+	 *            their native memory.
+	 */
+	public void setZlibCacheSize(final int newSize) {
+		zlibCacheSize = newSize;
+	}
+
 	/**
 	 * Update properties by setting fields from the configuration.
 	 * <p>
@@ -165,6 +259,10 @@ public void fromConfig(final Config rc) {
 		setPackedGitLimit(rc.getLong("core", null, "packedgitlimit", getPackedGitLimit()));
 		setPackedGitWindowSize(rc.getInt("core", null, "packedgitwindowsize", getPackedGitWindowSize()));
 		setPackedGitMMAP(rc.getBoolean("core", null, "packedgitmmap", isPackedGitMMAP()));
+		setPackedIndexMMAP(rc.getBoolean("core", null, "packedindexmmap", isPackedIndexMMAP()));
+		setPackedIndexPreloadThreads(rc.getInt("core", null, "packedindexpreloadthreads", getPackedIndexPreloadThreads()));
+		setMultiPackIndex(rc.getBoolean("core", null, "multipackindex", isMultiPackIndex()));
 		setDeltaBaseCacheLimit(rc.getInt("core", null, "deltabasecachelimit", getDeltaBaseCacheLimit()));
+		setZlibCacheSize(rc.getInt("core", null, "zlibcachesize", getZlibCacheSize()));
 	}
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by the jobs that are divided across processors.
+ * <p>
+ * {@link PackWriter}, the pack indexer and the receive connectivity check
+ * split their work into tasks run by one pool of daemon threads, so a process
+ * serving many requests at once runs at most one worker per processor, no
+ * matter how many jobs are in progress. The threads are started as tasks
+ * arrive, and are never interrupted: an interrupted read would close the
+ * channel of the pack file it was reading from.
+ * <p>
+ * The tasks must not wait for other tasks of the pool, or the pool could be
+ * filled with tasks waiting for work that never gets a thread.
+ */
+public class WorkQueue {
+	private static final ExecutorService executor;
+
+	static {
+		final int n = Runtime.getRuntime().availableProcessors();
+		executor = Executors.newFixedThreadPool(n, new ThreadFactory() {
+			private final AtomicInteger cnt = new AtomicInteger();
+
+			public Thread newThread(final Runnable task) {
+				final Thread t = new Thread(task, "JGit-WorkQueue-"
+						+ cnt.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/** @return the pool shared by all jobs of this process. */
+	public static ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Get the number of tasks a job should be divided into.
+	 *
+	 * @param threads
+	 *            the configured number of threads, usually from
+	 *            <code>pack.threads</code>; 0 for one per processor.
+	 * @return the number of tasks; 1 if the job should run in the caller's
+	 *         thread.
+	 */
+	public static int getThreadCount(final int threads) {
+		if (0 < threads)
+			return threads;
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Wait for a task and return its result.
+	 *
+	 * @param <T>
+	 *            type of the task's result.
+	 * @param task
+	 *            the task to wait for.
+	 * @return the task's result.
+	 * @throws IOException
+	 *             the task failed, or the wait was interrupted. The task's
+	 *             own IOException, RuntimeException or Error is rethrown as
+	 *             is.
+	 */
+	public static <T> T get(final Future<T> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			final InterruptedIOException err = new InterruptedIOException();
+			err.initCause(e);
+			throw err;
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			final IOException err = new IOException(cause.getMessage());
+			err.initCause(cause);
+			throw err;
+		}
+	}
+
+	/**
+	 * Wait for every task to finish, ignoring their failures.
+	 * <p>
+	 * Used after the first failure was reported, when the caller must not
+	 * release resources the other tasks may still be reading.
+	 *
+	 * @param tasks
+	 *            the tasks to wait for.
+	 */
+	public static void waitForAll(final Collection<? extends Future<?>> tasks) {
+		for (final Future<?> t : tasks) {
+			try {
+				t.get();
+			} catch (InterruptedException e) {
+				// Still waiting for the others.
+			} catch (ExecutionException e) {
+				// Already reported by the first failure.
+			} catch (CancellationException e) {
+				// Never started.
+			}
+		}
+	}
+
+	private WorkQueue() {
+		// Static utility class.
+	}
+}
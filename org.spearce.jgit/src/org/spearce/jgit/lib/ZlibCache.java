@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of zlib contexts shared by all threads.
+ * <p>
+ * Idle contexts are kept in a fixed number of slots. A thread starts its
+ * search at a slot chosen by its thread id and probes only a few slots from
+ * there, so threads running in parallel mostly touch different slots and
+ * never wait on a common lock. If no idle context is found a new one is
+ * created; if no free slot is found on release the context is ended
+ * immediately, returning its native memory.
+ *
+ * @param <T>
+ *            type of zlib context, {@link java.util.zip.Inflater} or
+ *            {@link java.util.zip.Deflater}.
+ */
+abstract class ZlibCache<T> {
+	private static final int PROBES = 4;
+
+	private final AtomicInteger openCount = new AtomicInteger();
+
+	private volatile AtomicReferenceArray<T> slots;
+
+	ZlibCache(final int size) {
+		slots = new AtomicReferenceArray<T>(Math.max(size, 1));
+	}
+
+	/** @return a new native context. */
+	protected abstract T create();
+
+	/**
+	 * Prepare a context for its next user.
+	 *
+	 * @param ctx
+	 *            the context being returned to the pool.
+	 */
+	protected abstract void reset(T ctx);
+
+	/**
+	 * Release the native memory of a context.
+	 *
+	 * @param ctx
+	 *            the context to destroy.
+	 */
+	protected abstract void end(T ctx);
+
+	/** @return an idle or new context. Never null. */
+	T get() {
+		final AtomicReferenceArray<T> s = slots;
+		final int n = s.length();
+		int i = start(n);
+		for (int k = 0; k < Math.min(PROBES, n); k++) {
+			if (s.get(i) != null) {
+				final T r = s.getAndSet(i, null);
+				if (r != null)
+					return r;
+			}
+			if (++i == n)
+				i = 0;
+		}
+		openCount.incrementAndGet();
+		return create();
+	}
+
+	/**
+	 * Return a context to the pool.
+	 *
+	 * @param ctx
+	 *            the context; may be null, in which case nothing happens.
+	 */
+	void release(final T ctx) {
+		if (ctx == null)
+			return;
+		reset(ctx);
+
+		final AtomicReferenceArray<T> s = slots;
+		final int n = s.length();
+		int i = start(n);
+		for (int k = 0; k < Math.min(PROBES, n); k++) {
+			if (s.get(i) == null && s.compareAndSet(i, null, ctx)) {
+				if (s != slots) {
+					// The pool was resized while we stored into the
+					// old table; nobody will find the context there.
+					//
+					if (s.compareAndSet(i, ctx, null))
+						destroy(ctx);
+				}
+				return;
+			}
+			if (++i == n)
+				i = 0;
+		}
+		destroy(ctx);
+	}
+
+	/**
+	 * Change the number of idle contexts retained.
+	 *
+	 * @param size
+	 *            the new number of slots.
+	 */
+	void resize(final int size) {
+		final AtomicReferenceArray<T> old = slots;
+		slots = new AtomicReferenceArray<T>(Math.max(size, 1));
+		for (int i = 0; i < old.length(); i++) {
+			final T r = old.getAndSet(i, null);
+			if (r != null)
+				destroy(r);
+		}
+	}
+
+	/**
+	 * @return number of contexts created and not yet ended, whether idle in
+	 *         the pool or in use.
+	 */
+	int getOpenCount() {
+		return openCount.get();
+	}
+
+	private void destroy(final T ctx) {
+		end(ctx);
+		openCount.decrementAndGet();
+	}
+
+	private static int start(final int n) {
+		return (int) (Thread.currentThread().getId() % n);
+	}
+}
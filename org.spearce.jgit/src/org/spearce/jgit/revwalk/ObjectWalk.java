@@ -361,6 +361,20 @@ public String getPathString() {
 		return fromTreeWalk ? treeWalk.getEntryPathString() : null;
 	}
 
+	/**
+	 * Get a hash of the current object's path.
+	 * <p>
+	 * Unlike {@link #getPathString()} this method does not allocate, and may
+	 * be called for every object to group objects by the name they are stored
+	 * under.
+	 *
+	 * @return hash of the current entry's path; 0 if the current entry has no
+	 *         path, such as for annotated tags or root level trees.
+	 */
+	public int getPathHashCode() {
+		return fromTreeWalk ? treeWalk.getEntryPathHashCode() : 0;
+	}
+
 	@Override
 	public void dispose() {
 		super.dispose();
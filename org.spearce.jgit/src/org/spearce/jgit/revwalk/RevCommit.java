@@ -99,7 +99,11 @@ void parseCanonical(final RevWalk walk, final byte[] raw) {
 		tree = walk.lookupTree(idBuffer);
 
 		int ptr = 46;
-		if (parents == null) {
+		if (parents == null && walk.isShallow(this)) {
+			parents = NO_PARENTS;
+			while (raw[ptr] == 'p')
+				ptr += 48;
+		} else if (parents == null) {
 			RevCommit[] pList = new RevCommit[1];
 			int nParents = 0;
 			for (;;) {
@@ -177,6 +177,9 @@ public class RevWalk implements Iterable<RevCommit> {
 
 	private boolean retainBody;
 
+	/** Commits whose parents are hidden; null until first needed. */
+	private ObjectIdSubclassMap<ObjectId> shallowCommits;
+
 	/**
 	 * Create a new revision walker for a given repository.
 	 * 
@@ -538,6 +541,54 @@ public void setRetainBody(final boolean retain) {
 		retainBody = retain;
 	}
 
+	/**
+	 * Treat additional commits as the shallow edge of the history.
+	 * <p>
+	 * A shallow commit is returned without its parents, so a traversal stops
+	 * at it as though it were a root commit. The shallow commits recorded by
+	 * the repository are always assumed; the commits given here are added to
+	 * them until the next {@link #dispose()}. Commits already parsed by this
+	 * walker have their parents removed.
+	 *
+	 * @param ids
+	 *            commits whose parents should not be traversed.
+	 * @throws IOException
+	 *             the repository's shallow file cannot be read.
+	 */
+	public void assumeShallow(final Collection<? extends ObjectId> ids)
+			throws IOException {
+		final ObjectIdSubclassMap<ObjectId> shallow = getShallowCommits();
+		for (final ObjectId id : ids) {
+			if (shallow.get(id) == null)
+				shallow.add(id.copy());
+			final RevObject o = objects.get(id);
+			if (o instanceof RevCommit && ((RevCommit) o).parents != null)
+				((RevCommit) o).parents = RevCommit.NO_PARENTS;
+		}
+	}
+
+	boolean isShallow(final AnyObjectId id) {
+		final ObjectIdSubclassMap<ObjectId> shallow;
+		try {
+			shallow = getShallowCommits();
+		} catch (IOException e) {
+			throw new RevWalkException(e);
+		}
+		return shallow.size() > 0 && shallow.get(id) != null;
+	}
+
+	private ObjectIdSubclassMap<ObjectId> getShallowCommits()
+			throws IOException {
+		if (shallowCommits == null) {
+			final ObjectIdSubclassMap<ObjectId> m;
+			m = new ObjectIdSubclassMap<ObjectId>();
+			for (final ObjectId id : db.getShallowCommits())
+				m.add(id);
+			shallowCommits = m;
+		}
+		return shallowCommits;
+	}
+
 	/**
 	 * Locate a reference to a blob without loading it.
 	 * <p>
@@ -989,6 +1040,7 @@ public void dispose() {
 		delayFreeFlags = 0;
 		carryFlags = UNINTERESTING;
 		objects.clear();
+		shallowCommits = null;
 		curs.release();
 		roots.clear();
 		queue = new DateRevQueue();
@@ -42,8 +42,10 @@
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Set;
 
+import org.spearce.jgit.errors.PackProtocolException;
 import org.spearce.jgit.errors.TransportException;
 import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.Config;
@@ -60,7 +62,6 @@
 import org.spearce.jgit.revwalk.RevSort;
 import org.spearce.jgit.revwalk.RevWalk;
 import org.spearce.jgit.revwalk.filter.CommitTimeRevFilter;
-import org.spearce.jgit.revwalk.filter.RevFilter;
 
 /**
  * Fetch implementation using the native Git pack transfer service.
@@ -104,6 +105,8 @@ abstract class BasePackFetchConnection extends BasePackConnection implements
 
 	static final String OPTION_MULTI_ACK = "multi_ack";
 
+	static final String OPTION_MULTI_ACK_DETAILED = "multi_ack_detailed";
+
 	static final String OPTION_THIN_PACK = "thin-pack";
 
 	static final String OPTION_SIDE_BAND = "side-band";
@@ -116,6 +119,8 @@ abstract class BasePackFetchConnection extends BasePackConnection implements
 
 	static final String OPTION_NO_PROGRESS = "no-progress";
 
+	static final String OPTION_NO_DONE = "no-done";
+
 	private final RevWalk walk;
 
 	/** All commits that are immediately reachable by a local ref. */
@@ -132,6 +137,9 @@ abstract class BasePackFetchConnection extends BasePackConnection implements
 
 	private boolean multiAck;
 
+	/** True if the remote starts the pack as soon as it said "ready". */
+	private boolean noDone;
+
 	private boolean thinPack;
 
 	private boolean sideband;
@@ -144,6 +152,9 @@ abstract class BasePackFetchConnection extends BasePackConnection implements
 
 	private PackLock packLock;
 
+	/** Shallow commits to record after the pack; null if unchanged. */
+	private Set<ObjectId> newShallowCommits;
+
 	BasePackFetchConnection(final PackTransport packTransport) {
 		super(packTransport);
 
@@ -210,12 +221,16 @@ protected void doFetch(final ProgressMonitor monitor,
 			markReachable(have, maxTimeWanted(want));
 
 			if (sendWants(want)) {
+				if (transport.getFetchDepth() > 0)
+					receiveShallow();
 				negotiate(monitor);
 
 				walk.dispose();
 				reachableCommits = null;
 
 				receivePack(monitor);
+				if (newShallowCommits != null)
+					local.setShallowCommits(newShallowCommits);
 			}
 		} catch (CancelledException ce) {
 			close();
@@ -294,12 +309,14 @@ private void markReachable(final Set<ObjectId> have, final int maxTime)
 	}
 
 	private boolean sendWants(final Collection<Ref> want) throws IOException {
+		final boolean deepen = transport.getFetchDepth() > 0;
 		boolean first = true;
 		for (final Ref r : want) {
 			try {
-				if (walk.parseAny(r.getObjectId()).has(REACHABLE)) {
+				if (!deepen && walk.parseAny(r.getObjectId()).has(REACHABLE)) {
 					// We already have this object. Asking for it is
-					// not a very good idea.
+					// not a very good idea, unless its history must
+					// be made deeper.
 					//
 					continue;
 				}
@@ -318,18 +335,60 @@ private boolean sendWants(final Collection<Ref> want) throws IOException {
 			line.append('\n');
 			pckOut.writeString(line.toString());
 		}
+		if (!first)
+			sendShallow();
 		pckOut.end();
 		outNeedsEnd = false;
 		return !first;
 	}
 
+	private void sendShallow() throws IOException {
+		final int depth = transport.getFetchDepth();
+		final Set<ObjectId> shallow = local.getShallowCommits();
+		if (depth == 0 && shallow.isEmpty())
+			return;
+		if (!isCapableOf(OPTION_SHALLOW))
+			throw new PackProtocolException(uri,
+					"remote does not support shallow fetch");
+
+		// The remote must not assume we have the parents of our own
+		// shallow commits when it computes the pack.
+		//
+		for (final ObjectId id : shallow)
+			pckOut.writeString("shallow " + id.name() + "\n");
+		if (depth > 0)
+			pckOut.writeString("deepen " + depth + "\n");
+	}
+
+	private void receiveShallow() throws IOException {
+		final Set<ObjectId> shallow;
+		shallow = new HashSet<ObjectId>(local.getShallowCommits());
+		for (;;) {
+			final String line = pckIn.readString();
+			if (line == PacketLineIn.END)
+				break;
+			if (line.startsWith("shallow ") && line.length() == 48)
+				shallow.add(ObjectId.fromString(line.substring(8)));
+			else if (line.startsWith("unshallow ") && line.length() == 50)
+				shallow.remove(ObjectId.fromString(line.substring(10)));
+			else
+				throw new PackProtocolException(uri, "expected shallow; got "
+						+ line);
+		}
+		newShallowCommits = shallow;
+	}
+
 	private String enableCapabilities() {
 		final StringBuilder line = new StringBuilder();
 		if (includeTags)
 			includeTags = wantCapability(line, OPTION_INCLUDE_TAG);
 		if (allowOfsDelta)
 			wantCapability(line, OPTION_OFS_DELTA);
-		multiAck = wantCapability(line, OPTION_MULTI_ACK);
+		if (wantCapability(line, OPTION_MULTI_ACK_DETAILED)) {
+			multiAck = true;
+			noDone = wantCapability(line, OPTION_NO_DONE);
+		} else
+			multiAck = wantCapability(line, OPTION_MULTI_ACK);
 		if (thinPack)
 			thinPack = wantCapability(line, OPTION_THIN_PACK);
 		if (wantCapability(line, OPTION_SIDE_BAND_64K))
@@ -347,11 +406,15 @@ private void negotiate(final ProgressMonitor monitor) throws IOException,
 		int havesSinceLastContinue = 0;
 		boolean receivedContinue = false;
 		boolean receivedAck = false;
+		boolean receivedReady = false;
 		boolean sendHaves = true;
 
-		negotiateBegin();
+		final FetchNegotiator negotiator = transport.getFetchNegotiator()
+				.create();
+		walk.resetRetain(REACHABLE, ADVERTISED);
+		negotiator.init(walk, reachableCommits, COMMON, ADVERTISED);
 		while (sendHaves) {
-			final RevCommit c = walk.next();
+			final RevCommit c = negotiator.next();
 			if (c == null)
 				break;
 
@@ -406,22 +469,38 @@ private void negotiate(final ProgressMonitor monitor) throws IOException,
 					break;
 				}
 
-				if (anr == PacketLineIn.AckNackResult.ACK_CONTINUE) {
+				if (anr == PacketLineIn.AckNackResult.ACK_CONTINUE
+						|| anr == PacketLineIn.AckNackResult.ACK_COMMON
+						|| anr == PacketLineIn.AckNackResult.ACK_READY) {
 					// The server knows this commit (ackId). We don't
 					// need to send any further along its ancestry, but
 					// we need to continue to talk about other parts of
 					// our local history.
 					//
-					markCommon(walk.parseAny(ackId));
+					final RevObject obj = walk.parseAny(ackId);
+					if (obj instanceof RevCommit)
+						negotiator.ack((RevCommit) obj);
 					receivedAck = true;
 					receivedContinue = true;
 					havesSinceLastContinue = 0;
+					if (anr == PacketLineIn.AckNackResult.ACK_READY)
+						receivedReady = true;
 				}
 
 				if (monitor.isCancelled())
 					throw new CancelledException();
 			}
 
+			if (receivedReady) {
+				// The remote has found enough common commits to make
+				// a good pack. More have lines would only delay it.
+				// With no-done the remote follows this result with its
+				// final ACK and the pack, without reading the block we
+				// may have sent ahead of it.
+				//
+				break;
+			}
+
 			if (receivedContinue && havesSinceLastContinue > MAX_HAVES) {
 				// Our history must be really different from the remote's.
 				// We just sent a whole slew of have lines, and it did not
@@ -436,8 +515,10 @@ private void negotiate(final ProgressMonitor monitor) throws IOException,
 		//
 		if (monitor.isCancelled())
 			throw new CancelledException();
-		pckOut.writeString("done\n");
-		pckOut.flush();
+		if (!receivedReady || !noDone) {
+			pckOut.writeString("done\n");
+			pckOut.flush();
+		}
 
 		if (!receivedAck) {
 			// Apparently if we have never received an ACK earlier
@@ -457,7 +538,9 @@ private void negotiate(final ProgressMonitor monitor) throws IOException,
 			if (anr == PacketLineIn.AckNackResult.ACK)
 				break; // commit negotiation is finished.
 
-			if (anr == PacketLineIn.AckNackResult.ACK_CONTINUE) {
+			if (anr == PacketLineIn.AckNackResult.ACK_CONTINUE
+					|| anr == PacketLineIn.AckNackResult.ACK_COMMON
+					|| anr == PacketLineIn.AckNackResult.ACK_READY) {
 				// There must be a normal ACK following this.
 				//
 				multiAck = true;
@@ -468,32 +551,6 @@ private void negotiate(final ProgressMonitor monitor) throws IOException,
 		}
 	}
 
-	private void negotiateBegin() throws IOException {
-		walk.resetRetain(REACHABLE, ADVERTISED);
-		walk.markStart(reachableCommits);
-		walk.sort(RevSort.COMMIT_TIME_DESC);
-		walk.setRevFilter(new RevFilter() {
-			@Override
-			public RevFilter clone() {
-				return this;
-			}
-
-			@Override
-			public boolean include(final RevWalk walker, final RevCommit c) {
-				final boolean remoteKnowsIsCommon = c.has(COMMON);
-				if (c.has(ADVERTISED)) {
-					// Remote advertised this, and we have it, hence common.
-					// Whether or not the remote knows that fact is tested
-					// before we added the flag. If the remote doesn't know
-					// we have to still send them this object.
-					//
-					c.add(COMMON);
-				}
-				return !remoteKnowsIsCommon;
-			}
-		});
-	}
-
 	private void markRefsAdvertised() {
 		for (final Ref r : getRefs()) {
 			markAdvertised(r.getObjectId());
@@ -510,12 +567,6 @@ private void markAdvertised(final AnyObjectId id) {
 		}
 	}
 
-	private void markCommon(final RevObject obj) {
-		obj.add(COMMON);
-		if (obj instanceof RevCommit)
-			((RevCommit) obj).carry(COMMON);
-	}
-
 	private void receivePack(final ProgressMonitor monitor) throws IOException {
 		final IndexPack ip;
 
@@ -80,6 +80,8 @@ class BasePackPushConnection extends BasePackConnection implements
 
 	static final String CAPABILITY_OFS_DELTA = "ofs-delta";
 
+	static final String CAPABILITY_SIDE_BAND_64K = "side-band-64k";
+
 	private final boolean thinPack;
 
 	private boolean capableDeleteRefs;
@@ -88,6 +90,8 @@ class BasePackPushConnection extends BasePackConnection implements
 
 	private boolean capableOfsDelta;
 
+	private boolean capableSideBand;
+
 	private boolean sentCommand;
 
 	private boolean writePack;
@@ -137,8 +141,17 @@ protected void doPush(final ProgressMonitor monitor,
 			writeCommands(refUpdates.values(), monitor);
 			if (writePack)
 				writePack(refUpdates, monitor);
-			if (sentCommand && capableReport)
+			if (sentCommand && capableReport) {
+				if (capableSideBand) {
+					// The report arrives on channel 1, interleaved with
+					// the remote's progress messages on channel 2.
+					//
+					pckIn = new PacketLineIn(pckIn.sideband(monitor));
+				}
 				readStatusReport(refUpdates);
+				if (capableSideBand)
+					monitor.endTask();
+			}
 		} catch (TransportException e) {
 			throw e;
 		} catch (Exception e) {
@@ -188,6 +201,7 @@ private String enableCapabilities() {
 		capableReport = wantCapability(line, CAPABILITY_REPORT_STATUS);
 		capableDeleteRefs = wantCapability(line, CAPABILITY_DELETE_REFS);
 		capableOfsDelta = wantCapability(line, CAPABILITY_OFS_DELTA);
+		capableSideBand = wantCapability(line, CAPABILITY_SIDE_BAND_64K);
 		if (line.length() > 0)
 			line.setCharAt(0, '\0');
 		return line.toString();
@@ -42,6 +42,7 @@
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -55,6 +56,9 @@
 import org.spearce.jgit.lib.Ref;
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
 
 /**
  * Creates a Git bundle file, for sneaker-net transport to another system.
@@ -72,8 +76,16 @@
  * recipient must have in order to fetch from the bundle file. Objects reachable
  * from these assumed commits can be used as delta bases in order to reduce the
  * overall bundle size.
+ * <p>
+ * The pack is streamed to the output as it is generated. Deltas and whole
+ * objects already stored in the repository's packs are copied rather than
+ * being searched for and compressed again, and the remaining objects are
+ * searched and compressed on the number of threads configured by
+ * <code>pack.threads</code>.
  */
 public class BundleWriter {
+	private final Repository db;
+
 	private final PackWriter packWriter;
 
 	private final Map<String, ObjectId> include;
@@ -89,7 +101,25 @@ public class BundleWriter {
 	 *            operations progress monitor.
 	 */
 	public BundleWriter(final Repository repo, final ProgressMonitor monitor) {
-		packWriter = new PackWriter(repo, monitor);
+		this(repo, monitor, monitor);
+	}
+
+	/**
+	 * Create a writer for a bundle.
+	 *
+	 * @param repo
+	 *            repository where objects are stored.
+	 * @param imonitor
+	 *            progress monitor used while counting the objects to include
+	 *            and finding their representations in existing packs.
+	 * @param wmonitor
+	 *            progress monitor used while compressing and writing the
+	 *            objects to the bundle.
+	 */
+	public BundleWriter(final Repository repo, final ProgressMonitor imonitor,
+			final ProgressMonitor wmonitor) {
+		db = repo;
+		packWriter = new PackWriter(repo, imonitor, wmonitor);
 		include = new TreeMap<String, ObjectId>();
 		assume = new HashSet<RevCommit>();
 	}
@@ -143,6 +173,54 @@ public void assume(final RevCommit c) {
 			assume.add(c);
 	}
 
+	/**
+	 * Assume the recipient has everything advertised by a previous bundle.
+	 * <p>
+	 * Each commit advertised by the connection, or peeled from an advertised
+	 * annotated tag, is assumed as though passed to {@link #assume(RevCommit)}.
+	 * The bundle written is then an incremental bundle, holding only the
+	 * objects created since the previous bundle was made. Advertised trees and
+	 * blobs are not assumed, as the bundle format can only list commits as
+	 * prerequisites.
+	 *
+	 * @param previous
+	 *            connection open on the previous bundle, for example from
+	 *            {@link Transport#openFetch()} on a bundle file. Only its
+	 *            advertised refs are used; the caller remains responsible for
+	 *            closing it.
+	 * @throws IOException
+	 *             an advertised object does not exist in this repository, or
+	 *             could not be read.
+	 */
+	public void assume(final FetchConnection previous) throws IOException {
+		assume(previous.getRefs());
+	}
+
+	/**
+	 * Assume the recipient has the commits the given refs point to.
+	 *
+	 * @param refs
+	 *            refs the recipient is known to have. Refs pointing to an
+	 *            annotated tag assume the commit the tag refers to; refs to
+	 *            trees or blobs are ignored.
+	 * @throws IOException
+	 *             a ref's object does not exist in this repository, or could
+	 *             not be read.
+	 * @see #assume(FetchConnection)
+	 */
+	public void assume(final Collection<Ref> refs) throws IOException {
+		final RevWalk rw = new RevWalk(db);
+		for (final Ref r : refs) {
+			RevObject o = rw.parseAny(r.getObjectId());
+			while (o instanceof RevTag) {
+				o = ((RevTag) o).getObject();
+				rw.parseHeaders(o);
+			}
+			if (o instanceof RevCommit)
+				assume((RevCommit) o);
+		}
+	}
+
 	/**
 	 * Generate and write the bundle to the output stream.
 	 * <p>
@@ -167,6 +245,7 @@ public void writeBundle(OutputStream os) throws IOException {
 		for (final RevCommit r : assume)
 			exc.add(r.getId());
 		packWriter.setThin(exc.size() > 0);
+		packWriter.setDeltaBaseAsOffset(true);
 		packWriter.preparePack(inc, exc);
 
 		final Writer w = new OutputStreamWriter(os, Constants.CHARSET);
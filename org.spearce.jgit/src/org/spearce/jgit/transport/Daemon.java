@@ -37,32 +37,67 @@
 
 package org.spearce.jgit.transport;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.PersonIdent;
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.lib.RepositoryCache;
 import org.spearce.jgit.lib.RepositoryCache.FileKey;
-
-/** Basic daemon for the anonymous <code>git://</code> transport protocol. */
+import org.spearce.jgit.util.RawParseUtils;
+
+/**
+ * Basic daemon for the anonymous <code>git://</code> transport protocol.
+ * <p>
+ * Connections are accepted, and the request line sent by each client is read,
+ * by a single thread multiplexing all sockets with a {@link Selector}. Clients
+ * which connect but do not finish their request within
+ * {@link #setHandshakeTimeout(int)} are disconnected without ever occupying a
+ * thread.
+ * <p>
+ * Once its request has been read each client is served by a thread taken from
+ * a pool, which by default grows to one thread per concurrent client. The pool
+ * can be bounded with {@link #setMaxThreads(int)}, or replaced by an
+ * application supplied executor. Clients beyond the limits wait in a queue,
+ * and are disconnected if they wait longer than {@link #setQueueTimeout(int)}.
+ */
 public class Daemon {
 	/** 9418: IANA assigned port number for Git. */
 	public static final int DEFAULT_PORT = 9418;
 
 	private static final int BACKLOG = 5;
 
+	/** Milliseconds between scans for clients past their handshake deadline. */
+	private static final int HANDSHAKE_SCAN = 1000;
+
 	private InetSocketAddress myAddress;
 
 	private final DaemonService[] services;
@@ -77,10 +112,26 @@ public class Daemon {
 
 	private boolean run;
 
-	private Thread acceptThread;
+	private Acceptor acceptThread;
 
 	private int timeout;
 
+	private int handshakeTimeout;
+
+	private int maxThreads;
+
+	private int queueTimeout;
+
+	private Executor executor;
+
+	private ExecutorService clientPool;
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final AtomicInteger rejected = new AtomicInteger();
+
 	/** Configure a daemon to listen on any available network port. */
 	public Daemon() {
 		this(null);
@@ -233,6 +284,103 @@ public void setTimeout(final int seconds) {
 		timeout = seconds;
 	}
 
+	/**
+	 * @return seconds a client has to send its request after connecting; 0 if
+	 *         {@link #getTimeout()} applies.
+	 */
+	public int getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	/**
+	 * Set how long a newly connected client has to send its request.
+	 * <p>
+	 * Until the request is complete the client is only watched by the accept
+	 * thread, so idle connections are cheap, but each still holds a socket.
+	 * Clients which are too slow are disconnected.
+	 *
+	 * @param seconds
+	 *            number of seconds allowed from connecting to the end of the
+	 *            request; 0 (the default) to use {@link #getTimeout()}, or to
+	 *            wait forever if that is also 0.
+	 */
+	public void setHandshakeTimeout(final int seconds) {
+		handshakeTimeout = seconds;
+	}
+
+	/** @return maximum number of threads serving clients; 0 if unlimited. */
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	/**
+	 * Set the maximum number of threads serving clients.
+	 * <p>
+	 * When all threads are busy newly accepted clients wait for one to become
+	 * available. The setting takes effect the next time the daemon is
+	 * started, and is ignored if an executor was supplied.
+	 *
+	 * @param threads
+	 *            maximum number of threads; 0 (the default) to start a new
+	 *            thread whenever all existing threads are busy.
+	 */
+	public void setMaxThreads(final int threads) {
+		maxThreads = threads;
+	}
+
+	/**
+	 * @return seconds a client may wait for a thread, or for a service limited
+	 *         by {@link DaemonService#setMaxConnections(int)}; 0 if forever.
+	 */
+	public int getQueueTimeout() {
+		return queueTimeout;
+	}
+
+	/**
+	 * Set how long a client may wait before it is served.
+	 * <p>
+	 * A client which waited longer for a thread, or for a connection to the
+	 * service it requested, is disconnected and counted as rejected.
+	 *
+	 * @param seconds
+	 *            number of seconds to wait; 0 (the default) to wait forever.
+	 */
+	public void setQueueTimeout(final int seconds) {
+		queueTimeout = seconds;
+	}
+
+	/**
+	 * Serve clients on an application supplied executor.
+	 * <p>
+	 * For example on a JVM supporting virtual threads, an executor starting a
+	 * virtual thread per task lets many clients be served without a large
+	 * pool of platform threads. The daemon does not shut the executor down.
+	 *
+	 * @param e
+	 *            executor to run clients on; null to use the daemon's own pool.
+	 */
+	public synchronized void setExecutor(final Executor e) {
+		executor = e;
+	}
+
+	/** @return number of clients currently being served. */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/** @return number of clients waiting for a thread or a service. */
+	public int getQueuedCount() {
+		return queued.get();
+	}
+
+	/**
+	 * @return number of clients disconnected since the daemon was created
+	 *         because they could not be served in time.
+	 */
+	public int getRejectedCount() {
+		return rejected.get();
+	}
+
 	/**
 	 * Start this daemon on a background thread.
 	 *
@@ -245,35 +393,38 @@ public synchronized void start() throws IOException {
 		if (acceptThread != null)
 			throw new IllegalStateException("Daemon already running");
 
-		final ServerSocket listenSock = new ServerSocket(
-				myAddress != null ? myAddress.getPort() : 0, BACKLOG,
-				myAddress != null ? myAddress.getAddress() : null);
-		myAddress = (InetSocketAddress) listenSock.getLocalSocketAddress();
+		final ServerSocketChannel listenSock = ServerSocketChannel.open();
+		final Selector selector;
+		try {
+			listenSock.socket().bind(
+					myAddress != null ? myAddress : new InetSocketAddress(0),
+					BACKLOG);
+			listenSock.configureBlocking(false);
+			selector = Selector.open();
+		} catch (IOException e) {
+			listenSock.close();
+			throw e;
+		}
+		try {
+			listenSock.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			selector.close();
+			listenSock.close();
+			throw e;
+		}
+		myAddress = (InetSocketAddress) listenSock.socket()
+				.getLocalSocketAddress();
+
+		final Executor runner;
+		if (executor != null)
+			runner = executor;
+		else {
+			clientPool = newClientPool();
+			runner = clientPool;
+		}
 
 		run = true;
-		acceptThread = new Thread(processors, "Git-Daemon-Accept") {
-			public void run() {
-				while (isRunning()) {
-					try {
-						startClient(listenSock.accept());
-					} catch (InterruptedIOException e) {
-						// Test again to see if we should keep accepting.
-					} catch (IOException e) {
-						break;
-					}
-				}
-
-				try {
-					listenSock.close();
-				} catch (IOException err) {
-					//
-				} finally {
-					synchronized (Daemon.this) {
-						acceptThread = null;
-					}
-				}
-			}
-		};
+		acceptThread = new Acceptor(selector, runner);
 		acceptThread.start();
 	}
 
@@ -286,38 +437,126 @@ public synchronized boolean isRunning() {
 	public synchronized void stop() {
 		if (acceptThread != null) {
 			run = false;
-			acceptThread.interrupt();
+			acceptThread.selector.wakeup();
 		}
 	}
 
-	private void startClient(final Socket s) {
+	private ExecutorService newClientPool() {
+		final ThreadFactory factory = new ThreadFactory() {
+			private final AtomicInteger cnt = new AtomicInteger();
+
+			public Thread newThread(final Runnable task) {
+				return new Thread(processors, task, "Git-Daemon-Client-"
+						+ cnt.incrementAndGet());
+			}
+		};
+		if (0 < maxThreads)
+			return Executors.newFixedThreadPool(maxThreads, factory);
+		return Executors.newCachedThreadPool(factory);
+	}
+
+	private void startClient(final Executor runner, final Socket s,
+			final String cmd) {
 		final DaemonClient dc = new DaemonClient(this);
 
 		final SocketAddress peer = s.getRemoteSocketAddress();
 		if (peer instanceof InetSocketAddress)
 			dc.setRemoteAddress(((InetSocketAddress) peer).getAddress());
 
-		new Thread(processors, "Git-Daemon-Client " + peer.toString()) {
-			public void run() {
-				try {
-					dc.execute(s);
-				} catch (IOException e) {
-					// Ignore unexpected IO exceptions from clients
-					e.printStackTrace();
-				} finally {
-					try {
-						s.getInputStream().close();
-					} catch (IOException e) {
-						// Ignore close exceptions
-					}
+		final long queuedAt = System.currentTimeMillis();
+		queued.incrementAndGet();
+		try {
+			runner.execute(new Runnable() {
+				public void run() {
+					queued.decrementAndGet();
 					try {
-						s.getOutputStream().close();
+						if (isExpired(queuedAt)) {
+							rejected.incrementAndGet();
+							return;
+						}
+
+						active.incrementAndGet();
+						try {
+							dc.execute(s, cmd);
+						} finally {
+							active.decrementAndGet();
+						}
 					} catch (IOException e) {
-						// Ignore close exceptions
+						// Ignore unexpected IO exceptions from clients
+						e.printStackTrace();
+					} finally {
+						close(s);
 					}
 				}
+			});
+		} catch (RejectedExecutionException e) {
+			queued.decrementAndGet();
+			rejected.incrementAndGet();
+			close(s);
+		}
+	}
+
+	private boolean isExpired(final long queuedAt) {
+		final int t = queueTimeout;
+		return 0 < t && queuedAt + t * 1000L < System.currentTimeMillis();
+	}
+
+	private static void close(final Channel c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			// Ignore close exceptions
+		}
+	}
+
+	private static void close(final Socket s) {
+		try {
+			s.getInputStream().close();
+		} catch (IOException e) {
+			// Ignore close exceptions
+		}
+		try {
+			s.getOutputStream().close();
+		} catch (IOException e) {
+			// Ignore close exceptions
+		}
+	}
+
+	/**
+	 * Wait for one of a service's connections to become available.
+	 * <p>
+	 * Must be called by an active client, which is counted as queued while it
+	 * waits.
+	 *
+	 * @param slots
+	 *            the service's available connections; null if unlimited.
+	 * @return true if a connection was acquired and must be released by the
+	 *         caller; false if the client waited too long and was rejected.
+	 */
+	boolean acquire(final Semaphore slots) {
+		if (slots == null || slots.tryAcquire())
+			return true;
+
+		active.decrementAndGet();
+		queued.incrementAndGet();
+		boolean ok = false;
+		try {
+			final int t = queueTimeout;
+			if (0 < t)
+				ok = slots.tryAcquire(t, TimeUnit.SECONDS);
+			else {
+				slots.acquire();
+				ok = true;
 			}
-		}.start();
+		} catch (InterruptedException e) {
+			// Treat as though the wait expired.
+		} finally {
+			queued.decrementAndGet();
+			active.incrementAndGet();
+		}
+		if (!ok)
+			rejected.incrementAndGet();
+		return ok;
 	}
 
 	synchronized DaemonService matchService(final String cmd) {
@@ -382,4 +621,178 @@ private boolean canExport(final File d) {
 		}
 		return new File(d, "git-daemon-export-ok").exists();
 	}
+
+	private class Acceptor extends Thread {
+		final Selector selector;
+
+		private final Executor runner;
+
+		private final List<SelectionKey> ready = new ArrayList<SelectionKey>();
+
+		private long nextScan;
+
+		Acceptor(final Selector sel, final Executor r) {
+			super(processors, "Git-Daemon-Accept");
+			selector = sel;
+			runner = r;
+		}
+
+		public void run() {
+			try {
+				while (isRunning()) {
+					selector.select(HANDSHAKE_SCAN);
+					final Iterator<SelectionKey> i;
+					i = selector.selectedKeys().iterator();
+					while (i.hasNext()) {
+						final SelectionKey k = i.next();
+						i.remove();
+						if (!k.isValid())
+							continue;
+						if (k.isAcceptable())
+							accept((ServerSocketChannel) k.channel());
+						else if (k.isReadable())
+							readRequest(k);
+					}
+					dispatchReady();
+					expireHandshakes();
+				}
+			} catch (IOException e) {
+				// Stop accepting.
+			} finally {
+				for (final SelectionKey k : selector.keys())
+					close(k.channel());
+				try {
+					selector.close();
+				} catch (IOException err) {
+					//
+				} finally {
+					synchronized (Daemon.this) {
+						acceptThread = null;
+						if (clientPool != null) {
+							// Clients already accepted are still served.
+							clientPool.shutdown();
+							clientPool = null;
+						}
+					}
+				}
+			}
+		}
+
+		private void accept(final ServerSocketChannel listenSock)
+				throws IOException {
+			SocketChannel c;
+			while ((c = listenSock.accept()) != null) {
+				try {
+					c.configureBlocking(false);
+					c.register(selector, SelectionKey.OP_READ, new Handshake(
+							deadline()));
+				} catch (IOException e) {
+					close(c);
+				}
+			}
+		}
+
+		private long deadline() {
+			int t = getHandshakeTimeout();
+			if (t <= 0)
+				t = getTimeout();
+			return 0 < t ? System.currentTimeMillis() + t * 1000L : 0;
+		}
+
+		private void readRequest(final SelectionKey k) {
+			final Handshake h = (Handshake) k.attachment();
+			try {
+				if (h.read((SocketChannel) k.channel())) {
+					// The channel can only switch back to blocking mode
+					// once the selector has dropped the canceled key.
+					//
+					k.cancel();
+					ready.add(k);
+				}
+			} catch (IOException e) {
+				close(k.channel());
+			}
+		}
+
+		private void dispatchReady() throws IOException {
+			if (ready.isEmpty())
+				return;
+			selector.selectNow();
+			for (final SelectionKey k : ready) {
+				final SocketChannel c = (SocketChannel) k.channel();
+				final Handshake h = (Handshake) k.attachment();
+				try {
+					c.configureBlocking(true);
+				} catch (IOException e) {
+					close(c);
+					continue;
+				}
+				startClient(runner, c.socket(), h.getRequest());
+			}
+			ready.clear();
+		}
+
+		private void expireHandshakes() {
+			final long now = System.currentTimeMillis();
+			if (now < nextScan)
+				return;
+			nextScan = now + HANDSHAKE_SCAN;
+			for (final SelectionKey k : selector.keys()) {
+				final Object h = k.attachment();
+				if (h instanceof Handshake && ((Handshake) h).isExpired(now))
+					close(k.channel());
+			}
+		}
+	}
+
+	/** Request line of a client, read without blocking. */
+	private static class Handshake {
+		private final long deadline;
+
+		private ByteBuffer buf = ByteBuffer.allocate(4);
+
+		private boolean header = true;
+
+		Handshake(final long deadline) {
+			this.deadline = deadline;
+		}
+
+		boolean isExpired(final long now) {
+			return 0 < deadline && deadline < now;
+		}
+
+		/**
+		 * Read whatever the client has sent so far.
+		 * <p>
+		 * Never reads past the end of the request line, so the remaining
+		 * input is left for the service.
+		 *
+		 * @param c
+		 *            the client's channel, in non-blocking mode.
+		 * @return true if the request line is complete.
+		 * @throws IOException
+		 *             the client disconnected, or sent an invalid line.
+		 */
+		boolean read(final SocketChannel c) throws IOException {
+			for (;;) {
+				if (c.read(buf) < 0)
+					throw new EOFException("Client disconnected");
+				if (buf.hasRemaining())
+					return false;
+				if (!header)
+					return true;
+
+				final int len = PacketLineIn.parseLength(buf.array());
+				if (len == 0)
+					throw new IOException("Expected request, got flush");
+				buf = ByteBuffer.allocate(len - 4);
+				header = false;
+			}
+		}
+
+		String getRequest() {
+			final byte[] raw = buf.array();
+			return RawParseUtils.decode(Constants.CHARSET, raw, 0, raw.length);
+		}
+	}
 }
@@ -83,14 +83,11 @@ public OutputStream getOutputStream() {
 		return rawOut;
 	}
 
-	void execute(final Socket sock)
-			throws IOException {
+	void execute(final Socket sock, final String request) throws IOException {
 		rawIn = new BufferedInputStream(sock.getInputStream());
 		rawOut = new BufferedOutputStream(sock.getOutputStream());
 
-		if (0 < daemon.getTimeout())
-			sock.setSoTimeout(daemon.getTimeout() * 1000);
-		String cmd = new PacketLineIn(rawIn).readStringRaw();
+		String cmd = request;
 		final int nul = cmd.indexOf('\0');
 		if (nul >= 0) {
 			// Newer clients hide a "host" header behind this byte.
@@ -103,7 +100,6 @@ void execute(final Socket sock)
 		final DaemonService srv = getDaemon().matchService(cmd);
 		if (srv == null)
 			return;
-		sock.setSoTimeout(0);
 		srv.execute(this, cmd);
 	}
 }
@@ -38,6 +38,7 @@
 package org.spearce.jgit.transport;
 
 import java.io.IOException;
+import java.util.concurrent.Semaphore;
 
 import org.spearce.jgit.lib.Config;
 import org.spearce.jgit.lib.Repository;
@@ -53,6 +54,10 @@ public abstract class DaemonService {
 
 	private boolean overridable;
 
+	private int maxConnections;
+
+	private volatile Semaphore slots;
+
 	DaemonService(final String cmdName, final String cfgName) {
 		command = cmdName.startsWith("git-") ? cmdName : "git-" + cmdName;
 		configKey = new SectionParser<ServiceConfig>() {
@@ -99,6 +104,27 @@ public void setOverridable(final boolean on) {
 		overridable = on;
 	}
 
+	/** @return maximum concurrent clients of this service; 0 if unlimited. */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Limit the number of clients using this service at once.
+	 * <p>
+	 * Further clients wait for a connection to end, up to the daemon's
+	 * {@link Daemon#setQueueTimeout(int)}. The limit should be set before the
+	 * daemon is started; clients already connected are not counted against a
+	 * new limit.
+	 *
+	 * @param max
+	 *            maximum number of concurrent clients; 0 for no limit.
+	 */
+	public void setMaxConnections(final int max) {
+		maxConnections = max;
+		slots = 0 < max ? new Semaphore(max, true) : null;
+	}
+
 	/** @return name of the command requested by clients. */
 	public String getCommandName() {
 		return command;
@@ -120,14 +146,22 @@ public boolean handles(final String commandLine) {
 	void execute(final DaemonClient client, final String commandLine)
 			throws IOException {
 		final String name = commandLine.substring(command.length() + 1);
-		final Repository db = client.getDaemon().openRepository(name);
-		if (db == null)
+		final Semaphore s = slots;
+		if (!client.getDaemon().acquire(s))
 			return;
 		try {
-			if (isEnabledFor(db))
-				execute(client, db);
+			final Repository db = client.getDaemon().openRepository(name);
+			if (db == null)
+				return;
+			try {
+				if (isEnabledFor(db))
+					execute(client, db);
+			} finally {
+				db.close();
+			}
 		} finally {
-			db.close();
+			if (s != null)
+				s.release();
 		}
 	}
 
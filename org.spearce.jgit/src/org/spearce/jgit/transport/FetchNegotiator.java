@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevFlag;
+import org.spearce.jgit.revwalk.RevWalk;
+
+/**
+ * Selects the commits a fetch client tells the remote it already has.
+ * <p>
+ * The remote answers each "have" line it recognizes with an ACK, and leaves
+ * the history shared by both sides out of the pack it sends. A negotiator
+ * decides which local commits to offer, and in which order, trading the number
+ * of round trips needed to find the shared history against how precisely it is
+ * found.
+ * <p>
+ * A new negotiator is created by a {@link Factory} for each fetch, and is only
+ * used by the thread running that fetch.
+ *
+ * @see Transport#setFetchNegotiator(Factory)
+ */
+public abstract class FetchNegotiator {
+	/** Creates a negotiator for each fetch. */
+	public static interface Factory {
+		/** @return a new negotiator, used for a single fetch. */
+		FetchNegotiator create();
+	}
+
+	/**
+	 * Offers every local commit, newest first, skipping the ancestors of
+	 * commits the remote acknowledged.
+	 * <p>
+	 * This finds the shared history exactly, but a client far behind a long
+	 * linear history needs one round trip for every 32 commits it lacks.
+	 */
+	public static final Factory CONSECUTIVE = new Factory() {
+		public FetchNegotiator create() {
+			return new ConsecutiveNegotiator();
+		}
+	};
+
+	/**
+	 * Offers commits at growing intervals along each line of history.
+	 * <p>
+	 * Once the remote acknowledges a commit the gap above it is searched again
+	 * the same way, so the shared history is found in a logarithmic number of
+	 * round trips. If the remote is ready to send a pack before every such gap
+	 * has been searched, the pack may contain a few commits the client already
+	 * had.
+	 */
+	public static final Factory SKIPPING = new Factory() {
+		public FetchNegotiator create() {
+			return new SkippingNegotiator();
+		}
+	};
+
+	/**
+	 * Look up a factory by the name used in
+	 * <code>fetch.negotiationAlgorithm</code>.
+	 *
+	 * @param name
+	 *            "consecutive" (or "default"), or "skipping".
+	 * @return the factory; null if the name is not recognized.
+	 */
+	public static Factory forName(final String name) {
+		if ("consecutive".equalsIgnoreCase(name)
+				|| "default".equalsIgnoreCase(name))
+			return CONSECUTIVE;
+		if ("skipping".equalsIgnoreCase(name))
+			return SKIPPING;
+		return null;
+	}
+
+	/**
+	 * Prepare to select commits.
+	 *
+	 * @param walk
+	 *            walk over the local repository. The negotiator may add starting
+	 *            points, and change its sorting and filter. Flags other than
+	 *            <code>common</code> and <code>advertised</code> which were
+	 *            allocated by the caller must not be altered.
+	 * @param tips
+	 *            commits reachable from the local references, where
+	 *            negotiation begins.
+	 * @param common
+	 *            flag for the negotiator to mark commits known to both sides.
+	 *            Initially no commit carries it.
+	 * @param advertised
+	 *            flag carried by the commits the remote advertised. The remote
+	 *            has these, but doesn't know we have them until they are sent.
+	 * @throws IOException
+	 *             the local repository could not be read.
+	 */
+	public abstract void init(RevWalk walk, Collection<RevCommit> tips,
+			RevFlag common, RevFlag advertised) throws IOException;
+
+	/**
+	 * @return the next commit to send as a "have" line; null if there is
+	 *         nothing more worth offering.
+	 * @throws IOException
+	 *             the local repository could not be read.
+	 */
+	public abstract RevCommit next() throws IOException;
+
+	/**
+	 * Note the remote has acknowledged a commit as common.
+	 *
+	 * @param c
+	 *            a commit previously returned by {@link #next()}.
+	 * @throws IOException
+	 *             the local repository could not be read.
+	 */
+	public abstract void ack(RevCommit c) throws IOException;
+}
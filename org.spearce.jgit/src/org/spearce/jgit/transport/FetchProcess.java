@@ -133,7 +133,8 @@ else if (tagopt == TagOpt.FETCH_TAGS)
 				expandFetchTags();
 
 			final boolean includedTags;
-			if (!askFor.isEmpty() && !askForIsComplete()) {
+			if (!askFor.isEmpty()
+					&& (transport.getFetchDepth() > 0 || !askForIsComplete())) {
 				fetchObjects(monitor);
 				includedTags = conn.didFetchIncludeTags();
 
@@ -363,9 +364,10 @@ private void want(final Ref src, final RefSpec spec)
 		if (spec.getDestination() != null) {
 			try {
 				final TrackingRefUpdate tru = createUpdate(spec, newId);
-				if (newId.equals(tru.getOldObjectId()))
-					return;
-				localUpdates.add(tru);
+				if (!newId.equals(tru.getOldObjectId()))
+					localUpdates.add(tru);
+				else if (transport.getFetchDepth() == 0)
+					return; // Up to date, and its history isn't deepened.
 			} catch (IOException err) {
 				// Bad symbolic ref? That is the most likely cause.
 				//
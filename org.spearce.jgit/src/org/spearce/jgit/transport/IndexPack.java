@@ -44,10 +44,16 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
@@ -58,18 +64,24 @@
 import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.BinaryDelta;
 import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.DeflaterCache;
+import org.spearce.jgit.lib.FileMode;
 import org.spearce.jgit.lib.InflaterCache;
 import org.spearce.jgit.lib.MutableObjectId;
 import org.spearce.jgit.lib.ObjectChecker;
 import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.ObjectIdSubclassMap;
 import org.spearce.jgit.lib.ObjectLoader;
+import org.spearce.jgit.lib.PackConfig;
 import org.spearce.jgit.lib.PackIndexWriter;
 import org.spearce.jgit.lib.PackLock;
 import org.spearce.jgit.lib.ProgressMonitor;
 import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.ThreadSafeProgressMonitor;
 import org.spearce.jgit.lib.WindowCursor;
+import org.spearce.jgit.lib.WorkQueue;
 import org.spearce.jgit.util.NB;
+import org.spearce.jgit.util.RawParseUtils;
 
 /** Indexes Git pack files for local use. */
 public class IndexPack {
@@ -145,8 +157,16 @@ public static IndexPack create(final Repository db, final InputStream is)
 
 	private boolean keepEmpty;
 
+	private boolean needNewObjectIds;
+
+	private boolean needReferencedObjectIds;
+
 	private int outputVersion;
 
+	private int threads;
+
+	private ExecutorService executor = WorkQueue.getExecutor();
+
 	private final File dstPack;
 
 	private final File dstIdx;
@@ -159,11 +179,23 @@ public static IndexPack create(final Repository db, final InputStream is)
 
 	private int entryCount;
 
+	/** Next slot of {@link #entries} to fill while resolving deltas. */
+	private AtomicInteger nextEntry;
+
+	/** Threads hashing objects and resolving deltas; null to use this one. */
+	private ExecutorService pool;
+
+	/** Whole objects read but not yet given to {@link #pool}. */
+	private WholeObjects wholeBatch;
+
+	/** Batches of whole objects being hashed by {@link #pool}. */
+	private List<Future<Object>> hashing;
+
 	private final CRC32 crc = new CRC32();
 
 	private ObjectIdSubclassMap<DeltaChain> baseById;
 
-	private LongMap<UnresolvedDelta> baseByPos;
+	private UnresolvedDeltas deltas;
 
 	private byte[] objectData;
 
@@ -178,6 +210,12 @@ public static IndexPack create(final Repository db, final InputStream is)
 
 	private WindowCursor readCurs;
 
+	/** Every object received in the pack, if {@link #needNewObjectIds}. */
+	private ObjectIdSubclassMap<ObjectId> newObjectIds;
+
+	/** Objects named by received objects, if {@link #needReferencedObjectIds}. */
+	private ObjectIdSubclassMap<ObjectId> referencedObjectIds;
+
 	/**
 	 * Create a new pack indexer utility.
 	 * 
@@ -200,6 +238,7 @@ public IndexPack(final Repository db, final InputStream src,
 		objectDigest = Constants.newMessageDigest();
 		tempObjectId = new MutableObjectId();
 		packDigest = Constants.newMessageDigest();
+		threads = db.getConfig().get(PackConfig.KEY).getThreads();
 
 		if (dstBase != null) {
 			final File dir = dstBase.getParentFile();
@@ -226,6 +265,44 @@ public void setIndexVersion(final int version) {
 		outputVersion = version;
 	}
 
+	/**
+	 * Set the number of threads used to name objects and resolve deltas.
+	 * <p>
+	 * With more than one thread the whole objects read from the input stream
+	 * are hashed and checked by the other threads in small batches, while
+	 * the calling thread continues reading. Reading still inflates every
+	 * object, as the end of its compressed data is the start of the next.
+	 * <p>
+	 * Each delta must be inflated, applied to its base, and hashed to learn
+	 * its name. The deltas based on different whole objects are independent,
+	 * so with more than one thread each thread takes the next whole object
+	 * and resolves every delta depending on it, reading the pack through its
+	 * own buffer and inflater. Each thread holds the data of the deltas it is
+	 * currently resolving, so memory use grows with the number of threads.
+	 * <p>
+	 * Default setting: 0 (one thread per processor), or the repository's
+	 * <code>pack.threads</code>.
+	 *
+	 * @param threads
+	 *            number of threads to use; 0 for one thread per processor.
+	 */
+	public void setThreads(final int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Set the executor running the hashing and delta resolving tasks.
+	 * <p>
+	 * The executor may be shared with other instances, and is not shut down.
+	 * Default setting: {@link WorkQueue#getExecutor()}.
+	 *
+	 * @param executor
+	 *            executor to submit tasks to.
+	 */
+	public void setExecutor(final ExecutorService executor) {
+		this.executor = executor;
+	}
+
 	/**
 	 * Configure this index pack instance to make a thin pack complete.
 	 * <p>
@@ -253,12 +330,67 @@ public void setKeepEmpty(final boolean empty) {
 		keepEmpty = empty;
 	}
 
+	/**
+	 * Configure this index pack instance to remember the received objects.
+	 * <p>
+	 * Objects copied from the repository to complete a thin pack are not
+	 * received, and are not included.
+	 *
+	 * @param need
+	 *            true to make {@link #getNewObjectIds()} available.
+	 */
+	public void setNeedNewObjectIds(final boolean need) {
+		needNewObjectIds = need;
+	}
+
+	/**
+	 * Configure this index pack instance to remember the objects the received
+	 * objects refer to, but which the pack does not contain.
+	 * <p>
+	 * The links are taken from each commit, tree and tag while its data is
+	 * already in memory to compute its name, so the pack does not need to be
+	 * read a second time to learn what it depends on. Gitlinks are skipped,
+	 * as they name commits of another repository.
+	 *
+	 * @param need
+	 *            true to make {@link #getReferencedObjectIds()} available.
+	 */
+	public void setNeedReferencedObjectIds(final boolean need) {
+		needReferencedObjectIds = need;
+	}
+
+	/**
+	 * @return the objects received in the pack; empty if
+	 *         {@link #setNeedNewObjectIds(boolean)} was not enabled.
+	 */
+	public ObjectIdSubclassMap<ObjectId> getNewObjectIds() {
+		if (newObjectIds == null)
+			return new ObjectIdSubclassMap<ObjectId>();
+		return newObjectIds;
+	}
+
+	/**
+	 * @return the objects referenced by received objects that were not
+	 *         themselves received, and so must already be available from the
+	 *         repository; empty if {@link #setNeedReferencedObjectIds(boolean)}
+	 *         was not enabled.
+	 */
+	public ObjectIdSubclassMap<ObjectId> getReferencedObjectIds() {
+		if (referencedObjectIds == null)
+			return new ObjectIdSubclassMap<ObjectId>();
+		return referencedObjectIds;
+	}
+
 	/**
 	 * Configure the checker used to validate received objects.
 	 * <p>
 	 * Usually object checking isn't necessary, as Git implementations only
 	 * create valid objects in pack files. However, additional checking may be
 	 * useful if processing data from an untrusted source.
+	 * <p>
+	 * The instance is only used by the thread reading the input. Objects named
+	 * or resolved by other threads are verified by a new {@link ObjectChecker}
+	 * created for each of those threads.
 	 *
 	 * @param oc
 	 *            the checker instance; null to disable object checking.
@@ -303,7 +435,15 @@ public void index(final ProgressMonitor progress) throws IOException {
 
 				entries = new PackedObjectInfo[(int) objectCount];
 				baseById = new ObjectIdSubclassMap<DeltaChain>();
-				baseByPos = new LongMap<UnresolvedDelta>();
+				deltas = new UnresolvedDeltas();
+				if (needNewObjectIds || needReferencedObjectIds)
+					newObjectIds = new ObjectIdSubclassMap<ObjectId>();
+				if (needReferencedObjectIds)
+					referencedObjectIds = new ObjectIdSubclassMap<ObjectId>();
+
+				pool = 1 < getThreadCount() ? executor : null;
+				if (pool != null)
+					hashing = new ArrayList<Future<Object>>();
 
 				progress.beginTask(PROGRESS_DOWNLOAD, (int) objectCount);
 				for (int done = 0; done < objectCount; done++) {
@@ -312,6 +452,8 @@ public void index(final ProgressMonitor progress) throws IOException {
 					if (progress.isCancelled())
 						throw new IOException("Download cancelled");
 				}
+				if (pool != null)
+					waitForWhole(0);
 				readPackFooter();
 				endInput();
 				progress.endTask();
@@ -333,7 +475,9 @@ public void index(final ProgressMonitor progress) throws IOException {
 
 				packDigest = null;
 				baseById = null;
-				baseByPos = null;
+				deltas = null;
+				if (referencedObjectIds != null)
+					removeReceivedObjects();
 
 				if (dstIdx != null && (keepEmpty || entryCount > 0))
 					writeIdx();
@@ -346,6 +490,17 @@ public void index(final ProgressMonitor progress) throws IOException {
 				}
 				readCurs = WindowCursor.release(readCurs);
 
+				// Batches still queued after a failure must not run once
+				// the caller has the pack back.
+				//
+				if (hashing != null) {
+					for (final Future<Object> t : hashing)
+						t.cancel(false);
+					WorkQueue.waitForAll(hashing);
+					hashing = null;
+				}
+				pool = null;
+
 				progress.endTask();
 				if (packOut != null)
 					packOut.close();
@@ -370,119 +525,107 @@ private void resolveDeltas(final ProgressMonitor progress)
 			throws IOException {
 		progress.beginTask(PROGRESS_RESOLVE_DELTA, deltaCount);
 		final int last = entryCount;
-		for (int i = 0; i < last; i++) {
-			final int before = entryCount;
-			resolveDeltas(entries[i]);
-			progress.update(entryCount - before);
-			if (progress.isCancelled())
-				throw new IOException("Download cancelled during indexing");
+		nextEntry = new AtomicInteger(entryCount);
+		try {
+			if (pool != null) {
+				resolveDeltas(progress, last);
+			} else {
+				final DeltaResolver r = new DeltaResolver();
+				try {
+					for (int i = 0; i < last; i++) {
+						progress.update(r.resolveDeltas(entries[i]));
+						if (progress.isCancelled())
+							throw new IOException(
+									"Download cancelled during indexing");
+					}
+				} finally {
+					r.release();
+				}
+			}
+		} finally {
+			entryCount = nextEntry.get();
 		}
 		progress.endTask();
 	}
 
-	private void resolveDeltas(final PackedObjectInfo oe) throws IOException {
-		final int oldCRC = oe.getCRC();
-		if (baseById.get(oe) != null || baseByPos.containsKey(oe.getOffset()))
-			resolveDeltas(oe.getOffset(), oldCRC, Constants.OBJ_BAD, null, oe);
-	}
-
-	private void resolveDeltas(final long pos, final int oldCRC, int type,
-			byte[] data, PackedObjectInfo oe) throws IOException {
-		crc.reset();
-		position(pos);
-		int c = readFromFile();
-		final int typeCode = (c >> 4) & 7;
-		long sz = c & 15;
-		int shift = 4;
-		while ((c & 0x80) != 0) {
-			c = readFromFile();
-			sz += (c & 0x7f) << shift;
-			shift += 7;
+	private void resolveDeltas(final ProgressMonitor progress,
+			final int last) throws IOException {
+		final ThreadSafeProgressMonitor pm;
+		pm = new ThreadSafeProgressMonitor(progress);
+		final AtomicInteger nextBase = new AtomicInteger();
+		final List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+		try {
+			final int n = getThreadCount();
+			for (int i = 0; i < n; i++) {
+				pm.startWorker();
+				tasks.add(pool.submit(new ResolveTask(pm, nextBase, last)));
+			}
+			pm.waitForCompletion();
+			for (final Future<Object> t : tasks)
+				WorkQueue.get(t);
+		} finally {
+			// If the wait was interrupted the threads stop after their
+			// current base, and must finish before the caller closes
+			// the pack.
+			//
+			nextBase.set(last);
+			WorkQueue.waitForAll(tasks);
 		}
+	}
 
-		switch (typeCode) {
-		case Constants.OBJ_COMMIT:
-		case Constants.OBJ_TREE:
-		case Constants.OBJ_BLOB:
-		case Constants.OBJ_TAG:
-			type = typeCode;
-			data = inflateFromFile((int) sz);
-			break;
-		case Constants.OBJ_OFS_DELTA: {
-			c = readFromFile() & 0xff;
-			while ((c & 128) != 0)
-				c = readFromFile() & 0xff;
-			data = BinaryDelta.apply(data, inflateFromFile((int) sz));
-			break;
-		}
-		case Constants.OBJ_REF_DELTA: {
-			crc.update(buf, fillFromFile(20), 20);
-			use(20);
-			data = BinaryDelta.apply(data, inflateFromFile((int) sz));
-			break;
-		}
-		default:
-			throw new IOException("Unknown object type " + typeCode + ".");
-		}
+	private int getThreadCount() {
+		return WorkQueue.getThreadCount(threads);
+	}
 
-		final int crc32 = (int) crc.getValue();
-		if (oldCRC != crc32)
-			throw new IOException("Corruption detected re-reading at " + pos);
-		if (oe == null) {
-			objectDigest.update(Constants.encodedTypeString(type));
-			objectDigest.update((byte) ' ');
-			objectDigest.update(Constants.encodeASCII(data.length));
-			objectDigest.update((byte) 0);
-			objectDigest.update(data);
-			tempObjectId.fromRaw(objectDigest.digest(), 0);
-
-			verifySafeObject(tempObjectId, type, data);
-			oe = new PackedObjectInfo(pos, crc32, tempObjectId);
-			entries[entryCount++] = oe;
-		}
+	private class ResolveTask implements Callable<Object> {
+		private final ThreadSafeProgressMonitor pm;
 
-		resolveChildDeltas(pos, type, data, oe);
-	}
+		private final AtomicInteger nextBase;
 
-	private UnresolvedDelta removeBaseById(final AnyObjectId id){
-		final DeltaChain d = baseById.get(id);
-		return d != null ? d.remove() : null;
-	}
+		private final int last;
 
-	private static UnresolvedDelta reverse(UnresolvedDelta c) {
-		UnresolvedDelta tail = null;
-		while (c != null) {
-			final UnresolvedDelta n = c.next;
-			c.next = tail;
-			tail = c;
-			c = n;
+		ResolveTask(final ThreadSafeProgressMonitor pm,
+				final AtomicInteger nextBase, final int last) {
+			this.pm = pm;
+			this.nextBase = nextBase;
+			this.last = last;
 		}
-		return tail;
-	}
 
-	private void resolveChildDeltas(final long pos, int type, byte[] data,
-			PackedObjectInfo oe) throws IOException {
-		UnresolvedDelta a = reverse(removeBaseById(oe));
-		UnresolvedDelta b = reverse(baseByPos.remove(pos));
-		while (a != null && b != null) {
-			if (a.position < b.position) {
-				resolveDeltas(a.position, a.crc, type, data, null);
-				a = a.next;
-			} else {
-				resolveDeltas(b.position, b.crc, type, data, null);
-				b = b.next;
+		public Object call() throws IOException {
+			boolean failed = true;
+			try {
+				final DeltaResolver r = new DeltaResolver();
+				try {
+					for (;;) {
+						final int i = nextBase.getAndIncrement();
+						if (last <= i)
+							break;
+						final int resolved = r.resolveDeltas(entries[i]);
+						if (0 < resolved)
+							pm.update(resolved);
+						if (pm.isCancelled())
+							throw new IOException(
+									"Download cancelled during indexing");
+					}
+				} finally {
+					r.release();
+				}
+				failed = false;
+				return null;
+			} finally {
+				// After a failure the other threads stop at their next
+				// base, instead of resolving the rest of the pack.
+				//
+				if (failed)
+					nextBase.set(last);
+				pm.endWorker();
 			}
 		}
-		resolveChildDeltaChain(type, data, a);
-		resolveChildDeltaChain(type, data, b);
 	}
 
-	private void resolveChildDeltaChain(final int type, final byte[] data,
-			UnresolvedDelta a) throws IOException {
-		while (a != null) {
-			resolveDeltas(a.position, a.crc, type, data, null);
-			a = a.next;
-		}
+	private int removeBaseById(final AnyObjectId id){
+		final DeltaChain d = baseById.get(id);
+		return d != null ? d.remove() : UnresolvedDeltas.END;
 	}
 
 	private void fixThinPack(final ProgressMonitor progress) throws IOException {
@@ -490,36 +633,45 @@ private void fixThinPack(final ProgressMonitor progress) throws IOException {
 
 		packDigest.reset();
 		originalEOF = packOut.length() - 20;
-		final Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+		final Deflater def = DeflaterCache.get(Deflater.DEFAULT_COMPRESSION);
 		final List<DeltaChain> missing = new ArrayList<DeltaChain>(64);
+		final DeltaResolver r = new DeltaResolver();
+		nextEntry = new AtomicInteger(entryCount);
 		long end = originalEOF;
-		for (final DeltaChain baseId : baseById) {
-			if (baseId.head == null)
-				continue;
-			final ObjectLoader ldr = repo.openObject(readCurs, baseId);
-			if (ldr == null) {
-				missing.add(baseId);
-				continue;
+		try {
+			for (final DeltaChain baseId : baseById) {
+				if (baseId.head == UnresolvedDeltas.END)
+					continue;
+				final ObjectLoader ldr = repo.openObject(readCurs, baseId);
+				if (ldr == null) {
+					missing.add(baseId);
+					continue;
+				}
+				final byte[] data = ldr.getCachedBytes();
+				final int typeCode = ldr.getType();
+				final PackedObjectInfo oe;
+
+				crc.reset();
+				packOut.seek(end);
+				writeWhole(def, typeCode, data);
+				oe = new PackedObjectInfo(end, (int) crc.getValue(),
+						baseId);
+				entries[nextEntry.getAndIncrement()] = oe;
+				end = packOut.getFilePointer();
+
+				r.resolveChildDeltas(oe.getOffset(), typeCode, data, oe);
+				if (progress.isCancelled())
+					throw new IOException(
+							"Download cancelled during indexing");
 			}
-			final byte[] data = ldr.getCachedBytes();
-			final int typeCode = ldr.getType();
-			final PackedObjectInfo oe;
-
-			crc.reset();
-			packOut.seek(end);
-			writeWhole(def, typeCode, data);
-			oe = new PackedObjectInfo(end, (int) crc.getValue(), baseId);
-			entries[entryCount++] = oe;
-			end = packOut.getFilePointer();
-
-			resolveChildDeltas(oe.getOffset(), typeCode, data, oe);
-			if (progress.isCancelled())
-				throw new IOException("Download cancelled during indexing");
+		} finally {
+			DeflaterCache.release(def);
+			r.release();
+			entryCount = nextEntry.get();
 		}
-		def.end();
 
 		for (final DeltaChain base : missing) {
-			if (base.head != null)
+			if (base.head != UnresolvedDeltas.END)
 				throw new MissingObjectException(base, "delta base");
 		}
 
@@ -695,10 +847,11 @@ private void indexOneObject() throws IOException {
 				ofs += (c & 127);
 			}
 			final long base = pos - ofs;
-			final UnresolvedDelta n;
+			if (ofs <= 0 || base <= 0)
+				throw new IOException("Delta base offset out of bounds at "
+						+ pos + ".");
 			skipInflateFromInput(sz);
-			n = new UnresolvedDelta(pos, (int) crc.getValue());
-			n.next = baseByPos.put(base, n);
+			deltas.addByOffset(base, pos, (int) crc.getValue());
 			deltaCount++;
 			break;
 		}
@@ -713,7 +866,7 @@ private void indexOneObject() throws IOException {
 				baseById.add(r);
 			}
 			skipInflateFromInput(sz);
-			r.add(new UnresolvedDelta(pos, (int) crc.getValue()));
+			r.head = deltas.add(pos, (int) crc.getValue(), r.head);
 			deltaCount++;
 			break;
 		}
@@ -725,6 +878,11 @@ private void indexOneObject() throws IOException {
 	private void whole(final int type, final long pos, final long sz)
 			throws IOException {
 		final byte[] data = inflateFromInput(sz);
+		if (pool != null) {
+			queueWhole(type, pos, (int) crc.getValue(), data);
+			return;
+		}
+
 		objectDigest.update(Constants.encodedTypeString(type));
 		objectDigest.update((byte) ' ');
 		objectDigest.update(Constants.encodeASCII(sz));
@@ -732,16 +890,45 @@ private void whole(final int type, final long pos, final long sz)
 		objectDigest.update(data);
 		tempObjectId.fromRaw(objectDigest.digest(), 0);
 
-		verifySafeObject(tempObjectId, type, data);
+		verifySafeObject(objCheck, readCurs, tempObjectId, type, data);
 		final int crc32 = (int) crc.getValue();
 		entries[entryCount++] = new PackedObjectInfo(pos, crc32, tempObjectId);
 	}
 
-	private void verifySafeObject(final AnyObjectId id, final int type,
+	private void queueWhole(final int type, final long pos, final int crc32,
 			final byte[] data) throws IOException {
-		if (objCheck != null) {
+		if (wholeBatch == null)
+			wholeBatch = new WholeObjects();
+		wholeBatch.add(entryCount++, type, pos, crc32, data);
+		if (wholeBatch.isFull()) {
+			hashing.add(pool.submit(wholeBatch));
+			wholeBatch = null;
+			waitForWhole(2 * getThreadCount());
+		}
+	}
+
+	// Wait until no more than max batches are still being hashed.
+	private void waitForWhole(final int max) throws IOException {
+		if (max == 0 && wholeBatch != null) {
+			hashing.add(pool.submit(wholeBatch));
+			wholeBatch = null;
+		}
+		while (max < hashing.size())
+			WorkQueue.get(hashing.remove(0));
+	}
+
+	// The configured checker keeps scratch state between calls, so a
+	// thread other than the input thread checks objects with its own.
+	private ObjectChecker newObjectChecker() {
+		return objCheck != null ? new ObjectChecker() : null;
+	}
+
+	private void verifySafeObject(final ObjectChecker checker,
+			final WindowCursor curs, final AnyObjectId id, final int type,
+			final byte[] data) throws IOException {
+		if (checker != null) {
 			try {
-				objCheck.check(type, data);
+				checker.check(type, data);
 			} catch (CorruptObjectException e) {
 				throw new IOException("Invalid "
 						+ Constants.typeString(type) + " " + id.name()
@@ -749,13 +936,105 @@ private void verifySafeObject(final AnyObjectId id, final int type,
 			}
 		}
 
-		final ObjectLoader ldr = repo.openObject(readCurs, id);
+		final ObjectLoader ldr = repo.openObject(curs, id);
 		if (ldr != null) {
 			final byte[] existingData = ldr.getCachedBytes();
 			if (ldr.getType() != type || !Arrays.equals(data, existingData)) {
 				throw new IOException("Collision on " + id.name());
 			}
 		}
+
+		if (newObjectIds != null)
+			addNewObject(id, type, data);
+	}
+
+	private void addNewObject(final AnyObjectId id, final int type,
+			final byte[] data) throws IOException {
+		List<ObjectId> links = null;
+		if (referencedObjectIds != null) {
+			try {
+				links = parseLinks(type, data);
+			} catch (RuntimeException e) {
+				// The checker would have rejected the object; without
+				// it, a truncated or garbled object lands us here.
+				//
+				throw new CorruptObjectException(id, "invalid "
+						+ Constants.typeString(type));
+			}
+		}
+
+		// Called by every thread indexing the pack.
+		//
+		synchronized (newObjectIds) {
+			if (newObjectIds.get(id) == null)
+				newObjectIds.add(id.copy());
+			if (links != null) {
+				for (final ObjectId l : links) {
+					if (referencedObjectIds.get(l) == null)
+						referencedObjectIds.add(l);
+				}
+			}
+		}
+	}
+
+	private static List<ObjectId> parseLinks(final int type, final byte[] raw) {
+		final List<ObjectId> links;
+		int ptr = 0;
+
+		switch (type) {
+		case Constants.OBJ_COMMIT: {
+			links = new ArrayList<ObjectId>(2);
+			ptr = RawParseUtils.match(raw, ptr, ObjectChecker.tree);
+			links.add(ObjectId.fromString(raw, ptr));
+			ptr += 2 * Constants.OBJECT_ID_LENGTH + 1;
+			for (;;) {
+				ptr = RawParseUtils.match(raw, ptr, ObjectChecker.parent);
+				if (ptr < 0)
+					return links;
+				links.add(ObjectId.fromString(raw, ptr));
+				ptr += 2 * Constants.OBJECT_ID_LENGTH + 1;
+			}
+		}
+
+		case Constants.OBJ_TREE: {
+			links = new ArrayList<ObjectId>();
+			while (ptr < raw.length) {
+				int mode = 0;
+				byte c;
+				while ((c = raw[ptr++]) != ' ')
+					mode = (mode << 3) + (c - '0');
+				while (raw[ptr++] != 0) {
+					// Skip the entry name.
+				}
+				if ((mode & FileMode.TYPE_MASK) != FileMode.TYPE_GITLINK) {
+					if (ptr + Constants.OBJECT_ID_LENGTH > raw.length)
+						throw new ArrayIndexOutOfBoundsException(ptr);
+					links.add(ObjectId.fromRaw(raw, ptr));
+				}
+				ptr += Constants.OBJECT_ID_LENGTH;
+			}
+			return links;
+		}
+
+		case Constants.OBJ_TAG:
+			links = new ArrayList<ObjectId>(1);
+			ptr = RawParseUtils.match(raw, ptr, ObjectChecker.object);
+			links.add(ObjectId.fromString(raw, ptr));
+			return links;
+
+		default:
+			return null;
+		}
+	}
+
+	private void removeReceivedObjects() {
+		final ObjectIdSubclassMap<ObjectId> r;
+		r = new ObjectIdSubclassMap<ObjectId>();
+		for (final ObjectId id : referencedObjectIds) {
+			if (newObjectIds.get(id) == null)
+				r.add(id);
+		}
+		referencedObjectIds = r;
 	}
 
 	// Current position of {@link #bOffset} within the entire file.
@@ -763,13 +1042,6 @@ private long position() {
 		return bBase + bOffset;
 	}
 
-	private void position(final long pos) throws IOException {
-		packOut.seek(pos);
-		bBase = pos;
-		bOffset = 0;
-		bAvail = 0;
-	}
-
 	// Consume exactly one byte from the buffer and return it.
 	private int readFromInput() throws IOException {
 		if (bAvail == 0)
@@ -780,16 +1052,6 @@ private int readFromInput() throws IOException {
 		return b;
 	}
 
-	// Consume exactly one byte from the buffer and return it.
-	private int readFromFile() throws IOException {
-		if (bAvail == 0)
-			fillFromFile(1);
-		bAvail--;
-		final int b = buf[bOffset++] & 0xff;
-		crc.update(b);
-		return b;
-	}
-
 	// Consume cnt bytes from the buffer.
 	private void use(final int cnt) {
 		bOffset += cnt;
@@ -916,71 +1178,297 @@ private byte[] inflateFromInput(final long sz) throws IOException {
 		}
 	}
 
-	private byte[] inflateFromFile(final int sz) throws IOException {
-		final Inflater inf = inflater;
-		try {
-			final byte[] dst = new byte[sz];
-			int n = 0;
-			int p = -1;
-			while (!inf.finished()) {
-				if (inf.needsInput()) {
-					if (p >= 0) {
-						crc.update(buf, p, bAvail);
-						use(bAvail);
-					}
-					p = fillFromFile(1);
-					inf.setInput(buf, p, bAvail);
-				}
-				n += inf.inflate(dst, n, sz - n);
-			}
-			n = bAvail - inf.getRemaining();
-			if (n > 0) {
-				crc.update(buf, p, n);
-				use(n);
-			}
-			return dst;
-		} catch (DataFormatException dfe) {
-			throw corrupt(dfe);
-		} finally {
-			inf.reset();
-		}
-	}
-
 	private static CorruptObjectException corrupt(final DataFormatException dfe) {
 		return new CorruptObjectException("Packfile corruption detected: "
 				+ dfe.getMessage());
 	}
 
-	private static class DeltaChain extends ObjectId {
-		UnresolvedDelta head;
+	/**
+	 * Whole objects read from the input, to be named and checked by a thread
+	 * of the pool while the input thread continues with the next objects.
+	 */
+	private class WholeObjects implements Callable<Object> {
+		private static final int MAX_OBJECTS = 64;
 
-		DeltaChain(final AnyObjectId id) {
-			super(id);
+		private static final int MAX_BYTES = 1024 * 1024;
+
+		private final int[] slot = new int[MAX_OBJECTS];
+
+		private final int[] type = new int[MAX_OBJECTS];
+
+		private final long[] pos = new long[MAX_OBJECTS];
+
+		private final int[] crc = new int[MAX_OBJECTS];
+
+		private final byte[][] data = new byte[MAX_OBJECTS][];
+
+		private int cnt;
+
+		private int bytes;
+
+		void add(final int entry, final int objectType, final long position,
+				final int crc32, final byte[] objectData) {
+			slot[cnt] = entry;
+			type[cnt] = objectType;
+			pos[cnt] = position;
+			crc[cnt] = crc32;
+			data[cnt] = objectData;
+			cnt++;
+			bytes += objectData.length;
 		}
 
-		UnresolvedDelta remove() {
-			final UnresolvedDelta r = head;
-			if (r != null)
-				head = null;
-			return r;
+		boolean isFull() {
+			return cnt == MAX_OBJECTS || MAX_BYTES <= bytes;
 		}
 
-		void add(final UnresolvedDelta d) {
-			d.next = head;
-			head = d;
+		public Object call() throws IOException {
+			final ObjectChecker checker = newObjectChecker();
+			final MessageDigest md = Constants.newMessageDigest();
+			final MutableObjectId id = new MutableObjectId();
+			WindowCursor curs = new WindowCursor();
+			try {
+				for (int i = 0; i < cnt; i++) {
+					md.update(Constants.encodedTypeString(type[i]));
+					md.update((byte) ' ');
+					md.update(Constants.encodeASCII(data[i].length));
+					md.update((byte) 0);
+					md.update(data[i]);
+					id.fromRaw(md.digest(), 0);
+
+					verifySafeObject(checker, curs, id, type[i], data[i]);
+					entries[slot[i]] = new PackedObjectInfo(pos[i], crc[i], id);
+					data[i] = null;
+				}
+			} finally {
+				curs = WindowCursor.release(curs);
+			}
+			return null;
 		}
 	}
 
-	private static class UnresolvedDelta {
-		final long position;
+	/** Resolves deltas by re-reading the pack, for use by one thread. */
+	private class DeltaResolver {
+		private final FileChannel fc = packOut.getChannel();
+
+		private final Inflater inf = InflaterCache.get();
+
+		private final MessageDigest objectDigest = Constants
+				.newMessageDigest();
+
+		private final MutableObjectId tempObjectId = new MutableObjectId();
+
+		private final ObjectChecker checker = newObjectChecker();
+
+		private final CRC32 crc = new CRC32();
+
+		private final byte[] buf = new byte[BUFFER_SIZE];
+
+		private WindowCursor curs = new WindowCursor();
+
+		/** Position of {@code buf[0]} within the pack file. */
+		private long bBase;
+
+		private int bOffset;
+
+		private int bAvail;
+
+		/** Number of deltas resolved by this instance. */
+		private int resolved;
+
+		int resolveDeltas(final PackedObjectInfo oe) throws IOException {
+			final int before = resolved;
+			final int oldCRC = oe.getCRC();
+			if (baseById.get(oe) != null
+					|| deltas.getByOffset(oe.getOffset()) != UnresolvedDeltas.END)
+				resolveDeltas(oe.getOffset(), oldCRC, Constants.OBJ_BAD,
+						null, oe);
+			return resolved - before;
+		}
+
+		private void resolveDeltas(final long pos, final int oldCRC,
+				int type, byte[] data, PackedObjectInfo oe)
+				throws IOException {
+			crc.reset();
+			position(pos);
+			int c = readFromFile();
+			final int typeCode = (c >> 4) & 7;
+			long sz = c & 15;
+			int shift = 4;
+			while ((c & 0x80) != 0) {
+				c = readFromFile();
+				sz += (c & 0x7f) << shift;
+				shift += 7;
+			}
 
-		final int crc;
+			switch (typeCode) {
+			case Constants.OBJ_COMMIT:
+			case Constants.OBJ_TREE:
+			case Constants.OBJ_BLOB:
+			case Constants.OBJ_TAG:
+				type = typeCode;
+				data = inflateFromFile((int) sz);
+				break;
+			case Constants.OBJ_OFS_DELTA: {
+				c = readFromFile() & 0xff;
+				while ((c & 128) != 0)
+					c = readFromFile() & 0xff;
+				data = BinaryDelta.apply(data, inflateFromFile((int) sz));
+				break;
+			}
+			case Constants.OBJ_REF_DELTA: {
+				crc.update(buf, fillFromFile(20), 20);
+				use(20);
+				data = BinaryDelta.apply(data, inflateFromFile((int) sz));
+				break;
+			}
+			default:
+				throw new IOException("Unknown object type " + typeCode + ".");
+			}
+
+			final int crc32 = (int) crc.getValue();
+			if (oldCRC != crc32)
+				throw new IOException("Corruption detected re-reading at "
+						+ pos);
+			if (oe == null) {
+				objectDigest.update(Constants.encodedTypeString(type));
+				objectDigest.update((byte) ' ');
+				objectDigest.update(Constants.encodeASCII(data.length));
+				objectDigest.update((byte) 0);
+				objectDigest.update(data);
+				tempObjectId.fromRaw(objectDigest.digest(), 0);
+
+				verifySafeObject(checker, curs, tempObjectId, type, data);
+				oe = new PackedObjectInfo(pos, crc32, tempObjectId);
+				entries[nextEntry.getAndIncrement()] = oe;
+				resolved++;
+			}
 
-		UnresolvedDelta next;
+			resolveChildDeltas(pos, type, data, oe);
+		}
 
-		UnresolvedDelta(final long headerOffset, final int crc32) {
-			position = headerOffset;
-			crc = crc32;
+		void resolveChildDeltas(final long pos, int type, byte[] data,
+				PackedObjectInfo oe) throws IOException {
+			// Each position is resolved only once, so its list is only
+			// used by this thread.
+			//
+			final UnresolvedDeltas d = deltas;
+			int a = d.reverse(removeBaseById(oe));
+			int b = d.reverse(d.getByOffset(pos));
+			while (a != UnresolvedDeltas.END && b != UnresolvedDeltas.END) {
+				if (d.getPosition(a) < d.getPosition(b)) {
+					resolveDeltas(d.getPosition(a), d.getCRC(a), type, data,
+							null);
+					a = d.getNext(a);
+				} else {
+					resolveDeltas(d.getPosition(b), d.getCRC(b), type, data,
+							null);
+					b = d.getNext(b);
+				}
+			}
+			resolveChildDeltaChain(type, data, a);
+			resolveChildDeltaChain(type, data, b);
+		}
+
+		private void resolveChildDeltaChain(final int type, final byte[] data,
+				int a) throws IOException {
+			final UnresolvedDeltas d = deltas;
+			while (a != UnresolvedDeltas.END) {
+				resolveDeltas(d.getPosition(a), d.getCRC(a), type, data, null);
+				a = d.getNext(a);
+			}
+		}
+
+		private void position(final long pos) {
+			bBase = pos;
+			bOffset = 0;
+			bAvail = 0;
+		}
+
+		// Consume exactly one byte from the buffer and return it.
+		private int readFromFile() throws IOException {
+			if (bAvail == 0)
+				fillFromFile(1);
+			bAvail--;
+			final int b = buf[bOffset++] & 0xff;
+			crc.update(b);
+			return b;
+		}
+
+		// Consume cnt bytes from the buffer.
+		private void use(final int cnt) {
+			bOffset += cnt;
+			bAvail -= cnt;
+		}
+
+		// Ensure at least need bytes are available in in {@link #buf}.
+		private int fillFromFile(final int need) throws IOException {
+			if (bAvail < need) {
+				int next = bOffset + bAvail;
+				int free = buf.length - next;
+				if (free + bAvail < need) {
+					if (bAvail > 0)
+						System.arraycopy(buf, bOffset, buf, 0, bAvail);
+					bBase += bOffset;
+					bOffset = 0;
+					next = bAvail;
+					free = buf.length - next;
+				}
+				final ByteBuffer bb = ByteBuffer.wrap(buf, next, free);
+				next = fc.read(bb, bBase + next);
+				if (next <= 0)
+					throw new EOFException("Packfile is truncated.");
+				bAvail += next;
+			}
+			return bOffset;
+		}
+
+		private byte[] inflateFromFile(final int sz) throws IOException {
+			try {
+				final byte[] dst = new byte[sz];
+				int n = 0;
+				int p = -1;
+				while (!inf.finished()) {
+					if (inf.needsInput()) {
+						if (p >= 0) {
+							crc.update(buf, p, bAvail);
+							use(bAvail);
+						}
+						p = fillFromFile(1);
+						inf.setInput(buf, p, bAvail);
+					}
+					n += inf.inflate(dst, n, sz - n);
+				}
+				n = bAvail - inf.getRemaining();
+				if (n > 0) {
+					crc.update(buf, p, n);
+					use(n);
+				}
+				return dst;
+			} catch (DataFormatException dfe) {
+				throw corrupt(dfe);
+			} finally {
+				inf.reset();
+			}
+		}
+
+		void release() {
+			InflaterCache.release(inf);
+			curs = WindowCursor.release(curs);
+		}
+	}
+
+	private static class DeltaChain extends ObjectId {
+		/** First REF_DELTA of this base in {@link IndexPack#deltas}. */
+		int head = UnresolvedDeltas.END;
+
+		DeltaChain(final AnyObjectId id) {
+			super(id);
+		}
+
+		synchronized int remove() {
+			final int r = head;
+			head = UnresolvedDeltas.END;
+			return r;
 		}
 	}
 
@@ -57,7 +57,11 @@ static enum AckNackResult {
 		/** ACK */
 		ACK,
 		/** ACK + continue */
-		ACK_CONTINUE
+		ACK_CONTINUE,
+		/** ACK + common */
+		ACK_COMMON,
+		/** ACK + ready */
+		ACK_READY
 	}
 
 	private final InputStream in;
@@ -83,6 +87,10 @@ AckNackResult readACK(final MutableObjectId returnedId) throws IOException {
 			returnedId.fromString(line.substring(4, 44));
 			if (line.indexOf("continue", 44) != -1)
 				return AckNackResult.ACK_CONTINUE;
+			if (line.indexOf("common", 44) != -1)
+				return AckNackResult.ACK_COMMON;
+			if (line.indexOf("ready", 44) != -1)
+				return AckNackResult.ACK_READY;
 			return AckNackResult.ACK;
 		}
 		throw new PackProtocolException("Expected ACK/NAK, got: " + line);
@@ -118,6 +126,10 @@ String readStringRaw() throws IOException {
 
 	int readLength() throws IOException {
 		NB.readFully(in, lenbuffer, 0, 4);
+		return parseLength(lenbuffer);
+	}
+
+	static int parseLength(final byte[] lenbuffer) throws IOException {
 		try {
 			final int len = RawParseUtils.parseHexInt16(lenbuffer, 0);
 			if (len != 0 && len < 4)
@@ -84,7 +84,11 @@ void flush() throws IOException {
 	private static final byte[] hexchar = { '0', '1', '2', '3', '4', '5', '6',
 			'7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
 
-	private void formatLength(int w) {
+	private void formatLength(final int w) {
+		formatLength(lenbuffer, w);
+	}
+
+	static void formatLength(final byte[] lenbuffer, int w) {
 		int o = 3;
 		while (o >= 0 && w != 0) {
 			lenbuffer[o--] = hexchar[w & 0xf];
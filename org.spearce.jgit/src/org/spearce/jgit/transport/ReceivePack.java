@@ -51,23 +51,33 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.errors.PackProtocolException;
+import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.Config;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.NullProgressMonitor;
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectIdSubclassMap;
+import org.spearce.jgit.lib.PackConfig;
 import org.spearce.jgit.lib.PackLock;
 import org.spearce.jgit.lib.PersonIdent;
+import org.spearce.jgit.lib.ProgressMonitor;
 import org.spearce.jgit.lib.Ref;
 import org.spearce.jgit.lib.RefUpdate;
 import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.WorkQueue;
 import org.spearce.jgit.lib.Config.SectionParser;
 import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevBlob;
 import org.spearce.jgit.revwalk.RevCommit;
 import org.spearce.jgit.revwalk.RevFlag;
 import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevTag;
 import org.spearce.jgit.revwalk.RevWalk;
 import org.spearce.jgit.transport.ReceiveCommand.Result;
 import org.spearce.jgit.util.io.InterruptTimer;
@@ -84,6 +94,8 @@ public class ReceivePack {
 
 	static final String CAPABILITY_OFS_DELTA = BasePackPushConnection.CAPABILITY_OFS_DELTA;
 
+	static final String CAPABILITY_SIDE_BAND_64K = BasePackPushConnection.CAPABILITY_SIDE_BAND_64K;
+
 	/** Database we write the stored objects into. */
 	private final Repository db;
 
@@ -93,6 +105,9 @@ public class ReceivePack {
 	/** Should an incoming transfer validate objects? */
 	private boolean checkReceivedObjects;
 
+	/** Should connectivity be checked from the received objects only? */
+	private boolean incrementalConnectivityCheck;
+
 	/** Should an incoming transfer permit create requests? */
 	private boolean allowCreates;
 
@@ -146,9 +161,18 @@ public class ReceivePack {
 	/** if {@link #enabledCapablities} has {@link #CAPABILITY_REPORT_STATUS} */
 	private boolean reportStatus;
 
+	/** if {@link #enabledCapablities} has {@link #CAPABILITY_SIDE_BAND_64K} */
+	private boolean sideBand;
+
 	/** Lock around the received pack file, while updating refs. */
 	private PackLock packLock;
 
+	/** Objects received in the pack, when checking connectivity. */
+	private ObjectIdSubclassMap<ObjectId> newObjectIds;
+
+	/** Objects outside of the pack its objects refer to, if incremental. */
+	private ObjectIdSubclassMap<ObjectId> referencedObjectIds;
+
 	/**
 	 * Create a new pack receive for an open repository.
 	 *
@@ -161,6 +185,7 @@ public ReceivePack(final Repository into) {
 
 		final ReceiveConfig cfg = db.getConfig().get(ReceiveConfig.KEY);
 		checkReceivedObjects = cfg.checkReceivedObjects;
+		incrementalConnectivityCheck = cfg.incrementalConnectivityCheck;
 		allowCreates = cfg.allowCreates;
 		allowDeletes = cfg.allowDeletes;
 		allowNonFastForwards = cfg.allowNonFastForwards;
@@ -178,6 +203,8 @@ public ReceiveConfig parse(final Config cfg) {
 
 		final boolean checkReceivedObjects;
 
+		final boolean incrementalConnectivityCheck;
+
 		final boolean allowCreates;
 
 		final boolean allowDeletes;
@@ -189,6 +216,8 @@ public ReceiveConfig parse(final Config cfg) {
 		ReceiveConfig(final Config config) {
 			checkReceivedObjects = config.getBoolean("receive", "fsckobjects",
 					false);
+			incrementalConnectivityCheck = config.getBoolean("receive",
+					"incrementalconnectivity", false);
 			allowCreates = true;
 			allowDeletes = !config.getBoolean("receive", "denydeletes", false);
 			allowNonFastForwards = !config.getBoolean("receive",
@@ -231,6 +260,37 @@ public void setCheckReceivedObjects(final boolean check) {
 		checkReceivedObjects = check;
 	}
 
+	/**
+	 * @return true if the connectivity of received objects is checked only
+	 *         from the links recorded while indexing the pack.
+	 */
+	public boolean isIncrementalConnectivityCheck() {
+		return incrementalConnectivityCheck;
+	}
+
+	/**
+	 * Check connectivity from the received objects only.
+	 * <p>
+	 * When {@link #isCheckReceivedObjects()} is enabled the new history is
+	 * normally walked from each updated ref down to the advertised refs,
+	 * which also marks every tree of the advertised boundary as already
+	 * known. With this mode the links of each received commit, tree and tag
+	 * are recorded while the pack is indexed, and only the objects they name
+	 * outside of the pack are examined. Those must already exist, and commits
+	 * among them must be reachable from an advertised ref; if one is not, the
+	 * full walk is used instead.
+	 * <p>
+	 * Trees and blobs already in the repository are trusted to be complete.
+	 * Default setting: <code>receive.incrementalconnectivity</code>, which
+	 * defaults to false.
+	 *
+	 * @param incremental
+	 *            true to check only the links of the received objects.
+	 */
+	public void setIncrementalConnectivityCheck(final boolean incremental) {
+		incrementalConnectivityCheck = incremental;
+	}
+
 	/** @return true if the client can request refs to be created. */
 	public boolean isAllowCreates() {
 		return allowCreates;
@@ -435,16 +495,8 @@ public void receive(final InputStream input, final OutputStream output,
 
 			pckIn = new PacketLineIn(rawIn);
 			pckOut = new PacketLineOut(rawOut);
-			if (messages != null) {
-				msgs = new PrintWriter(new BufferedWriter(
-						new OutputStreamWriter(messages, Constants.CHARSET),
-						8192)) {
-					@Override
-					public void println() {
-						print('\n');
-					}
-				};
-			}
+			if (messages != null)
+				msgs = newMessageWriter(messages);
 
 			enabledCapablities = new HashSet<String>();
 			commands = new ArrayList<ReceiveCommand>();
@@ -457,6 +509,8 @@ public void println() {
 				}
 			} finally {
 				unlockPack();
+				newObjectIds = null;
+				referencedObjectIds = null;
 				timeoutIn = null;
 				rawIn = null;
 				rawOut = null;
@@ -477,6 +531,16 @@ public void println() {
 		}
 	}
 
+	private static PrintWriter newMessageWriter(final OutputStream out) {
+		return new PrintWriter(new BufferedWriter(new OutputStreamWriter(out,
+				Constants.CHARSET), 8192)) {
+			@Override
+			public void println() {
+				print('\n');
+			}
+		};
+	}
+
 	private void service() throws IOException {
 		sendAdvertisedRefs();
 		recvCommands();
@@ -521,6 +585,12 @@ void sendString(final String s) throws IOException {
 			}
 
 			postReceive.onPostReceive(this, filterCommands(Result.OK));
+
+			if (sideBand) {
+				msgs.flush();
+				pckOut.flush();
+				new PacketLineOut(rawOut).end();
+			}
 		}
 	}
 
@@ -536,6 +606,7 @@ private void sendAdvertisedRefs() throws IOException {
 		final RefAdvertiser adv = new RefAdvertiser(pckOut, walk, advertised);
 		adv.advertiseCapability(CAPABILITY_DELETE_REFS);
 		adv.advertiseCapability(CAPABILITY_REPORT_STATUS);
+		adv.advertiseCapability(CAPABILITY_SIDE_BAND_64K);
 		if (allowOfsDelta)
 			adv.advertiseCapability(CAPABILITY_OFS_DELTA);
 		refs = new HashMap<String, Ref>(db.getAllRefs());
@@ -588,6 +659,20 @@ private void recvCommands() throws IOException {
 
 	private void enableCapabilities() {
 		reportStatus = enabledCapablities.contains(CAPABILITY_REPORT_STATUS);
+		sideBand = enabledCapablities.contains(CAPABILITY_SIDE_BAND_64K);
+		if (sideBand) {
+			// The status report travels on channel 1, and our messages
+			// on channel 2, instead of the standard error stream.
+			//
+			if (msgs != null)
+				msgs.flush();
+			msgs = newMessageWriter(new SideBandOutputStream(
+					SideBandOutputStream.CH_PROGRESS,
+					SideBandOutputStream.MAX_BUF, rawOut));
+			pckOut = new PacketLineOut(new SideBandOutputStream(
+					SideBandOutputStream.CH_DATA,
+					SideBandOutputStream.MAX_BUF, rawOut));
+		}
 	}
 
 	private boolean needPack() {
@@ -606,10 +691,37 @@ private void receivePack() throws IOException {
 		if (timeoutIn != null)
 			timeoutIn.setTimeout(10 * timeout * 1000);
 
+		ProgressMonitor pm = NullProgressMonitor.INSTANCE;
+		SideBandProgressMonitor progressOut = null;
+		if (sideBand) {
+			progressOut = new SideBandProgressMonitor(new SideBandOutputStream(
+					SideBandOutputStream.CH_PROGRESS,
+					SideBandOutputStream.MAX_BUF, rawOut));
+			pm = progressOut;
+		}
+
 		final IndexPack ip = IndexPack.create(db, rawIn);
 		ip.setFixThin(true);
 		ip.setObjectChecking(isCheckReceivedObjects());
-		ip.index(NullProgressMonitor.INSTANCE);
+		if (isCheckReceivedObjects()) {
+			// The received objects are only worth remembering if the
+			// connectivity check is going to look them up.
+			//
+			final boolean incremental = isIncrementalConnectivityCheck();
+			ip.setNeedNewObjectIds(incremental || isParallelCheck());
+			ip.setNeedReferencedObjectIds(incremental);
+		}
+		try {
+			ip.index(pm);
+		} finally {
+			if (progressOut != null)
+				progressOut.close();
+		}
+		if (isCheckReceivedObjects()) {
+			newObjectIds = ip.getNewObjectIds();
+			if (isIncrementalConnectivityCheck())
+				referencedObjectIds = ip.getReferencedObjectIds();
+		}
 
 		String lockMsg = "jgit receive-pack";
 		if (getRefLogIdent() != null)
@@ -621,17 +733,162 @@ private void receivePack() throws IOException {
 	}
 
 	private void checkConnectivity() throws IOException {
-		final ObjectWalk ow = new ObjectWalk(db);
+		final List<ObjectId> tips = getNewTips();
+		if (referencedObjectIds != null && checkReferencedObjects(tips))
+			return;
+		checkRanges(tips);
+	}
+
+	/** @return distinct new values of the refs still being updated. */
+	private List<ObjectId> getNewTips() {
+		final List<ObjectId> tips = new ArrayList<ObjectId>();
+		final ObjectIdSubclassMap<ObjectId> seen;
+		seen = new ObjectIdSubclassMap<ObjectId>();
 		for (final ReceiveCommand cmd : commands) {
 			if (cmd.getResult() != Result.NOT_ATTEMPTED)
 				continue;
 			if (cmd.getType() == ReceiveCommand.Type.DELETE)
 				continue;
-			ow.markStart(ow.parseAny(cmd.getNewId()));
+			if (seen.get(cmd.getNewId()) == null) {
+				seen.add(cmd.getNewId());
+				tips.add(cmd.getNewId());
+			}
 		}
+		return tips;
+	}
+
+	private boolean isParallelCheck() {
+		return 1 < Math.min(getNewTips().size(), getThreadCount());
+	}
+
+	/**
+	 * Check the objects named by, but missing from, the received pack.
+	 *
+	 * @param tips
+	 *            new values of the refs being updated.
+	 * @return true if the received objects are connected; false if a commit
+	 *         they depend on is not reachable from an advertised ref, and the
+	 *         new history must be walked to be sure it is complete.
+	 * @throws IOException
+	 *             a referenced object is missing, or could not be read.
+	 */
+	private boolean checkReferencedObjects(final List<ObjectId> tips)
+			throws IOException {
+		for (final ObjectId id : referencedObjectIds) {
+			if (!db.hasObject(id))
+				throw new MissingObjectException(id, "object");
+		}
+
+		// Only the received commits are parsed, to find the commits
+		// outside of the pack the new history starts from.
+		//
+		final RevWalk rw = new RevWalk(db);
+		final RevFlag seen = rw.newFlag("SEEN");
+		final List<RevObject> todo = new ArrayList<RevObject>();
+		boolean outsideCommits = false;
+		for (final ObjectId id : tips)
+			todo.add(rw.parseAny(id));
+		while (!todo.isEmpty()) {
+			final RevObject o = todo.remove(todo.size() - 1);
+			if (o.has(seen))
+				continue;
+			o.add(seen);
+			rw.parseHeaders(o);
+
+			if (o instanceof RevTag) {
+				todo.add(((RevTag) o).getObject());
+			} else if (o instanceof RevCommit) {
+				final RevCommit c = (RevCommit) o;
+				if (isReceived(c)) {
+					for (final RevCommit p : c.getParents())
+						todo.add(p);
+				} else {
+					rw.markStart(c);
+					outsideCommits = true;
+				}
+			}
+		}
+		if (!outsideCommits)
+			return true;
+
+		// Commits that are not in the pack are accepted only if they are
+		// reachable from an advertised ref, whose history is complete. A
+		// commit left behind by an earlier, rejected push may not be.
+		//
+		for (final Ref ref : refs.values()) {
+			final RevObject o = rw.parseAny(ref.getObjectId());
+			if (o instanceof RevCommit)
+				rw.markUninteresting((RevCommit) o);
+		}
+		return rw.next() == null;
+	}
+
+	/**
+	 * Walk the new history down to the advertised refs.
+	 * <p>
+	 * With more than one thread the history leading to each distinct new
+	 * value is walked on its own, so several refs are checked at once. Each
+	 * walk marks the trees of the advertised boundary again, trading CPU
+	 * time for a shorter wait; a single thread walks all of them together.
+	 * The parallel walks do not look up the blobs received in the pack again,
+	 * as the pack's objects were recorded for them while indexing.
+	 *
+	 * @param tips
+	 *            new values of the refs being updated.
+	 * @throws IOException
+	 *             an object is missing, or could not be read.
+	 */
+	private void checkRanges(final List<ObjectId> tips) throws IOException {
+		final int n = Math.min(tips.size(), getThreadCount());
+		if (n <= 1) {
+			checkRange(tips);
+			return;
+		}
+
+		final ExecutorService pool = WorkQueue.getExecutor();
+		final List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+		try {
+			for (final ObjectId id : tips) {
+				tasks.add(pool.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						checkRange(Collections.singletonList(id));
+						return null;
+					}
+				}));
+			}
+			for (final Future<Object> t : tasks)
+				WorkQueue.get(t);
+		} finally {
+			for (final Future<Object> t : tasks)
+				t.cancel(false);
+			WorkQueue.waitForAll(tasks);
+		}
+	}
+
+	private void checkRange(final List<ObjectId> tips) throws IOException {
+		final ObjectWalk ow = new ObjectWalk(db);
+		for (final ObjectId id : tips)
+			ow.markStart(ow.parseAny(id));
 		for (final Ref ref : refs.values())
 			ow.markUninteresting(ow.parseAny(ref.getObjectId()));
-		ow.checkConnectivity();
+
+		while (ow.next() != null) {
+			// Parsing the commits is the check.
+		}
+		RevObject o;
+		while ((o = ow.nextObject()) != null) {
+			if (o instanceof RevBlob && !isReceived(o) && !db.hasObject(o))
+				throw new MissingObjectException(o, Constants.TYPE_BLOB);
+		}
+	}
+
+	private boolean isReceived(final AnyObjectId id) {
+		return newObjectIds != null && newObjectIds.get(id) != null;
+	}
+
+	private int getThreadCount() {
+		final PackConfig pc = db.getConfig().get(PackConfig.KEY);
+		return WorkQueue.getThreadCount(pc.getThreads());
 	}
 
 	private void validateCommands() {
@@ -41,11 +41,13 @@
 import java.io.OutputStream;
 
 /**
- * Multiplexes data and progress messages
+ * Multiplexes data and progress messages.
  * <p>
- * To correctly use this class you must wrap it in a BufferedOutputStream with a
- * buffer size no larger than either {@link #SMALL_BUF} or {@link #MAX_BUF},
- * minus {@link #HDR_SIZE}.
+ * This stream is buffered at packet granularity: whole packets of the size
+ * given to the constructor are written as soon as they fill, and a partial
+ * packet is written by {@link #flush()}. Several channels may share the same
+ * underlying stream, even from different threads, as each packet is written
+ * while holding the underlying stream's monitor.
  */
 class SideBandOutputStream extends OutputStream {
 	static final int CH_DATA = SideBandInputStream.CH_DATA;
@@ -62,32 +64,95 @@ class SideBandOutputStream extends OutputStream {
 
 	private final int channel;
 
-	private final PacketLineOut pckOut;
+	private final OutputStream out;
 
-	private byte[] singleByteBuffer;
+	/** Packet being assembled; the header is formatted when it is written. */
+	private final byte[] buffer;
+
+	/** Number of bytes in {@link #buffer}, including the header. */
+	private int cnt;
+
+	/**
+	 * Create a stream that writes one channel as side band packets.
+	 *
+	 * @param chan
+	 *            channel number to prefix each packet with.
+	 * @param sz
+	 *            maximum size of a packet, including its header. Must be
+	 *            {@link #SMALL_BUF} if the client asked for "side-band", and
+	 *            may be up to {@link #MAX_BUF} for "side-band-64k".
+	 * @param os
+	 *            stream the packets are written to.
+	 */
+	SideBandOutputStream(final int chan, final int sz, final OutputStream os) {
+		if (chan <= 0 || chan > 255)
+			throw new IllegalArgumentException("channel " + chan
+					+ " must be in range [1, 255]");
+		if (sz <= HDR_SIZE || sz > MAX_BUF)
+			throw new IllegalArgumentException("packet size " + sz
+					+ " must be in range [" + (HDR_SIZE + 1) + ", " + MAX_BUF
+					+ "]");
 
-	SideBandOutputStream(final int chan, final PacketLineOut out) {
 		channel = chan;
-		pckOut = out;
+		out = os;
+		buffer = new byte[sz];
+		buffer[4] = (byte) chan;
+		cnt = HDR_SIZE;
 	}
 
 	@Override
 	public void flush() throws IOException {
-		if (channel != CH_DATA)
-			pckOut.flush();
+		if (HDR_SIZE < cnt)
+			writeBuffer();
+		if (channel != CH_DATA) {
+			synchronized (out) {
+				out.flush();
+			}
+		}
 	}
 
 	@Override
-	public void write(final byte[] b, final int off, final int len)
-			throws IOException {
-		pckOut.writeChannelPacket(channel, b, off, len);
+	public void write(final byte[] b, int off, int len) throws IOException {
+		while (0 < len) {
+			final int capacity = buffer.length - cnt;
+			if (cnt == HDR_SIZE && capacity <= len) {
+				// Our buffer is empty, but the caller has a full packet.
+				// Send it directly from their buffer instead of copying.
+				//
+				final byte[] hdr = new byte[HDR_SIZE];
+				PacketLineOut.formatLength(hdr, buffer.length);
+				hdr[4] = (byte) channel;
+				synchronized (out) {
+					out.write(hdr, 0, HDR_SIZE);
+					out.write(b, off, capacity);
+				}
+				off += capacity;
+				len -= capacity;
+
+			} else {
+				final int n = Math.min(len, capacity);
+				System.arraycopy(b, off, buffer, cnt, n);
+				cnt += n;
+				off += n;
+				len -= n;
+				if (cnt == buffer.length)
+					writeBuffer();
+			}
+		}
 	}
 
 	@Override
 	public void write(final int b) throws IOException {
-		if (singleByteBuffer == null)
-			singleByteBuffer = new byte[1];
-		singleByteBuffer[0] = (byte) b;
-		write(singleByteBuffer);
+		buffer[cnt++] = (byte) b;
+		if (cnt == buffer.length)
+			writeBuffer();
+	}
+
+	private void writeBuffer() throws IOException {
+		PacketLineOut.formatLength(buffer, cnt);
+		synchronized (out) {
+			out.write(buffer, 0, cnt);
+		}
+		cnt = HDR_SIZE;
 	}
 }
@@ -37,22 +37,49 @@
 
 package org.spearce.jgit.transport;
 
-import java.io.BufferedOutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.ProgressMonitor;
 
-/** Write progress messages out to the sideband channel. */
+/**
+ * Write progress messages out to the sideband channel.
+ * <p>
+ * A timer marks a message as due at most every {@link #INTERVAL}
+ * milliseconds, and the next {@link #update(int)} writes it. The messages are
+ * thus written by the thread doing the work, between the packets it sends,
+ * and a client that stops reading only ever blocks its own connection. One
+ * timer thread is shared by all monitors of the process; it never writes.
+ * <p>
+ * Like the other monitors this class is not thread safe. Work done by other
+ * threads should be reported through a
+ * {@link org.spearce.jgit.lib.ThreadSafeProgressMonitor}. Callers must
+ * {@link #close()} the monitor to stop its timer.
+ */
 class SideBandProgressMonitor implements ProgressMonitor {
-	private PrintWriter out;
+	/** Milliseconds a task runs before its progress is shown. */
+	static final int DELAY = 500;
 
-	private boolean output;
+	/** Milliseconds between progress messages of a task. */
+	static final int INTERVAL = 500;
+
+	private static final Timer timer = new Timer("JGit-Progress", true);
+
+	private final OutputStream out;
+
+	private TimerTask ticker;
+
+	/** Set by the timer when the next update should write a message. */
+	private volatile boolean pending;
+
+	private boolean closed;
 
 	private long taskBeganAt;
 
-	private long lastOutput;
+	private boolean output;
 
 	private String msg;
 
@@ -60,18 +87,19 @@ class SideBandProgressMonitor implements ProgressMonitor {
 
 	private int totalWork;
 
-	SideBandProgressMonitor(final PacketLineOut pckOut) {
-		final int bufsz = SideBandOutputStream.SMALL_BUF
-				- SideBandOutputStream.HDR_SIZE;
-		out = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(
-				new SideBandOutputStream(SideBandOutputStream.CH_PROGRESS,
-						pckOut), bufsz), Constants.CHARSET));
+	/**
+	 * Create a monitor writing to a progress channel.
+	 *
+	 * @param os
+	 *            the {@link SideBandOutputStream#CH_PROGRESS} stream, which
+	 *            must be flushed to send its messages.
+	 */
+	SideBandProgressMonitor(final OutputStream os) {
+		out = os;
 	}
 
 	public void start(final int totalTasks) {
 		// Ignore the number of tasks.
-		taskBeganAt = System.currentTimeMillis();
-		lastOutput = taskBeganAt;
 	}
 
 	public void beginTask(final String title, final int total) {
@@ -79,33 +107,58 @@ public void beginTask(final String title, final int total) {
 		msg = title;
 		lastWorked = 0;
 		totalWork = total;
+		taskBeganAt = System.currentTimeMillis();
+		output = false;
+		pending = false;
+		if (ticker == null && !closed) {
+			ticker = new TimerTask() {
+				@Override
+				public void run() {
+					pending = true;
+				}
+			};
+			timer.schedule(ticker, INTERVAL, INTERVAL);
+		}
 	}
 
 	public void update(final int completed) {
+		lastWorked += completed;
+		if (pending) {
+			pending = false;
+			if (msg != null
+					&& DELAY <= System.currentTimeMillis() - taskBeganAt) {
+				send(format(lastWorked, "   \r"));
+				output = true;
+			}
+		}
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public void endTask() {
 		if (msg == null)
 			return;
+		if (output) {
+			if (totalWork == UNKNOWN)
+				send(format(lastWorked, ", done\n"));
+			else
+				send(format(totalWork, "\n"));
+		}
+		msg = null;
+	}
 
-		final int cmp = lastWorked + completed;
-		final long now = System.currentTimeMillis();
-		if (!output && now - taskBeganAt < 500)
-			return;
-		if (totalWork == UNKNOWN) {
-			if (now - lastOutput >= 500) {
-				display(cmp, null);
-				lastOutput = now;
-			}
-		} else {
-			if ((cmp * 100 / totalWork) != (lastWorked * 100) / totalWork
-					|| now - lastOutput >= 500) {
-				display(cmp, null);
-				lastOutput = now;
-			}
+	/** Stop this monitor's messages; no further messages are written. */
+	void close() {
+		closed = true;
+		if (ticker != null) {
+			ticker.cancel();
+			ticker = null;
 		}
-		lastWorked = cmp;
-		output = true;
 	}
 
-	private void display(final int cmp, final String eol) {
+	private String format(final int cmp, final String eol) {
 		final StringBuilder m = new StringBuilder();
 		m.append(msg);
 		m.append(": ");
@@ -125,26 +178,21 @@ private void display(final int cmp, final String eol) {
 			m.append(totalWork);
 			m.append(")");
 		}
-		if (eol != null)
-			m.append(eol);
-		else
-			m.append("   \r");
-		out.print(m);
-		out.flush();
+		m.append(eol);
+		return m.toString();
 	}
 
-	public boolean isCancelled() {
-		return false;
-	}
-
-	public void endTask() {
-		if (output) {
-			if (totalWork == UNKNOWN)
-				display(lastWorked, ", done\n");
-			else
-				display(totalWork, "\n");
+	private void send(final String m) {
+		if (closed)
+			return;
+		try {
+			out.write(Constants.encode(m));
+			out.flush();
+		} catch (IOException err) {
+			// The peer is gone. The next write of the data finds out,
+			// and reports the failure.
+			//
+			closed = true;
 		}
-		output = false;
-		msg = null;
 	}
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevFlag;
+import org.spearce.jgit.revwalk.RevWalk;
+
+/**
+ * Offers commits at doubling intervals, and searches gaps again on ACK.
+ * <p>
+ * Lines of history are walked newest first, but after each commit offered the
+ * number of commits skipped before offering the next one on the same line
+ * doubles: 1, 2, 4, 8, ... A client thousands of commits behind thus reaches
+ * the shared history after a few dozen "have" lines.
+ * <p>
+ * When the remote acknowledges a commit, the commits skipped above it may be
+ * common as well. The walk restarts below the last commit offered before it on
+ * that line, with short steps again, until it meets the acknowledged history.
+ * The remote may declare itself ready before such a gap has been searched,
+ * in which case the pack includes the commits of the gap the client already
+ * had.
+ */
+class SkippingNegotiator extends FetchNegotiator {
+	private static final Comparator<Entry> NEWEST_FIRST = new Comparator<Entry>() {
+		public int compare(final Entry a, final Entry b) {
+			final int at = a.commit.getCommitTime();
+			final int bt = b.commit.getCommitTime();
+			return at > bt ? -1 : at < bt ? 1 : 0;
+		}
+	};
+
+	private RevWalk walk;
+
+	private RevFlag common;
+
+	private RevFlag advertised;
+
+	/** Marks commits whose headers were parsed to queue them. */
+	private RevFlag seen;
+
+	/** Marks commits taken out of {@link #queue}. */
+	private RevFlag popped;
+
+	private PriorityQueue<Entry> queue;
+
+	/** Entries still in {@link #queue}, by commit. */
+	private Map<RevCommit, Entry> queued;
+
+	/** For each commit offered, the previous one offered on its line. */
+	private Map<RevCommit, RevCommit> offeredBelow;
+
+	@Override
+	public void init(final RevWalk w, final Collection<RevCommit> tips,
+			final RevFlag common, final RevFlag advertised) throws IOException {
+		walk = w;
+		this.common = common;
+		this.advertised = advertised;
+		seen = walk.newFlag("SEEN");
+		popped = walk.newFlag("POPPED");
+
+		queue = new PriorityQueue<Entry>(64, NEWEST_FIRST);
+		queued = new HashMap<RevCommit, Entry>();
+		offeredBelow = new HashMap<RevCommit, RevCommit>();
+		for (final RevCommit c : tips) {
+			if (!c.has(seen))
+				push(c, 0, 0, null);
+		}
+	}
+
+	@Override
+	public RevCommit next() throws IOException {
+		for (;;) {
+			final Entry e = queue.poll();
+			if (e == null)
+				return null;
+			final RevCommit c = e.commit;
+			queued.remove(c);
+			c.add(popped);
+
+			if (c.has(common)) {
+				// Its history is common as well, no need to look at it.
+				//
+				continue;
+			}
+
+			if (c.has(advertised)) {
+				// The remote has this, but doesn't know we do.
+				//
+				markCommon(c);
+				return c;
+			}
+
+			boolean parentPushed = false;
+			for (final RevCommit p : c.getParents())
+				parentPushed |= pushParent(e, p);
+
+			if (e.ttl == 0 || !parentPushed) {
+				// Either it is time to offer one, or this is the end of
+				// the line (a root, or parents already passed due to
+				// clock skew) and we shouldn't skip over it.
+				//
+				offeredBelow.put(c, e.offered);
+				return c;
+			}
+		}
+	}
+
+	@Override
+	public void ack(final RevCommit c) throws IOException {
+		markCommon(c);
+
+		final RevCommit above = offeredBelow.get(c);
+		if (above != null && !above.has(common))
+			backfill(above, c.getCommitTime());
+	}
+
+	private boolean pushParent(final Entry child, final RevCommit p)
+			throws IOException {
+		if (p.has(popped))
+			return false;
+
+		final int ttl, span;
+		final RevCommit offered;
+		if (child.ttl == 0) {
+			// The child is being offered, skip twice as many as last time.
+			//
+			span = child.span == 0 ? 1 : child.span * 2;
+			ttl = span;
+			offered = child.commit;
+		} else {
+			span = child.span;
+			ttl = child.ttl - 1;
+			offered = child.offered;
+		}
+
+		final Entry e = queued.get(p);
+		if (e == null)
+			push(p, ttl, span, offered);
+		else if (ttl < e.ttl) {
+			// Reached along several lines; offer it as soon as the
+			// shortest one would.
+			//
+			e.ttl = ttl;
+			e.span = span;
+			e.offered = offered;
+		}
+		return true;
+	}
+
+	private void push(final RevCommit c, final int ttl, final int span,
+			final RevCommit offered) throws IOException {
+		if (!c.has(seen)) {
+			walk.parseHeaders(c);
+			c.add(seen);
+		}
+		final Entry e = new Entry(c, ttl, span, offered);
+		queue.add(e);
+		queued.put(c, e);
+	}
+
+	/**
+	 * Walk the commits skipped between two offers again.
+	 *
+	 * @param above
+	 *            commit offered and not acknowledged.
+	 * @param time
+	 *            commit time of the acknowledged commit offered next below
+	 *            <code>above</code>, bounding the gap.
+	 * @throws IOException
+	 *             the headers of a commit in the gap could not be parsed.
+	 */
+	private void backfill(final RevCommit above, final int time)
+			throws IOException {
+		// Everything in the gap was popped when it was skipped. Allow
+		// it to be queued again, or its line would end right away.
+		//
+		final List<RevCommit> todo = new ArrayList<RevCommit>();
+		for (final RevCommit p : above.getParents())
+			todo.add(p);
+		while (!todo.isEmpty()) {
+			final RevCommit c = todo.remove(todo.size() - 1);
+			if (!c.has(popped) || c.has(common) || c.getCommitTime() < time)
+				continue;
+			c.remove(popped);
+			for (final RevCommit p : c.getParents())
+				todo.add(p);
+		}
+
+		for (final RevCommit p : above.getParents()) {
+			if (p.has(common))
+				continue;
+			final Entry e = queued.get(p);
+			if (e == null)
+				push(p, 0, 0, above);
+			else {
+				e.ttl = 0;
+				e.span = 0;
+				e.offered = above;
+			}
+		}
+	}
+
+	private void markCommon(final RevCommit c) {
+		final List<RevCommit> todo = new ArrayList<RevCommit>();
+		todo.add(c);
+		while (!todo.isEmpty()) {
+			final RevCommit n = todo.remove(todo.size() - 1);
+			if (n.has(common))
+				continue;
+			n.add(common);
+			if (n.has(seen)) {
+				for (final RevCommit p : n.getParents())
+					todo.add(p);
+			}
+		}
+	}
+
+	private static class Entry {
+		final RevCommit commit;
+
+		/** Commits still to skip on this line before offering one. */
+		int ttl;
+
+		/** Number of commits skipped between offers on this line. */
+		int span;
+
+		/** Last commit offered on this line; null if none yet. */
+		RevCommit offered;
+
+		Entry(final RevCommit c, final int ttl, final int span,
+				final RevCommit offered) {
+			commit = c;
+			this.ttl = ttl;
+			this.span = span;
+			this.offered = offered;
+		}
+	}
+}
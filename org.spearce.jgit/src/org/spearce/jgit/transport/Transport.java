@@ -493,6 +493,12 @@ private static String findTrackingRefName(final String remoteName,
 	/** Should fetch request thin-pack if remote repository can produce it. */
 	private boolean fetchThin = DEFAULT_FETCH_THIN;
 
+	/** Selects the commits fetch offers to the remote. */
+	private FetchNegotiator.Factory fetchNegotiator;
+
+	/** Number of commits of history to fetch; 0 for all history. */
+	private int fetchDepth;
+
 	/** Name of the receive pack program, if it must be executed. */
 	private String optionReceivePack = RemoteConfig.DEFAULT_RECEIVE_PACK;
 
@@ -530,6 +536,8 @@ protected Transport(final Repository local, final URIish uri) {
 		this.local = local;
 		this.uri = uri;
 		this.checkFetchedObjects = tc.isFsckObjects();
+		setFetchNegotiator(FetchNegotiator.forName(tc
+				.getNegotiationAlgorithm()));
 	}
 
 	/**
@@ -608,6 +616,55 @@ public void setFetchThin(final boolean fetchThin) {
 		this.fetchThin = fetchThin;
 	}
 
+	/**
+	 * Default setting is taken from <code>fetch.negotiationAlgorithm</code>,
+	 * or is {@link FetchNegotiator#CONSECUTIVE} if that is not set.
+	 *
+	 * @return selects the commits fetch offers to the remote, on transports
+	 *         negotiating what to send.
+	 */
+	public FetchNegotiator.Factory getFetchNegotiator() {
+		return fetchNegotiator;
+	}
+
+	/**
+	 * Set how fetch selects the commits it offers to the remote.
+	 *
+	 * @param negotiator
+	 *            creates the negotiator for each fetch; null to use
+	 *            {@link FetchNegotiator#CONSECUTIVE}.
+	 */
+	public void setFetchNegotiator(final FetchNegotiator.Factory negotiator) {
+		fetchNegotiator = negotiator != null ? negotiator
+				: FetchNegotiator.CONSECUTIVE;
+	}
+
+	/**
+	 * @return number of commits of history fetch asks for along each wanted
+	 *         ref; 0 if the complete history is fetched.
+	 */
+	public int getFetchDepth() {
+		return fetchDepth;
+	}
+
+	/**
+	 * Limit the history a fetch transfers.
+	 * <p>
+	 * Only the native pack transports can limit the history. A depth limited
+	 * fetch records the commits it stops at in the repository's shallow file.
+	 * Fetching again into a shallow repository with a greater depth deepens
+	 * the history already there.
+	 *
+	 * @param depth
+	 *            number of commits to fetch along each wanted ref, counting
+	 *            the commit the ref points to as 1; 0 for all history.
+	 */
+	public void setFetchDepth(final int depth) {
+		if (depth < 0)
+			throw new IllegalArgumentException("Invalid depth " + depth);
+		fetchDepth = depth;
+	}
+
 	/**
 	 * @return true if fetch will verify received objects are formatted
 	 *         correctly. Validating objects requires more CPU time on the
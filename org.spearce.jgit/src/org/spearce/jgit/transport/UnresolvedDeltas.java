@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+/**
+ * Deltas read by {@link IndexPack} and not yet resolved.
+ * <p>
+ * Each delta is stored as its position and CRC in parallel arrays, instead of
+ * as an object, and deltas sharing a base are linked into a list through the
+ * index of the next delta. A list is named by the index of its first delta,
+ * or {@link #END} if it is empty.
+ * <p>
+ * The lists of OFS_DELTAs are found by the position of their base through an
+ * open addressed table. Lists of REF_DELTAs are held by the caller.
+ * <p>
+ * Once all deltas are added, several threads may read the table and each may
+ * {@link #reverse(int)} lists, provided no two threads use the same list.
+ */
+final class UnresolvedDeltas {
+	/** Index ending a list of deltas. */
+	static final int END = -1;
+
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private long[] position;
+
+	private int[] crc;
+
+	private int[] next;
+
+	/** Number of deltas stored. */
+	private int size;
+
+	/** Position of the base of each list; 0 marks an unused slot. */
+	private long[] baseKey;
+
+	/** First delta of each list in {@link #baseKey}. */
+	private int[] baseHead;
+
+	/** Number of bases in {@link #baseKey}. */
+	private int baseCount;
+
+	/** Next {@link #baseCount} to trigger a {@link #grow()}. */
+	private int growAt;
+
+	UnresolvedDeltas() {
+		position = new long[64];
+		crc = new int[64];
+		next = new int[64];
+		baseKey = new long[64];
+		baseHead = new int[64];
+		growAt = (int) (baseKey.length * LOAD_FACTOR);
+	}
+
+	/** @return number of deltas stored. */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Store a delta at the front of a list.
+	 *
+	 * @param pos
+	 *            position of the delta's header in the pack.
+	 * @param crc32
+	 *            CRC of the delta's header and compressed data.
+	 * @param list
+	 *            first delta of the list to add to; {@link #END} to start a
+	 *            new list.
+	 * @return index of the delta, now the first of the list.
+	 */
+	int add(final long pos, final int crc32, final int list) {
+		if (size == position.length) {
+			final int n = size + (size >> 1);
+			position = copyOf(position, n);
+			crc = copyOf(crc, n);
+			next = copyOf(next, n);
+		}
+		position[size] = pos;
+		crc[size] = crc32;
+		next[size] = list;
+		return size++;
+	}
+
+	/**
+	 * Store an OFS_DELTA in the list of its base.
+	 *
+	 * @param base
+	 *            position of the base object in the pack. Must be positive.
+	 * @param pos
+	 *            position of the delta's header in the pack.
+	 * @param crc32
+	 *            CRC of the delta's header and compressed data.
+	 */
+	void addByOffset(final long base, final long pos, final int crc32) {
+		int i = slot(base);
+		if (baseKey[i] == base) {
+			baseHead[i] = add(pos, crc32, baseHead[i]);
+			return;
+		}
+
+		if (++baseCount == growAt) {
+			grow();
+			i = slot(base);
+		}
+		baseKey[i] = base;
+		baseHead[i] = add(pos, crc32, END);
+	}
+
+	/**
+	 * Find the OFS_DELTAs of a base.
+	 *
+	 * @param base
+	 *            position of the base object in the pack.
+	 * @return first delta of the base's list; {@link #END} if none.
+	 */
+	int getByOffset(final long base) {
+		final int i = slot(base);
+		return baseKey[i] == base ? baseHead[i] : END;
+	}
+
+	/**
+	 * @param delta
+	 *            index of a delta.
+	 * @return position of the delta's header in the pack.
+	 */
+	long getPosition(final int delta) {
+		return position[delta];
+	}
+
+	/**
+	 * @param delta
+	 *            index of a delta.
+	 * @return CRC of the delta's header and compressed data.
+	 */
+	int getCRC(final int delta) {
+		return crc[delta];
+	}
+
+	/**
+	 * @param delta
+	 *            index of a delta.
+	 * @return the delta following it in its list; {@link #END} if last.
+	 */
+	int getNext(final int delta) {
+		return next[delta];
+	}
+
+	/**
+	 * Reverse a list in place.
+	 * <p>
+	 * Deltas are added to the front of their list as they are read, so a
+	 * reversed list is in the order the deltas appear in the pack.
+	 *
+	 * @param list
+	 *            first delta of the list.
+	 * @return first delta of the reversed list.
+	 */
+	int reverse(int list) {
+		int tail = END;
+		while (list != END) {
+			final int n = next[list];
+			next[list] = tail;
+			tail = list;
+			list = n;
+		}
+		return tail;
+	}
+
+	private int slot(final long key) {
+		final int mask = baseKey.length - 1;
+		int h = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+		int i = (h ^ (h >>> 16)) & mask;
+		while (baseKey[i] != 0 && baseKey[i] != key)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	private void grow() {
+		final long[] oldKey = baseKey;
+		final int[] oldHead = baseHead;
+
+		baseKey = new long[oldKey.length << 1];
+		baseHead = new int[oldKey.length << 1];
+		growAt = (int) (baseKey.length * LOAD_FACTOR);
+		for (int j = 0; j < oldKey.length; j++) {
+			if (oldKey[j] != 0) {
+				final int i = slot(oldKey[j]);
+				baseKey[i] = oldKey[j];
+				baseHead[i] = oldHead[j];
+			}
+		}
+	}
+
+	private static long[] copyOf(final long[] src, final int len) {
+		final long[] r = new long[len];
+		System.arraycopy(src, 0, r, 0, src.length);
+		return r;
+	}
+
+	private static int[] copyOf(final int[] src, final int len) {
+		final int[] r = new int[len];
+		System.arraycopy(src, 0, r, 0, src.length);
+		return r;
+	}
+}
@@ -37,7 +37,6 @@
 
 package org.spearce.jgit.transport;
 
-import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -74,6 +73,10 @@ public class UploadPack {
 
 	static final String OPTION_MULTI_ACK = BasePackFetchConnection.OPTION_MULTI_ACK;
 
+	static final String OPTION_MULTI_ACK_DETAILED = BasePackFetchConnection.OPTION_MULTI_ACK_DETAILED;
+
+	static final String OPTION_NO_DONE = BasePackFetchConnection.OPTION_NO_DONE;
+
 	static final String OPTION_THIN_PACK = BasePackFetchConnection.OPTION_THIN_PACK;
 
 	static final String OPTION_SIDE_BAND = BasePackFetchConnection.OPTION_SIDE_BAND;
@@ -84,6 +87,8 @@ public class UploadPack {
 
 	static final String OPTION_NO_PROGRESS = BasePackFetchConnection.OPTION_NO_PROGRESS;
 
+	static final String OPTION_SHALLOW = BasePackFetchConnection.OPTION_SHALLOW;
+
 	/** Database we read the objects from. */
 	private final Repository db;
 
@@ -119,6 +124,15 @@ public class UploadPack {
 	/** Objects on both sides, these don't have to be sent. */
 	private final List<RevObject> commonBase = new ArrayList<RevObject>();
 
+	/** Commits the client has without their parents. */
+	private final List<RevCommit> clientShallowCommits = new ArrayList<RevCommit>();
+
+	/** Number of generations the client asked for; 0 for all history. */
+	private int depth;
+
+	/** Commits the pack is cut off at, so their parents are not sent. */
+	private final List<RevCommit> shallowCommits = new ArrayList<RevCommit>();
+
 	/** null if {@link #commonBase} should be examined again. */
 	private Boolean okToGiveUp;
 
@@ -134,9 +148,18 @@ public class UploadPack {
 	/** Marked on objects in {@link #commonBase}. */
 	private final RevFlag COMMON;
 
+	/** Marked on commits in {@link #clientShallowCommits}. */
+	private final RevFlag CLIENT_SHALLOW;
+
+	/** Marked on commits within the {@link #depth} the client asked for. */
+	private final RevFlag IN_DEPTH;
+
 	private final RevFlagSet SAVE;
 
-	private boolean multiAck;
+	private MultiAck multiAck = MultiAck.OFF;
+
+	/** True if the client asked us to start the pack once we are ready. */
+	private boolean noDone;
 
 	/**
 	 * Create a new pack upload for an open repository.
@@ -153,6 +176,8 @@ public UploadPack(final Repository copyFrom) {
 		WANT = walk.newFlag("WANT");
 		PEER_HAS = walk.newFlag("PEER_HAS");
 		COMMON = walk.newFlag("COMMON");
+		CLIENT_SHALLOW = walk.newFlag("CLIENT_SHALLOW");
+		IN_DEPTH = walk.newFlag("IN_DEPTH");
 		walk.carry(PEER_HAS);
 
 		SAVE = new RevFlagSet();
@@ -241,7 +266,17 @@ private void service() throws IOException {
 		recvWants();
 		if (wantAll.isEmpty())
 			return;
-		multiAck = options.contains(OPTION_MULTI_ACK);
+		if (depth > 0)
+			sendShallowCommits();
+		shallowCommits.addAll(clientShallowCommits);
+		walk.assumeShallow(shallowCommits);
+		if (options.contains(OPTION_MULTI_ACK_DETAILED)) {
+			multiAck = MultiAck.DETAILED;
+			noDone = options.contains(OPTION_NO_DONE);
+		} else if (options.contains(OPTION_MULTI_ACK))
+			multiAck = MultiAck.CONTINUE;
+		else
+			multiAck = MultiAck.OFF;
 		negotiate();
 		sendPack();
 	}
@@ -250,11 +285,14 @@ private void sendAdvertisedRefs() throws IOException {
 		final RefAdvertiser adv = new RefAdvertiser(pckOut, walk, ADVERTISED);
 		adv.advertiseCapability(OPTION_INCLUDE_TAG);
 		adv.advertiseCapability(OPTION_MULTI_ACK);
+		adv.advertiseCapability(OPTION_MULTI_ACK_DETAILED);
+		adv.advertiseCapability(OPTION_NO_DONE);
 		adv.advertiseCapability(OPTION_OFS_DELTA);
 		adv.advertiseCapability(OPTION_SIDE_BAND);
 		adv.advertiseCapability(OPTION_SIDE_BAND_64K);
 		adv.advertiseCapability(OPTION_THIN_PACK);
 		adv.advertiseCapability(OPTION_NO_PROGRESS);
+		adv.advertiseCapability(OPTION_SHALLOW);
 		adv.setDerefTags(true);
 		refs = db.getAllRefs();
 		adv.send(refs.values());
@@ -275,6 +313,20 @@ private void recvWants() throws IOException {
 
 			if (line == PacketLineIn.END)
 				break;
+			if (line.startsWith("shallow ") && line.length() == 48) {
+				clientShallow(ObjectId.fromString(line.substring(8)));
+				continue;
+			}
+			if (line.startsWith("deepen ")) {
+				try {
+					depth = Integer.parseInt(line.substring(7));
+				} catch (NumberFormatException e) {
+					depth = 0;
+				}
+				if (depth <= 0)
+					throw new PackProtocolException("invalid " + line);
+				continue;
+			}
 			if (!line.startsWith("want ") || line.length() < 45)
 				throw new PackProtocolException("expected want; got " + line);
 
@@ -318,8 +370,68 @@ else if (o instanceof RevTag) {
 		}
 	}
 
+	private void clientShallow(final ObjectId id) {
+		final RevCommit c;
+		try {
+			c = walk.parseCommit(id);
+		} catch (IOException e) {
+			// The client's history is cut somewhere we don't know about.
+			// It can't matter to the commits we would send.
+			//
+			return;
+		}
+		if (!c.has(CLIENT_SHALLOW)) {
+			c.add(CLIENT_SHALLOW);
+			clientShallowCommits.add(c);
+		}
+	}
+
+	private void sendShallowCommits() throws IOException {
+		// Walk back from the wants one generation at a time. The commits
+		// of the last generation within the depth are the client's new
+		// shallow commits. Shallow commits the client already has above
+		// that generation must now be completed with their parents.
+		//
+		List<RevCommit> generation = new ArrayList<RevCommit>();
+		for (final RevCommit c : wantCommits) {
+			if (!c.has(IN_DEPTH)) {
+				c.add(IN_DEPTH);
+				generation.add(c);
+			}
+		}
+		for (int d = 1; !generation.isEmpty(); d++) {
+			final List<RevCommit> next = new ArrayList<RevCommit>();
+			for (final RevCommit c : generation) {
+				walk.parseHeaders(c);
+				if (d == depth) {
+					if (c.getParentCount() > 0 && !c.has(CLIENT_SHALLOW)) {
+						pckOut.writeString("shallow " + c.name() + "\n");
+						shallowCommits.add(c);
+					}
+					continue;
+				}
+
+				if (c.has(CLIENT_SHALLOW)) {
+					pckOut.writeString("unshallow " + c.name() + "\n");
+					for (final RevCommit p : c.getParents())
+						wantAll.add(p);
+				}
+				for (final RevCommit p : c.getParents()) {
+					if (!p.has(IN_DEPTH)) {
+						p.add(IN_DEPTH);
+						next.add(p);
+					}
+				}
+			}
+			generation = next;
+		}
+		pckOut.end();
+	}
+
 	private void negotiate() throws IOException {
 		ObjectId last = ObjectId.zeroId();
+		boolean gotCommon = false;
+		boolean sentReady = false;
 		for (;;) {
 			String line;
 			try {
@@ -329,31 +441,63 @@ private void negotiate() throws IOException {
 			}
 
 			if (line == PacketLineIn.END) {
-				if (commonBase.isEmpty() || multiAck)
+				if (multiAck == MultiAck.DETAILED && gotCommon && !sentReady
+						&& okToGiveUp()) {
+					// The common objects in this block were enough. Tell
+					// the client it can stop sending haves.
+					//
+					pckOut.writeString("ACK " + last.name() + " ready\n");
+					sentReady = true;
+				}
+				if (commonBase.isEmpty() || multiAck != MultiAck.OFF)
 					pckOut.writeString("NAK\n");
+				if (noDone && sentReady) {
+					// The client won't send "done" after reading "ready",
+					// so conclude the negotiation now. Any block it sent
+					// ahead of this response is left unread.
+					//
+					pckOut.writeString("ACK " + last.name() + "\n");
+					break;
+				}
 				pckOut.flush();
+				gotCommon = false;
+
 			} else if (line.startsWith("have ") && line.length() == 45) {
 				final ObjectId id = ObjectId.fromString(line.substring(5));
 				if (matchHave(id)) {
 					// Both sides have the same object; let the client know.
 					//
-					if (multiAck) {
-						last = id;
+					last = id;
+					gotCommon = true;
+					switch (multiAck) {
+					case OFF:
+						if (commonBase.size() == 1)
+							pckOut.writeString("ACK " + id.name() + "\n");
+						break;
+					case CONTINUE:
 						pckOut.writeString("ACK " + id.name() + " continue\n");
-					} else if (commonBase.size() == 1)
-						pckOut.writeString("ACK " + id.name() + "\n");
+						break;
+					case DETAILED:
+						pckOut.writeString("ACK " + id.name() + " common\n");
+						break;
+					}
 				} else {
 					// They have this object; we don't.
 					//
-					if (multiAck && okToGiveUp())
-						pckOut.writeString("ACK " + id.name() + " continue\n");
+					if (multiAck != MultiAck.OFF && okToGiveUp()) {
+						if (multiAck == MultiAck.DETAILED) {
+							pckOut.writeString("ACK " + id.name() + " ready\n");
+							sentReady = true;
+						} else
+							pckOut.writeString("ACK " + id.name() + " continue\n");
+					}
 				}
 
 			} else if (line.equals("done")) {
 				if (commonBase.isEmpty())
 					pckOut.writeString("NAK\n");
 
-				else if (multiAck)
+				else if (multiAck != MultiAck.OFF)
 					pckOut.writeString("ACK " + last.name() + "\n");
 				break;
 
@@ -433,42 +577,52 @@ private void sendPack() throws IOException {
 				|| options.contains(OPTION_SIDE_BAND_64K);
 
 		ProgressMonitor pm = NullProgressMonitor.INSTANCE;
+		SideBandProgressMonitor progressOut = null;
 		OutputStream packOut = rawOut;
 
 		if (sideband) {
 			int bufsz = SideBandOutputStream.SMALL_BUF;
 			if (options.contains(OPTION_SIDE_BAND_64K))
 				bufsz = SideBandOutputStream.MAX_BUF;
-			bufsz -= SideBandOutputStream.HDR_SIZE;
 
-			packOut = new BufferedOutputStream(new SideBandOutputStream(
-					SideBandOutputStream.CH_DATA, pckOut), bufsz);
-
-			if (progress)
-				pm = new SideBandProgressMonitor(pckOut);
+			packOut = new SideBandOutputStream(SideBandOutputStream.CH_DATA,
+					bufsz, rawOut);
+			if (progress) {
+				progressOut = new SideBandProgressMonitor(
+						new SideBandOutputStream(
+								SideBandOutputStream.CH_PROGRESS, bufsz,
+								rawOut));
+				pm = progressOut;
+			}
 		}
 
-		final PackWriter pw;
-		pw = new PackWriter(db, pm, NullProgressMonitor.INSTANCE);
-		pw.setDeltaBaseAsOffset(options.contains(OPTION_OFS_DELTA));
-		pw.setThin(thin);
-		pw.preparePack(wantAll, commonBase);
-		if (options.contains(OPTION_INCLUDE_TAG)) {
-			for (final Ref r : refs.values()) {
-				final RevObject o;
-				try {
-					o = walk.parseAny(r.getObjectId());
-				} catch (IOException e) {
-					continue;
+		try {
+			final PackWriter pw;
+			pw = new PackWriter(db, pm, NullProgressMonitor.INSTANCE);
+			pw.setDeltaBaseAsOffset(options.contains(OPTION_OFS_DELTA));
+			pw.setThin(thin);
+			pw.setShallowCommits(shallowCommits);
+			pw.preparePack(wantAll, commonBase);
+			if (options.contains(OPTION_INCLUDE_TAG)) {
+				for (final Ref r : refs.values()) {
+					final RevObject o;
+					try {
+						o = walk.parseAny(r.getObjectId());
+					} catch (IOException e) {
+						continue;
+					}
+					if (o.has(WANT) || !(o instanceof RevTag))
+						continue;
+					final RevTag t = (RevTag) o;
+					if (!pw.willInclude(t) && pw.willInclude(t.getObject()))
+						pw.addObject(t);
 				}
-				if (o.has(WANT) || !(o instanceof RevTag))
-					continue;
-				final RevTag t = (RevTag) o;
-				if (!pw.willInclude(t) && pw.willInclude(t.getObject()))
-					pw.addObject(t);
 			}
+			pw.writePack(packOut);
+		} finally {
+			if (progressOut != null)
+				progressOut.close();
 		}
-		pw.writePack(packOut);
 
 		if (sideband) {
 			packOut.flush();
@@ -477,4 +631,13 @@ private void sendPack() throws IOException {
 			rawOut.flush();
 		}
 	}
+
+	private static enum MultiAck {
+		/** Only the first common object is acknowledged. */
+		OFF,
+		/** multi_ack: every common object is acknowledged. */
+		CONTINUE,
+		/** multi_ack_detailed: common objects and readiness are reported. */
+		DETAILED;
+	}
 }
@@ -630,16 +630,20 @@ private void saveLooseObject(final AnyObjectId id, final byte[] compressed)
 		}
 
 		final File o = local.toFile(id);
-		if (tmp.renameTo(o))
+		if (tmp.renameTo(o)) {
+			local.getObjectDatabase().objectsAdded();
 			return;
+		}
 
 		// Maybe the directory doesn't exist yet as the object
 		// directories are always lazily created. Note that we
 		// try the rename first as the directory likely does exist.
 		//
 		o.getParentFile().mkdir();
-		if (tmp.renameTo(o))
+		if (tmp.renameTo(o)) {
+			local.getObjectDatabase().objectsAdded();
 			return;
+		}
 
 		tmp.delete();
 		if (local.hasObject(id))
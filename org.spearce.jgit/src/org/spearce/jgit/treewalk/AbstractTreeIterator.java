@@ -396,6 +396,26 @@ public String getEntryPathString() {
 		return TreeWalk.pathOf(this);
 	}
 
+	/**
+	 * Get a hash of the current entry's path, without converting it to a
+	 * string.
+	 * <p>
+	 * Only the last 16 characters of the path contribute, so files with the
+	 * same name in different directories hash close together. Spaces are
+	 * ignored.
+	 *
+	 * @return hash code of the current entry's path.
+	 */
+	public int getEntryPathHashCode() {
+		int hash = 0;
+		for (int i = Math.max(0, pathLen - 16); i < pathLen; i++) {
+			final byte c = path[i];
+			if (c != ' ')
+				hash = (hash >>> 2) + (c << 24);
+		}
+		return hash;
+	}
+
 	/**
 	 * Get the byte array buffer object IDs must be copied out of.
 	 * <p>